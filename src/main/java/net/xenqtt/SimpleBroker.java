@@ -15,22 +15,24 @@
  */
 package net.xenqtt;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.channels.ClosedChannelException;
+import java.net.URI;
 import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
-import java.util.concurrent.CountDownLatch;
 
 import net.xenqtt.message.ChannelManager;
+import net.xenqtt.message.ChannelManagerConfig;
 import net.xenqtt.message.ChannelManagerImpl;
 import net.xenqtt.message.MessageHandler;
 import net.xenqtt.message.MqttMessage;
+import net.xenqtt.message.UnixSockets;
 
 /**
  * Simple broker implementation. Can be used as the base class for more advanced broker implementations. Handles accepting new connections and adding them to a
- * {@link ChannelManager}.
+ * {@link ChannelManager}. Connections are accepted by the channel manager's IO threads (see
+ * {@link ChannelManager#acceptBrokerChannels(ServerSocketChannel, MessageHandler)}) so no thread is dedicated to accepting them.
  */
 public class SimpleBroker {
 
@@ -39,14 +41,18 @@ public class SimpleBroker {
 	 */
 	protected final ChannelManager manager;
 
-	private final CountDownLatch readyLatch = new CountDownLatch(1);
 	private final ServerSocketChannel server;
-	private final Thread serverThread = new ServerThread();
+	private final int acceptBacklog;
+	private final String memoryBrokerName;
+	// the path of the UNIX domain socket the broker listens on. Null if the broker does not listen on a UNIX domain socket.
+	private final String unixSocketPath;
+	// the path clients connect to through shared memory. Null if the broker does not accept shared memory connections.
+	private final String sharedMemoryPath;
+	// true if the broker accepts TLS connections on its port
+	private final boolean ssl;
 
-	private MessageHandler messageHandler;
-
-	private volatile Exception ioException;
 	private volatile int port;
+	private volatile boolean unixSocketBound;
 
 	/**
 	 * @param messageResendIntervalSeconds
@@ -56,49 +62,215 @@ public class SimpleBroker {
 	 *            {@link #init()}.
 	 */
 	public SimpleBroker(long messageResendIntervalSeconds, int port) {
+		this(messageResendIntervalSeconds, port, 1);
+	}
+
+	/**
+	 * @param messageResendIntervalSeconds
+	 *            Seconds between attempts to resend a message that is {@link MqttMessage#isAckable()}. 0 to disable message resends.
+	 * @param port
+	 *            The port for the server to listen on. 0 will choose an arbitrary available port which you can get from {@link #getPort()} after calling
+	 *            {@link #init()}.
+	 * @param ioThreadCount
+	 *            The number of IO threads the {@link ChannelManager} spreads broker channels across. The {@link MessageHandler} must not touch any channel other
+	 *            than the one it was invoked for if this is > 1.
+	 */
+	public SimpleBroker(long messageResendIntervalSeconds, int port, int ioThreadCount) {
+		this(messageResendIntervalSeconds, port, new ChannelManagerConfig().setIoThreadCount(ioThreadCount), 0);
+	}
+
+	/**
+	 * @param messageResendIntervalSeconds
+	 *            Seconds between attempts to resend a message that is {@link MqttMessage#isAckable()}. 0 to disable message resends.
+	 * @param port
+	 *            The port for the server to listen on. 0 will choose an arbitrary available port which you can get from {@link #getPort()} after calling
+	 *            {@link #init()}.
+	 * @param config
+	 *            The configuration for the {@link ChannelManager}. {@link ChannelManagerConfig#getAcceptorCount()} IO threads accept connections. The
+	 *            {@link MessageHandler} must not touch any channel other than the one it was invoked for if the IO thread count is > 1.
+	 * @param acceptBacklog
+	 *            The maximum number of connections the operating system queues while they wait to be accepted. Raise this for brokers that must handle many
+	 *            clients connecting at once. 0 for the system default.
+	 */
+	public SimpleBroker(long messageResendIntervalSeconds, int port, ChannelManagerConfig config, int acceptBacklog) {
 
 		XenqttUtil.validateGreaterThanOrEqualTo("messageResendIntervalSeconds", messageResendIntervalSeconds, 0);
 		this.port = XenqttUtil.validateInRange("port", port, 0, 65535);
+		XenqttUtil.validateNotNull("config", config);
+		this.acceptBacklog = XenqttUtil.validateGreaterThanOrEqualTo("acceptBacklog", acceptBacklog, 0);
+		this.memoryBrokerName = null;
+		this.unixSocketPath = null;
+		this.sharedMemoryPath = null;
+		this.ssl = false;
 
 		try {
-			this.manager = new ChannelManagerImpl(messageResendIntervalSeconds);
+			this.manager = new ChannelManagerImpl(messageResendIntervalSeconds, -1, config);
 			server = ServerSocketChannel.open();
 		} catch (IOException e) {
 			throw new RuntimeException("Failed to create " + getClass().getSimpleName(), e);
 		}
 	}
 
+	/**
+	 * Creates a broker that accepts in-memory connections from clients in the same JVM instead of listening on a port. Clients connect to
+	 * mem://memoryBrokerName, which is also what {@link #getURI()} returns. No sockets are used.
+	 * 
+	 * @param messageResendIntervalSeconds
+	 *            Seconds between attempts to resend a message that is {@link MqttMessage#isAckable()}. 0 to disable message resends.
+	 * @param memoryBrokerName
+	 *            The name clients connect to. Only one broker in the JVM may use a name at a time.
+	 * @param config
+	 *            The configuration for the {@link ChannelManager}. The {@link MessageHandler} must not touch any channel other than the one it was invoked for
+	 *            if the IO thread count is > 1.
+	 */
+	public SimpleBroker(long messageResendIntervalSeconds, String memoryBrokerName, ChannelManagerConfig config) {
+
+		XenqttUtil.validateGreaterThanOrEqualTo("messageResendIntervalSeconds", messageResendIntervalSeconds, 0);
+		this.memoryBrokerName = XenqttUtil.validateNotEmpty("memoryBrokerName", memoryBrokerName);
+		XenqttUtil.validateNotNull("config", config);
+		this.acceptBacklog = 0;
+		this.unixSocketPath = null;
+		this.sharedMemoryPath = null;
+		this.ssl = false;
+		this.server = null;
+		this.manager = new ChannelManagerImpl(messageResendIntervalSeconds, -1, config);
+	}
+
+	/**
+	 * Creates a broker that listens on the specified URI. Supported URIs are:
+	 * <ul>
+	 * <li>tcp://host:port - Listens on the port on all interfaces. Port 0 chooses an arbitrary available port which you can get from {@link #getPort()} after
+	 * calling {@link #init()}.</li>
+	 * <li>ssl://host:port - The same as tcp://host:port except connections use TLS with the key material in the config's
+	 * {@link ChannelManagerConfig#getSslContext() SSL context}.</li>
+	 * <li>unix:///path/to/socket - Listens on a UNIX domain socket. This requires Java 16 or later. The socket file must not exist. It is created by
+	 * {@link #init(MessageHandler, String)} and deleted by {@link #shutdown(long)}.</li>
+	 * <li>shm:///path/to/broker - Accepts shared memory connections from clients in other processes on the same host. The path must not exist. It is
+	 * created by {@link #init(MessageHandler, String)} and deleted by {@link #shutdown(long)}. Each connection is a memory mapped file created next to it.</li>
+	 * <li>mem://brokerName - Accepts in-memory connections from clients in the same JVM. See {@link #SimpleBroker(long, String, ChannelManagerConfig)}.</li>
+	 * </ul>
+	 * 
+	 * @param messageResendIntervalSeconds
+	 *            Seconds between attempts to resend a message that is {@link MqttMessage#isAckable()}. 0 to disable message resends.
+	 * @param uri
+	 *            The URI to listen on
+	 * @param config
+	 *            The configuration for the {@link ChannelManager}. {@link ChannelManagerConfig#getAcceptorCount()} IO threads accept connections. The
+	 *            {@link MessageHandler} must not touch any channel other than the one it was invoked for if the IO thread count is > 1.
+	 * @param acceptBacklog
+	 *            The maximum number of connections the operating system queues while they wait to be accepted. 0 for the system default.
+	 */
+	public SimpleBroker(long messageResendIntervalSeconds, URI uri, ChannelManagerConfig config, int acceptBacklog) {
+
+		XenqttUtil.validateGreaterThanOrEqualTo("messageResendIntervalSeconds", messageResendIntervalSeconds, 0);
+		XenqttUtil.validateNotNull("uri", uri);
+		XenqttUtil.validateNotNull("config", config);
+		this.acceptBacklog = XenqttUtil.validateGreaterThanOrEqualTo("acceptBacklog", acceptBacklog, 0);
+
+		this.ssl = "ssl".equals(uri.getScheme());
+		if ("tcp".equals(uri.getScheme()) || ssl) {
+			this.port = XenqttUtil.validateInRange("port", uri.getPort(), 0, 65535);
+			this.unixSocketPath = null;
+			this.sharedMemoryPath = null;
+			this.memoryBrokerName = null;
+		} else if ("unix".equals(uri.getScheme()) && uri.getPath() != null) {
+			if (!UnixSockets.isSupported()) {
+				throw new UnsupportedOperationException("UNIX domain sockets are not supported by this JVM: " + uri);
+			}
+			this.unixSocketPath = uri.getPath();
+			this.sharedMemoryPath = null;
+			this.memoryBrokerName = null;
+		} else if ("shm".equals(uri.getScheme()) && uri.getPath() != null) {
+			this.unixSocketPath = null;
+			this.sharedMemoryPath = uri.getPath();
+			this.memoryBrokerName = null;
+		} else if ("mem".equals(uri.getScheme()) && uri.getAuthority() != null) {
+			this.unixSocketPath = null;
+			this.sharedMemoryPath = null;
+			this.memoryBrokerName = uri.getAuthority();
+		} else {
+			throw new IllegalArgumentException("Invalid broker URI (scheme must be 'tcp', 'ssl', 'unix', 'shm', or 'mem'): " + uri);
+		}
+
+		try {
+			this.manager = new ChannelManagerImpl(messageResendIntervalSeconds, -1, config);
+			if (memoryBrokerName != null || sharedMemoryPath != null) {
+				server = null;
+			} else {
+				server = unixSocketPath != null ? UnixSockets.openServerChannel() : ServerSocketChannel.open();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to create " + getClass().getSimpleName(), e);
+		}
+	}
+
 	/**
 	 * Starts the broker. Blocks until startup is complete.
 	 * 
 	 * @param messageHandler
 	 *            Called when events happen
 	 * @param serverThreadName
-	 *            Name to give the server thread
+	 *            Used in log messages to identify this broker. Connections are accepted by the {@link ChannelManager}'s IO threads so no server thread is
+	 *            created.
 	 */
 	public final void init(MessageHandler messageHandler, String serverThreadName) {
 
 		XenqttUtil.validateNotEmpty("serverThreadName", serverThreadName);
 		XenqttUtil.validateNotNull("messageHandler", messageHandler);
 
-		this.messageHandler = messageHandler;
 		manager.init();
 
-		serverThread.setName(serverThreadName);
-		serverThread.start();
+		if (memoryBrokerName != null) {
+			try {
+				manager.acceptMemoryBrokerChannels(memoryBrokerName, messageHandler);
+				Log.debug("%s accepting in-memory connections to %s", serverThreadName, memoryBrokerName);
+			} catch (RuntimeException e) {
+				manager.shutdown();
+				throw new RuntimeException("Init failed", e);
+			}
+			return;
+		}
+
+		if (sharedMemoryPath != null) {
+			try {
+				manager.acceptSharedMemoryBrokerChannels(sharedMemoryPath, messageHandler);
+				Log.debug("%s accepting shared memory connections to %s", serverThreadName, sharedMemoryPath);
+			} catch (RuntimeException e) {
+				manager.shutdown();
+				throw new RuntimeException("Init failed", e);
+			}
+			return;
+		}
 
 		try {
-			readyLatch.await();
-			if (ioException != null) {
-				throw ioException;
+			if (unixSocketPath != null) {
+				UnixSockets.bind(server, UnixSockets.address(unixSocketPath), acceptBacklog);
+				unixSocketBound = true;
+				manager.acceptBrokerChannels(server, messageHandler);
+				Log.debug("%s accepting connections on %s", serverThreadName, unixSocketPath);
+				return;
 			}
+
+			server.socket().bind(new InetSocketAddress(port), acceptBacklog);
+			port = server.socket().getLocalPort();
+			if (ssl) {
+				manager.acceptSslBrokerChannels(server, messageHandler);
+			} else {
+				manager.acceptBrokerChannels(server, messageHandler);
+			}
+			Log.debug("%s accepting connections on port %d", serverThreadName, port);
 		} catch (Exception e) {
+			try {
+				server.close();
+			} catch (IOException ignore) {
+			}
+			manager.shutdown();
 			throw new RuntimeException("Init failed", e);
 		}
 	}
 
 	/**
-	 * Shuts down the broker. Blocks until shutdown is complete.
+	 * Shuts down the broker. Blocks until shutdown is complete or the specified time has elapsed.
 	 * 
 	 * @param millis
 	 *            Milliseconds to wait for shutdown to complete. 0 means to wait forever.
@@ -110,13 +282,13 @@ public class SimpleBroker {
 		XenqttUtil.validateGreaterThanOrEqualTo("millis", millis, 0);
 
 		try {
-			server.close();
-			serverThread.join(millis);
-			manager.shutdown();
-			if (ioException != null) {
-				throw ioException;
+			if (server != null) {
+				server.close();
 			}
-			return !serverThread.isAlive();
+			if (unixSocketBound) {
+				new File(unixSocketPath).delete();
+			}
+			return manager.shutdown(millis);
 		} catch (Exception e) {
 			throw new RuntimeException("Shutdown failed", e);
 		}
@@ -127,50 +299,31 @@ public class SimpleBroker {
 	 */
 	public final String getURI() {
 
+		if (memoryBrokerName != null) {
+			return "mem://" + memoryBrokerName;
+		}
+
+		if (unixSocketPath != null) {
+			return "unix://" + unixSocketPath;
+		}
+
+		if (sharedMemoryPath != null) {
+			return "shm://" + sharedMemoryPath;
+		}
+
 		try {
 			String addr = InetAddress.getLocalHost().getHostAddress();
 			int port = getPort();
-			return String.format("tcp://%s:%d", addr, port);
+			return String.format("%s://%s:%d", ssl ? "ssl" : "tcp", addr, port);
 		} catch (Exception e) {
 			throw new MqttException("Unable to get the broker's URI", e);
 		}
 	}
 
 	/**
-	 * @return The port the broker is running on. Not valid until after {@link #init()} is called.
+	 * @return The port the broker is running on. Not valid until after {@link #init()} is called. 0 for a broker that does not listen on a TCP port.
 	 */
 	public final int getPort() {
 		return port;
 	}
-
-	private void doIo() {
-
-		try {
-			server.socket().bind(new InetSocketAddress(port));
-			port = server.socket().getLocalPort();
-
-			try {
-				readyLatch.countDown();
-				for (;;) {
-					SocketChannel client = server.accept();
-					manager.newBrokerChannel(client, messageHandler);
-				}
-			} finally {
-				server.close();
-			}
-		} catch (ClosedChannelException ignore) {
-		} catch (Exception e) {
-			Log.error(e, getClass().getSimpleName() + " IO error");
-			ioException = new RuntimeException(getClass().getSimpleName() + " IO thread failed", e);
-		}
-	}
-
-	private final class ServerThread extends Thread {
-
-		@Override
-		public void run() {
-
-			doIo();
-		}
-	}
 }
@@ -15,6 +15,8 @@
  */
 package net.xenqtt.application;
 
+import java.net.URI;
+
 import net.xenqtt.AppContext;
 import net.xenqtt.proxy.ProxyBroker;
 
@@ -34,12 +36,14 @@ public final class ProxyApplication extends AbstractXenqttApplication {
 
 		String brokerUri = arguments.getArgAsString("b");
 		int port = arguments.getArgAsInt("p", 1883);
+		String listenUri = arguments.getArgAsString("l", null);
 		int maxInFlightBrokerMessages = arguments.getArgAsInt("m", 0xffff);
 		if (maxInFlightBrokerMessages < 1 || maxInFlightBrokerMessages > 0xffff) {
 			throw new IllegalArgumentException("Max in flight broker messages must be > 0 and <= 65535");
 		}
 
-		broker = new ProxyBroker(brokerUri, port, maxInFlightBrokerMessages);
+		broker = listenUri == null ? new ProxyBroker(brokerUri, port, maxInFlightBrokerMessages) : new ProxyBroker(brokerUri, URI.create(listenUri),
+				maxInFlightBrokerMessages);
 		broker.init();
 	}
 
@@ -66,7 +70,7 @@ public final class ProxyApplication extends AbstractXenqttApplication {
 	 */
 	@Override
 	public String getOptsText() {
-		return "-b brokerUri [-p port] [-m maxInFlight]";
+		return "-b brokerUri [-p port] [-l listenUri] [-m maxInFlight]";
 	}
 
 	/**
@@ -76,6 +80,9 @@ public final class ProxyApplication extends AbstractXenqttApplication {
 	public String getOptsUsageText() {
 		return "\n\t-b brokerUri : URI of the broker to connect to. For example: tcp://q.m2m.io:1883. Required." //
 				+ "\n\t-p port : Port to listen on. Defaults to 1883." //
+				+ "\n\t-l listenUri : URI to listen on instead of the port. For example: unix:///tmp/xenqtt.sock" //
+				+ "\n\t               to accept connections from applications on this host over a UNIX domain" //
+				+ "\n\t               socket. Requires Java 16 or later." //
 				+ "\n\t-m maxInFlight : Maximum number of in-flight messages to the broker per cluster. This" //
 				+ "\n\t                 should not be changed unless you really understand what you are doing." //
 				+ "\n\t                 Defaults to 65535." //
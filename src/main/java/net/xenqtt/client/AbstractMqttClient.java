@@ -15,6 +15,7 @@
  */
 package net.xenqtt.client;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
@@ -53,6 +54,7 @@ import net.xenqtt.message.SubAckMessage;
 import net.xenqtt.message.SubscribeMessage;
 import net.xenqtt.message.UnsubAckMessage;
 import net.xenqtt.message.UnsubscribeMessage;
+import net.xenqtt.message.WritabilityAwareMessageHandler;
 
 /**
  * Base class for both synchronous and asynchronous {@link MqttClient} implementations
@@ -83,6 +85,7 @@ abstract class AbstractMqttClient implements MqttClient {
 	private volatile Future<?> connectTimeoutFuture;
 	private volatile boolean closeRequested;
 	private volatile boolean shuttingDown;
+	private volatile boolean writable = true;
 
 	/**
 	 * Constructs a synchronous instance of this class using an {@link Executor} owned by this class.
@@ -273,6 +276,71 @@ abstract class AbstractMqttClient implements MqttClient {
 		manager.send(channel, pubMessage);
 	}
 
+	/**
+	 * @see net.xenqtt.client.MqttClient#publishAsync(net.xenqtt.client.PublishMessage)
+	 */
+	@Override
+	public final Future<PublishMessage> publishAsync(PublishMessage message) {
+
+		PubMessage pubMessage = message.getPubMessage();
+		if (pubMessage.getQoSLevel() > 0) {
+			// the PubMessage reserves the ID until the ack; it is not a PublishMessage so the future replaces the published callback
+			int messageId = nextMessageId(pubMessage);
+			pubMessage.setMessageId(messageId);
+		}
+
+		Future<MqttMessage> sendFuture = manager.sendAsync(channel, pubMessage);
+		return new PublishFuture(message, sendFuture);
+	}
+
+	/**
+	 * @see net.xenqtt.client.MqttClient#publish(java.util.List)
+	 */
+	@Override
+	public final void publish(List<PublishMessage> messages) throws MqttCommandCancelledException, MqttTimeoutException, MqttInterruptedException {
+
+		int size = messages.size();
+		List<PubMessage> pubMessages = new ArrayList<PubMessage>(size);
+		int idCount = 0;
+		for (int i = 0; i < size; i++) {
+			PubMessage pubMessage = messages.get(i).getPubMessage();
+			pubMessages.add(pubMessage);
+			if (pubMessage.getQoSLevel() > 0) {
+				idCount++;
+			}
+		}
+
+		if (idCount > 0) {
+			if (dataByMessageId != null && dataByMessageId.size() + idCount > config.getMaxInFlightMessages()) {
+				throw new MqttTooManyMessagesInFlightException();
+			}
+
+			int messageId = reserveMessageIds(idCount);
+			for (int i = 0; i < size; i++) {
+				PubMessage pubMessage = pubMessages.get(i);
+				if (pubMessage.getQoSLevel() > 0) {
+					if (messageId > 0xffff) {
+						messageId = 1;
+					}
+					if (dataByMessageId != null && dataByMessageId.putIfAbsent(messageId, messages.get(i)) != null) {
+						try {
+							pubMessage.setMessageId(nextMessageId(messages.get(i)));
+						} catch (MqttTooManyMessagesInFlightException e) {
+							// another thread filled the remaining IDs after the size check. Nothing in the batch is sent so release the IDs it already holds.
+							releaseMessageIds(messages, pubMessages, i);
+							throw e;
+						}
+					} else {
+						pubMessage.setMessageId(messageId);
+					}
+					messageId++;
+				}
+			}
+		}
+
+		manager.send(channel, pubMessages);
+	}
+
 	/**
 	 * @see net.xenqtt.client.MqttClient#close()
 	 */
@@ -291,6 +359,14 @@ abstract class AbstractMqttClient implements MqttClient {
 		return scheduledExecutor.isShutdown();
 	}
 
+	/**
+	 * @see net.xenqtt.client.MqttClient#isWritable()
+	 */
+	@Override
+	public final boolean isWritable() {
+		return writable;
+	}
+
 	/**
 	 * @see net.xenqtt.client.MqttClient#getStats(boolean)
 	 */
@@ -354,7 +430,7 @@ abstract class AbstractMqttClient implements MqttClient {
 				messageHandler = new AsyncMessageHandler();
 				dataByMessageId = asyncClientListener == null ? null : new ConcurrentHashMap<Integer, Object>();
 				int blockingTimeoutSeconds = asyncClientListener == null ? config.getBlockingTimeoutSeconds() : -1;
-				manager = new ChannelManagerImpl(config.getMessageResendIntervalSeconds(), blockingTimeoutSeconds);
+				manager = new ChannelManagerImpl(config.getMessageResendIntervalSeconds(), blockingTimeoutSeconds, config.newChannelManagerConfig());
 				manager.init();
 				channel = manager.newClientChannel(brokerUri, messageHandler);
 	}
@@ -372,7 +448,7 @@ abstract class AbstractMqttClient implements MqttClient {
 				if (dataByMessageId.size() >= config.getMaxInFlightMessages()) {
 					throw new MqttTooManyMessagesInFlightException();
 				}
-				if (dataByMessageId.putIfAbsent(next, messageData) != null) {
+				if (messageData == null ? dataByMessageId.containsKey(next) : dataByMessageId.putIfAbsent(next, messageData) != null) {
 					continue;
 				}
 			}
@@ -381,6 +457,34 @@ abstract class AbstractMqttClient implements MqttClient {
 		}
 	}
 
+	/**
+	 * Reserves a block of consecutive message IDs with a single update of the ID generator
+	 * 
+	 * @return The first ID in the block. If the block would pass the largest message ID it starts over at 1 instead.
+	 */
+	private int reserveMessageIds(int count) {
+
+		for (;;) {
+			int current = messageIdGenerator.get();
+			int first = current + count > 0xffff ? 1 : current + 1;
+			if (messageIdGenerator.compareAndSet(current, first + count - 1)) {
+				return first;
+			}
+		}
+	}
+
+	/**
+	 * Releases the message IDs reserved for the first count messages in a batch that will not be published
+	 */
+	private void releaseMessageIds(List<PublishMessage> messages, List<PubMessage> pubMessages, int count) {
+
+		for (int i = 0; i < count; i++) {
+			if (pubMessages.get(i).getQoSLevel() > 0) {
+				dataByMessageId.remove(pubMessages.get(i).getMessageId(), messages.get(i));
+			}
+		}
+	}
+
 	private ConnectReturnCode doConnect(MqttChannelRef channel, ConnectMessage message) {
 
 		connectMessage = message;
@@ -445,7 +549,7 @@ abstract class AbstractMqttClient implements MqttClient {
 		mqttClientListener.disconnected(this, cause, reconnecting);
 	}
 
-	private final class AsyncMessageHandler implements MessageHandler {
+	private final class AsyncMessageHandler implements WritabilityAwareMessageHandler {
 
 		private final MqttClient client = AbstractMqttClient.this;
 
@@ -508,6 +612,8 @@ abstract class AbstractMqttClient implements MqttClient {
 		 */
 		@Override
 		public void publish(final MqttChannel channel, final PubMessage message) throws Exception {
+			// the channel releases the message when this method returns. It is released again after the listener for QoS 0 or when it is acked otherwise.
+			message.retain();
 			executor.execute(new Runnable() {
 				@Override
 				public void run() {
@@ -517,6 +623,9 @@ abstract class AbstractMqttClient implements MqttClient {
 						Log.error(e, "Failed to process message for %s: %s", channel, message);
 					}
 
+					if (message.getQoSLevel() == 0) {
+						message.release();
+					}
 				}
 			});
 
@@ -534,9 +643,9 @@ abstract class AbstractMqttClient implements MqttClient {
 					@Override
 					public void run() {
 						try {
-							PublishMessage publishMessage = (PublishMessage) dataByMessageId.remove(message.getMessageId());
-							if (publishMessage != null) {
-								asyncClientListener.published(client, publishMessage);
+							Object messageData = dataByMessageId.remove(message.getMessageId());
+							if (messageData instanceof PublishMessage) {
+								asyncClientListener.published(client, (PublishMessage) messageData);
 							}
 						} catch (Exception e) {
 							Log.error(e, "Failed to process message for %s: %s", channel, message);
@@ -659,6 +768,8 @@ abstract class AbstractMqttClient implements MqttClient {
 		@Override
 		public void channelOpened(final MqttChannel channel) {
 
+			writable = true;
+
 			if (!firstConnectPending && connectMessage != null) {
 				executor.execute(new Runnable() {
 
@@ -752,6 +863,14 @@ abstract class AbstractMqttClient implements MqttClient {
 			}
 		}
 
+		/**
+		 * @see net.xenqtt.message.WritabilityAwareMessageHandler#channelWritabilityChanged(net.xenqtt.message.MqttChannel, boolean)
+		 */
+		@Override
+		public void channelWritabilityChanged(MqttChannel channel, boolean writable) {
+			AbstractMqttClient.this.writable = writable;
+		}
+
 		private void debugMessageReceivedIfApplicable(final MqttChannel channel, final MqttMessage message) {
 			if (debugListener != null) {
 				executor.execute(new Runnable() {
@@ -16,6 +16,7 @@
 package net.xenqtt.client;
 
 import java.util.List;
+import java.util.concurrent.Future;
 
 import net.xenqtt.MqttCommandCancelledException;
 import net.xenqtt.MqttInterruptedException;
@@ -67,6 +68,13 @@ public interface MqttClient {
 	 */
 	boolean isClosed();
 
+	/**
+	 * @return False if the messages queued to send to the broker have passed the {@link MqttClientConfig#getWriteHighWaterMarkBytes() high water mark}. It
+	 *         stays false until the queue drains to the {@link MqttClientConfig#getWriteLowWaterMarkBytes() low water mark}. Messages published while this
+	 *         is false are still queued so publishers should check this and throttle. Always true if no high water mark is configured.
+	 */
+	boolean isWritable();
+
 	/**
 	 * Connects this client to the broker with credentials and a WillMessage. This includes these actions:
 	 * <ol>
@@ -306,6 +314,56 @@ public interface MqttClient {
 	void publish(PublishMessage message) throws MqttCommandCancelledException, MqttTimeoutException, MqttInterruptedException, MqttInvocationException,
 			MqttInvocationError, MqttTooManyMessagesInFlightException;
 
+	/**
+	 * Publishes a {@link PublishMessage message} to the broker without blocking, even if the synchronous client is used. The returned future completes with
+	 * the message once it has been sent to the broker and, if the QoS is not {@link QoS#AT_MOST_ONCE}, the broker has acknowledged it. The future fails
+	 * with the cause if the message could not be sent and is cancelled if the connection closes first.
+	 * <p>
+	 * The {@link AsyncClientListener#published(MqttClient, PublishMessage) published} callback is NOT called for messages published with this method. The
+	 * future is the only notification.
+	 * 
+	 * @param message
+	 *            The message to publish to the broker
+	 * 
+	 * @return A future that completes when the message has been published
+	 * 
+	 * @throws MqttTooManyMessagesInFlightException
+	 *             If there are already too many messages in flight. See {@link MqttClientConfig#getMaxInFlightMessages()} for details. This does not apply to
+	 *             messages with a QoS of {@link QoS#AT_MOST_ONCE}.
+	 */
+	Future<PublishMessage> publishAsync(PublishMessage message) throws MqttTooManyMessagesInFlightException;
+
+	/**
+	 * Publishes a batch of {@link PublishMessage messages} to the broker. This is the same as calling {@link #publish(PublishMessage)} for each message, in list
+	 * order, except the whole batch is handed to the client's IO thread at once. This is much cheaper than publishing the messages one at a time when there
+	 * are many messages to publish.
+	 * <p>
+	 * If the synchronous client is used this method blocks until every message has been sent to the broker and every message whose QoS is not
+	 * {@link QoS#AT_MOST_ONCE} has been acknowledged. If the asynchronous client is used the {@link AsyncClientListener#published(MqttClient, PublishMessage)
+	 * published} method is called for each message whose QoS is not {@link QoS#AT_MOST_ONCE} as it is completed. It is not called for
+	 * {@link QoS#AT_MOST_ONCE} messages.
+	 * 
+	 * @param messages
+	 *            The messages to publish to the broker
+	 * 
+	 * @throws MqttCommandCancelledException
+	 *             Thrown when the internal command used to implement this feature is cancelled.
+	 * @throws MqttTimeoutException
+	 *             Thrown when this method has blocked for approximately the configured timeout. Only applicable when the {@link SyncMqttClient synchronous}
+	 *             implementation is used.
+	 * @throws MqttInterruptedException
+	 *             Thrown when the calling thread is {@link Thread#interrupt() interrupted}.
+	 * @throws MqttInvocationException
+	 *             Thrown when the internal command used to implement this feature throws an {@link Exception}.
+	 * @throws MqttInvocationError
+	 *             Thrown when the internal command used to implement this feature throws an {@link Error}.
+	 * @throws MqttTooManyMessagesInFlightException
+	 *             If publishing the batch would put too many messages in flight. See {@link MqttClientConfig#getMaxInFlightMessages()} for details. This does not
+	 *             apply to messages with a QoS of {@link QoS#AT_MOST_ONCE}. No message in the batch is published when this is thrown.
+	 */
+	void publish(List<PublishMessage> messages) throws MqttCommandCancelledException, MqttTimeoutException, MqttInterruptedException,
+			MqttInvocationException, MqttInvocationError, MqttTooManyMessagesInFlightException;
+
 	/**
 	 * Closes this client without doing a clean disconnect. This includes these actions:
 	 * <ol>
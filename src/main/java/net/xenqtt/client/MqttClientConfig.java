@@ -18,6 +18,7 @@ package net.xenqtt.client;
 import net.xenqtt.MqttException;
 import net.xenqtt.MqttTimeoutException;
 import net.xenqtt.XenqttUtil;
+import net.xenqtt.message.ChannelManagerConfig;
 import net.xenqtt.message.ConnAckMessage;
 import net.xenqtt.message.ConnectMessage;
 import net.xenqtt.message.MqttMessage;
@@ -36,6 +37,10 @@ public final class MqttClientConfig implements Cloneable {
 	private int keepAliveSeconds = 300;
 	private MqttClientDebugListener clientDebugListener;
 	private int maxInFlightMessages = 0xffff;
+	private boolean bufferPoolEnabled;
+	private long writeHighWaterMarkBytes;
+	private long writeLowWaterMarkBytes;
+	private long writeLingerMicros;
 
 	/**
 	 * @return The algorithm used to reconnect to the broker if the connection is lost.
@@ -222,6 +227,118 @@ public final class MqttClientConfig implements Cloneable {
 		this.maxInFlightMessages = maxInFlightMessages;
 	}
 
+	/**
+	 * @return True if received messages are read into pooled buffers instead of a newly allocated buffer for each message. When enabled a
+	 *         {@link PublishMessage} passed to {@link MqttClientListener#publishReceived(MqttClient, PublishMessage)} is only valid until the listener returns
+	 *         if its QoS is {@link QoS#AT_MOST_ONCE} or until it is {@link PublishMessage#ack() acked} otherwise. Use {@link PublishMessage#copy()} to keep a
+	 *         message longer.
+	 *         <p>
+	 *         Defaults to false.
+	 */
+	public boolean isBufferPoolEnabled() {
+		return bufferPoolEnabled;
+	}
+
+	/**
+	 * @param bufferPoolEnabled
+	 *            True if received messages are read into pooled buffers instead of a newly allocated buffer for each message. When enabled a
+	 *            {@link PublishMessage} passed to {@link MqttClientListener#publishReceived(MqttClient, PublishMessage)} is only valid until the listener
+	 *            returns if its QoS is {@link QoS#AT_MOST_ONCE} or until it is {@link PublishMessage#ack() acked} otherwise. Use {@link PublishMessage#copy()}
+	 *            to keep a message longer.
+	 *            <p>
+	 *            Defaults to false.
+	 * 
+	 * @return this object
+	 */
+	public MqttClientConfig setBufferPoolEnabled(boolean bufferPoolEnabled) {
+		this.bufferPoolEnabled = bufferPoolEnabled;
+		return this;
+	}
+
+	/**
+	 * @return The number of bytes queued to send to the broker above which the client is no longer {@link MqttClient#isWritable() writable}. Publishers
+	 *         should throttle while the client is not writable instead of queuing without bound. 0 for no limit.
+	 *         <p>
+	 *         Defaults to 0.
+	 */
+	public long getWriteHighWaterMarkBytes() {
+		return writeHighWaterMarkBytes;
+	}
+
+	/**
+	 * @param writeHighWaterMarkBytes
+	 *            The number of bytes queued to send to the broker above which the client is no longer {@link MqttClient#isWritable() writable}. Publishers
+	 *            should throttle while the client is not writable instead of queuing without bound. 0 for no limit.
+	 *            <p>
+	 *            Defaults to 0.
+	 * 
+	 * @return this object
+	 */
+	public MqttClientConfig setWriteHighWaterMarkBytes(long writeHighWaterMarkBytes) {
+		this.writeHighWaterMarkBytes = XenqttUtil.validateGreaterThanOrEqualTo("writeHighWaterMarkBytes", writeHighWaterMarkBytes, 0L);
+		return this;
+	}
+
+	/**
+	 * @return The number of bytes queued to send to the broker at or below which a client that is not {@link MqttClient#isWritable() writable} becomes
+	 *         writable again.
+	 *         <p>
+	 *         Defaults to 0.
+	 */
+	public long getWriteLowWaterMarkBytes() {
+		return writeLowWaterMarkBytes;
+	}
+
+	/**
+	 * @param writeLowWaterMarkBytes
+	 *            The number of bytes queued to send to the broker at or below which a client that is not {@link MqttClient#isWritable() writable} becomes
+	 *            writable again.
+	 *            <p>
+	 *            Defaults to 0.
+	 * 
+	 * @return this object
+	 */
+	public MqttClientConfig setWriteLowWaterMarkBytes(long writeLowWaterMarkBytes) {
+		this.writeLowWaterMarkBytes = XenqttUtil.validateGreaterThanOrEqualTo("writeLowWaterMarkBytes", writeLowWaterMarkBytes, 0L);
+		return this;
+	}
+
+	/**
+	 * @return The maximum number of microseconds a published message is held before it is sent to the broker so that messages published in the meantime
+	 *         are sent with it in a single write. Trades a bounded amount of latency for much higher throughput when publishing many small messages. Other
+	 *         messages, such as pings and acks, are never held. The delay is effectively rounded up to whole milliseconds. 0 to send every message immediately.
+	 *         <p>
+	 *         Defaults to 0.
+	 */
+	public long getWriteLingerMicros() {
+		return writeLingerMicros;
+	}
+
+	/**
+	 * @param writeLingerMicros
+	 *            The maximum number of microseconds a published message is held before it is sent to the broker so that messages published in the meantime
+	 *            are sent with it in a single write. Trades a bounded amount of latency for much higher throughput when publishing many small messages.
+	 *            Other messages, such as pings and acks, are never held. The delay is effectively rounded up to whole milliseconds. 0 to send every message
+	 *            immediately.
+	 *            <p>
+	 *            Defaults to 0.
+	 * 
+	 * @return this object
+	 */
+	public MqttClientConfig setWriteLingerMicros(long writeLingerMicros) {
+		this.writeLingerMicros = XenqttUtil.validateGreaterThanOrEqualTo("writeLingerMicros", writeLingerMicros, 0L);
+		return this;
+	}
+
+	/**
+	 * @return The configuration for the channel manager created by a client or factory that uses this config
+	 */
+	ChannelManagerConfig newChannelManagerConfig() {
+
+		return new ChannelManagerConfig().setBufferPoolEnabled(bufferPoolEnabled).setWriteHighWaterMarkBytes(writeHighWaterMarkBytes)
+				.setWriteLowWaterMarkBytes(writeLowWaterMarkBytes).setWriteLingerMicros(writeLingerMicros);
+	}
+
 	/**
 	 * @see java.lang.Object#clone()
 	 */
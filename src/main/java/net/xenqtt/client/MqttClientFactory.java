@@ -187,7 +187,7 @@ public final class MqttClientFactory implements AsyncClientFactory, SyncClientFa
 		this.executor = executor == null ? executorService : executor;
 		this.reconnectionExecutor = Executors.newSingleThreadScheduledExecutor();
 		int blockingTimeoutSeconds = synchronous ? config.getBlockingTimeoutSeconds() : -1;
-		this.manager = new ChannelManagerImpl(config.getMessageResendIntervalSeconds(), blockingTimeoutSeconds);
+		this.manager = new ChannelManagerImpl(config.getMessageResendIntervalSeconds(), blockingTimeoutSeconds, config.newChannelManagerConfig());
 		this.manager.init();
 	}
 
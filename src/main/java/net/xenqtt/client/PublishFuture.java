@@ -0,0 +1,82 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.client;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.xenqtt.message.MqttMessage;
+
+/**
+ * The {@link Future} returned by {@link MqttClient#publishAsync(PublishMessage)}. Completes with the published message when the channel manager's send
+ * future completes.
+ */
+final class PublishFuture implements Future<PublishMessage> {
+
+	private final PublishMessage message;
+	private final Future<MqttMessage> sendFuture;
+
+	PublishFuture(PublishMessage message, Future<MqttMessage> sendFuture) {
+		this.message = message;
+		this.sendFuture = sendFuture;
+	}
+
+	/**
+	 * @see java.util.concurrent.Future#cancel(boolean)
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return sendFuture.cancel(mayInterruptIfRunning);
+	}
+
+	/**
+	 * @see java.util.concurrent.Future#isCancelled()
+	 */
+	@Override
+	public boolean isCancelled() {
+		return sendFuture.isCancelled();
+	}
+
+	/**
+	 * @see java.util.concurrent.Future#isDone()
+	 */
+	@Override
+	public boolean isDone() {
+		return sendFuture.isDone();
+	}
+
+	/**
+	 * @see java.util.concurrent.Future#get()
+	 */
+	@Override
+	public PublishMessage get() throws InterruptedException, ExecutionException {
+
+		sendFuture.get();
+		return message;
+	}
+
+	/**
+	 * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public PublishMessage get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+
+		sendFuture.get(timeout, unit);
+		return message;
+	}
+}
@@ -15,6 +15,8 @@
  */
 package net.xenqtt.client;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 
 import net.xenqtt.XenqttUtil;
@@ -105,6 +107,67 @@ public class PublishMessage {
 		this(topicName, qos, EMPTY_PAYLOAD, false);
 	}
 
+	/**
+	 * Creates a message whose payload is a region of a file. The payload is never copied into memory. It is transferred straight from the file to the socket
+	 * when the message is sent and again if it is resent. Use this to publish large files without reading them into the heap.
+	 * 
+	 * @param topicName
+	 *            The name of the topic to publish to. This may not contain wildcards ('+' and '#')
+	 * @param qos
+	 *            The level of assurance for delivery.
+	 * @param payloadFile
+	 *            The file the payload is read from. It is not closed by the client. It must stay open and the region must not change until the publish has
+	 *            completed.
+	 * @param position
+	 *            The position in the file of the first byte of the payload
+	 * @param length
+	 *            The number of bytes in the payload
+	 * @param retain
+	 *            See {@link #PublishMessage(String, QoS, byte[], boolean)}
+	 */
+	public PublishMessage(String topicName, QoS qos, FileChannel payloadFile, long position, int length, boolean retain) {
+		XenqttUtil.validateNotNull("topicName", topicName);
+		XenqttUtil.validateNotNull("qos", qos);
+		XenqttUtil.validateNotNull("payloadFile", payloadFile);
+		XenqttUtil.validateGreaterThanOrEqualTo("position", position, 0L);
+		XenqttUtil.validateGreaterThanOrEqualTo("length", length, 0);
+
+		this.channel = null;
+		this.manager = null;
+		this.pubMessage = new PubMessage(qos, retain, topicName, 0, payloadFile, position, length);
+	}
+
+	/**
+	 * Creates a binary message with the topic, QoS, and retain flag of a {@link PublishTemplate}. The topic is not encoded again so this is the most efficient
+	 * way to create messages for a topic that is published to repeatedly.
+	 * 
+	 * @param template
+	 *            The template with the topic, QoS, and retain flag for this message
+	 * @param payload
+	 *            The payload as a byte array. It is valid to publish a zero length payload. Null will be converted to byte[0].
+	 */
+	public PublishMessage(PublishTemplate template, byte[] payload) {
+		XenqttUtil.validateNotNull("template", template);
+
+		if (payload == null) {
+			payload = EMPTY_PAYLOAD;
+		}
+
+		this.channel = null;
+		this.manager = null;
+		this.pubMessage = new PubMessage(template.getPubMessage(), payload);
+	}
+
+	/**
+	 * Creates a message with a string as the payload with the topic, QoS, and retain flag of a {@link PublishTemplate}. The string is converted to a byte[]
+	 * using UTF8 encoding and used as the binary message payload. Delegates to {@link #PublishMessage(PublishTemplate, byte[])}.
+	 * 
+	 * @see PublishMessage#PublishMessage(PublishTemplate, byte[])
+	 */
+	public PublishMessage(PublishTemplate template, String payload) {
+		this(template, payload.getBytes(UTF8));
+	}
+
 	/**
 	 * Package visible as this is only for internal use
 	 */
@@ -145,18 +208,57 @@ public class PublishMessage {
 		return pubMessage.getPayload();
 	}
 
+	/**
+	 * @return A read-only view of the message's payload. No bytes are copied so this is the most efficient way to read the payload. The view's position is 0
+	 *         and its limit is the {@link #getPayloadLength() payload length}.
+	 */
+	public final ByteBuffer getPayloadBuffer() {
+		return pubMessage.getPayloadBuffer();
+	}
+
+	/**
+	 * @return The number of bytes in the message's payload
+	 */
+	public final int getPayloadLength() {
+		return pubMessage.getPayloadLength();
+	}
+
+	/**
+	 * Copies the message's payload into dst starting at dst's current position. dst's position is advanced by the {@link #getPayloadLength() payload length}.
+	 * 
+	 * @return The number of bytes copied
+	 * 
+	 * @throws java.nio.BufferOverflowException
+	 *             If dst does not have enough space remaining for the payload
+	 */
+	public final int getPayload(ByteBuffer dst) {
+		return pubMessage.getPayload(dst);
+	}
+
+	/**
+	 * Copies the message's payload into dst starting at off.
+	 * 
+	 * @return The number of bytes copied
+	 * 
+	 * @throws IndexOutOfBoundsException
+	 *             If dst does not have enough space after off for the payload
+	 */
+	public final int getPayload(byte[] dst, int off) {
+		return pubMessage.getPayload(dst, off);
+	}
+
 	/**
 	 * @return The message's payload as a string. The payload is converted to a string using the UTF8 character set.
 	 */
 	public final String getPayloadString() {
-		return new String(pubMessage.getPayload(), UTF8);
+		return UTF8.decode(pubMessage.getPayloadBuffer()).toString();
 	}
 
 	/**
 	 * @return True if the message is empty (has no payload). False if it is not empty.
 	 */
 	public final boolean isEmpty() {
-		return pubMessage.getPayload().length == 0;
+		return pubMessage.getPayloadLength() == 0;
 	}
 
 	/**
@@ -203,9 +305,21 @@ public class PublishMessage {
 
 		if (manager != null && pubMessage.getQoSLevel() > 0) {
 			manager.send(channel, new PubAckMessage(pubMessage.getMessageId()));
+			pubMessage.release();
 		}
 	}
 
+	/**
+	 * When {@link MqttClientConfig#setBufferPoolEnabled(boolean) buffer pooling} is enabled a received message is only valid until the
+	 * {@link MqttClientListener#publishReceived(MqttClient, PublishMessage) listener} returns if {@link #getQoS()} is {@link QoS#AT_MOST_ONCE} or until it is
+	 * {@link #ack() acked} otherwise. Use this method to get a copy that is valid indefinitely.
+	 * 
+	 * @return A copy of this message that does not share any buffers with it. The copy can still be {@link #ack() acked}.
+	 */
+	public final PublishMessage copy() {
+		return new PublishMessage(manager, channel, pubMessage.copy());
+	}
+
 	/**
 	 * @see java.lang.Object#toString()
 	 */
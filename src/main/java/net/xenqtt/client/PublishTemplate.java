@@ -0,0 +1,109 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.client;
+
+import net.xenqtt.XenqttUtil;
+import net.xenqtt.message.PubMessage;
+import net.xenqtt.message.QoS;
+
+/**
+ * A topic, QoS, and retain flag that are encoded once and then used to create any number of {@link PublishMessage}s. Creating a message from a template only
+ * copies the encoded topic and the payload so this is much cheaper than the other {@link PublishMessage} constructors when an application publishes many
+ * messages to a fixed set of topics. This class is immutable and thread safe.
+ */
+public final class PublishTemplate {
+
+	private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
+	private final PubMessage pubMessage;
+
+	/**
+	 * @param topicName
+	 *            The name of the topic to publish to. This may not contain wildcards ('+' and '#')
+	 * @param qos
+	 *            The level of assurance for delivery.
+	 * @param retain
+	 *            True if the broker should hold on to messages created from this template after they have been delivered to the current subscribers. See
+	 *            {@link PublishMessage#PublishMessage(String, QoS, byte[], boolean)}.
+	 */
+	public PublishTemplate(String topicName, QoS qos, boolean retain) {
+		XenqttUtil.validateNotNull("topicName", topicName);
+		XenqttUtil.validateNotNull("qos", qos);
+
+		this.pubMessage = new PubMessage(qos, retain, topicName, 0, EMPTY_PAYLOAD);
+	}
+
+	/**
+	 * Creates a template with retain set to false
+	 * 
+	 * @see PublishTemplate#PublishTemplate(String, QoS, boolean)
+	 */
+	public PublishTemplate(String topicName, QoS qos) {
+		this(topicName, qos, false);
+	}
+
+	/**
+	 * @return A new message with this template's topic, QoS, and retain flag. Delegates to {@link PublishMessage#PublishMessage(PublishTemplate, byte[])}.
+	 */
+	public PublishMessage newMessage(byte[] payload) {
+		return new PublishMessage(this, payload);
+	}
+
+	/**
+	 * @return A new message with this template's topic, QoS, and retain flag. Delegates to {@link PublishMessage#PublishMessage(PublishTemplate, String)}.
+	 */
+	public PublishMessage newMessage(String payload) {
+		return new PublishMessage(this, payload);
+	}
+
+	/**
+	 * @return The name of the topic messages created from this template are published to
+	 */
+	public String getTopic() {
+		return pubMessage.getTopicName();
+	}
+
+	/**
+	 * @return The QoS of messages created from this template
+	 */
+	public QoS getQoS() {
+		return pubMessage.getQoS();
+	}
+
+	/**
+	 * @return The retain flag of messages created from this template
+	 */
+	public boolean isRetain() {
+		return pubMessage.isRetain();
+	}
+
+	/**
+	 * Package visible as this is only for internal use
+	 * 
+	 * @return A {@link PubMessage} to use as the template for new messages
+	 */
+	PubMessage getPubMessage() {
+		return pubMessage;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "PublishTemplate [topic=" + getTopic() + ", QoS=" + getQoS() + ", retain=" + isRetain() + "]";
+	}
+}
@@ -15,8 +15,13 @@
  */
 package net.xenqtt.message;
 
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
 import net.xenqtt.MqttCommandCancelledException;
 import net.xenqtt.MqttInterruptedException;
@@ -25,11 +30,22 @@ import net.xenqtt.MqttInvocationException;
 import net.xenqtt.MqttTimeoutException;
 
 /**
- * Implementation of {@link BlockingCommand} that provides a simple extension point for command implementations.
+ * Implementation of {@link BlockingCommand} that provides a simple extension point for command implementations. This is also a {@link Future} for the
+ * command's result so a caller that does not want to block right away can hold on to the command and check or wait for it later.
+ * <p>
+ * Nothing is allocated to wait for the command unless a thread actually has to wait for it. Waiting threads are pushed on a lock free stack and parked.
+ * Completing the command swaps the stack for a completed marker and unparks each waiting thread. A thread that times out or is interrupted removes itself
+ * from the stack so polling an incomplete command does not grow the stack.
  */
-public abstract class AbstractBlockingCommand<T> implements BlockingCommand<T> {
+public abstract class AbstractBlockingCommand<T> implements BlockingCommand<T>, Future<T> {
 
-	private final CountDownLatch done = new CountDownLatch(1);
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<AbstractBlockingCommand, Waiter> WAITERS = AtomicReferenceFieldUpdater.newUpdater(
+			AbstractBlockingCommand.class, Waiter.class, "waiters");
+	private static final Waiter DONE = new Waiter(null);
+
+	// the threads waiting for this command. DONE once the command completes.
+	private volatile Waiter waiters;
 
 	private boolean cancelled;
 	private T result;
@@ -49,12 +65,8 @@ public abstract class AbstractBlockingCommand<T> implements BlockingCommand<T> {
 	@Override
 	public final T await(long timeout, TimeUnit unit) throws MqttInterruptedException, MqttTimeoutException {
 		try {
-			if (timeout == Long.MAX_VALUE) {
-				done.await();
-			} else {
-				if (!done.await(timeout, unit)) {
-					throw new MqttTimeoutException(String.format("Timed out waiting %d %s for command %s", timeout, unit, getClass().getSimpleName()));
-				}
+			if (!awaitDone(timeout != Long.MAX_VALUE, unit.toNanos(timeout))) {
+				throw new MqttTimeoutException(String.format("Timed out waiting %d %s for command %s", timeout, unit, getClass().getSimpleName()));
 			}
 		} catch (InterruptedException e) {
 			throw new MqttInterruptedException(e);
@@ -78,6 +90,57 @@ public abstract class AbstractBlockingCommand<T> implements BlockingCommand<T> {
 		return result;
 	}
 
+	/**
+	 * Commands cannot be cancelled by the caller so this does nothing
+	 * 
+	 * @return Always false
+	 * 
+	 * @see java.util.concurrent.Future#cancel(boolean)
+	 */
+	@Override
+	public final boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	/**
+	 * @see java.util.concurrent.Future#isCancelled()
+	 */
+	@Override
+	public final boolean isCancelled() {
+		return waiters == DONE && cancelled;
+	}
+
+	/**
+	 * @see java.util.concurrent.Future#isDone()
+	 */
+	@Override
+	public final boolean isDone() {
+		return waiters == DONE;
+	}
+
+	/**
+	 * @see java.util.concurrent.Future#get()
+	 */
+	@Override
+	public final T get() throws InterruptedException, ExecutionException {
+
+		awaitDone(false, 0);
+		return report();
+	}
+
+	/**
+	 * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public final T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+
+		if (!awaitDone(true, unit.toNanos(timeout))) {
+			throw new TimeoutException(String.format("Timed out waiting %d %s for command %s", timeout, unit, getClass().getSimpleName()));
+		}
+
+		return report();
+	}
+
 	/**
 	 * @see net.xenqtt.message.BlockingCommand#execute()
 	 */
@@ -115,7 +178,13 @@ public abstract class AbstractBlockingCommand<T> implements BlockingCommand<T> {
 	@Override
 	public void complete() {
 
-		done.countDown();
+		Waiter waiter = WAITERS.getAndSet(this, DONE);
+		for (; waiter != null && waiter != DONE; waiter = waiter.next) {
+			Thread thread = waiter.thread;
+			if (thread != null) {
+				LockSupport.unpark(thread);
+			}
+		}
 	}
 
 	/**
@@ -125,7 +194,7 @@ public abstract class AbstractBlockingCommand<T> implements BlockingCommand<T> {
 	public void cancel() {
 
 		this.cancelled = true;
-		done.countDown();
+		complete();
 	}
 
 	/**
@@ -138,4 +207,99 @@ public abstract class AbstractBlockingCommand<T> implements BlockingCommand<T> {
 	 *             Any exception thrown by the command. This will be set as the failure cause using {@link #setFailureCause(Throwable)}.
 	 */
 	protected abstract void doExecute(long now) throws Throwable;
+
+	/**
+	 * Blocks until this command completes or, if timed, nanos has elapsed
+	 * 
+	 * @return True if the command completed. False if the wait timed out.
+	 */
+	private boolean awaitDone(boolean timed, long nanos) throws InterruptedException {
+
+		if (waiters == DONE) {
+			return true;
+		}
+
+		long deadline = timed ? System.nanoTime() + nanos : 0;
+		Waiter waiter = new Waiter(Thread.currentThread());
+		for (;;) {
+			Waiter head = waiters;
+			if (head == DONE) {
+				return true;
+			}
+			waiter.next = head;
+			if (WAITERS.compareAndSet(this, head, waiter)) {
+				break;
+			}
+		}
+
+		for (;;) {
+			if (waiters == DONE) {
+				return true;
+			}
+			if (Thread.interrupted()) {
+				removeWaiter(waiter);
+				throw new InterruptedException();
+			}
+			if (timed) {
+				nanos = deadline - System.nanoTime();
+				if (nanos <= 0) {
+					removeWaiter(waiter);
+					return false;
+				}
+				LockSupport.parkNanos(this, nanos);
+			} else {
+				LockSupport.park(this);
+			}
+		}
+	}
+
+	/**
+	 * Removes a waiter that gave up from the stack. Its thread is cleared first and then every waiter without a thread is unlinked, which also removes waiters
+	 * left behind by other threads that raced with this one. The sweep starts over whenever a race with another thread is detected.
+	 */
+	private void removeWaiter(Waiter waiter) {
+
+		waiter.thread = null;
+
+		retry: for (;;) {
+			Waiter pred = null;
+			for (Waiter q = waiters; q != null && q != DONE; q = q.next) {
+				if (q.thread != null) {
+					pred = q;
+				} else if (pred != null) {
+					pred.next = q.next;
+					if (pred.thread == null) {
+						// the predecessor was removed too so the link just written may not be reachable from the stack
+						continue retry;
+					}
+				} else if (!WAITERS.compareAndSet(this, q, q.next)) {
+					continue retry;
+				}
+			}
+			return;
+		}
+	}
+
+	private T report() throws ExecutionException {
+
+		if (failCause != null) {
+			throw new ExecutionException("Command failed: " + getClass().getSimpleName(), failCause);
+		}
+
+		if (cancelled) {
+			throw new CancellationException("Command cancelled: " + getClass().getSimpleName());
+		}
+
+		return result;
+	}
+
+	private static final class Waiter {
+
+		private volatile Thread thread;
+		private volatile Waiter next;
+
+		Waiter(Thread thread) {
+			this.thread = thread;
+		}
+	}
 }
@@ -17,7 +17,6 @@ package net.xenqtt.message;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
@@ -27,42 +26,68 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.TimeUnit;
 
 import net.xenqtt.Log;
 
 /**
- * Default {@link MqttChannel} implementation. This class is NOT thread safe. At construction a {@link SocketChannel} will be registered with the
- * {@link Selector} specified in the constructor. The new instance of this class will be available from {@link SelectionKey#attachment()}.
+ * Default {@link MqttChannel} implementation. This class is NOT thread safe. At construction a {@link Transport}, normally a {@link SocketChannel}, will be
+ * registered with the {@link Selector} specified in the constructor. The new instance of this class will be available from {@link SelectionKey#attachment()}.
  */
 abstract class AbstractMqttChannel implements MqttChannel {
 
-	private final Map<Integer, IdentifiableMqttMessage> inFlightMessages = new HashMap<Integer, IdentifiableMqttMessage>();
+	/**
+	 * Size of the buffer each socket read goes into. Every complete message in the buffer is processed after each read. Messages larger than this are read
+	 * directly into a buffer of their own.
+	 */
+	static final int READ_BUFFER_SIZE = 16 * 1024;
+
+	/**
+	 * Maximum number of queued messages written with a single gathering write
+	 */
+	static final int MAX_MESSAGES_PER_WRITE = 64;
+
+	private final InFlightMessageMap inFlightMessages = new InFlightMessageMap();
 	private final List<IdentifiableMqttMessage> messagesToResend = new ArrayList<IdentifiableMqttMessage>();
 	private final long messageResendIntervalMillis;
 
-	private final SocketChannel channel;
+	private final Transport channel;
 	private SelectionKey selectionKey;
-	private MessageHandler handler;
 
-	// reads the first byte of the fixed header
-	private final ByteBuffer readHeader1 = ByteBuffer.allocate(2);
+	// true if the channel has messages to write to a transport that is not write selectable. They are written by house keeping.
+	private boolean writeRequested;
+	private MessageHandler handler;
 
-	// reads the next 3 bytes if the remaining length is > 127
-	private final ByteBuffer readHeader2 = ByteBuffer.allocate(3);
+	// staging buffer each socket read goes into. Always left in "read mode": the bytes between position and limit have been read but not yet processed.
+	private final ByteBuffer readBuffer;
 
-	// created on the fly to read any remaining data.
+	// created on the fly to read a message that is too big for the read buffer
 	private ByteBuffer readRemaining;
 
-	// the remaining length value for the message currently being read
+	// the remaining length value for the message currently being processed
 	private int remainingLength;
 
+	// true if processing of the read buffer stopped because reading was paused or the channel was detached
+	private boolean processReadBufferPending;
+
+	// size above which received publish messages are streamed to a StreamingMessageHandler. 0 to never stream.
+	private final int publishStreamingThresholdBytes;
+
+	// the header of the publish message currently being streamed, the handler it is streamed to, and the payload bytes still to come. The header and
+	// handler are cleared if the stream is aborted by a detach, which leaves the rest of the payload to be skipped.
+	private PubMessage streamingMessage;
+	private StreamingMessageHandler streamingHandler;
+	private int streamingRemaining;
+
 	private final Queue<MqttMessage> writesPending = new ArrayDeque<MqttMessage>();
 
+	// buffers for the messages written by a single gathering write. Only holds references during a write.
+	private final ByteBuffer[] writeBuffers = new ByteBuffer[MAX_MESSAGES_PER_WRITE];
+
 	private BlockingCommand<?> connectionCompleteCommand;
 	private BlockingCommand<MqttMessage> connAckReceivedCommand;
 
@@ -78,6 +103,31 @@ abstract class AbstractMqttChannel implements MqttChannel {
 
 	private final MutableMessageStats stats;
 
+	// pool received publish messages are read into. Null if pooling is disabled.
+	private final BufferPool bufferPool;
+
+	// write back pressure thresholds. A high water mark of 0 disables that check.
+	private final long writeHighWaterMarkBytes;
+	private final long writeLowWaterMarkBytes;
+	private final int writeHighWaterMarkMessages;
+	private final int writeLowWaterMarkMessages;
+
+	// bytes in writesPending and sendMessageInProgress
+	private long pendingWriteBytes;
+	private boolean writable = true;
+
+	// write coalescing. Publish messages sent to an idle channel are held until lingerDeadlineNanos or until lingerBytes are pending. 0 disables.
+	private final long lingerNanos;
+	private final int lingerBytes;
+	private boolean lingering;
+	private long lingerDeadlineNanos;
+
+	/**
+	 * The house keeping schedule of the IO thread this channel is assigned to. Null if the channel is not managed by a {@link ChannelManagerImpl}. Used to
+	 * request house keeping when something other than IO on this channel requires it.
+	 */
+	HouseKeepingSchedule houseKeepingSchedule;
+
 	private String remoteAddress;
 	private String localAddress;
 
@@ -92,25 +142,84 @@ abstract class AbstractMqttChannel implements MqttChannel {
 	 */
 	AbstractMqttChannel(String host, int port, MessageHandler handler, Selector selector, long messageResendIntervalMillis,
 			BlockingCommand<?> connectionCompleteCommand, MutableMessageStats stats) throws IOException {
+		this(host, port, handler, selector, messageResendIntervalMillis, connectionCompleteCommand, stats, new ChannelManagerConfig());
+	}
 
+	/**
+	 * Starts an asynchronous connection to the specified host and port. When a {@link SelectionKey} for the specified selector has
+	 * {@link SelectionKey#OP_CONNECT} as a ready op then {@link #finishConnect()} should be called.
+	 * 
+	 * @param messageResendIntervalMillis
+	 *            Millis between attempts to resend a message that {@link MqttMessage#isAckable()}. 0 to disable message resends
+	 * @param connectionCompleteCommand
+	 *            If not null then this latch is {@link BlockingCommand#complete(Throwable) complete} when the connection is established.
+	 * @param config
+	 *            The configuration of the {@link ChannelManager} this channel is created by
+	 */
+	AbstractMqttChannel(String host, int port, MessageHandler handler, Selector selector, long messageResendIntervalMillis,
+			BlockingCommand<?> connectionCompleteCommand, MutableMessageStats stats, ChannelManagerConfig config) throws IOException {
+		this(new InetSocketAddress(host, port), handler, selector, messageResendIntervalMillis, connectionCompleteCommand, stats, config);
+	}
+
+	/**
+	 * Starts an asynchronous connection to the specified address. When a {@link SelectionKey} for the specified selector has {@link SelectionKey#OP_CONNECT}
+	 * as a ready op then {@link #finishConnect()} should be called. The address should already be resolved. An unresolved address fails with an
+	 * {@link java.nio.channels.UnresolvedAddressException}.
+	 * 
+	 * @param messageResendIntervalMillis
+	 *            Millis between attempts to resend a message that {@link MqttMessage#isAckable()}. 0 to disable message resends
+	 * @param connectionCompleteCommand
+	 *            If not null then this latch is {@link BlockingCommand#complete(Throwable) complete} when the connection is established.
+	 * @param config
+	 *            The configuration of the {@link ChannelManager} this channel is created by
+	 */
+	AbstractMqttChannel(InetSocketAddress address, MessageHandler handler, Selector selector, long messageResendIntervalMillis,
+			BlockingCommand<?> connectionCompleteCommand, MutableMessageStats stats, ChannelManagerConfig config) throws IOException {
+		this(null, address, handler, selector, messageResendIntervalMillis, connectionCompleteCommand, stats, config);
+	}
+
+	/**
+	 * Starts an asynchronous connection to the specified address using the specified transport. When a {@link SelectionKey} for the specified selector has
+	 * {@link SelectionKey#OP_CONNECT} as a ready op then {@link #finishConnect()} should be called.
+	 * 
+	 * @param transport
+	 *            The transport to connect. Null to connect a new {@link SocketChannel}.
+	 * @param messageResendIntervalMillis
+	 *            Millis between attempts to resend a message that {@link MqttMessage#isAckable()}. 0 to disable message resends
+	 * @param connectionCompleteCommand
+	 *            If not null then this latch is {@link BlockingCommand#complete(Throwable) complete} when the connection is established.
+	 * @param config
+	 *            The configuration of the {@link ChannelManager} this channel is created by
+	 */
+	AbstractMqttChannel(Transport transport, SocketAddress address, MessageHandler handler, Selector selector, long messageResendIntervalMillis,
+			BlockingCommand<?> connectionCompleteCommand, MutableMessageStats stats, ChannelManagerConfig config) throws IOException {
+
+		this.readBuffer = newReadBuffer(config);
+		this.bufferPool = !config.isBufferPoolEnabled() ? null : config.isDirectBuffersEnabled() ? BufferPool.DIRECT_INSTANCE : BufferPool.INSTANCE;
+		this.writeHighWaterMarkBytes = config.getWriteHighWaterMarkBytes();
+		this.writeLowWaterMarkBytes = config.getWriteLowWaterMarkBytes();
+		this.writeHighWaterMarkMessages = config.getWriteHighWaterMarkMessages();
+		this.writeLowWaterMarkMessages = config.getWriteLowWaterMarkMessages();
+		this.publishStreamingThresholdBytes = config.getPublishStreamingThresholdBytes();
+		this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(config.getWriteLingerMicros());
+		this.lingerBytes = config.getWriteLingerBytes();
 		this.handler = handler;
 		this.messageResendIntervalMillis = messageResendIntervalMillis;
 		this.connectionCompleteCommand = connectionCompleteCommand;
 		this.stats = stats;
 
 		try {
-			this.channel = SocketChannel.open();
-			this.channel.configureBlocking(false);
+			this.channel = transport != null ? transport : new SocketTransport(SocketChannel.open());
 			this.selectionKey = channel.register(selector, SelectionKey.OP_CONNECT, this);
-			if (this.channel.connect(new InetSocketAddress(host, port))) {
+			if (this.channel.connect(address)) {
 				connectFinished();
 			}
-			Log.debug("%s connecting to %s:%s", this, host, port);
+			Log.debug("%s connecting to %s", this, address);
 		} catch (IOException e) {
-			doClose(e, "Failed to connect a client MQTT channel to %s:%d", host, port);
+			doClose(e, "Failed to connect a client MQTT channel to %s", address);
 			throw e;
 		} catch (RuntimeException e) {
-			doClose(e, "Failed to connect a client MQTT channel to %s:%d", host, port);
+			doClose(e, "Failed to connect a client MQTT channel to %s", address);
 			throw e;
 		}
 	}
@@ -123,7 +232,42 @@ abstract class AbstractMqttChannel implements MqttChannel {
 	 */
 	AbstractMqttChannel(SocketChannel channel, MessageHandler handler, Selector selector, long messageResendIntervalMillis, MutableMessageStats stats)
 			throws IOException {
+		this(channel, handler, selector, messageResendIntervalMillis, stats, new ChannelManagerConfig());
+	}
 
+	/**
+	 * Use this constructor for clients accepted from a {@link ServerSocketChannel}.
+	 * 
+	 * @param messageResendIntervalMillis
+	 *            Millis between attempts to resend a message that {@link MqttMessage#isAckable()}. 0 to disable message resends
+	 * @param config
+	 *            The configuration of the {@link ChannelManager} this channel is created by
+	 */
+	AbstractMqttChannel(SocketChannel channel, MessageHandler handler, Selector selector, long messageResendIntervalMillis, MutableMessageStats stats,
+			ChannelManagerConfig config) throws IOException {
+		this(new SocketTransport(channel), handler, selector, messageResendIntervalMillis, stats, config);
+	}
+
+	/**
+	 * Use this constructor for the broker end of a connection that has already been established
+	 * 
+	 * @param messageResendIntervalMillis
+	 *            Millis between attempts to resend a message that {@link MqttMessage#isAckable()}. 0 to disable message resends
+	 * @param config
+	 *            The configuration of the {@link ChannelManager} this channel is created by
+	 */
+	AbstractMqttChannel(Transport channel, MessageHandler handler, Selector selector, long messageResendIntervalMillis, MutableMessageStats stats,
+			ChannelManagerConfig config) throws IOException {
+
+		this.readBuffer = newReadBuffer(config);
+		this.bufferPool = !config.isBufferPoolEnabled() ? null : config.isDirectBuffersEnabled() ? BufferPool.DIRECT_INSTANCE : BufferPool.INSTANCE;
+		this.writeHighWaterMarkBytes = config.getWriteHighWaterMarkBytes();
+		this.writeLowWaterMarkBytes = config.getWriteLowWaterMarkBytes();
+		this.writeHighWaterMarkMessages = config.getWriteHighWaterMarkMessages();
+		this.writeLowWaterMarkMessages = config.getWriteLowWaterMarkMessages();
+		this.publishStreamingThresholdBytes = config.getPublishStreamingThresholdBytes();
+		this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(config.getWriteLingerMicros());
+		this.lingerBytes = config.getWriteLingerBytes();
 		this.handler = handler;
 		this.messageResendIntervalMillis = messageResendIntervalMillis;
 		this.stats = stats;
@@ -131,7 +275,6 @@ abstract class AbstractMqttChannel implements MqttChannel {
 		this.channel = channel;
 
 		try {
-			this.channel.configureBlocking(false);
 			this.selectionKey = channel.register(selector, SelectionKey.OP_READ, this);
 			handler.channelOpened(this);
 			Log.debug("%s opened", this);
@@ -151,6 +294,7 @@ abstract class AbstractMqttChannel implements MqttChannel {
 	public final void deregister() {
 
 		selectionKey.cancel();
+		abortStream();
 		handler.channelDetached(this);
 		Log.debug("Deregistered %s", this);
 	}
@@ -167,9 +311,10 @@ abstract class AbstractMqttChannel implements MqttChannel {
 
 		try {
 
-			int ops = sendMessageInProgress == null ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
-
-			selectionKey = channel.register(selector, ops, this);
+			selectionKey = channel.register(selector, SelectionKey.OP_READ, this);
+			if (sendMessageInProgress != null) {
+				enableOp(SelectionKey.OP_WRITE);
+			}
 			this.handler = handler;
 			handler.channelAttached(this);
 
@@ -211,8 +356,9 @@ abstract class AbstractMqttChannel implements MqttChannel {
 	public final boolean read(long now) {
 
 		try {
-			if (doRead(now)) {
-				return true;
+			if (doRead(now) && readBuffered(now)) {
+				// transports that are not write selectable signal a read when a write that did not fit can make progress
+				return !writeRequested || write(now);
 			}
 
 			close();
@@ -240,6 +386,10 @@ abstract class AbstractMqttChannel implements MqttChannel {
 	@Override
 	public void resumeRead() {
 		enableOp(SelectionKey.OP_READ);
+		if (processReadBufferPending || channel.hasBufferedReads()) {
+			// messages already in the read buffer or held by the transport are processed by house keeping
+			requestHouseKeeping();
+		}
 	}
 
 	/**
@@ -335,11 +485,37 @@ abstract class AbstractMqttChannel implements MqttChannel {
 	@Override
 	public final long houseKeeping(long now) {
 
+		if (processReadBufferPending && isReadable()) {
+			try {
+				processReadBufferPending = false;
+				if (!processReadBuffer(now)) {
+					close();
+					return -1;
+				}
+			} catch (Exception e) {
+				doClose(e, "Failed to process messages read from %s", this);
+				return -1;
+			}
+		}
+
+		if (channel.hasBufferedReads() && isReadable() && !read(now)) {
+			return -1;
+		}
+
 		long maxIdleTime = Long.MAX_VALUE;
 
+		if (lingering) {
+			long remainingNanos = lingerDeadlineNanos - System.nanoTime();
+			if (remainingNanos > 0) {
+				maxIdleTime = (remainingNanos + 999999) / 1000000;
+			} else {
+				stopLingering();
+			}
+		}
+
 		if (messageResendIntervalMillis > 0) {
 			try {
-				maxIdleTime = resendMessages(now);
+				maxIdleTime = Math.min(maxIdleTime, resendMessages(now));
 			} catch (Exception e) {
 				Log.error(e, "Failed to resend unacknowledged messages for %s", this);
 			}
@@ -354,6 +530,11 @@ abstract class AbstractMqttChannel implements MqttChannel {
 			Log.error(e, "Failed to handle the keep alive protocol for %s", this);
 		}
 
+		// last so messages sent by anything above are written before the channel waits for its next house keeping
+		if (writeRequested && !write(now)) {
+			return -1;
+		}
+
 		return maxIdleTime;
 	}
 
@@ -391,11 +572,20 @@ abstract class AbstractMqttChannel implements MqttChannel {
 		for (MqttMessage message : messagesToResend) {
 			cancelCommand(message.blockingCommand);
 		}
-		for (MqttMessage message : inFlightMessages.values()) {
+		for (IdentifiableMqttMessage message = inFlightMessages.oldest(); message != null; message = message.inFlightNext) {
 			cancelCommand(message.blockingCommand);
 		}
 	}
 
+	/**
+	 * @see net.xenqtt.message.MqttChannel#isWritable()
+	 */
+	@Override
+	public final boolean isWritable() {
+
+		return writable;
+	}
+
 	/**
 	 * @see net.xenqtt.message.MqttChannel#getUnsentMessages()
 	 */
@@ -404,7 +594,9 @@ abstract class AbstractMqttChannel implements MqttChannel {
 
 		List<MqttMessage> unsentMessages = new ArrayList<MqttMessage>(messagesToResend.size() + inFlightMessageCount() + sendQueueDepth());
 		unsentMessages.addAll(messagesToResend);
-		unsentMessages.addAll(inFlightMessages.values());
+		for (IdentifiableMqttMessage message = inFlightMessages.oldest(); message != null; message = message.inFlightNext) {
+			unsentMessages.add(message);
+		}
 		if (sendMessageInProgress != null) {
 			unsentMessages.add(sendMessageInProgress);
 		}
@@ -420,12 +612,11 @@ abstract class AbstractMqttChannel implements MqttChannel {
 	public final String getRemoteAddress() {
 
 		if (remoteAddress == null) {
-			Socket socket = channel.socket();
-			SocketAddress address = socket.isBound() ? socket.getRemoteSocketAddress() : null;
+			String address = channel.getRemoteAddress();
 			if (address == null) {
 				return "N/A";
 			}
-			remoteAddress = address.toString();
+			remoteAddress = address;
 		}
 
 		return remoteAddress;
@@ -438,16 +629,11 @@ abstract class AbstractMqttChannel implements MqttChannel {
 	public String getLocalAddress() {
 
 		if (localAddress == null) {
-			Socket socket = channel.socket();
-			if (!channel.isOpen()) {
-				return "N/A";
-			}
-
-			SocketAddress address = socket.getLocalSocketAddress();
+			String address = channel.getLocalAddress();
 			if (address == null) {
 				return "N/A";
 			}
-			localAddress = address.toString();
+			localAddress = address;
 		}
 
 		return localAddress;
@@ -510,8 +696,11 @@ abstract class AbstractMqttChannel implements MqttChannel {
 	abstract void pingResp(long now, PingRespMessage message) throws Exception;
 
 	private void connectFinished() {
-		int ops = sendMessageInProgress != null ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
-		selectionKey.interestOps(ops);
+		// keeps write interest a transport added while connecting, such as an SslTransport sending its first handshake message
+		selectionKey.interestOps(SelectionKey.OP_READ | (selectionKey.interestOps() & SelectionKey.OP_WRITE));
+		if (sendMessageInProgress != null) {
+			enableOp(SelectionKey.OP_WRITE);
+		}
 		commandComplete(connectionCompleteCommand);
 		connectionCompleteCommand = null;
 		handler.channelOpened(this);
@@ -521,17 +710,33 @@ abstract class AbstractMqttChannel implements MqttChannel {
 
 		try {
 			message.buffer.rewind();
+			PubMessage filePayloadMessage = filePayloadMessage(message);
+			if (filePayloadMessage != null) {
+				filePayloadMessage.payloadFileTransferred = 0;
+			}
 
 			Log.debug("%s sending %s", this, message);
+			pendingWriteBytes += writeSize(message);
 			if (sendMessageInProgress != null) {
 				writesPending.offer(message);
+				checkHighWaterMarks();
+				if (lingering && (!lingers(message) || lingerBytesReached())) {
+					stopLingering();
+				}
 				return true;
 			}
 
 			sendMessageInProgress = message;
+			checkHighWaterMarks();
 
-			if (selectionKey.isValid() && channel.socket().isConnected()) {
-				enableOp(SelectionKey.OP_WRITE);
+			if (selectionKey.isValid() && channel.isConnected()) {
+				if (lingers(message) && !lingerBytesReached()) {
+					lingering = true;
+					lingerDeadlineNanos = System.nanoTime() + lingerNanos;
+					requestHouseKeeping();
+				} else {
+					enableOp(SelectionKey.OP_WRITE);
+				}
 				return true;
 			}
 		} catch (Exception e) {
@@ -541,74 +746,195 @@ abstract class AbstractMqttChannel implements MqttChannel {
 		return false;
 	}
 
+	/**
+	 * @return True if the message may be held for the linger time before it is written
+	 */
+	private boolean lingers(MqttMessage message) {
+		return lingerNanos > 0 && message.getMessageType() == MessageType.PUBLISH;
+	}
+
+	private boolean lingerBytesReached() {
+		return lingerBytes > 0 && pendingWriteBytes >= lingerBytes;
+	}
+
+	/**
+	 * Stops holding messages and starts writing them
+	 */
+	private void stopLingering() {
+
+		lingering = false;
+		enableOp(SelectionKey.OP_WRITE);
+	}
+
 	/**
 	 * @return False to have the channel closed
 	 */
 	private boolean doWrite(long now) throws IOException {
 
-		while (sendMessageInProgress != null) {
-			int bytesWritten = channel.write(sendMessageInProgress.buffer);
-			if (bytesWritten == 0 || sendMessageInProgress.buffer.hasRemaining()) {
-				return true;
-			}
+		// anything held is written along with whatever made the channel writable
+		lingering = false;
 
-			Log.debug("%s sent %s", this, sendMessageInProgress);
-			lastSentTime = now;
-			handler.messageSent(this, sendMessageInProgress);
+		while (sendMessageInProgress != null) {
 
-			if (!sendMessageInProgress.isDuplicate()) {
-				sendMessageInProgress.originalSendTime = now;
+			int count = gatherWrites();
+			long bytesWritten;
+			try {
+				bytesWritten = channel.write(writeBuffers, 0, count);
+			} finally {
+				Arrays.fill(writeBuffers, 0, count, null);
 			}
-			stats.messageSent(sendMessageInProgress.isDuplicate());
 
-			MessageType type = sendMessageInProgress.getMessageType();
-			if (type == MessageType.DISCONNECT) {
-				commandComplete(sendMessageInProgress.blockingCommand);
-				sendMessageInProgress = null;
-				return false;
-			}
+			for (int i = 0; i < count; i++) {
+				if (sendMessageInProgress.buffer.hasRemaining()) {
+					return true;
+				}
 
-			if (type == MessageType.CONNECT) {
-				ConnectMessage m = (ConnectMessage) sendMessageInProgress;
-				pingIntervalMillis = m.getKeepAliveSeconds() * 1000;
-			}
+				PubMessage filePayloadMessage = filePayloadMessage(sendMessageInProgress);
+				if (filePayloadMessage != null) {
+					bytesWritten += filePayloadMessage.transferPayloadFile(channel);
+					if (!filePayloadMessage.isPayloadFileTransferred()) {
+						return true;
+					}
+				}
 
-			if (type == MessageType.CONNACK) {
-				ConnAckMessage m = (ConnAckMessage) sendMessageInProgress;
-				if (m.getReturnCode() != ConnectReturnCode.ACCEPTED) {
-					sendMessageInProgress = null;
+				if (!messageWritten(now)) {
 					return false;
-				} else {
-					connected = true;
-					connected(pingIntervalMillis);
 				}
-			}
 
-			boolean ackable = sendMessageInProgress.isAckable();
-			if (ackable) {
-				IdentifiableMqttMessage m = (IdentifiableMqttMessage) sendMessageInProgress;
-				if (messageResendIntervalMillis > 0) {
-					m.nextSendTime = now + messageResendIntervalMillis;
-				}
-				inFlightMessages.put(m.getMessageId(), m);
+				sendMessageInProgress = writesPending.poll();
 			}
 
-			if (!ackable && type != MessageType.CONNECT) {
-				commandComplete(sendMessageInProgress.blockingCommand);
+			if (bytesWritten == 0) {
+				return true;
 			}
-
-			sendMessageInProgress = writesPending.poll();
 		}
 
 		if (!selectionKey.isValid()) {
 			return isOpen();
 		}
 
+		if (!channel.flush()) {
+			// write interest stays on so the rest is written once the transport is writable
+			return true;
+		}
+
 		disableOp(SelectionKey.OP_WRITE);
 
 		return true;
 	}
 
+	/**
+	 * Fills {@link #writeBuffers} with the buffer from {@link #sendMessageInProgress} followed by the buffers from as many messages at the head of
+	 * {@link #writesPending} as will fit. Stops after any message that closes the channel once it is written and after any message whose payload is
+	 * transferred from a file since the payload has to be written before the next message.
+	 * 
+	 * @return The number of buffers to write
+	 */
+	private int gatherWrites() {
+
+		writeBuffers[0] = sendMessageInProgress.buffer;
+		if (closesChannel(sendMessageInProgress) || filePayloadMessage(sendMessageInProgress) != null) {
+			return 1;
+		}
+
+		int count = 1;
+		Iterator<MqttMessage> iter = writesPending.iterator();
+		while (count < writeBuffers.length && iter.hasNext()) {
+			MqttMessage message = iter.next();
+			writeBuffers[count++] = message.buffer;
+			if (closesChannel(message) || filePayloadMessage(message) != null) {
+				break;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * @return The message as a {@link PubMessage} if its payload is {@link PubMessage#isPayloadInFile() in a file}. Null otherwise.
+	 */
+	private PubMessage filePayloadMessage(MqttMessage message) {
+
+		if (message.getMessageType() != MessageType.PUBLISH) {
+			return null;
+		}
+
+		PubMessage pubMessage = (PubMessage) message;
+		return pubMessage.isPayloadInFile() ? pubMessage : null;
+	}
+
+	/**
+	 * @return The number of bytes written to send the message including any payload transferred from a file
+	 */
+	private long writeSize(MqttMessage message) {
+
+		PubMessage filePayloadMessage = filePayloadMessage(message);
+		return filePayloadMessage == null ? message.buffer.limit() : (long) message.buffer.limit() + filePayloadMessage.getPayloadLength();
+	}
+
+	private boolean closesChannel(MqttMessage message) {
+
+		MessageType type = message.getMessageType();
+		return type == MessageType.DISCONNECT || (type == MessageType.CONNACK && ((ConnAckMessage) message).getReturnCode() != ConnectReturnCode.ACCEPTED);
+	}
+
+	/**
+	 * Called once {@link #sendMessageInProgress} has been completely written
+	 * 
+	 * @return False to have the channel closed
+	 */
+	private boolean messageWritten(long now) {
+
+		Log.debug("%s sent %s", this, sendMessageInProgress);
+		lastSentTime = now;
+		pendingWriteBytes -= writeSize(sendMessageInProgress);
+		checkLowWaterMarks();
+		handler.messageSent(this, sendMessageInProgress);
+
+		if (!sendMessageInProgress.isDuplicate()) {
+			sendMessageInProgress.originalSendTime = now;
+		}
+		stats.messageSent(sendMessageInProgress.isDuplicate());
+
+		MessageType type = sendMessageInProgress.getMessageType();
+		if (type == MessageType.DISCONNECT) {
+			commandComplete(sendMessageInProgress.blockingCommand);
+			sendMessageInProgress = null;
+			return false;
+		}
+
+		if (type == MessageType.CONNECT) {
+			ConnectMessage m = (ConnectMessage) sendMessageInProgress;
+			pingIntervalMillis = m.getKeepAliveSeconds() * 1000;
+		}
+
+		if (type == MessageType.CONNACK) {
+			ConnAckMessage m = (ConnAckMessage) sendMessageInProgress;
+			if (m.getReturnCode() != ConnectReturnCode.ACCEPTED) {
+				sendMessageInProgress = null;
+				return false;
+			} else {
+				connected = true;
+				connected(pingIntervalMillis);
+			}
+		}
+
+		boolean ackable = sendMessageInProgress.isAckable();
+		if (ackable) {
+			IdentifiableMqttMessage m = (IdentifiableMqttMessage) sendMessageInProgress;
+			if (messageResendIntervalMillis > 0) {
+				m.nextSendTime = now + messageResendIntervalMillis;
+			}
+			inFlightMessages.put(m);
+		}
+
+		if (!ackable && type != MessageType.CONNECT) {
+			commandComplete(sendMessageInProgress.blockingCommand);
+		}
+
+		return true;
+	}
+
 	private void setFailureOnCommand(BlockingCommand<?> blockingCommand, Throwable cause) {
 		if (blockingCommand != null) {
 			blockingCommand.setFailureCause(cause);
@@ -647,45 +973,291 @@ abstract class AbstractMqttChannel implements MqttChannel {
 			return readRemaining(now);
 		}
 
-		if (readHeader1.hasRemaining()) {
-			int result = channel.read(readHeader1);
-			if (readHeader1.hasRemaining()) {
-				return result >= 0;
+		readBuffer.compact();
+		int result;
+		try {
+			result = channel.read(readBuffer);
+		} finally {
+			readBuffer.flip();
+		}
+
+		if (!processReadBuffer(now)) {
+			return false;
+		}
+
+		return result >= 0;
+	}
+
+	/**
+	 * Reads the bytes the transport holds that the selector will not report, such as records an {@link SslTransport} decrypted that did not fit in
+	 * {@link #readBuffer}. Stops if reading is paused or the channel is closed or detached.
+	 * 
+	 * @return False to have the channel closed
+	 */
+	private boolean readBuffered(long now) throws IOException {
+
+		SelectionKey key = selectionKey;
+		while (channel.hasBufferedReads() && key == selectionKey && isReadable() && !processReadBufferPending && !channelCloseCalled) {
+			if (!doRead(now)) {
+				return false;
 			}
 		}
 
-		byte firstLenByte = readHeader1.get(1);
-		if (firstLenByte == 0) {
-			return processMessage(now, readHeader1);
+		return true;
+	}
+
+	/**
+	 * Processes every complete message in {@link #readBuffer}. Stops early if reading is paused or the channel is closed or detached by a
+	 * {@link MessageHandler} while a message is being processed. If the next message is bigger than {@link #readBuffer} then it is either
+	 * {@link #streams(byte, int) streamed} from the read buffer or {@link #readRemaining} is created for it.
+	 * 
+	 * @return False to have the channel closed
+	 */
+	private boolean processReadBuffer(long now) throws IOException {
+
+		// a message handler may detach this channel and attach it to a selector owned by another thread
+		SelectionKey key = selectionKey;
+
+		while (readBuffer.remaining() >= 2 || (streamingRemaining > 0 && readBuffer.hasRemaining())) {
+
+			if (channelCloseCalled || key != selectionKey || !isReadable()) {
+				processReadBufferPending = !channelCloseCalled;
+				return true;
+			}
+
+			if (streamingRemaining > 0) {
+				streamPayload(now);
+				continue;
+			}
+
+			int start = readBuffer.position();
+			int pos = start + 1;
+			int length = 0;
+			int multiplier = 1;
+			byte b;
+			do {
+				if (pos == readBuffer.limit()) {
+					// the remaining length field is not complete yet
+					return true;
+				}
+				if (pos - start > 4) {
+					throw new IOException("Invalid remaining length in fixed header");
+				}
+				b = readBuffer.get(pos++);
+				length += (b & 0x7f) * multiplier;
+				multiplier *= 0x80;
+			} while ((b & 0x80) != 0);
+
+			int messageSize = pos - start + length;
+			if (messageSize > readBuffer.remaining()) {
+				if (messageSize > readBuffer.capacity() && streams(readBuffer.get(start), messageSize)) {
+					int headerEnd = publishHeaderEnd(start, pos, length);
+					if (headerEnd < 0) {
+						// the variable header is not complete yet
+						return true;
+					}
+					if (headerEnd - start <= readBuffer.capacity()) {
+						startStream(now, start, headerEnd, length);
+						continue;
+					}
+				}
+				if (messageSize > readBuffer.capacity()) {
+					remainingLength = length;
+					readRemaining = allocateMessageBuffer(readBuffer.get(start), messageSize);
+					readRemaining.put(readBuffer);
+				}
+				return true;
+			}
+
+			int limit = readBuffer.limit();
+			readBuffer.limit(start + messageSize);
+			ByteBuffer buffer = allocateMessageBuffer(readBuffer.get(start), messageSize);
+			buffer.put(readBuffer);
+			readBuffer.limit(limit);
+
+			remainingLength = length;
+			if (!processMessage(now, buffer)) {
+				return false;
+			}
 		}
 
-		if ((firstLenByte & 0x80) == 0) {
-			return readRemaining(now);
+		return true;
+	}
+
+	/**
+	 * @return True if a message that is too big for {@link #readBuffer} should be streamed to the handler instead of read into its own buffer
+	 */
+	private boolean streams(byte byte1, int messageSize) {
+
+		return publishStreamingThresholdBytes > 0 && messageSize > publishStreamingThresholdBytes && handler instanceof StreamingMessageHandler
+				&& (byte1 & 0xf0) >> 4 == MessageType.PUBLISH.value();
+	}
+
+	/**
+	 * @param start
+	 *            Index in {@link #readBuffer} of the first byte of the publish message
+	 * @param variableHeaderStart
+	 *            Index in {@link #readBuffer} of the first byte after the fixed header
+	 * 
+	 * @return The index in {@link #readBuffer} of the end of the publish message's variable header. This may be past the end of the read buffer. -1 if not
+	 *         enough of the message has been read to tell.
+	 */
+	private int publishHeaderEnd(int start, int variableHeaderStart, int remainingLength) throws IOException {
+
+		if (variableHeaderStart + 2 > readBuffer.limit()) {
+			return -1;
+		}
+
+		int variableHeaderLength = 2 + (readBuffer.getShort(variableHeaderStart) & 0xffff);
+		if ((readBuffer.get(start) & 0x06) != 0) {
+			variableHeaderLength += 2;
 		}
+		if (variableHeaderLength > remainingLength) {
+			throw new IOException("Invalid publish message variable header length");
+		}
+
+		int headerEnd = variableHeaderStart + variableHeaderLength;
+		return headerEnd - start > readBuffer.capacity() || headerEnd <= readBuffer.limit() ? headerEnd : -1;
+	}
+
+	/**
+	 * Starts streaming a publish message whose header is between start and headerEnd in {@link #readBuffer}
+	 */
+	private void startStream(long now, int start, int headerEnd, int remainingLength) {
+
+		ByteBuffer header = ByteBuffer.allocate(headerEnd - start);
+		int limit = readBuffer.limit();
+		readBuffer.limit(headerEnd);
+		header.put(readBuffer);
+		readBuffer.limit(limit);
+		header.flip();
+
+		lastReceivedTime = now;
+		streamingMessage = new PubMessage(header, remainingLength, now);
+		streamingHandler = (StreamingMessageHandler) handler;
+		streamingRemaining = remainingLength - (headerEnd - start - streamingMessage.fixedHeaderEndOffset);
+
+		Log.debug("%s streaming %s with a %d byte payload", this, streamingMessage, streamingRemaining);
+
+		try {
+			streamingHandler.publishStarted(this, streamingMessage, streamingRemaining);
+		} catch (Exception e) {
+			Log.error(e, "Failed to process streamed message for %s: %s", this, streamingMessage);
+		}
+	}
+
+	/**
+	 * Passes as much of the payload of {@link #streamingMessage} as is in {@link #readBuffer} to the handler. If the stream was aborted the payload is skipped.
+	 */
+	private void streamPayload(long now) {
 
-		if (readHeader2.hasRemaining()) {
-			int result = channel.read(readHeader2);
-			if (readHeader2.hasRemaining()) {
-				return result >= 0;
+		int size = Math.min(readBuffer.remaining(), streamingRemaining);
+		ByteBuffer payload = readBuffer.slice();
+		payload.limit(size);
+		readBuffer.position(readBuffer.position() + size);
+		streamingRemaining -= size;
+		lastReceivedTime = now;
+
+		PubMessage message = streamingMessage;
+		StreamingMessageHandler handler = streamingHandler;
+		if (message == null) {
+			return;
+		}
+
+		if (streamingRemaining == 0) {
+			streamingMessage = null;
+			streamingHandler = null;
+		}
+
+		try {
+			handler.publishPayload(this, message, payload);
+			if (streamingRemaining == 0) {
+				Log.debug("%s received %s", this, message);
+				stats.messageReceived(message.isDuplicate());
+				handler.publishFinished(this, message);
 			}
+		} catch (Exception e) {
+			Log.error(e, "Failed to process streamed message for %s: %s", this, message);
+		}
+	}
+
+	/**
+	 * Tells the handler that the publish message being streamed, if any, will not be finished because the channel is closing or being detached. The rest of
+	 * its payload is skipped.
+	 */
+	private void abortStream() {
+
+		PubMessage message = streamingMessage;
+		StreamingMessageHandler handler = streamingHandler;
+		if (message == null) {
+			return;
+		}
+
+		streamingMessage = null;
+		streamingHandler = null;
+
+		Log.debug("%s aborted streaming %s with %d payload bytes to come", this, message, streamingRemaining);
+
+		try {
+			handler.publishAborted(this, message);
+		} catch (Exception e) {
+			Log.error(e, "Failed to process streamed message for %s: %s", this, message);
 		}
+	}
+
+	private static ByteBuffer newReadBuffer(ChannelManagerConfig config) {
 
-		return readRemaining(now);
+		ByteBuffer buffer = config.isDirectBuffersEnabled() ? ByteBuffer.allocateDirect(READ_BUFFER_SIZE) : ByteBuffer.allocate(READ_BUFFER_SIZE);
+		buffer.flip();
+
+		return buffer;
+	}
+
+	/**
+	 * @return A buffer for a received message. Publish messages come from {@link #bufferPool} if pooling is enabled.
+	 */
+	private ByteBuffer allocateMessageBuffer(byte byte1, int size) {
+
+		if (bufferPool != null && (byte1 & 0xf0) >> 4 == MessageType.PUBLISH.value()) {
+			return bufferPool.allocate(size);
+		}
+
+		return ByteBuffer.allocate(size);
+	}
+
+	private boolean isReadable() {
+		return selectionKey.isValid() && !isReadPaused();
 	}
 
 	private boolean isReadPaused() {
 		return (selectionKey.interestOps() & SelectionKey.OP_READ) == 0;
 	}
 
+	private void requestHouseKeeping() {
+
+		if (houseKeepingSchedule != null) {
+			houseKeepingSchedule.expedite(this);
+		}
+	}
+
 	private void enableOp(int op) {
 		if (selectionKey.isValid()) {
-			selectionKey.interestOps(selectionKey.interestOps() | op);
+			if (op == SelectionKey.OP_WRITE && !channel.isWriteSelectable()) {
+				writeRequested = true;
+				requestHouseKeeping();
+			} else {
+				selectionKey.interestOps(selectionKey.interestOps() | op);
+			}
 		}
 	}
 
 	private void disableOp(int op) {
 		if (selectionKey.isValid()) {
-			selectionKey.interestOps(selectionKey.interestOps() & ~op);
+			if (op == SelectionKey.OP_WRITE && !channel.isWriteSelectable()) {
+				writeRequested = false;
+			} else {
+				selectionKey.interestOps(selectionKey.interestOps() & ~op);
+			}
 		}
 	}
 
@@ -702,7 +1274,7 @@ abstract class AbstractMqttChannel implements MqttChannel {
 		for (MqttMessage message : messagesToResend) {
 			setFailureOnCommand(message.blockingCommand, cause);
 		}
-		for (MqttMessage message : inFlightMessages.values()) {
+		for (IdentifiableMqttMessage message = inFlightMessages.oldest(); message != null; message = message.inFlightNext) {
 			setFailureOnCommand(message.blockingCommand, cause);
 		}
 	}
@@ -748,6 +1320,11 @@ abstract class AbstractMqttChannel implements MqttChannel {
 			}
 		}
 
+		// lets the channel manager remove this channel promptly when it is closed by a message handler for another channel
+		requestHouseKeeping();
+
+		abortStream();
+
 		try {
 			handler.channelClosed(this, cause);
 		} catch (Exception e) {
@@ -755,31 +1332,62 @@ abstract class AbstractMqttChannel implements MqttChannel {
 		}
 	}
 
+	private void checkHighWaterMarks() {
+
+		if (writable && ((writeHighWaterMarkBytes > 0 && pendingWriteBytes > writeHighWaterMarkBytes)
+				|| (writeHighWaterMarkMessages > 0 && sendQueueDepth() > writeHighWaterMarkMessages))) {
+			writabilityChanged(false);
+		}
+	}
+
+	/**
+	 * Called after {@link #sendMessageInProgress} is written but before it is replaced so the queue depth still includes it
+	 */
+	private void checkLowWaterMarks() {
+
+		if (!writable && (writeHighWaterMarkBytes == 0 || pendingWriteBytes <= writeLowWaterMarkBytes)
+				&& (writeHighWaterMarkMessages == 0 || sendQueueDepth() - 1 <= writeLowWaterMarkMessages)) {
+			writabilityChanged(true);
+		}
+	}
+
+	private void writabilityChanged(boolean writable) {
+
+		this.writable = writable;
+		if (!(handler instanceof WritabilityAwareMessageHandler)) {
+			return;
+		}
+
+		try {
+			((WritabilityAwareMessageHandler) handler).channelWritabilityChanged(this, writable);
+		} catch (Exception e) {
+			Log.error(e, "Message handler failed in channelWritabilityChanged for %s", this);
+		}
+	}
+
 	private long resendMessages(long now) {
 
 		long maxIdleTime = Long.MAX_VALUE;
 		long minSendTime = now + 1000;
 
-		Iterator<IdentifiableMqttMessage> msgIter = inFlightMessages.values().iterator();
-		while (msgIter.hasNext()) {
-			IdentifiableMqttMessage msg = msgIter.next();
-			if (msg.nextSendTime <= minSendTime) {
-				messagesToResend.add(msg);
-				msgIter.remove();
-			} else {
-				long next = msg.nextSendTime - now;
-				if (next < maxIdleTime) {
-					maxIdleTime = next;
-				}
-			}
+		// messages are linked in the order they were sent and all have the same resend interval so only the due messages at the front are visited
+		IdentifiableMqttMessage msg = inFlightMessages.oldest();
+		while (msg != null && msg.nextSendTime <= minSendTime) {
+			messagesToResend.add(msg);
+			msg = msg.inFlightNext;
+		}
+
+		if (msg != null) {
+			maxIdleTime = msg.nextSendTime - now;
 		}
 
 		if (!messagesToResend.isEmpty()) {
 			Log.debug("%s resending %d messages", this, messagesToResend.size());
 
-			for (IdentifiableMqttMessage msg : messagesToResend) {
-				msg.setDuplicateFlag();
-				doSend(msg);
+			for (IdentifiableMqttMessage resend : messagesToResend) {
+				inFlightMessages.remove(resend.getMessageId());
+				resend.setDuplicateFlag();
+				doSend(resend);
 			}
 
 			messagesToResend.clear();
@@ -799,9 +1407,6 @@ abstract class AbstractMqttChannel implements MqttChannel {
 
 		boolean result = handleMessage(now, buffer);
 
-		readHeader1.clear();
-		readHeader2.clear();
-		readRemaining = null;
 		remainingLength = 0;
 
 		return result;
@@ -836,6 +1441,7 @@ abstract class AbstractMqttChannel implements MqttChannel {
 				break;
 			case PUBLISH:
 				PubMessage publishMessage = new PubMessage(buffer, remainingLength, now);
+				publishMessage.bufferPool = bufferPool;
 				msg = publishMessage;
 				handler.publish(this, publishMessage);
 				break;
@@ -917,6 +1523,11 @@ abstract class AbstractMqttChannel implements MqttChannel {
 			result = isOpen();
 		}
 
+		if (msg != null) {
+			// the handler must retain the message if it keeps it
+			msg.release();
+		}
+
 		return result;
 	}
 
@@ -932,48 +1543,20 @@ abstract class AbstractMqttChannel implements MqttChannel {
 	}
 
 	/**
-	 * Sets {@link #remainingLength}
+	 * Reads the rest of a message that is too big for {@link #readBuffer}.
 	 * 
-	 * @return The number of bytes in the remaining length field in the message
-	 */
-	private int calculateRemainingLength() {
-
-		int byteCount = 0;
-		byte b;
-		int multiplier = 1;
-		do {
-			b = byteCount == 0 ? readHeader1.get(1) : readHeader2.get(byteCount - 1);
-			remainingLength += (b & 0x7f) * multiplier;
-			multiplier *= 0x80;
-			byteCount++;
-		} while ((b & 0x80) != 0);
-
-		return byteCount;
-	}
-
-	/**
 	 * @return False to have the channel closed
 	 */
 	private boolean readRemaining(long now) throws IOException {
 
-		if (readRemaining == null) {
-			int remainingLengthSize = calculateRemainingLength();
-			int headerSize = 1 + remainingLengthSize;
-			readRemaining = ByteBuffer.allocate(remainingLength + headerSize);
-			readHeader1.flip();
-			readRemaining.put(readHeader1);
-
-			if (readHeader2.position() > 0) {
-				readHeader2.flip();
-				readRemaining.put(readHeader2);
-			}
-		}
-
 		int result = channel.read(readRemaining);
 		if (readRemaining.hasRemaining()) {
 			return result >= 0;
 		}
 
-		return processMessage(now, readRemaining);
+		ByteBuffer buffer = readRemaining;
+		readRemaining = null;
+
+		return processMessage(now, buffer);
 	}
 }
@@ -0,0 +1,107 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.xenqtt.ConfigurableThreadFactory;
+
+/**
+ * Resolves broker host names for {@link ChannelManagerImpl} so a slow or failing lookup never runs on an IO thread. Lookups run on a dedicated thread that is
+ * only started when the first lookup is needed. Successfully resolved addresses are cached for a configurable time. Failed lookups are not cached. This class
+ * is thread safe.
+ */
+final class AddressResolver {
+
+	private final ConcurrentMap<String, CachedAddress> cache = new ConcurrentHashMap<String, CachedAddress>();
+	private final long ttlMillis;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new ConfigurableThreadFactory("MqttAddressResolver", true));
+
+	/**
+	 * @param ttlMillis
+	 *            Millis a resolved address is cached. 0 to not cache addresses.
+	 */
+	AddressResolver(long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * @return The cached address of host with the specified port. Null if there is no cached address for host or it has expired.
+	 */
+	InetSocketAddress cached(String host, int port, long now) {
+
+		CachedAddress cached = cache.get(host);
+		if (cached == null) {
+			return null;
+		}
+
+		if (now >= cached.expires) {
+			cache.remove(host, cached);
+			return null;
+		}
+
+		return new InetSocketAddress(cached.address, port);
+	}
+
+	/**
+	 * Resolves host on the calling thread and caches the result if it was resolved. This blocks for as long as the lookup takes.
+	 * 
+	 * @return The address of host with the specified port. If the host could not be resolved this is an {@link InetSocketAddress#isUnresolved() unresolved}
+	 *         address.
+	 */
+	InetSocketAddress resolve(String host, int port, long now) {
+
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		if (ttlMillis > 0 && !address.isUnresolved()) {
+			cache.put(host, new CachedAddress(address.getAddress(), now + ttlMillis));
+		}
+
+		return address;
+	}
+
+	/**
+	 * Runs task on the resolver thread. Use this for a task that calls {@link #resolve(String, int, long)}.
+	 * 
+	 * @throws java.util.concurrent.RejectedExecutionException
+	 *             If this resolver has been shut down
+	 */
+	void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * Stops the resolver thread. Lookups already started are allowed to finish.
+	 */
+	void shutdown() {
+		executor.shutdown();
+	}
+
+	private static final class CachedAddress {
+
+		private final InetAddress address;
+		private final long expires;
+
+		CachedAddress(InetAddress address, long expires) {
+			this.address = address;
+			this.expires = expires;
+		}
+	}
+}
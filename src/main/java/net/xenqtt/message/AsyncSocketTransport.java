@@ -0,0 +1,665 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.xenqtt.ConfigurableThreadFactory;
+
+/**
+ * A {@link Transport} over an NIO.2 {@code AsynchronousSocketChannel}. The socket reads and writes are started with {@code CompletionHandler}s and complete on
+ * the threads of an {@code AsynchronousChannelGroup} so the IO thread that owns the channel never makes a socket system call. The IO thread still decodes
+ * the bytes and invokes the {@link MessageHandler} so the handler contract is the same as for every other transport.
+ * <p>
+ * Completed reads are queued for the IO thread, which is told about them through a {@link Pipe} its {@link Selector} waits on like {@link MemoryTransport}.
+ * Writes are copied and queued for the group's threads, which write them one at a time. Both queues are bounded by {@link #MAX_QUEUED_BYTES}. A read is not
+ * started while the read queue is full and a write is not accepted while the write queue is full. A write that is not accepted signals the pipe once the
+ * queue has room so the channel retries it. The connection is started when {@link #connect(SocketAddress)} is called and writes are queued until it is
+ * established. A failure to connect is reported by the next read.
+ * <p>
+ * NIO.2 is only available from Java 7 so everything is done through reflection and this library still runs on older JVMs.
+ */
+final class AsyncSocketTransport extends Transport {
+
+	/**
+	 * Maximum bytes queued in each direction
+	 */
+	static final int MAX_QUEUED_BYTES = 256 * 1024;
+
+	private static final int READ_BUFFER_SIZE = 8192;
+	private static final byte[] SIGNAL = new byte[1];
+
+	private static final int CONNECT = 0;
+	private static final int READ = 1;
+	private static final int WRITE = 2;
+
+	private static final Class<?> HANDLER_CLASS;
+	private static final Method NEW_GROUP;
+	private static final Method SHUTDOWN_GROUP;
+	private static final Method OPEN;
+	private static final Method CONNECT_METHOD;
+	private static final Method READ_METHOD;
+	private static final Method WRITE_METHOD;
+	private static final Method CLOSE;
+	private static final Method GET_LOCAL_ADDRESS;
+	private static final Method GET_REMOTE_ADDRESS;
+
+	static {
+
+		Class<?> handlerClass = null;
+		Method newGroup = null;
+		Method shutdownGroup = null;
+		Method open = null;
+		Method connect = null;
+		Method read = null;
+		Method write = null;
+		Method close = null;
+		Method getLocalAddress = null;
+		Method getRemoteAddress = null;
+
+		try {
+			Class<?> groupClass = Class.forName("java.nio.channels.AsynchronousChannelGroup");
+			Class<?> channelClass = Class.forName("java.nio.channels.AsynchronousSocketChannel");
+			handlerClass = Class.forName("java.nio.channels.CompletionHandler");
+			newGroup = groupClass.getMethod("withFixedThreadPool", int.class, ThreadFactory.class);
+			shutdownGroup = groupClass.getMethod("shutdown");
+			open = channelClass.getMethod("open", groupClass);
+			connect = channelClass.getMethod("connect", SocketAddress.class, Object.class, handlerClass);
+			read = channelClass.getMethod("read", ByteBuffer.class, Object.class, handlerClass);
+			write = channelClass.getMethod("write", ByteBuffer.class, Object.class, handlerClass);
+			close = channelClass.getMethod("close");
+			getLocalAddress = channelClass.getMethod("getLocalAddress");
+			getRemoteAddress = channelClass.getMethod("getRemoteAddress");
+		} catch (Exception ignore) {
+			// this JVM does not support NIO.2
+			handlerClass = null;
+		}
+
+		HANDLER_CLASS = handlerClass;
+		NEW_GROUP = newGroup;
+		SHUTDOWN_GROUP = shutdownGroup;
+		OPEN = open;
+		CONNECT_METHOD = connect;
+		READ_METHOD = read;
+		WRITE_METHOD = write;
+		CLOSE = close;
+		GET_LOCAL_ADDRESS = getLocalAddress;
+		GET_REMOTE_ADDRESS = getRemoteAddress;
+	}
+
+	private final Object channel;
+	private final Object connectHandler = newHandler(CONNECT);
+	private final Object readHandler = newHandler(READ);
+	private final Object writeHandler = newHandler(WRITE);
+
+	private final Pipe pipe;
+	private final ByteBuffer drainBuffer = ByteBuffer.allocate(64);
+	// true from when a signal is written to the pipe until the IO thread drains it so only the first completion the IO thread has not seen writes to the pipe
+	private final AtomicBoolean signalled = new AtomicBoolean();
+
+	private final Queue<ByteBuffer> incoming = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final Queue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger incomingBytes = new AtomicInteger();
+	private final AtomicBoolean readPaused = new AtomicBoolean();
+
+	private final Queue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger outgoingBytes = new AtomicInteger();
+	// true while a group thread owns writing. Only that thread starts writes.
+	private final AtomicBoolean writing = new AtomicBoolean();
+	// true while a write was not accepted because the queue was full. The group thread clears it and signals once there is room.
+	private final AtomicBoolean writeBlocked = new AtomicBoolean();
+
+	private final AtomicBoolean channelClosed = new AtomicBoolean();
+
+	// only touched by the IO thread
+	private ByteBuffer current;
+	private boolean connectStarted;
+	private boolean closed;
+
+	private volatile ByteBuffer currentRead;
+	private volatile ByteBuffer currentWrite;
+	private volatile boolean connected;
+	private volatile boolean endOfStream;
+	private volatile boolean closeWhenWritten;
+	private volatile Throwable failure;
+
+	/**
+	 * @param group
+	 *            The group from {@link #newGroup(int)} whose threads complete this transport's IO
+	 */
+	AsyncSocketTransport(Object group) throws IOException {
+
+		channel = invoke(OPEN, null, group);
+		try {
+			pipe = Pipe.open();
+			pipe.source().configureBlocking(false);
+		} catch (IOException e) {
+			invoke(CLOSE, channel);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return True if this JVM supports NIO.2 asynchronous socket channels
+	 */
+	static boolean isSupported() {
+		return HANDLER_CLASS != null;
+	}
+
+	/**
+	 * @return A new {@code AsynchronousChannelGroup} with the specified number of daemon threads
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             If this JVM does not support NIO.2
+	 */
+	static Object newGroup(int threadCount) throws IOException {
+
+		if (!isSupported()) {
+			throw new UnsupportedOperationException("Asynchronous socket channels require Java 7 or later");
+		}
+
+		return invoke(NEW_GROUP, null, threadCount, new ConfigurableThreadFactory("MqttAsyncIo", true));
+	}
+
+	/**
+	 * Shuts down a group from {@link #newGroup(int)}. Its threads finish once every channel in it is closed, which lets closed transports finish writing
+	 * what they had queued.
+	 */
+	static void shutdownGroup(Object group) {
+
+		try {
+			invoke(SHUTDOWN_GROUP, group);
+		} catch (IOException ignore) {
+		}
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#register(java.nio.channels.Selector, int, java.lang.Object)
+	 */
+	@Override
+	SelectionKey register(Selector selector, int ops, Object attachment) throws IOException {
+		return pipe.source().register(selector, ops & SelectionKey.OP_READ, attachment);
+	}
+
+	/**
+	 * Starts connecting. Writes are accepted right away and are written once the connection is established.
+	 * 
+	 * @see net.xenqtt.message.Transport#connect(java.net.SocketAddress)
+	 */
+	@Override
+	boolean connect(SocketAddress address) throws IOException {
+
+		connectStarted = true;
+		invoke(CONNECT_METHOD, channel, address, null, connectHandler);
+
+		return true;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#finishConnect()
+	 */
+	@Override
+	boolean finishConnect() throws IOException {
+
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+
+		return connectStarted;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#isConnectionPending()
+	 */
+	@Override
+	boolean isConnectionPending() {
+		return false;
+	}
+
+	/**
+	 * Writes are accepted from when the connection is started so this is true once {@link #connect(SocketAddress)} is called
+	 * 
+	 * @see net.xenqtt.message.Transport#isConnected()
+	 */
+	@Override
+	boolean isConnected() {
+		return connectStarted;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#isWriteSelectable()
+	 */
+	@Override
+	boolean isWriteSelectable() {
+		return false;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#getRemoteAddress()
+	 */
+	@Override
+	String getRemoteAddress() {
+		return address(GET_REMOTE_ADDRESS);
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#getLocalAddress()
+	 */
+	@Override
+	String getLocalAddress() {
+		return address(GET_LOCAL_ADDRESS);
+	}
+
+	/**
+	 * Reads as many of the bytes already read from the socket as will fit in dst
+	 * 
+	 * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+
+		// drain the pipe before clearing the flag so a signal written after the flag is cleared is still in the pipe for the next select
+		drainBuffer.clear();
+		while (pipe.source().read(drainBuffer) > 0) {
+			drainBuffer.clear();
+		}
+		signalled.set(false);
+
+		// checked before polling the queue since the group thread queues everything it read before it sets these
+		Throwable failure = this.failure;
+		boolean endOfStream = this.endOfStream;
+
+		int count = 0;
+		while (dst.hasRemaining()) {
+			if (current == null) {
+				current = incoming.poll();
+				if (current == null) {
+					break;
+				}
+			}
+
+			int length = Math.min(dst.remaining(), current.remaining());
+			int limit = current.limit();
+			current.limit(current.position() + length);
+			dst.put(current);
+			current.limit(limit);
+			count += length;
+
+			if (!current.hasRemaining()) {
+				freeBuffers.offer(current);
+				current = null;
+			}
+		}
+
+		if (count > 0 && incomingBytes.addAndGet(-count) < MAX_QUEUED_BYTES && readPaused.compareAndSet(true, false)) {
+			readNext();
+		}
+
+		if (current != null || !incoming.isEmpty()) {
+			// there is more to read so the selector must select this transport again
+			signal();
+		} else if (failure != null || endOfStream) {
+			if (count == 0) {
+				if (failure != null) {
+					throw ioException(failure);
+				}
+				return -1;
+			}
+			signal();
+		}
+
+		return count;
+	}
+
+	/**
+	 * @see java.nio.channels.WritableByteChannel#write(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return (int) write(new ByteBuffer[] { src }, 0, 1);
+	}
+
+	/**
+	 * Copies all the remaining bytes in the buffers to the write queue. Nothing is copied if the queue is full. The pipe is then signalled once there is room.
+	 * 
+	 * @see java.nio.channels.GatheringByteChannel#write(java.nio.ByteBuffer[], int, int)
+	 */
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+
+		Throwable failure = this.failure;
+		if (failure != null) {
+			throw ioException(failure);
+		}
+
+		if (outgoingBytes.get() >= MAX_QUEUED_BYTES) {
+			writeBlocked.set(true);
+			// unless the queue drained before the flag was set the group thread signals once there is room
+			if (outgoingBytes.get() >= MAX_QUEUED_BYTES || !writeBlocked.compareAndSet(true, false)) {
+				return 0;
+			}
+		}
+
+		int size = 0;
+		for (int i = offset; i < offset + length; i++) {
+			size += srcs[i].remaining();
+		}
+
+		if (size == 0) {
+			return 0;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (int i = offset; i < offset + length; i++) {
+			buffer.put(srcs[i]);
+		}
+		buffer.flip();
+
+		outgoingBytes.addAndGet(size);
+		outgoing.offer(buffer);
+		if (connected && writing.compareAndSet(false, true)) {
+			writeNext();
+		}
+
+		return size;
+	}
+
+	/**
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	@Override
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	/**
+	 * Closes this transport. Bytes already queued are still written before the socket is closed, once the connection is established if it is still being
+	 * established, unless the connection fails.
+	 * 
+	 * @see java.nio.channels.Channel#close()
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+		incoming.clear();
+		current = null;
+
+		try {
+			// set before connected is read so a connection completing now sees it when it writes what is queued
+			closeWhenWritten = true;
+			if (failure != null) {
+				closeChannel();
+			} else if (connected && writing.compareAndSet(false, true)) {
+				writeNext();
+			}
+		} finally {
+			try {
+				pipe.sink().close();
+			} finally {
+				pipe.source().close();
+			}
+		}
+	}
+
+	/**
+	 * Called on a group thread when an operation completes
+	 */
+	private void completed(int operation, Object result) {
+
+		if (operation == CONNECT) {
+			connected = true;
+			readNext();
+			if (writing.compareAndSet(false, true)) {
+				writeNext();
+			}
+		} else if (operation == READ) {
+			readCompleted((Integer) result);
+		} else {
+			ByteBuffer buffer = currentWrite;
+			if (buffer.hasRemaining()) {
+				startWrite(buffer);
+			} else {
+				if (outgoingBytes.addAndGet(-buffer.capacity()) < MAX_QUEUED_BYTES && writeBlocked.compareAndSet(true, false)) {
+					signal();
+				}
+				writeNext();
+			}
+		}
+	}
+
+	/**
+	 * Called on a group thread when an operation fails. The failure is reported by the next read or write on the IO thread.
+	 */
+	private void failed(Throwable cause) {
+
+		if (failure == null) {
+			failure = cause;
+		}
+		signal();
+		if (closeWhenWritten) {
+			closeChannel();
+		}
+	}
+
+	private void readCompleted(int bytesRead) {
+
+		ByteBuffer buffer = currentRead;
+		currentRead = null;
+
+		if (bytesRead < 0) {
+			endOfStream = true;
+			signal();
+			return;
+		}
+
+		buffer.flip();
+		incoming.offer(buffer);
+		signal();
+
+		if (closeWhenWritten) {
+			// the IO thread has closed this transport and is only waiting for queued writes
+			return;
+		}
+
+		if (incomingBytes.addAndGet(bytesRead) < MAX_QUEUED_BYTES) {
+			readNext();
+			return;
+		}
+
+		// the IO thread starts the next read once it has made room unless it made room before the read was paused
+		readPaused.set(true);
+		if (incomingBytes.get() < MAX_QUEUED_BYTES && readPaused.compareAndSet(true, false)) {
+			readNext();
+		}
+	}
+
+	private void readNext() {
+
+		ByteBuffer buffer = freeBuffers.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		}
+		buffer.clear();
+		currentRead = buffer;
+
+		try {
+			invoke(READ_METHOD, channel, buffer, null, readHandler);
+		} catch (Exception e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Writes the next queued buffer. The calling thread must own {@link #writing}. Ownership is given up when the queue is empty.
+	 */
+	private void writeNext() {
+
+		for (;;) {
+			ByteBuffer buffer = outgoing.poll();
+			if (buffer != null) {
+				currentWrite = buffer;
+				startWrite(buffer);
+				return;
+			}
+
+			if (closeWhenWritten) {
+				// writing is never given up so nothing else is written after the socket is closed
+				closeChannel();
+				return;
+			}
+
+			writing.set(false);
+			if (outgoing.isEmpty() || !writing.compareAndSet(false, true)) {
+				return;
+			}
+		}
+	}
+
+	private void startWrite(ByteBuffer buffer) {
+
+		try {
+			invoke(WRITE_METHOD, channel, buffer, null, writeHandler);
+		} catch (Exception e) {
+			failed(e);
+		}
+	}
+
+	private void closeChannel() {
+
+		if (channelClosed.compareAndSet(false, true)) {
+			try {
+				invoke(CLOSE, channel);
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
+	/**
+	 * Makes this transport readable to its selector if it is not already
+	 */
+	private void signal() {
+
+		if (!signalled.get() && signalled.compareAndSet(false, true)) {
+			try {
+				pipe.sink().write(ByteBuffer.wrap(SIGNAL));
+			} catch (IOException ignore) {
+				// the transport is closed so nothing is waiting for the signal
+			}
+		}
+	}
+
+	private String address(Method method) {
+
+		try {
+			Object address = invoke(method, channel);
+			return address == null ? null : address.toString();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private Object newHandler(final int operation) {
+
+		if (!isSupported()) {
+			return null;
+		}
+
+		return Proxy.newProxyInstance(AsyncSocketTransport.class.getClassLoader(), new Class<?>[] { HANDLER_CLASS }, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+				String name = method.getName();
+				if ("completed".equals(name)) {
+					completed(operation, args[0]);
+					return null;
+				}
+				if ("failed".equals(name)) {
+					failed((Throwable) args[0]);
+					return null;
+				}
+				if ("equals".equals(name)) {
+					return proxy == args[0];
+				}
+				if ("hashCode".equals(name)) {
+					return System.identityHashCode(proxy);
+				}
+
+				return "CompletionHandler[" + AsyncSocketTransport.this + "]";
+			}
+		});
+	}
+
+	private static IOException ioException(Throwable cause) {
+
+		if (cause instanceof IOException) {
+			return (IOException) cause;
+		}
+
+		IOException e = new IOException(cause.toString());
+		e.initCause(cause);
+		return e;
+	}
+
+	private static Object invoke(Method method, Object target, Object... args) throws IOException {
+
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
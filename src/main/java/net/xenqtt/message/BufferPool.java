@@ -0,0 +1,201 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of {@link ByteBuffer}s for received messages. A pool holds either heap or direct buffers. Buffers are grouped in power of 2 size classes from
+ * {@link #MIN_BUFFER_SIZE} to {@link #MAX_BUFFER_SIZE}. Larger buffers are allocated on the heap as needed and never pooled since direct buffers are expensive
+ * to allocate and are only freed by the garbage collector.
+ * <p>
+ * Each thread that allocates from the pool (normally an IO thread) gets its own cache so allocation and release on that thread are uncontended. Buffers
+ * released by other threads, or by an allocating thread whose cache is full, go to a bounded shared queue that allocating threads draw from when their cache is
+ * empty. A buffer that does not fit anywhere is simply left for the garbage collector. This class is thread safe.
+ */
+final class BufferPool {
+
+	/**
+	 * The pool shared by every {@link ChannelManagerImpl} that has the pool enabled
+	 */
+	static final BufferPool INSTANCE = new BufferPool(false);
+
+	/**
+	 * The pool of direct buffers shared by every {@link ChannelManagerImpl} that has the pool and {@link ChannelManagerConfig#isDirectBuffersEnabled() direct
+	 * buffers} enabled
+	 */
+	static final BufferPool DIRECT_INSTANCE = new BufferPool(true);
+
+	/**
+	 * Size of the smallest size class
+	 */
+	static final int MIN_BUFFER_SIZE = 64;
+
+	/**
+	 * Size of the largest size class. Requests for larger buffers are not pooled.
+	 */
+	static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+	private static final int MIN_SIZE_SHIFT = 6;
+	private static final int SIZE_CLASS_COUNT = 11;
+
+	// upper bound on the bytes held by each size class in each thread cache and in the shared queue
+	private static final int MAX_CACHED_BYTES_PER_SIZE_CLASS = 256 * 1024;
+
+	private final Queue<ByteBuffer>[] sharedBuffers;
+	private final AtomicInteger[] sharedBufferCounts;
+
+	private final ThreadLocal<Cache> caches = new ThreadLocal<Cache>();
+
+	private final boolean direct;
+
+	/**
+	 * @param direct
+	 *            True if this pool holds direct buffers. False for heap buffers.
+	 */
+	@SuppressWarnings("unchecked")
+	BufferPool(boolean direct) {
+
+		this.direct = direct;
+
+		sharedBuffers = (Queue<ByteBuffer>[]) new Queue<?>[SIZE_CLASS_COUNT];
+		sharedBufferCounts = new AtomicInteger[SIZE_CLASS_COUNT];
+		for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+			sharedBuffers[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			sharedBufferCounts[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * @return A buffer with position 0 and limit size. The capacity may be larger than size.
+	 */
+	ByteBuffer allocate(int size) {
+
+		int sizeClass = sizeClass(size);
+		if (sizeClass < 0) {
+			return ByteBuffer.allocate(size);
+		}
+
+		Cache cache = caches.get();
+		if (cache == null) {
+			cache = new Cache();
+			caches.set(cache);
+		}
+
+		ByteBuffer buffer = cache.poll(sizeClass);
+		if (buffer == null) {
+			buffer = sharedBuffers[sizeClass].poll();
+			if (buffer != null) {
+				sharedBufferCounts[sizeClass].decrementAndGet();
+			} else {
+				buffer = direct ? ByteBuffer.allocateDirect(MIN_BUFFER_SIZE << sizeClass) : ByteBuffer.allocate(MIN_BUFFER_SIZE << sizeClass);
+			}
+		}
+
+		buffer.clear();
+		buffer.limit(size);
+
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers that were not allocated by {@link #allocate(int)} are ignored. The buffer must not be used after it is released.
+	 */
+	void release(ByteBuffer buffer) {
+
+		int capacity = buffer.capacity();
+		int sizeClass = sizeClass(capacity);
+		if (sizeClass < 0 || capacity != MIN_BUFFER_SIZE << sizeClass || buffer.isDirect() != direct || buffer.isReadOnly()) {
+			return;
+		}
+
+		Cache cache = caches.get();
+		if (cache != null && cache.offer(sizeClass, buffer)) {
+			return;
+		}
+
+		if (sharedBufferCounts[sizeClass].incrementAndGet() <= maxCachedBuffers(sizeClass)) {
+			sharedBuffers[sizeClass].offer(buffer);
+		} else {
+			sharedBufferCounts[sizeClass].decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return The index of the smallest size class that holds size bytes. -1 if size is larger than {@link #MAX_BUFFER_SIZE}.
+	 */
+	static int sizeClass(int size) {
+
+		if (size > MAX_BUFFER_SIZE) {
+			return -1;
+		}
+
+		if (size <= MIN_BUFFER_SIZE) {
+			return 0;
+		}
+
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_SHIFT;
+	}
+
+	private static int maxCachedBuffers(int sizeClass) {
+		return MAX_CACHED_BYTES_PER_SIZE_CLASS >> (MIN_SIZE_SHIFT + sizeClass);
+	}
+
+	/**
+	 * Buffers cached for a single thread. Only accessed by that thread.
+	 */
+	private static final class Cache {
+
+		private final ByteBuffer[][] buffers = new ByteBuffer[SIZE_CLASS_COUNT][];
+		private final int[] counts = new int[SIZE_CLASS_COUNT];
+
+		ByteBuffer poll(int sizeClass) {
+
+			int count = counts[sizeClass];
+			if (count == 0) {
+				return null;
+			}
+
+			ByteBuffer[] stack = buffers[sizeClass];
+			ByteBuffer buffer = stack[--count];
+			stack[count] = null;
+			counts[sizeClass] = count;
+
+			return buffer;
+		}
+
+		boolean offer(int sizeClass, ByteBuffer buffer) {
+
+			ByteBuffer[] stack = buffers[sizeClass];
+			if (stack == null) {
+				stack = buffers[sizeClass] = new ByteBuffer[maxCachedBuffers(sizeClass)];
+			}
+
+			int count = counts[sizeClass];
+			if (count == stack.length) {
+				return false;
+			}
+
+			stack[count] = buffer;
+			counts[sizeClass] = count + 1;
+
+			return true;
+		}
+	}
+}
@@ -16,11 +16,14 @@
 package net.xenqtt.message;
 
 import java.net.URI;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import net.xenqtt.MqttCommandCancelledException;
+import net.xenqtt.MqttException;
 import net.xenqtt.MqttInterruptedException;
 import net.xenqtt.MqttInvocationError;
 import net.xenqtt.MqttInvocationException;
@@ -43,7 +46,11 @@ public interface ChannelManager {
 	 * will have the remote end of the connection. This method only blocks long enough for the channel to be created, not for the TCP connection to happen.
 	 * 
 	 * @param brokerUri
-	 *            URI of the broker to connect to. For example, tcp://q.m2m.io:1883.
+	 *            URI of the broker to connect to. For example, tcp://q.m2m.io:1883. Use ssl://host:port to connect with TLS (see
+	 *            {@link #acceptSslBrokerChannels(ServerSocketChannel, MessageHandler)}), unix:///path/to/socket to connect to a UNIX domain socket (Java 16
+	 *            or later), shm:///path/to/broker to connect to a broker in another process on this host through shared memory (see
+	 *            {@link #acceptSharedMemoryBrokerChannels(String, MessageHandler)}), or mem://brokerName to connect to a broker in the same JVM (see
+	 *            {@link #acceptMemoryBrokerChannels(String, MessageHandler)}).
 	 * @param messageHandler
 	 *            The {@link MessageHandler message handler} to use for all received messages
 	 * 
@@ -72,7 +79,11 @@ public interface ChannelManager {
 	 * will throw a {@link RuntimeException} wrapping any exception thrown while initializing the connection like {@link UnresolvedAddressException}
 	 * 
 	 * @param brokerUri
-	 *            URI of the broker to connect to. For example, tcp://q.m2m.io:1883.
+	 *            URI of the broker to connect to. For example, tcp://q.m2m.io:1883. Use ssl://host:port to connect with TLS (see
+	 *            {@link #acceptSslBrokerChannels(ServerSocketChannel, MessageHandler)}), unix:///path/to/socket to connect to a UNIX domain socket (Java 16
+	 *            or later), shm:///path/to/broker to connect to a broker in another process on this host through shared memory (see
+	 *            {@link #acceptSharedMemoryBrokerChannels(String, MessageHandler)}), or mem://brokerName to connect to a broker in the same JVM (see
+	 *            {@link #acceptMemoryBrokerChannels(String, MessageHandler)}).
 	 * @param messageHandler
 	 *            The {@link MessageHandler message handler} to use for all received messages
 	 * 
@@ -155,6 +166,91 @@ public interface ChannelManager {
 	MqttChannelRef newBrokerChannel(SocketChannel socketChannel, MessageHandler messageHandler) throws MqttCommandCancelledException, MqttTimeoutException,
 			MqttInterruptedException, MqttInvocationException, MqttInvocationError;
 
+	/**
+	 * Starts accepting connections on a bound {@link ServerSocketChannel}. The server channel is put in non-blocking mode and registered with the selectors of
+	 * the channel manager's IO threads so connections are accepted without a dedicated thread and without a thread hop per connection. Each accepted socket
+	 * becomes a broker side channel, the same as if it was passed to {@link #newBrokerChannel(SocketChannel, MessageHandler)}. Connections are accepted until
+	 * the server channel is closed. The caller owns the server channel and must close it.
+	 * 
+	 * @param serverChannel
+	 *            The bound {@link ServerSocketChannel server channel} to accept connections from
+	 * @param messageHandler
+	 *            The {@link MessageHandler message handler} to use for all received messages on the accepted channels
+	 * 
+	 * @throws MqttCommandCancelledException
+	 *             The channel manager uses a command pattern to process this request on the IO thread. If the command is cancelled for some reason, like the
+	 *             channel manager shutting down, this exception is thrown.
+	 * @throws MqttTimeoutException
+	 *             Thrown when using a synchronous implementation and the timeout specified for a blocked method expires
+	 * @throws MqttInterruptedException
+	 *             Thrown when the calling thread is interrupted
+	 * @throws MqttInvocationException
+	 *             The channel manager uses a command pattern to process this request on the IO thread. Any {@link Exception} thrown while the command is being
+	 *             processed will be wrapped in an {@link MqttInvocationException}.
+	 * @throws MqttInvocationError
+	 *             The channel manager uses a command pattern to process this request on the IO thread. Any {@link Error} thrown while the command is being
+	 *             processed will be wrapped in an {@link MqttInvocationError}.
+	 */
+	void acceptBrokerChannels(ServerSocketChannel serverChannel, MessageHandler messageHandler) throws MqttCommandCancelledException, MqttTimeoutException,
+			MqttInterruptedException, MqttInvocationException, MqttInvocationError;
+
+	/**
+	 * The same as {@link #acceptBrokerChannels(ServerSocketChannel, MessageHandler)} except each accepted connection is a TLS connection. The server end of
+	 * the handshake uses the key material in the channel manager's {@link ChannelManagerConfig#getSslContext() SSL context}. Clients connect with
+	 * ssl://host:port.
+	 * 
+	 * @param serverChannel
+	 *            The bound {@link ServerSocketChannel server channel} to accept connections from
+	 * @param messageHandler
+	 *            The {@link MessageHandler message handler} to use for all received messages on the accepted channels
+	 * 
+	 * @throws MqttCommandCancelledException
+	 *             The channel manager uses a command pattern to process this request on the IO thread. If the command is cancelled for some reason, like the
+	 *             channel manager shutting down, this exception is thrown.
+	 * @throws MqttTimeoutException
+	 *             Thrown when using a synchronous implementation and the timeout specified for a blocked method expires
+	 * @throws MqttInterruptedException
+	 *             Thrown when the calling thread is interrupted
+	 * @throws MqttInvocationException
+	 *             The channel manager uses a command pattern to process this request on the IO thread. Any {@link Exception} thrown while the command is being
+	 *             processed will be wrapped in an {@link MqttInvocationException}.
+	 * @throws MqttInvocationError
+	 *             The channel manager uses a command pattern to process this request on the IO thread. Any {@link Error} thrown while the command is being
+	 *             processed will be wrapped in an {@link MqttInvocationError}.
+	 */
+	void acceptSslBrokerChannels(ServerSocketChannel serverChannel, MessageHandler messageHandler) throws MqttCommandCancelledException, MqttTimeoutException,
+			MqttInterruptedException, MqttInvocationException, MqttInvocationError;
+
+	/**
+	 * Starts accepting in-memory connections from clients in the same JVM that connect to "mem://brokerName". No sockets are used. Each connection becomes a
+	 * broker side channel that behaves exactly like one for an accepted socket. Connections are accepted until this channel manager is shut down.
+	 * 
+	 * @param brokerName
+	 *            The name clients connect to. Only one broker in the JVM may use a name at a time.
+	 * @param messageHandler
+	 *            The {@link MessageHandler message handler} to use for all received messages on the accepted channels
+	 * 
+	 * @throws MqttException
+	 *             If another broker in the JVM is already accepting connections for the name
+	 */
+	void acceptMemoryBrokerChannels(String brokerName, MessageHandler messageHandler) throws MqttException;
+
+	/**
+	 * Starts accepting shared memory connections from clients in other processes on this host that connect to "shm:///path". The path is created and
+	 * identifies the broker. Each connection is a memory mapped file holding a ring buffer for each direction and becomes a broker side channel that behaves
+	 * exactly like one for an accepted socket. Connections are accepted until this channel manager is shut down, which also deletes the path. Shared memory
+	 * connections are only supported on x86 and x86-64 hosts.
+	 * 
+	 * @param path
+	 *            The path clients connect to. It must not exist.
+	 * @param messageHandler
+	 *            The {@link MessageHandler message handler} to use for all received messages on the accepted channels
+	 * 
+	 * @throws MqttException
+	 *             If the path already exists or can not be created or if shared memory connections are not supported on this host
+	 */
+	void acceptSharedMemoryBrokerChannels(String path, MessageHandler messageHandler) throws MqttException;
+
 	/**
 	 * Send a {@link MqttMessage message} over a specified {@code channel}. This method only blocks until the message is queued to send to the channel.
 	 * 
@@ -184,6 +280,53 @@ public interface ChannelManager {
 	<T extends MqttMessage> T send(MqttChannelRef channel, MqttMessage message) throws MqttCommandCancelledException, MqttTimeoutException,
 			MqttInterruptedException, MqttInvocationException, MqttInvocationError;
 
+	/**
+	 * Send a {@link MqttMessage message} over a specified {@code channel} without blocking, even in a synchronous implementation. The returned future
+	 * completes when the message has been sent or, for a {@link ConnectMessage} or a message with a {@link MqttMessage#getQoSLevel() QoS} > 0, when it has
+	 * been acked. Its result is the ack, or null if the message is not acked. The future fails if the message cannot be sent and is cancelled if the channel
+	 * closes before the message is sent or acked.
+	 * 
+	 * @param channel
+	 *            The {@link MqttChannelRef channel} to send the message over. This channel should have been previously created via the
+	 *            {@link #newChannel(String, int, MessageHandler)} or {@link #newChannel(SocketChannel, MessageHandler)} methods
+	 * @param message
+	 *            The {@code message} to send. This can be any type of MQTT message
+	 * 
+	 * @return A future that completes when the message has been sent or acked
+	 */
+	<T extends MqttMessage> Future<T> sendAsync(MqttChannelRef channel, MqttMessage message);
+
+	/**
+	 * Send a batch of {@link MqttMessage messages} over a specified {@code channel}. The whole batch is handed to the IO thread as a single command so the cost
+	 * of getting to the IO thread is paid once for the batch instead of once per message. The messages are sent in list order.
+	 * 
+	 * @param channel
+	 *            The {@link MqttChannelRef channel} to send the messages over. This channel should have been previously created via the
+	 *            {@link #newChannel(String, int, MessageHandler)} or {@link #newChannel(SocketChannel, MessageHandler)} methods
+	 * @param messages
+	 *            The {@code messages} to send. These can be any type of MQTT message
+	 * 
+	 * @return In a synchronous implementation this blocks until every message has been sent and, for a {@link ConnectMessage} or a message with a
+	 *         {@link MqttMessage#getQoSLevel() QoS} > 0, acked. It returns the ack for each message in the same order as {@code messages}. The entry for a
+	 *         message that is not acked is null. In an asynchronous implementation this returns null.
+	 * 
+	 * @throws MqttCommandCancelledException
+	 *             The channel manager uses a command pattern to process this request on the IO thread. If the command is cancelled for some reason, like the
+	 *             channel closes, this exception is thrown.
+	 * @throws MqttTimeoutException
+	 *             Thrown when using a synchronous implementation and the timeout specified for a blocked method expires
+	 * @throws MqttInterruptedException
+	 *             Thrown when the calling thread is interrupted
+	 * @throws MqttInvocationException
+	 *             The channel manager uses a command pattern to process this request on the IO thread. Any {@link Exception} thrown while the command is being
+	 *             processed will be wrapped in an {@link MqttInvocationException}.
+	 * @throws MqttInvocationError
+	 *             The channel manager uses a command pattern to process this request on the IO thread. Any {@link Error} thrown while the command is being
+	 *             processed will be wrapped in an {@link MqttInvocationError}.
+	 */
+	List<MqttMessage> send(MqttChannelRef channel, List<? extends MqttMessage> messages) throws MqttCommandCancelledException, MqttTimeoutException,
+			MqttInterruptedException, MqttInvocationException, MqttInvocationError;
+
 	/**
 	 * Closes the specified channel. This method blocks until the channel is closed.
 	 * 
@@ -348,6 +491,16 @@ public interface ChannelManager {
 	 */
 	void shutdown();
 
+	/**
+	 * Stops this channel manager the same as {@link #shutdown()} but waits at most the specified time for it to complete.
+	 * 
+	 * @param millis
+	 *            Milliseconds to wait for shutdown to complete. 0 means to wait forever.
+	 * 
+	 * @return true if shutdown completed, false if it was still in progress when the time elapsed
+	 */
+	boolean shutdown(long millis);
+
 	/**
 	 * @return True if this manager is running and not yet stopped. This really means the manager's IO thread is running.
 	 */
@@ -0,0 +1,501 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import javax.net.ssl.SSLContext;
+
+import net.xenqtt.MqttException;
+import net.xenqtt.XenqttUtil;
+
+/**
+ * Use this class to configure a {@link ChannelManagerImpl} and the {@link MqttChannel channels} it creates. This is an advanced operation. The defaults should
+ * be fine for most cases.
+ */
+public final class ChannelManagerConfig implements Cloneable {
+
+	private int ioThreadCount = 1;
+	private int acceptorCount = 1;
+	private long addressCacheTtlMillis = 30000;
+	private boolean bufferPoolEnabled;
+	private boolean directBuffersEnabled;
+	private long writeHighWaterMarkBytes;
+	private long writeLowWaterMarkBytes;
+	private int writeHighWaterMarkMessages;
+	private int writeLowWaterMarkMessages;
+	private int publishStreamingThresholdBytes;
+	private long writeLingerMicros;
+	private int writeLingerBytes;
+	private int asyncIoThreadCount;
+	private IdleStrategy idleStrategy = IdleStrategy.BLOCK;
+	private int idleSpinCount = 10000;
+	private SSLContext sslContext;
+	private boolean sslHostnameVerificationEnabled = true;
+
+	/**
+	 * @return The number of IO threads, each with its own selector, that channels are spread across. A channel is only ever touched by the IO thread it is
+	 *         assigned to so a {@link MessageHandler} that interacts directly with other channels must use a single IO thread.
+	 *         <p>
+	 *         Defaults to 1.
+	 */
+	public int getIoThreadCount() {
+		return ioThreadCount;
+	}
+
+	/**
+	 * @param ioThreadCount
+	 *            The number of IO threads, each with its own selector, that channels are spread across. A channel is only ever touched by the IO thread it is
+	 *            assigned to so a {@link MessageHandler} that interacts directly with other channels must use a single IO thread. Must be > 0.
+	 *            <p>
+	 *            Defaults to 1.
+	 * 
+	 * @return this object
+	 */
+	public ChannelManagerConfig setIoThreadCount(int ioThreadCount) {
+		this.ioThreadCount = XenqttUtil.validateGreaterThan("ioThreadCount", ioThreadCount, 0);
+		return this;
+	}
+
+	/**
+	 * @return The number of IO threads that accept connections from a server channel passed to
+	 *         {@link ChannelManager#acceptBrokerChannels(java.nio.channels.ServerSocketChannel, MessageHandler)}. The server channel is registered with
+	 *         each acceptor's selector so a burst of connections is accepted by several threads at once. Accepted connections are still spread across all IO
+	 *         threads. Values larger than the {@link #getIoThreadCount() IO thread count} are treated as the IO thread count.
+	 *         <p>
+	 *         Defaults to 1.
+	 */
+	public int getAcceptorCount() {
+		return acceptorCount;
+	}
+
+	/**
+	 * @param acceptorCount
+	 *            The number of IO threads that accept connections from a server channel passed to
+	 *            {@link ChannelManager#acceptBrokerChannels(java.nio.channels.ServerSocketChannel, MessageHandler)}. The server channel is registered with
+	 *            each acceptor's selector so a burst of connections is accepted by several threads at once. Accepted connections are still spread across
+	 *            all IO threads. Values larger than the {@link #getIoThreadCount() IO thread count} are treated as the IO thread count. Must be > 0.
+	 *            <p>
+	 *            Defaults to 1.
+	 * 
+	 * @return this object
+	 */
+	public ChannelManagerConfig setAcceptorCount(int acceptorCount) {
+		this.acceptorCount = XenqttUtil.validateGreaterThan("acceptorCount", acceptorCount, 0);
+		return this;
+	}
+
+	/**
+	 * @return Millis a broker host name resolved for a new client channel is cached. Host names are resolved on a separate thread so a slow lookup never
+	 *         delays IO on other channels. Caching lets a burst of reconnects to the same broker skip the lookup. Failed lookups are never cached. 0 to
+	 *         resolve the host name for every new channel.
+	 *         <p>
+	 *         Defaults to 30000.
+	 */
+	public long getAddressCacheTtlMillis() {
+		return addressCacheTtlMillis;
+	}
+
+	/**
+	 * @param addressCacheTtlMillis
+	 *            Millis a broker host name resolved for a new client channel is cached. Host names are resolved on a separate thread so a slow lookup never
+	 *            delays IO on other channels. Caching lets a burst of reconnects to the same broker skip the lookup. Failed lookups are never cached. 0 to
+	 *            resolve the host name for every new channel.
+	 *            <p>
+	 *            Defaults to 30000.
+	 * 
+	 * @return this object
+	 */
+	public ChannelManagerConfig setAddressCacheTtlMillis(long addressCacheTtlMillis) {
+		this.addressCacheTtlMillis = XenqttUtil.validateGreaterThanOrEqualTo("addressCacheTtlMillis", addressCacheTtlMillis, 0L);
+		return this;
+	}
+
+	/**
+	 * @return True if received {@link PubMessage publish messages} are read into buffers taken from a pool instead of a newly allocated buffer for each message.
+	 *         When enabled a received message's buffer is returned to the pool when it is {@link MqttMessage#release() released}. The channel releases each
+	 *         message after the {@link MessageHandler} returns so a handler that keeps a message after it returns must {@link MqttMessage#retain() retain} it
+	 *         and release it when it is done.
+	 *         <p>
+	 *         Defaults to false.
+	 */
+	public boolean isBufferPoolEnabled() {
+		return bufferPoolEnabled;
+	}
+
+	/**
+	 * @param bufferPoolEnabled
+	 *            True if received {@link PubMessage publish messages} are read into buffers taken from a pool instead of a newly allocated buffer for each
+	 *            message. When enabled a received message's buffer is returned to the pool when it is {@link MqttMessage#release() released}. The channel
+	 *            releases each message after the {@link MessageHandler} returns so a handler that keeps a message after it returns must
+	 *            {@link MqttMessage#retain() retain} it and release it when it is done.
+	 *            <p>
+	 *            Defaults to false.
+	 * 
+	 * @return this object
+	 */
+	public ChannelManagerConfig setBufferPoolEnabled(boolean bufferPoolEnabled) {
+		this.bufferPoolEnabled = bufferPoolEnabled;
+		return this;
+	}
+
+	/**
+	 * @return True if each channel reads from its socket into a direct buffer instead of a heap buffer. Reading into a heap buffer makes the JVM read into a
+	 *         temporary direct buffer and copy that into the heap buffer so this removes a copy of every byte received. If the
+	 *         {@link #isBufferPoolEnabled() buffer pool} is also enabled then received {@link PubMessage publish messages} up to 64KB are read into pooled
+	 *         direct buffers which also removes a copy for messages too big for the channel's read buffer. Each channel holds a 16KB direct buffer for as
+	 *         long as it is open.
+	 *         <p>
+	 *         Defaults to false.
+	 */
+	public boolean isDirectBuffersEnabled() {
+		return directBuffersEnabled;
+	}
+
+	/**
+	 * @param directBuffersEnabled
+	 *            True if each channel reads from its socket into a direct buffer instead of a heap buffer. Reading into a heap buffer makes the JVM read into
+	 *            a temporary direct buffer and copy that into the heap buffer so this removes a copy of every byte received. If the
+	 *            {@link #isBufferPoolEnabled() buffer pool} is also enabled then received {@link PubMessage publish messages} up to 64KB are read into pooled
+	 *            direct buffers which also removes a copy for messages too big for the channel's read buffer. Each channel holds a 16KB direct buffer for as
+	 *            long as it is open.
+	 *            <p>
+	 *            Defaults to false.
+	 * 
+	 * @return this object
+	 */
+	public ChannelManagerConfig setDirectBuffersEnabled(boolean directBuffersEnabled) {
+		this.directBuffersEnabled = directBuffersEnabled;
+		return this;
+	}
+
+	/**
+	 * @return The number of bytes queued to write to a channel, including the message currently being written, above which the channel is no longer
+	 *         {@link MqttChannel#isWritable() writable}. The channel's {@link MessageHandler} is notified through
+	 *         {@link WritabilityAwareMessageHandler#channelWritabilityChanged(MqttChannel, boolean)}. 0 for no limit.
+	 *         <p>
+	 *         Defaults to 0.
+	 */
+	public long getWriteHighWaterMarkBytes() {
+		return writeHighWaterMarkBytes;
+	}
+
+	/**
+	 * @param writeHighWaterMarkBytes
+	 *            The number of bytes queued to write to a channel, including the message currently being written, above which the channel is no longer
+	 *            {@link MqttChannel#isWritable() writable}. The channel's {@link MessageHandler} is notified through
+	 *            {@link WritabilityAwareMessageHandler#channelWritabilityChanged(MqttChannel, boolean)}. 0 for no limit.
+	 *            <p>
+	 *            Defaults to 0.
+	 * 
+	 * @return this object
+	 */
+	public ChannelManagerConfig setWriteHighWaterMarkBytes(long writeHighWaterMarkBytes) {
+		this.writeHighWaterMarkBytes = XenqttUtil.validateGreaterThanOrEqualTo("writeHighWaterMarkBytes", writeHighWaterMarkBytes, 0L);
+		return this;
+	}
+
+	/**
+	 * @return The number of bytes queued to write to a channel at or below which a channel that is not {@link MqttChannel#isWritable() writable} becomes
+	 *         writable again. Only applies when a high water mark is set.
+	 *         <p>
+	 *         Defaults to 0.
+	 */
+	public long getWriteLowWaterMarkBytes() {
+		return writeLowWaterMarkBytes;
+	}
+
+	/**
+	 * @param writeLowWaterMarkBytes
+	 *            The number of bytes queued to write to a channel at or below which a channel that is not {@link MqttChannel#isWritable() writable} becomes
+	 *            writable again. Only applies when a high water mark is set.
+	 *            <p>
+	 *            Defaults to 0.
+	 * 
+	 * @return this object
+	 */
+	public ChannelManagerConfig setWriteLowWaterMarkBytes(long writeLowWaterMarkBytes) {
+		this.writeLowWaterMarkBytes = XenqttUtil.validateGreaterThanOrEqualTo("writeLowWaterMarkBytes", writeLowWaterMarkBytes, 0L);
+		return this;
+	}
+
+	/**
+	 * @return The number of messages queued to write to a channel, including the message currently being written, above which the channel is no longer
+	 *         {@link MqttChannel#isWritable() writable}. The channel's {@link MessageHandler} is notified through
+	 *         {@link WritabilityAwareMessageHandler#channelWritabilityChanged(MqttChannel, boolean)}. 0 for no limit.
+	 *         <p>
+	 *         Defaults to 0.
+	 */
+	public int getWriteHighWaterMarkMessages() {
+		return writeHighWaterMarkMessages;
+	}
+
+	/**
+	 * @param writeHighWaterMarkMessages
+	 *            The number of messages queued to write to a channel, including the message currently being written, above which the channel is no longer
+	 *            {@link MqttChannel#isWritable() writable}. The channel's {@link MessageHandler} is notified through
+	 *            {@link WritabilityAwareMessageHandler#channelWritabilityChanged(MqttChannel, boolean)}. 0 for no limit.
+	 *            <p>
+	 *            Defaults to 0.
+	 * 
+	 * @return this object
+	 */
+	public ChannelManagerConfig setWriteHighWaterMarkMessages(int writeHighWaterMarkMessages) {
+		this.writeHighWaterMarkMessages = XenqttUtil.validateGreaterThanOrEqualTo("writeHighWaterMarkMessages", writeHighWaterMarkMessages, 0);
+		return this;
+	}
+
+	/**
+	 * @return The number of messages queued to write to a channel at or below which a channel that is not {@link MqttChannel#isWritable() writable} becomes
+	 *         writable again. Only applies when a high water mark is set.
+	 *         <p>
+	 *         Defaults to 0.
+	 */
+	public int getWriteLowWaterMarkMessages() {
+		return writeLowWaterMarkMessages;
+	}
+
+	/**
+	 * @param writeLowWaterMarkMessages
+	 *            The number of messages queued to write to a channel at or below which a channel that is not {@link MqttChannel#isWritable() writable}
+	 *            becomes writable again. Only applies when a high water mark is set.
+	 *            <p>
+	 *            Defaults to 0.
+	 * 
+	 * @return this object
+	 */
+	public ChannelManagerConfig setWriteLowWaterMarkMessages(int writeLowWaterMarkMessages) {
+		this.writeLowWaterMarkMessages = XenqttUtil.validateGreaterThanOrEqualTo("writeLowWaterMarkMessages", writeLowWaterMarkMessages, 0);
+		return this;
+	}
+
+	/**
+	 * @return The size in bytes above which a received {@link PubMessage publish message} is streamed to the channel's {@link MessageHandler} a piece at a
+	 *         time instead of being read into a buffer the size of the whole message. Only applies when the handler is a {@link StreamingMessageHandler}.
+	 *         Messages that fit in the channel's read buffer are never streamed. 0 to never stream.
+	 *         <p>
+	 *         Defaults to 0.
+	 */
+	public int getPublishStreamingThresholdBytes() {
+		return publishStreamingThresholdBytes;
+	}
+
+	/**
+	 * @param publishStreamingThresholdBytes
+	 *            The size in bytes above which a received {@link PubMessage publish message} is streamed to the channel's {@link MessageHandler} a piece at a
+	 *            time instead of being read into a buffer the size of the whole message. Only applies when the handler is a {@link StreamingMessageHandler}.
+	 *            Messages that fit in the channel's read buffer are never streamed. 0 to never stream.
+	 *            <p>
+	 *            Defaults to 0.
+	 * 
+	 * @return this object
+	 */
+	public ChannelManagerConfig setPublishStreamingThresholdBytes(int publishStreamingThresholdBytes) {
+		this.publishStreamingThresholdBytes = XenqttUtil.validateGreaterThanOrEqualTo("publishStreamingThresholdBytes", publishStreamingThresholdBytes, 0);
+		return this;
+	}
+
+	/**
+	 * @return The maximum number of microseconds a {@link PubMessage publish message} sent to an idle channel is held before it is written so that publish
+	 *         messages sent in the meantime are written with it in a single write. This trades a bounded amount of latency for far fewer small writes when
+	 *         many small messages are published. All other message types, such as {@link PingReqMessage ping requests}, acks, and {@link ConnectMessage
+	 *         connects}, are written immediately along with any publish messages being held. The IO thread's timer has millisecond resolution so the delay
+	 *         is effectively rounded up to whole milliseconds. 0 to write every message immediately.
+	 *         <p>
+	 *         Defaults to 0.
+	 */
+	public long getWriteLingerMicros() {
+		return writeLingerMicros;
+	}
+
+	/**
+	 * @param writeLingerMicros
+	 *            The maximum number of microseconds a {@link PubMessage publish message} sent to an idle channel is held before it is written so that publish
+	 *            messages sent in the meantime are written with it in a single write. This trades a bounded amount of latency for far fewer small writes when
+	 *            many small messages are published. All other message types, such as {@link PingReqMessage ping requests}, acks, and
+	 *            {@link ConnectMessage connects}, are written immediately along with any publish messages being held. The IO thread's timer has millisecond
+	 *            resolution so the delay is effectively rounded up to whole milliseconds. 0 to write every message immediately.
+	 *            <p>
+	 *            Defaults to 0.
+	 * 
+	 * @return this object
+	 */
+	public ChannelManagerConfig setWriteLingerMicros(long writeLingerMicros) {
+		this.writeLingerMicros = XenqttUtil.validateGreaterThanOrEqualTo("writeLingerMicros", writeLingerMicros, 0L);
+		return this;
+	}
+
+	/**
+	 * @return The number of bytes of held messages at or above which they are written without waiting for the rest of the {@link #getWriteLingerMicros()
+	 *         linger} time. 0 to always wait the full linger time.
+	 *         <p>
+	 *         Defaults to 0.
+	 */
+	public int getWriteLingerBytes() {
+		return writeLingerBytes;
+	}
+
+	/**
+	 * @param writeLingerBytes
+	 *            The number of bytes of held messages at or above which they are written without waiting for the rest of the {@link #getWriteLingerMicros()
+	 *            linger} time. 0 to always wait the full linger time.
+	 *            <p>
+	 *            Defaults to 0.
+	 * 
+	 * @return this object
+	 */
+	public ChannelManagerConfig setWriteLingerBytes(int writeLingerBytes) {
+		this.writeLingerBytes = XenqttUtil.validateGreaterThanOrEqualTo("writeLingerBytes", writeLingerBytes, 0);
+		return this;
+	}
+
+	/**
+	 * @return The number of threads in an NIO.2 asynchronous channel group that does the socket reads and writes for TCP client channels. The IO threads
+	 *         still decode messages and invoke the {@link MessageHandler} but never make socket system calls for these channels. This requires Java 7 or
+	 *         later. 0 to do socket IO on the IO threads with their selectors.
+	 *         <p>
+	 *         Defaults to 0.
+	 */
+	public int getAsyncIoThreadCount() {
+		return asyncIoThreadCount;
+	}
+
+	/**
+	 * @param asyncIoThreadCount
+	 *            The number of threads in an NIO.2 asynchronous channel group that does the socket reads and writes for TCP client channels. The IO threads
+	 *            still decode messages and invoke the {@link MessageHandler} but never make socket system calls for these channels. This requires Java 7 or
+	 *            later. 0 to do socket IO on the IO threads with their selectors.
+	 *            <p>
+	 *            Defaults to 0.
+	 * 
+	 * @return this object
+	 */
+	public ChannelManagerConfig setAsyncIoThreadCount(int asyncIoThreadCount) {
+		this.asyncIoThreadCount = XenqttUtil.validateGreaterThanOrEqualTo("asyncIoThreadCount", asyncIoThreadCount, 0);
+		return this;
+	}
+
+	/**
+	 * @return What an IO thread does when a pass of its IO loop finds nothing to do. Anything other than {@link IdleStrategy#BLOCK} has the IO threads poll
+	 *         for IO and commands instead of blocking in select for up to {@link #getIdleSpinCount()} idle passes. This lowers latency at the cost of CPU.
+	 *         <p>
+	 *         Defaults to {@link IdleStrategy#BLOCK}.
+	 */
+	public IdleStrategy getIdleStrategy() {
+		return idleStrategy;
+	}
+
+	/**
+	 * @param idleStrategy
+	 *            What an IO thread does when a pass of its IO loop finds nothing to do. Anything other than {@link IdleStrategy#BLOCK} has the IO threads poll
+	 *            for IO and commands instead of blocking in select for up to {@link #getIdleSpinCount()} idle passes. This lowers latency at the cost of CPU.
+	 *            <p>
+	 *            Defaults to {@link IdleStrategy#BLOCK}.
+	 * 
+	 * @return this object
+	 */
+	public ChannelManagerConfig setIdleStrategy(IdleStrategy idleStrategy) {
+		this.idleStrategy = XenqttUtil.validateNotNull("idleStrategy", idleStrategy);
+		return this;
+	}
+
+	/**
+	 * @return The number of consecutive passes of the IO loop that find nothing to do that an IO thread polls for with its {@link #getIdleStrategy() idle
+	 *         strategy} before it blocks in select. Any IO or command resets the count. This is ignored when the idle strategy is {@link IdleStrategy#BLOCK}.
+	 *         <p>
+	 *         Defaults to 10000.
+	 */
+	public int getIdleSpinCount() {
+		return idleSpinCount;
+	}
+
+	/**
+	 * @param idleSpinCount
+	 *            The number of consecutive passes of the IO loop that find nothing to do that an IO thread polls for with its {@link #getIdleStrategy() idle
+	 *            strategy} before it blocks in select. Any IO or command resets the count. This is ignored when the idle strategy is {@link IdleStrategy#BLOCK}.
+	 *            <p>
+	 *            Defaults to 10000.
+	 * 
+	 * @return this object
+	 */
+	public ChannelManagerConfig setIdleSpinCount(int idleSpinCount) {
+		this.idleSpinCount = XenqttUtil.validateGreaterThan("idleSpinCount", idleSpinCount, 0);
+		return this;
+	}
+
+	/**
+	 * @return The context that creates the TLS engines for ssl:// client channels and for broker channels accepted by
+	 *         {@link ChannelManager#acceptSslBrokerChannels(java.nio.channels.ServerSocketChannel, MessageHandler)}. Its client session cache is what lets a
+	 *         client that reconnects to the same host and port resume its previous session instead of doing a full handshake. Null to use
+	 *         {@link SSLContext#getDefault()}.
+	 *         <p>
+	 *         Defaults to null.
+	 */
+	public SSLContext getSslContext() {
+		return sslContext;
+	}
+
+	/**
+	 * @param sslContext
+	 *            The context that creates the TLS engines for ssl:// client channels and for broker channels accepted by
+	 *            {@link ChannelManager#acceptSslBrokerChannels(java.nio.channels.ServerSocketChannel, MessageHandler)}. Its client session cache is what lets a
+	 *            client that reconnects to the same host and port resume its previous session instead of doing a full handshake. Null to use
+	 *            {@link SSLContext#getDefault()}.
+	 *            <p>
+	 *            Defaults to null.
+	 * 
+	 * @return this object
+	 */
+	public ChannelManagerConfig setSslContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+		return this;
+	}
+
+	/**
+	 * @return True if ssl:// client channels fail the handshake when the broker's certificate does not match the host in the broker URI. This requires Java 7
+	 *         or later and is ignored by older JVMs.
+	 *         <p>
+	 *         Defaults to true.
+	 */
+	public boolean isSslHostnameVerificationEnabled() {
+		return sslHostnameVerificationEnabled;
+	}
+
+	/**
+	 * @param sslHostnameVerificationEnabled
+	 *            True if ssl:// client channels fail the handshake when the broker's certificate does not match the host in the broker URI. This requires
+	 *            Java 7 or later and is ignored by older JVMs.
+	 *            <p>
+	 *            Defaults to true.
+	 * 
+	 * @return this object
+	 */
+	public ChannelManagerConfig setSslHostnameVerificationEnabled(boolean sslHostnameVerificationEnabled) {
+		this.sslHostnameVerificationEnabled = sslHostnameVerificationEnabled;
+		return this;
+	}
+
+	/**
+	 * @see java.lang.Object#clone()
+	 */
+	@Override
+	public ChannelManagerConfig clone() {
+
+		try {
+			return (ChannelManagerConfig) super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new MqttException("Unable to clone channel manager config", e);
+		}
+	}
+}
@@ -16,21 +16,41 @@
 package net.xenqtt.message;
 
 import java.io.IOException;
+import java.net.BindException;
+import java.net.SocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import net.xenqtt.ConfigurableThreadFactory;
 import net.xenqtt.Log;
 import net.xenqtt.MqttCommandCancelledException;
 import net.xenqtt.MqttException;
@@ -38,27 +58,59 @@ import net.xenqtt.MqttInterruptedException;
 import net.xenqtt.MqttInvocationError;
 import net.xenqtt.MqttInvocationException;
 import net.xenqtt.MqttTimeoutException;
+import net.xenqtt.XenqttUtil;
 import net.xenqtt.client.MessageStats;
 
 /**
- * Uses a single thread and non-blocking NIO to manage one or more {@link MqttChannel}s. You must call {@link #init()} before using this manager and
+ * Uses one or more threads and non-blocking NIO to manage one or more {@link MqttChannel}s. You must call {@link #init()} before using this manager and
  * {@link #shutdown()} to shut it down.
+ * <p>
+ * Each IO thread owns its own {@link Selector}. When a channel is created or attached it is assigned to the IO thread with the fewest open channels and from
+ * then on every command for that channel is executed on that thread. A channel must only ever be touched by the IO thread it is assigned to so a
+ * {@link MessageHandler} that interacts directly with other channels (a broker that forwards messages between channels, for example) must use a single IO
+ * thread.
  */
 public final class ChannelManagerImpl implements ChannelManager {
 
-	private final Set<MqttChannel> openChannels = new HashSet<MqttChannel>();
-	private final long messageResendIntervalMillis;
+	/**
+	 * Maximum number of commands an IO thread executes between selects
+	 */
+	static final int MAX_COMMANDS_PER_PASS = 1024;
+
+	// park time bounds for IdleStrategy.PARK_BACKOFF
+	private static final long MIN_PARK_NANOS = 1000;
+	private static final long MAX_PARK_NANOS = 1000000;
+
+	/**
+	 * Maximum number of connections an IO thread accepts from a single server channel between selects
+	 */
+	static final int MAX_ACCEPTS_PER_PASS = 256;
 
-	private final BlockingQueue<Command<?>> commands = new LinkedBlockingQueue<Command<?>>();
-	private boolean doShutdown;
+	/**
+	 * Milliseconds an IO thread stops accepting connections from a server channel after accepting fails, when the process is out of file descriptors for
+	 * example. Without this the server channel stays ready and the IO thread spins trying to accept.
+	 */
+	static final long ACCEPT_BACKOFF_MILLIS = 1000;
+
+	private final Map<MqttChannel, IoThread> channelAffinity = new ConcurrentHashMap<MqttChannel, IoThread>();
+	private final AtomicInteger nextIoThreadIndex = new AtomicInteger();
+	private final long messageResendIntervalMillis;
+	private final ChannelManagerConfig config;
 
-	private final CountDownLatch readyLatch = new CountDownLatch(1);
-	private final Thread ioThread;
-	private final Selector selector;
+	private final CountDownLatch readyLatch;
+	private final IoThread[] ioThreads;
 	private final boolean blocking;
 	private final long blockingTimeoutMillis;
-
-	private final MessageStatsImpl stats;
+	private final AddressResolver addressResolver;
+	// the NIO.2 AsynchronousChannelGroup for TCP client channels. Null if they use the IO threads' selectors.
+	private final Object asyncChannelGroup;
+	private final List<MemoryAcceptor> memoryAcceptors = new CopyOnWriteArrayList<MemoryAcceptor>();
+	private final List<SharedMemoryTransport.Listener> sharedMemoryListeners = new CopyOnWriteArrayList<SharedMemoryTransport.Listener>();
+	// the context for TLS engines. Null until the first TLS channel is created.
+	private volatile SSLContext sslContext;
+	// runs the delegated tasks of TLS handshakes. Null until the first handshake needs it.
+	private ExecutorService sslTaskExecutor;
+	private final SslTaskRunner sslTaskRunner = new SslTaskRunner();
 
 	/**
 	 * Use this constructor for the asynchronous API
@@ -80,23 +132,55 @@ public final class ChannelManagerImpl implements ChannelManager {
 	 *            create a blocking API with no timeout, > 0 will create a blocking API with the specified timeout.
 	 */
 	public ChannelManagerImpl(long messageResendIntervalSeconds, int blockingTimeoutSeconds) {
+		this(messageResendIntervalSeconds, blockingTimeoutSeconds, 1);
+	}
+
+	/**
+	 * Use this constructor to spread channels across multiple IO threads
+	 * 
+	 * @param messageResendIntervalSeconds
+	 *            Seconds between attempts to resend a message that is {@link MqttMessage#isAckable()}. 0 to disable message resends
+	 * @param blockingTimeoutSeconds
+	 *            Seconds until a blocked method invocation times out and an {@link MqttTimeoutException} is thrown. -1 will create a non-blocking API, 0 will
+	 *            create a blocking API with no timeout, > 0 will create a blocking API with the specified timeout.
+	 * @param ioThreadCount
+	 *            The number of IO threads, each with its own {@link Selector}, to spread channels across. Must be > 0.
+	 */
+	public ChannelManagerImpl(long messageResendIntervalSeconds, int blockingTimeoutSeconds, int ioThreadCount) {
+		this(messageResendIntervalSeconds, blockingTimeoutSeconds, new ChannelManagerConfig().setIoThreadCount(ioThreadCount));
+	}
+
+	/**
+	 * Use this constructor for advanced configuration
+	 * 
+	 * @param messageResendIntervalSeconds
+	 *            Seconds between attempts to resend a message that is {@link MqttMessage#isAckable()}. 0 to disable message resends
+	 * @param blockingTimeoutSeconds
+	 *            Seconds until a blocked method invocation times out and an {@link MqttTimeoutException} is thrown. -1 will create a non-blocking API, 0 will
+	 *            create a blocking API with no timeout, > 0 will create a blocking API with the specified timeout.
+	 * @param config
+	 *            The configuration for this manager and the channels it creates. This is copied so changes made after construction have no effect.
+	 */
+	public ChannelManagerImpl(long messageResendIntervalSeconds, int blockingTimeoutSeconds, ChannelManagerConfig config) {
+
+		this.config = XenqttUtil.validateNotNull("config", config).clone();
+		int ioThreadCount = this.config.getIoThreadCount();
 
 		this.blocking = blockingTimeoutSeconds >= 0;
 		this.blockingTimeoutMillis = blockingTimeoutSeconds <= 0 ? Long.MAX_VALUE : blockingTimeoutSeconds * 1000;
 		this.messageResendIntervalMillis = messageResendIntervalSeconds * 1000;
-		this.stats = new MessageStatsImpl(openChannels);
-		ioThread = new Thread(new Runnable() {
-
-			@Override
-			public void run() {
-				doIO();
-			}
-		}, "MqttChannelManager");
+		this.readyLatch = new CountDownLatch(ioThreadCount);
+		this.ioThreads = new IoThread[ioThreadCount];
+		this.addressResolver = new AddressResolver(this.config.getAddressCacheTtlMillis());
 
 		try {
-			selector = Selector.open();
+			this.asyncChannelGroup = this.config.getAsyncIoThreadCount() > 0 ? AsyncSocketTransport.newGroup(this.config.getAsyncIoThreadCount()) : null;
 		} catch (IOException e) {
-			throw new MqttException("Failed to open selector", e);
+			throw new MqttException("Failed to create the asynchronous channel group", e);
+		}
+
+		for (int i = 0; i < ioThreadCount; i++) {
+			ioThreads[i] = new IoThread(ioThreadCount == 1 ? "MqttChannelManager" : "MqttChannelManager-" + i);
 		}
 	}
 
@@ -106,7 +190,9 @@ public final class ChannelManagerImpl implements ChannelManager {
 	@Override
 	public void init() {
 
-		ioThread.start();
+		for (IoThread ioThread : ioThreads) {
+			ioThread.start();
+		}
 
 		for (;;) {
 			try {
@@ -122,15 +208,59 @@ public final class ChannelManagerImpl implements ChannelManager {
 	 */
 	@Override
 	public void shutdown() {
+		shutdown(0);
+	}
+
+	/**
+	 * @see net.xenqtt.message.ChannelManager#shutdown(long)
+	 */
+	@Override
+	public boolean shutdown(long millis) {
 
-		addCommand(new ShutdownCommand());
+		XenqttUtil.validateGreaterThanOrEqualTo("millis", millis, 0);
 
-		try {
-			ioThread.join();
-		} catch (InterruptedException e) {
-			// restore the ioThread's interrupted status
-			ioThread.interrupt();
+		addressResolver.shutdown();
+
+		for (MemoryAcceptor acceptor : memoryAcceptors) {
+			MemoryTransport.unbind(acceptor.brokerName, acceptor);
+		}
+
+		for (SharedMemoryTransport.Listener listener : sharedMemoryListeners) {
+			listener.close();
+		}
+
+		for (IoThread ioThread : ioThreads) {
+			addCommand(ioThread, new ShutdownCommand());
+		}
+
+		long deadline = System.currentTimeMillis() + millis;
+		for (IoThread ioThread : ioThreads) {
+			try {
+				if (millis == 0) {
+					ioThread.join();
+				} else {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining > 0) {
+						ioThread.join(remaining);
+					}
+				}
+			} catch (InterruptedException e) {
+				// restore the ioThread's interrupted status
+				ioThread.interrupt();
+			}
+		}
+
+		if (asyncChannelGroup != null) {
+			AsyncSocketTransport.shutdownGroup(asyncChannelGroup);
 		}
+
+		synchronized (sslTaskRunner) {
+			if (sslTaskExecutor != null) {
+				sslTaskExecutor.shutdownNow();
+			}
+		}
+
+		return !isRunning();
 	}
 
 	/**
@@ -138,7 +268,14 @@ public final class ChannelManagerImpl implements ChannelManager {
 	 */
 	@Override
 	public boolean isRunning() {
-		return ioThread.isAlive();
+
+		for (IoThread ioThread : ioThreads) {
+			if (ioThread.isAlive()) {
+				return true;
+			}
+		}
+
+		return false;
 	}
 
 	/**
@@ -159,8 +296,29 @@ public final class ChannelManagerImpl implements ChannelManager {
 	@Override
 	public MqttChannelRef newClientChannel(URI brokerUri, MessageHandler messageHandler) throws MqttInterruptedException {
 
-		if (!"tcp".equals(brokerUri.getScheme())) {
-			throw new MqttException("Invalid broker URI (scheme must be 'tcp'): " + brokerUri);
+		SocketAddress address = null;
+		if ("mem".equals(brokerUri.getScheme()) && brokerUri.getAuthority() != null) {
+			address = new MemoryTransport.Address(brokerUri.getAuthority());
+		} else if ("unix".equals(brokerUri.getScheme()) && brokerUri.getPath() != null) {
+			if (!UnixSockets.isSupported()) {
+				throw new MqttException("UNIX domain sockets are not supported by this JVM: " + brokerUri);
+			}
+			address = UnixSockets.address(brokerUri.getPath());
+		} else if ("shm".equals(brokerUri.getScheme()) && brokerUri.getPath() != null) {
+			if (!SharedMemoryTransport.isSupported()) {
+				throw new MqttException("Shared memory connections are not supported on this host: " + brokerUri);
+			}
+			address = new SharedMemoryTransport.Address(brokerUri.getPath());
+		} else if ("ssl".equals(brokerUri.getScheme())) {
+			return newClientChannel(brokerUri.getHost(), brokerUri.getPort(), true, messageHandler);
+		} else if (!"tcp".equals(brokerUri.getScheme())) {
+			throw new MqttException("Invalid broker URI (scheme must be 'tcp', 'ssl', 'unix', 'shm', or 'mem'): " + brokerUri);
+		}
+
+		if (address != null) {
+			NewClientChannelCommand command = new NewClientChannelCommand(messageHandler);
+			command.address = address;
+			return addCommand(nextIoThread(), command).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
 		}
 
 		return newClientChannel(brokerUri.getHost(), brokerUri.getPort(), messageHandler);
@@ -171,8 +329,31 @@ public final class ChannelManagerImpl implements ChannelManager {
 	 */
 	@Override
 	public MqttChannelRef newClientChannel(String host, int port, MessageHandler messageHandler) throws MqttInterruptedException {
+		return newClientChannel(host, port, false, messageHandler);
+	}
+
+	private MqttChannelRef newClientChannel(String host, int port, boolean ssl, MessageHandler messageHandler) throws MqttInterruptedException {
+
+		final IoThread ioThread = nextIoThread();
+		final NewClientChannelCommand command = new NewClientChannelCommand(messageHandler);
+		if (ssl) {
+			command.sslHost = host;
+			command.sslPort = port;
+		}
+
+		command.address = addressResolver.cached(host, port, System.currentTimeMillis());
+		if (command.address != null) {
+			return addCommand(ioThread, command).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
+		}
+
+		// the IO thread only ever sees resolved addresses so a slow lookup cannot stall IO on other channels
+		try {
+			addressResolver.execute(new ResolveAddressTask(host, port, ioThread, command));
+		} catch (RejectedExecutionException e) {
+			command.cancel();
+		}
 
-		return addCommand(new NewClientChannelCommand(host, port, messageHandler)).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
+		return command.await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
 	}
 
 	/**
@@ -181,7 +362,86 @@ public final class ChannelManagerImpl implements ChannelManager {
 	@Override
 	public MqttChannelRef newBrokerChannel(SocketChannel socketChannel, MessageHandler messageHandler) throws MqttInterruptedException {
 
-		return addCommand(new NewBrokerChannelCommand(socketChannel, messageHandler)).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
+		return addCommand(nextIoThread(), new NewBrokerChannelCommand(socketChannel, messageHandler)).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @see net.xenqtt.message.ChannelManager#acceptBrokerChannels(java.nio.channels.ServerSocketChannel, net.xenqtt.message.MessageHandler)
+	 */
+	@Override
+	public void acceptBrokerChannels(ServerSocketChannel serverChannel, MessageHandler messageHandler) throws MqttCommandCancelledException,
+			MqttTimeoutException, MqttInterruptedException, MqttInvocationException, MqttInvocationError {
+		acceptBrokerChannels(serverChannel, false, messageHandler);
+	}
+
+	/**
+	 * @see net.xenqtt.message.ChannelManager#acceptSslBrokerChannels(java.nio.channels.ServerSocketChannel, net.xenqtt.message.MessageHandler)
+	 */
+	@Override
+	public void acceptSslBrokerChannels(ServerSocketChannel serverChannel, MessageHandler messageHandler) throws MqttCommandCancelledException,
+			MqttTimeoutException, MqttInterruptedException, MqttInvocationException, MqttInvocationError {
+		acceptBrokerChannels(serverChannel, true, messageHandler);
+	}
+
+	private void acceptBrokerChannels(ServerSocketChannel serverChannel, boolean ssl, MessageHandler messageHandler) {
+
+		XenqttUtil.validateNotNull("serverChannel", serverChannel);
+		XenqttUtil.validateNotNull("messageHandler", messageHandler);
+
+		try {
+			serverChannel.configureBlocking(false);
+		} catch (IOException e) {
+			throw new MqttException("Failed to configure the server channel for non-blocking accepts", e);
+		}
+
+		int acceptorCount = Math.min(config.getAcceptorCount(), ioThreads.length);
+		AcceptCommand[] commands = new AcceptCommand[acceptorCount];
+		for (int i = 0; i < acceptorCount; i++) {
+			commands[i] = addCommand(ioThreads[i], new AcceptCommand(serverChannel, ssl, messageHandler));
+		}
+
+		for (AcceptCommand command : commands) {
+			command.await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @see net.xenqtt.message.ChannelManager#acceptMemoryBrokerChannels(java.lang.String, net.xenqtt.message.MessageHandler)
+	 */
+	@Override
+	public void acceptMemoryBrokerChannels(String brokerName, MessageHandler messageHandler) throws MqttException {
+
+		XenqttUtil.validateNotEmpty("brokerName", brokerName);
+		XenqttUtil.validateNotNull("messageHandler", messageHandler);
+
+		MemoryAcceptor acceptor = new MemoryAcceptor(brokerName, messageHandler);
+		try {
+			MemoryTransport.bind(brokerName, acceptor);
+		} catch (BindException e) {
+			throw new MqttException("Failed to accept in-memory connections for " + brokerName, e);
+		}
+
+		memoryAcceptors.add(acceptor);
+	}
+
+	/**
+	 * @see net.xenqtt.message.ChannelManager#acceptSharedMemoryBrokerChannels(java.lang.String, net.xenqtt.message.MessageHandler)
+	 */
+	@Override
+	public void acceptSharedMemoryBrokerChannels(String path, MessageHandler messageHandler) throws MqttException {
+
+		XenqttUtil.validateNotEmpty("path", path);
+		XenqttUtil.validateNotNull("messageHandler", messageHandler);
+
+		if (!SharedMemoryTransport.isSupported()) {
+			throw new MqttException("Shared memory connections are not supported on this host: " + path);
+		}
+
+		try {
+			sharedMemoryListeners.add(SharedMemoryTransport.bind(path, new SharedMemoryAcceptor(messageHandler)));
+		} catch (IOException e) {
+			throw new MqttException("Failed to accept shared memory connections for " + path, e);
+		}
 	}
 
 	/**
@@ -191,17 +451,36 @@ public final class ChannelManagerImpl implements ChannelManager {
 	@Override
 	public <T extends MqttMessage> T send(MqttChannelRef channel, MqttMessage message) throws MqttInterruptedException {
 
-		MqttMessage msg = addCommand(new SendCommand(channel, message)).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
+		MqttMessage msg = addCommand(channel, new SendCommand(channel, message, !blocking)).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
 		return (T) msg;
 	}
 
+	/**
+	 * @see net.xenqtt.message.ChannelManager#sendAsync(net.xenqtt.message.MqttChannelRef, net.xenqtt.message.MqttMessage)
+	 */
+	@Override
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public <T extends MqttMessage> Future<T> sendAsync(MqttChannelRef channel, MqttMessage message) {
+
+		return (Future) addCommand(channel, new SendCommand(channel, message, false));
+	}
+
+	/**
+	 * @see net.xenqtt.message.ChannelManager#send(net.xenqtt.message.MqttChannelRef, java.util.List)
+	 */
+	@Override
+	public List<MqttMessage> send(MqttChannelRef channel, List<? extends MqttMessage> messages) throws MqttInterruptedException {
+
+		return addCommand(channel, new SendBatchCommand(channel, messages)).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
 	/**
 	 * @see net.xenqtt.message.ChannelManager#close(net.xenqtt.message.MqttChannelRef)
 	 */
 	@Override
 	public void close(MqttChannelRef channel) throws MqttInterruptedException {
 
-		addCommand(new CloseCommand(channel, null)).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
+		addCommand(channel, new CloseCommand(channel, null)).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
 	}
 
 	/**
@@ -210,7 +489,7 @@ public final class ChannelManagerImpl implements ChannelManager {
 	@Override
 	public void close(MqttChannelRef channel, Throwable cause) {
 
-		addCommand(new CloseCommand(channel, cause)).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
+		addCommand(channel, new CloseCommand(channel, cause)).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
 	}
 
 	/**
@@ -219,7 +498,7 @@ public final class ChannelManagerImpl implements ChannelManager {
 	@Override
 	public void cancelBlockingCommands(MqttChannelRef channel) {
 
-		addCommand(new CancelBlockingCommandsCommand(channel)).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
+		addCommand(channel, new CancelBlockingCommandsCommand(channel)).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
 	}
 
 	/**
@@ -228,7 +507,7 @@ public final class ChannelManagerImpl implements ChannelManager {
 	@Override
 	public List<MqttMessage> getUnsentMessages(MqttChannelRef channel) {
 
-		return addCommand(new GetUnsentMessagesCommand(channel)).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
+		return addCommand(channel, new GetUnsentMessagesCommand(channel)).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
 	}
 
 	/**
@@ -237,7 +516,8 @@ public final class ChannelManagerImpl implements ChannelManager {
 	@Override
 	public void transfer(MqttChannelRef oldChannel, MqttChannelRef newChannel) {
 
-		addCommand(new TransferCommand(oldChannel, newChannel)).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
+		// the unsent messages are sent on the new channel so that is the thread the transfer must run on
+		addCommand(newChannel, new TransferCommand(oldChannel, newChannel)).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
 	}
 
 	/**
@@ -247,11 +527,13 @@ public final class ChannelManagerImpl implements ChannelManager {
 	public void detachChannel(MqttChannelRef channel) throws MqttCommandCancelledException, MqttTimeoutException, MqttInterruptedException,
 			MqttInvocationException, MqttInvocationError {
 
+		IoThread ioThread = ioThreadFor(channel);
 		DetachChannelCommand command = new DetachChannelCommand(channel);
 		if (Thread.currentThread() == ioThread) {
+			command.ioThread = ioThread;
 			command.execute(0);
 		} else {
-			addCommand(command).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
+			addCommand(ioThread, command).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
 		}
 	}
 
@@ -262,7 +544,7 @@ public final class ChannelManagerImpl implements ChannelManager {
 	public void attachChannel(MqttChannelRef channel, MessageHandler messageHandler) throws MqttCommandCancelledException, MqttTimeoutException,
 			MqttInterruptedException, MqttInvocationException, MqttInvocationError {
 
-		addCommand(new AttachChannelCommand(channel, messageHandler)).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
+		addCommand(nextIoThread(), new AttachChannelCommand(channel, messageHandler)).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
 	}
 
 	/**
@@ -270,217 +552,541 @@ public final class ChannelManagerImpl implements ChannelManager {
 	 */
 	@Override
 	public MessageStats getStats(boolean reset) {
-		return addCommand(new GetStatsCommand(reset)).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
-	}
-
-	private void closeAll() {
 
-		Log.debug("Channel manager closing all channels");
-		for (MqttChannel channel : openChannels) {
-			try {
-				channel.close();
-			} catch (Exception ignore) {
-			} finally {
-				channel.cancelBlockingCommands();
-			}
+		if (ioThreads.length == 1) {
+			return addCommand(ioThreads[0], new GetStatsCommand(reset)).await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
 		}
-	}
-
-	private void doIO() {
 
-		Log.debug("Channel manager thread started");
-
-		readyLatch.countDown();
+		GetStatsCommand[] commands = new GetStatsCommand[ioThreads.length];
+		for (int i = 0; i < ioThreads.length; i++) {
+			commands[i] = addCommand(ioThreads[i], new GetStatsCommand(reset));
+		}
 
-		try {
+		MessageStatsImpl stats = null;
+		for (GetStatsCommand command : commands) {
+			MessageStatsImpl snapshot = command.await(blockingTimeoutMillis, TimeUnit.MILLISECONDS);
+			stats = stats == null ? snapshot : stats.merge(snapshot);
+		}
 
-			long maxIdleTime = Long.MAX_VALUE;
+		return stats;
+	}
 
-			while (!doShutdown) {
+	/**
+	 * @return The context for TLS engines. The default context is only loaded when the first TLS channel is created since loading it reads the trust store.
+	 */
+	private SSLContext sslContext() {
 
-				if (maxIdleTime == Long.MAX_VALUE) {
-					selector.select();
-				} else {
-					selector.select(maxIdleTime);
+		SSLContext context = sslContext;
+		if (context == null) {
+			context = config.getSslContext();
+			if (context == null) {
+				try {
+					context = SSLContext.getDefault();
+				} catch (NoSuchAlgorithmException e) {
+					throw new MqttException("Failed to get the default SSL context", e);
 				}
+			}
+			sslContext = context;
+		}
 
-				long now = System.currentTimeMillis();
+		return context;
+	}
+
+	/**
+	 * @return The pool the network buffers of TLS transports come from
+	 */
+	private BufferPool sslBufferPool() {
+		return config.isDirectBuffersEnabled() ? BufferPool.DIRECT_INSTANCE : BufferPool.INSTANCE;
+	}
 
-				executeCommands(now);
+	/**
+	 * @return The IO thread with the fewest open channels. Ties are broken round robin so a burst of new channels is spread evenly.
+	 */
+	private IoThread nextIoThread() {
 
-				Set<SelectionKey> keys = selector.selectedKeys();
-				doConnect(now, keys);
-				doRead(now, keys);
-				doWrite(now, keys);
-				maxIdleTime = doHouseKeeping(now, selector.keys());
+		if (ioThreads.length == 1) {
+			return ioThreads[0];
+		}
 
-				keys.clear();
+		int start = (nextIoThreadIndex.getAndIncrement() & Integer.MAX_VALUE) % ioThreads.length;
+		IoThread ioThread = ioThreads[start];
+		for (int i = 1; i < ioThreads.length; i++) {
+			IoThread candidate = ioThreads[(start + i) % ioThreads.length];
+			if (candidate.openChannelCount < ioThread.openChannelCount) {
+				ioThread = candidate;
 			}
-
-		} catch (Throwable t) {
-			Log.fatal(t, "Channel manager thread caught a fatal exception and is dying");
 		}
 
-		Log.debug("Channel manager thread stopping");
+		return ioThread;
+	}
 
-		closeAll();
+	/**
+	 * @return The IO thread the specified channel is assigned to. Channels this manager does not know about are handled by the first IO thread.
+	 */
+	private IoThread ioThreadFor(MqttChannelRef channel) {
 
-		try {
-			selector.close();
-		} catch (Exception ignore) {
+		if (ioThreads.length == 1) {
+			return ioThreads[0];
 		}
 
-		startCleanupThread();
+		IoThread ioThread = channelAffinity.get(unwrap(channel));
+		return ioThread == null ? ioThreads[0] : ioThread;
 	}
 
-	private void startCleanupThread() {
+	private <T, C extends Command<T>> C addCommand(MqttChannelRef channel, C command) {
 
-		Thread cleanupThread = new Thread("CommandCleanup") {
-			@Override
-			public void run() {
-				try {
-					for (;;) {
-						Command<?> command = commands.take();
-						command.cancel();
-					}
-				} catch (Exception ignore) {
-				}
-			};
-		};
-		cleanupThread.setDaemon(true);
-		cleanupThread.start();
+		return addCommand(ioThreadFor(channel), command);
+	}
+
+	private <T, C extends Command<T>> C addCommand(IoThread ioThread, C command) {
+
+		command.ioThread = ioThread;
+		ioThread.addCommand(command);
+
+		return command;
+	}
+
+	private MqttChannel unwrap(Object channel) {
+		return channel instanceof DelegatingMqttChannel ? ((DelegatingMqttChannel) channel).delegate : (MqttChannel) channel;
 	}
 
-	private void doConnect(long now, Set<SelectionKey> keys) {
+	/**
+	 * An IO thread with its own {@link Selector}. All of the state in this class, other than the command queue, its flags, and the open channel count, must
+	 * only be accessed from this thread.
+	 */
+	private final class IoThread extends Thread {
+
+		private final Set<MqttChannel> openChannels = new HashSet<MqttChannel>();
+		private final HouseKeepingSchedule houseKeepingSchedule = new HouseKeepingSchedule();
+		private final Queue<Command<?>> commands = new ConcurrentLinkedQueue<Command<?>>();
+		// true from when a command is queued until the IO thread wakes up so only the first command queued while the thread is busy or selecting wakes it
+		private final AtomicBoolean wakeupPending = new AtomicBoolean();
+		// true while the thread may block in select. Only used when polling with an idle strategy since a polling thread does not need a wakeup.
+		private volatile boolean blocking;
+		private volatile boolean stopped;
+		private final IdleStrategy idleStrategy = config.getIdleStrategy();
+		private final int idleSpinCount = config.getIdleSpinCount();
+		// consecutive passes of the IO loop that found nothing to do
+		private int idlePasses;
+		// keys of server channels that stopped accepting after a failure and the time to start accepting on them again
+		private final List<SelectionKey> pausedAcceptKeys = new ArrayList<SelectionKey>();
+		private long acceptResumeTime = Long.MAX_VALUE;
+		private final Selector selector;
+		private final MessageStatsImpl stats;
+		private volatile int openChannelCount;
+		private boolean doShutdown;
+
+		public IoThread(String name) {
+
+			super(name);
+
+			this.stats = new MessageStatsImpl(openChannels);
 
-		Iterator<SelectionKey> iter = keys.iterator();
-		while (iter.hasNext()) {
-			SelectionKey key = iter.next();
 			try {
-				if (key.isConnectable()) {
-					MqttChannel channel = (MqttChannel) key.attachment();
-					if (!channel.finishConnect()) {
-						channelClosed(channel);
-						iter.remove();
-					}
-				}
-			} catch (CancelledKeyException e) {
-				iter.remove();
+				selector = Selector.open();
+			} catch (IOException e) {
+				throw new MqttException("Failed to open selector", e);
 			}
 		}
-	}
 
-	private void doRead(long now, Set<SelectionKey> keys) {
+		@Override
+		public void run() {
+			doIO();
+		}
+
+		private void closeAll() {
 
-		Iterator<SelectionKey> iter = keys.iterator();
-		while (iter.hasNext()) {
-			SelectionKey key = iter.next();
-			try {
-				if (key.isReadable()) {
-					MqttChannel channel = (MqttChannel) key.attachment();
-					if (!channel.read(now)) {
-						channelClosed(channel);
-						iter.remove();
-					}
+			Log.debug("Channel manager closing all channels");
+			for (MqttChannel channel : openChannels) {
+				try {
+					channel.close();
+				} catch (Exception ignore) {
+				} finally {
+					channel.cancelBlockingCommands();
+					channelAffinity.remove(channel);
 				}
-			} catch (CancelledKeyException e) {
-				iter.remove();
 			}
 		}
-	}
 
-	private void doWrite(long now, Set<SelectionKey> keys) {
+		private void doIO() {
+
+			Log.debug("Channel manager thread started");
+
+			readyLatch.countDown();
 
-		Iterator<SelectionKey> iter = keys.iterator();
-		while (iter.hasNext()) {
-			SelectionKey key = iter.next();
 			try {
-				if (key.isWritable()) {
-					MqttChannel channel = (MqttChannel) key.attachment();
-					if (!channel.write(now)) {
-						channelClosed(channel);
-						iter.remove();
+
+				while (!doShutdown) {
+
+					// paused server channels resume accepting on the same wakeup as house keeping
+					long nextHouseKeepingTime = Math.min(houseKeepingSchedule.nextTime(), acceptResumeTime);
+					if (!commands.isEmpty()) {
+						// commands left over from the last pass
+						selector.selectNow();
+					} else if (idleStrategy == IdleStrategy.BLOCK) {
+						select(nextHouseKeepingTime);
+					} else if (idlePasses < idleSpinCount) {
+						// polling so new IO and commands are seen without waiting for a wakeup
+						selector.selectNow();
+					} else {
+						// commands queued from here on must wake this thread. Clearing wakeupPending after setting blocking makes sure the next one does.
+						blocking = true;
+						wakeupPending.set(false);
+						if (commands.isEmpty()) {
+							select(nextHouseKeepingTime);
+						} else {
+							selector.selectNow();
+						}
+						blocking = false;
+					}
+
+					wakeupPending.set(false);
+
+					long now = System.currentTimeMillis();
+
+					int commandCount = executeCommands(now);
+
+					Set<SelectionKey> keys = selector.selectedKeys();
+					boolean idle = commandCount == 0 && keys.isEmpty();
+					resumeAccepts(now);
+					doAccept(now, keys);
+					doConnect(now, keys);
+					doRead(now, keys);
+					doWrite(now, keys);
+					doHouseKeeping(now, keys);
+
+					keys.clear();
+
+					if (idleStrategy != IdleStrategy.BLOCK) {
+						if (!idle) {
+							idlePasses = 0;
+						} else if (idlePasses < idleSpinCount) {
+							idlePasses++;
+							idle();
+						}
 					}
 				}
-			} catch (CancelledKeyException e) {
-				iter.remove();
+
+			} catch (Throwable t) {
+				Log.fatal(t, "Channel manager thread caught a fatal exception and is dying");
 			}
-		}
-	}
 
-	private long doHouseKeeping(long now, Set<SelectionKey> keys) {
+			Log.debug("Channel manager thread stopping");
 
-		long maxIdleTime = Long.MAX_VALUE;
+			closeAll();
 
-		for (SelectionKey key : keys) {
-			MqttChannel channel = (MqttChannel) key.attachment();
-			long time = channel.houseKeeping(now);
-			if (time < 0) {
-				channelClosed(channel);
-			} else if (time < maxIdleTime) {
-				maxIdleTime = time;
+			try {
+				selector.close();
+			} catch (Exception ignore) {
 			}
-		}
 
-		return maxIdleTime;
-	}
+			stopped = true;
+			cancelCommands();
+		}
 
-	private void channelClosed(MqttChannel channel) {
+		/**
+		 * Selects until there is IO, the selector is woken up, or the next house keeping time
+		 */
+		private void select(long nextHouseKeepingTime) throws IOException {
 
-		removeFromOpenChannels(channel);
-	}
+			if (nextHouseKeepingTime == Long.MAX_VALUE) {
+				selector.select();
+			} else {
+				long maxIdleTime = nextHouseKeepingTime - System.currentTimeMillis();
+				if (maxIdleTime > 0) {
+					selector.select(maxIdleTime);
+				} else {
+					selector.selectNow();
+				}
+			}
+		}
 
-	private void executeCommands(long now) {
+		/**
+		 * Waits between polls according to the {@link IdleStrategy idle strategy}
+		 */
+		private void idle() {
 
-		int size = commands.size();
-		for (int i = 0; i < size; i++) {
-			Command<?> command = commands.poll();
-			if (command == null) {
+			switch (idleStrategy) {
+			case YIELD:
+				Thread.yield();
+				break;
+			case PARK_BACKOFF:
+				LockSupport.parkNanos(Math.min(MIN_PARK_NANOS << Math.min(idlePasses - 1, 10), MAX_PARK_NANOS));
+				break;
+			default:
+				// busy spin
 				break;
 			}
-			command.execute(now);
-			if (command.unblockImmediately) {
-				command.complete();
+		}
+
+		/**
+		 * Queues a command for this thread and wakes the thread if no other command has woken it since it last woke up. A thread that is polling with an
+		 * {@link IdleStrategy idle strategy} is only woken if it is parked or may be blocking in select. Commands queued after the thread stops are cancelled.
+		 */
+		private void addCommand(Command<?> command) {
+
+			commands.offer(command);
+
+			if (stopped) {
+				cancelCommands();
+			} else if (!wakeupPending.get() && wakeupPending.compareAndSet(false, true)) {
+				if (idleStrategy == IdleStrategy.BLOCK || blocking) {
+					selector.wakeup();
+				} else if (idleStrategy == IdleStrategy.PARK_BACKOFF) {
+					LockSupport.unpark(this);
+				}
 			}
 		}
-	}
 
-	private <T, C extends Command<T>> C addCommand(C command) {
+		private void cancelCommands() {
 
-		commands.add(command);
-		selector.wakeup();
+			Command<?> command;
+			while ((command = commands.poll()) != null) {
+				command.cancel();
+			}
+		}
 
-		return command;
-	}
+		/**
+		 * Accepts connections from the server channels registered with this thread. Their keys are removed from keys since the rest of the IO loop expects
+		 * every key to belong to an {@link MqttChannel}.
+		 */
+		private void doAccept(long now, Set<SelectionKey> keys) {
+
+			Iterator<SelectionKey> iter = keys.iterator();
+			while (iter.hasNext()) {
+				SelectionKey key = iter.next();
+				if (key.attachment() instanceof Acceptor) {
+					iter.remove();
+					if (key.isValid() && key.isAcceptable()) {
+						((Acceptor) key.attachment()).accept(key, now);
+					}
+				}
+			}
+		}
 
-	private void addToOpenChannels(MqttChannel channel) {
-		channel = channel instanceof DelegatingMqttChannel ? ((DelegatingMqttChannel) channel).delegate : channel;
-		openChannels.add(channel);
-	}
+		/**
+		 * Stops selecting a server channel for accepts for {@link ChannelManagerImpl#ACCEPT_BACKOFF_MILLIS}
+		 */
+		private void pauseAccepts(SelectionKey key, long now) {
 
-	private void removeFromOpenChannels(MqttChannel channel) {
-		channel = channel instanceof DelegatingMqttChannel ? ((DelegatingMqttChannel) channel).delegate : channel;
-		openChannels.remove(channel);
-	}
+			key.interestOps(0);
+			pausedAcceptKeys.add(key);
+			acceptResumeTime = Math.min(acceptResumeTime, now + ACCEPT_BACKOFF_MILLIS);
+		}
 
-	private abstract class Command<T> extends AbstractBlockingCommand<T> {
+		/**
+		 * Selects paused server channels for accepts again once their backoff has elapsed
+		 */
+		private void resumeAccepts(long now) {
 
-		private final boolean unblockImmediately;
+			if (now < acceptResumeTime) {
+				return;
+			}
 
-		public Command(boolean unblockImmediately) {
-			this.unblockImmediately = unblockImmediately;
-		}
-	}
+			for (SelectionKey key : pausedAcceptKeys) {
+				if (key.isValid()) {
+					key.interestOps(SelectionKey.OP_ACCEPT);
+				}
+			}
 
-	private final class SendCommand extends Command<MqttMessage> {
+			pausedAcceptKeys.clear();
+			acceptResumeTime = Long.MAX_VALUE;
+		}
 
-		private final MqttMessage message;
-		private final MqttChannel channel;
+		/**
+		 * Creates a broker channel on this thread for an accepted socket. Failures are logged since nothing is waiting for the channel.
+		 */
+		private void acceptedChannel(Transport transport, MessageHandler messageHandler) {
 
-		public SendCommand(MqttChannelRef channel, MqttMessage message) {
-			super(!blocking);
-			this.message = message;
-			this.channel = (MqttChannel) channel;
+			try {
+				newBrokerChannel(transport, messageHandler);
+			} catch (Exception e) {
+				Log.error(e, "Failed to create a broker channel for an accepted connection");
+			}
+		}
+
+		private MqttBrokerChannel newBrokerChannel(Transport transport, MessageHandler messageHandler) {
+
+			try {
+				MqttBrokerChannel channel = new MqttBrokerChannel(transport, messageHandler, selector, messageResendIntervalMillis, stats, config);
+				addToOpenChannels(channel);
+				return channel;
+			} catch (Exception e) {
+				try {
+					transport.close();
+				} catch (IOException ignore) {
+				}
+				throw new MqttException("MQTT broker channel creation failed", e);
+			}
+		}
+
+		private void doConnect(long now, Set<SelectionKey> keys) {
+
+			Iterator<SelectionKey> iter = keys.iterator();
+			while (iter.hasNext()) {
+				SelectionKey key = iter.next();
+				try {
+					if (key.isConnectable()) {
+						MqttChannel channel = (MqttChannel) key.attachment();
+						if (!channel.finishConnect()) {
+							channelClosed(channel);
+							iter.remove();
+						}
+					}
+				} catch (CancelledKeyException e) {
+					iter.remove();
+				}
+			}
+		}
+
+		private void doRead(long now, Set<SelectionKey> keys) {
+
+			Iterator<SelectionKey> iter = keys.iterator();
+			while (iter.hasNext()) {
+				SelectionKey key = iter.next();
+				try {
+					if (key.isReadable()) {
+						MqttChannel channel = (MqttChannel) key.attachment();
+						if (!channel.read(now)) {
+							channelClosed(channel);
+							iter.remove();
+						}
+					}
+				} catch (CancelledKeyException e) {
+					iter.remove();
+				}
+			}
+		}
+
+		private void doWrite(long now, Set<SelectionKey> keys) {
+
+			Iterator<SelectionKey> iter = keys.iterator();
+			while (iter.hasNext()) {
+				SelectionKey key = iter.next();
+				try {
+					if (key.isWritable()) {
+						MqttChannel channel = (MqttChannel) key.attachment();
+						if (!channel.write(now)) {
+							channelClosed(channel);
+							iter.remove();
+						}
+					}
+				} catch (CancelledKeyException e) {
+					iter.remove();
+				}
+			}
+		}
+
+		/**
+		 * House keeps the channels that had IO this time through the loop and the channels whose scheduled house keeping time has arrived. Idle channels are
+		 * not touched until they are due.
+		 */
+		private void doHouseKeeping(long now, Set<SelectionKey> keys) {
+
+			for (SelectionKey key : keys) {
+				MqttChannel channel = (MqttChannel) key.attachment();
+				if (houseKeepingSchedule.contains(channel)) {
+					houseKeep(channel, now);
+				}
+			}
+
+			MqttChannel channel;
+			while ((channel = houseKeepingSchedule.poll(now)) != null) {
+				houseKeep(channel, now);
+			}
+		}
+
+		private void houseKeep(MqttChannel channel, long now) {
+
+			if (!channel.isOpen()) {
+				// closed from within a message handler or by the remote end
+				removeFromOpenChannels(channel);
+				return;
+			}
+
+			long time = channel.houseKeeping(now);
+			if (time < 0 || !channel.isOpen()) {
+				removeFromOpenChannels(channel);
+			} else {
+				// never schedule at or before now so a channel can only be house kept once per pass through the schedule
+				houseKeepingSchedule.schedule(channel, time == Long.MAX_VALUE ? Long.MAX_VALUE : now + Math.max(time, 1));
+			}
+		}
+
+		private void channelClosed(MqttChannel channel) {
+
+			removeFromOpenChannels(channel);
+		}
+
+		private int executeCommands(long now) {
+
+			// bounded so a flood of commands cannot starve IO. Any left over are executed on the next pass.
+			for (int i = 0; i < MAX_COMMANDS_PER_PASS; i++) {
+				Command<?> command = commands.poll();
+				if (command == null) {
+					return i;
+				}
+				command.execute(now);
+				if (command.unblockImmediately) {
+					command.complete();
+				}
+			}
+
+			return MAX_COMMANDS_PER_PASS;
+		}
+
+		private void addToOpenChannels(MqttChannel channel) {
+			channel = unwrap(channel);
+			openChannels.add(channel);
+			channelAffinity.put(channel, this);
+			openChannelCount = openChannels.size();
+
+			// house keep new channels right away to find out when they next need it
+			houseKeepingSchedule.schedule(channel, Long.MIN_VALUE);
+			if (channel instanceof AbstractMqttChannel) {
+				((AbstractMqttChannel) channel).houseKeepingSchedule = houseKeepingSchedule;
+			}
+		}
+
+		private void removeFromOpenChannels(MqttChannel channel) {
+			channel = unwrap(channel);
+			openChannels.remove(channel);
+			channelAffinity.remove(channel);
+			openChannelCount = openChannels.size();
+
+			houseKeepingSchedule.remove(channel);
+			if (channel instanceof AbstractMqttChannel) {
+				AbstractMqttChannel abstractChannel = (AbstractMqttChannel) channel;
+				if (abstractChannel.houseKeepingSchedule == houseKeepingSchedule) {
+					abstractChannel.houseKeepingSchedule = null;
+				}
+			}
+		}
+	}
+
+	private abstract class Command<T> extends AbstractBlockingCommand<T> {
+
+		private final boolean unblockImmediately;
+
+		/**
+		 * The IO thread this command is executed on. Set when the command is queued.
+		 */
+		IoThread ioThread;
+
+		public Command(boolean unblockImmediately) {
+			this.unblockImmediately = unblockImmediately;
+		}
+	}
+
+	private final class SendCommand extends Command<MqttMessage> {
+
+		private final MqttMessage message;
+		private final MqttChannel channel;
+
+		public SendCommand(MqttChannelRef channel, MqttMessage message, boolean unblockImmediately) {
+			super(unblockImmediately);
+			this.message = message;
+			this.channel = (MqttChannel) channel;
 		}
 
 		@Override
@@ -489,6 +1095,101 @@ public final class ChannelManagerImpl implements ChannelManager {
 		}
 	}
 
+	private final class SendBatchCommand extends Command<List<MqttMessage>> {
+
+		private final List<? extends MqttMessage> messages;
+		private final MqttChannel channel;
+		// the parts still to complete. Only touched on the IO thread.
+		private int remaining;
+		private MqttMessage[] acks;
+
+		public SendBatchCommand(MqttChannelRef channel, List<? extends MqttMessage> messages) {
+			super(!blocking);
+			this.messages = messages;
+			this.channel = (MqttChannel) channel;
+		}
+
+		@Override
+		public void doExecute(long now) {
+
+			if (!blocking) {
+				for (MqttMessage message : messages) {
+					channel.send(message, null);
+				}
+				return;
+			}
+
+			int size = messages.size();
+			acks = new MqttMessage[size];
+			remaining = size;
+			if (size == 0) {
+				partComplete();
+				return;
+			}
+
+			for (int i = 0; i < size; i++) {
+				new Part(i, messages.get(i)).execute(now);
+			}
+		}
+
+		private void partComplete() {
+
+			if (remaining == 0) {
+				setResult(Arrays.asList(acks));
+				complete();
+			}
+		}
+
+		/**
+		 * Sends a single message in the batch. The batch completes when every part has completed or as soon as any part fails or is cancelled. Parts are
+		 * executed on the IO thread by the batch so they are never queued.
+		 */
+		private final class Part extends AbstractBlockingCommand<MqttMessage> {
+
+			private final int index;
+			private final MqttMessage message;
+
+			Part(int index, MqttMessage message) {
+				this.index = index;
+				this.message = message;
+			}
+
+			@Override
+			protected void doExecute(long now) {
+				channel.send(message, this);
+			}
+
+			@Override
+			public void setResult(MqttMessage result) {
+				super.setResult(result);
+				acks[index] = result;
+			}
+
+			@Override
+			public void setFailureCause(Throwable cause) {
+				super.setFailureCause(cause);
+				// null clears the cause, as when unsent messages are moved to a reconnected channel, so only a real failure fails the batch
+				if (cause != null) {
+					SendBatchCommand.this.setFailureCause(cause);
+					SendBatchCommand.this.complete();
+				}
+			}
+
+			@Override
+			public void complete() {
+				super.complete();
+				remaining--;
+				partComplete();
+			}
+
+			@Override
+			public void cancel() {
+				super.cancel();
+				SendBatchCommand.this.cancel();
+			}
+		}
+	}
+
 	private final class CloseCommand extends Command<Void> {
 
 		private final MqttChannel channel;
@@ -504,6 +1205,7 @@ public final class ChannelManagerImpl implements ChannelManager {
 		public void doExecute(long now) {
 
 			channel.close(cause);
+			ioThread.channelClosed(channel);
 		}
 	}
 
@@ -575,7 +1277,7 @@ public final class ChannelManagerImpl implements ChannelManager {
 		@Override
 		public void doExecute(long now) {
 
-			removeFromOpenChannels(channel);
+			ioThread.removeFromOpenChannels(channel);
 			channel.deregister();
 		}
 	}
@@ -593,31 +1295,141 @@ public final class ChannelManagerImpl implements ChannelManager {
 
 		@Override
 		public void doExecute(long now) {
-			channel.register(selector, messageHandler);
-			addToOpenChannels(channel);
+			if (channel.register(ioThread.selector, messageHandler)) {
+				ioThread.addToOpenChannels(channel);
+			}
 		}
 	}
 
-	private final class NewClientChannelCommand extends Command<MqttChannel> {
+	/**
+	 * Resolves a client channel's broker address on the {@link AddressResolver} thread then queues the command that creates the channel
+	 */
+	private final class ResolveAddressTask implements Runnable {
 
 		private final String host;
 		private final int port;
+		private final IoThread ioThread;
+		private final NewClientChannelCommand command;
+
+		public ResolveAddressTask(String host, int port, IoThread ioThread, NewClientChannelCommand command) {
+			this.host = host;
+			this.port = port;
+			this.ioThread = ioThread;
+			this.command = command;
+		}
+
+		@Override
+		public void run() {
+
+			try {
+				command.address = addressResolver.resolve(host, port, System.currentTimeMillis());
+			} catch (Throwable t) {
+				command.setFailureCause(t);
+				command.complete();
+				return;
+			}
+
+			addCommand(ioThread, command);
+		}
+	}
+
+	private final class NewClientChannelCommand extends Command<MqttChannel> {
+
 		private final MessageHandler messageHandler;
 		private MqttChannel channel;
 
-		public NewClientChannelCommand(String host, int port, MessageHandler messageHandler) {
+		// set before the command is queued
+		volatile SocketAddress address;
+		// the host and port the client connects to with TLS. Null for a channel that does not use TLS.
+		String sslHost;
+		int sslPort;
+
+		// the connection may be established while the channel is being constructed, which is before the result is set
+		private boolean constructing;
+		private boolean completeWhenConstructed;
+
+		public NewClientChannelCommand(MessageHandler messageHandler) {
 			super(!blocking);
-			this.host = host;
-			this.port = port;
 			this.messageHandler = messageHandler;
 		}
 
 		@Override
 		public void doExecute(long now) throws Exception {
-			MqttChannel c = new MqttClientChannel(host, port, messageHandler, selector, messageResendIntervalMillis, this, stats);
-			channel = new DelegatingMqttChannel(c);
-			addToOpenChannels(c);
-			setResult(channel);
+
+			Transport transport = newTransport();
+			constructing = true;
+			try {
+				MqttChannel c = new MqttClientChannel(transport, address, messageHandler, ioThread.selector, messageResendIntervalMillis, this,
+						ioThread.stats, config);
+				channel = new DelegatingMqttChannel(c);
+				ioThread.addToOpenChannels(c);
+				setResult(channel);
+			} finally {
+				constructing = false;
+			}
+
+			if (completeWhenConstructed) {
+				super.complete();
+			}
+		}
+
+		/**
+		 * @return The transport to connect to the address with. Null for a new TCP socket channel.
+		 */
+		private Transport newTransport() throws IOException {
+
+			if (sslHost != null) {
+				// always over a socket channel since TLS needs the selector to report when the socket is writable
+				SSLEngine engine = SslTransport.newClientEngine(sslContext(), sslHost, sslPort, config.isSslHostnameVerificationEnabled());
+				return new SslTransport(new SocketTransport(SocketChannel.open()), engine, sslBufferPool(), sslTaskRunner);
+			}
+
+			if (address instanceof MemoryTransport.Address) {
+				return new MemoryTransport();
+			}
+
+			if (UnixSockets.isAddress(address)) {
+				return new SocketTransport(UnixSockets.openChannel());
+			}
+
+			if (address instanceof SharedMemoryTransport.Address) {
+				return new SharedMemoryTransport();
+			}
+
+			if (asyncChannelGroup != null) {
+				return new AsyncSocketTransport(asyncChannelGroup);
+			}
+
+			return null;
+		}
+
+		@Override
+		public void complete() {
+
+			if (constructing) {
+				completeWhenConstructed = true;
+			} else {
+				super.complete();
+			}
+		}
+
+		@Override
+		public void setFailureCause(Throwable cause) {
+
+			// a non-blocking command is complete as soon as the channel is created. The caller may not have woken up yet so a connect that fails after that
+			// must not change the outcome. The failure is passed to the message handler's channelClosed instead.
+			if (!isDone()) {
+				super.setFailureCause(cause);
+			}
+		}
+
+		@Override
+		public void cancel() {
+
+			// closing a channel whose connect failed cancels its blocking commands. That must not cancel a non-blocking command that already completed.
+			if (!isDone()) {
+				super.cancel();
+			}
 		}
 	}
 
@@ -634,16 +1446,237 @@ public final class ChannelManagerImpl implements ChannelManager {
 
 		@Override
 		public void doExecute(long now) {
+			setResult(ioThread.newBrokerChannel(new SocketTransport(socketChannel), messageHandler));
+		}
+	}
+
+	private final class AcceptedChannelCommand extends Command<Void> {
+
+		private final Transport transport;
+		private final MessageHandler messageHandler;
+
+		public AcceptedChannelCommand(Transport transport, MessageHandler messageHandler) {
+			super(true);
+			this.transport = transport;
+			this.messageHandler = messageHandler;
+		}
+
+		@Override
+		public void doExecute(long now) {
+			ioThread.acceptedChannel(transport, messageHandler);
+		}
+
+		@Override
+		public void cancel() {
+			super.cancel();
 			try {
-				MqttBrokerChannel channel = new MqttBrokerChannel(socketChannel, messageHandler, selector, messageResendIntervalMillis, stats);
-				addToOpenChannels(channel);
-				setResult(channel);
-			} catch (Exception e) {
+				transport.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
+	private final class AcceptCommand extends Command<Void> {
+
+		private final ServerSocketChannel serverChannel;
+		private final boolean ssl;
+		private final MessageHandler messageHandler;
+
+		public AcceptCommand(ServerSocketChannel serverChannel, boolean ssl, MessageHandler messageHandler) {
+			super(true);
+			this.serverChannel = serverChannel;
+			this.ssl = ssl;
+			this.messageHandler = messageHandler;
+		}
+
+		@Override
+		public void doExecute(long now) throws Exception {
+			serverChannel.register(ioThread.selector, SelectionKey.OP_ACCEPT, new Acceptor(ioThread, serverChannel, ssl, messageHandler));
+		}
+	}
+
+	/**
+	 * Attached to the {@link SelectionKey} of a server channel registered with an IO thread's selector. Accepts connections and hands each one to the IO thread
+	 * with the fewest open channels.
+	 */
+	private final class Acceptor {
+
+		private final IoThread ioThread;
+		private final ServerSocketChannel serverChannel;
+		// true if the accepted connections are TLS connections
+		private final boolean ssl;
+		private final MessageHandler messageHandler;
+
+		public Acceptor(IoThread ioThread, ServerSocketChannel serverChannel, boolean ssl, MessageHandler messageHandler) {
+			this.ioThread = ioThread;
+			this.serverChannel = serverChannel;
+			this.ssl = ssl;
+			this.messageHandler = messageHandler;
+		}
+
+		/**
+		 * Accepts connections until there are none left to accept or {@link ChannelManagerImpl#MAX_ACCEPTS_PER_PASS} have been accepted. If accepting fails the
+		 * server channel is not selected again for {@link ChannelManagerImpl#ACCEPT_BACKOFF_MILLIS}.
+		 */
+		void accept(SelectionKey key, long now) {
+
+			for (int i = 0; i < MAX_ACCEPTS_PER_PASS; i++) {
+				SocketChannel socketChannel;
 				try {
-					socketChannel.close();
-				} catch (IOException ignore) {
+					socketChannel = serverChannel.accept();
+				} catch (IOException e) {
+					if (serverChannel.isOpen()) {
+						Log.error(e, "Failed to accept a connection on %s. Accepting again in %d millis.", serverChannel, ACCEPT_BACKOFF_MILLIS);
+						ioThread.pauseAccepts(key, now);
+					} else {
+						key.cancel();
+					}
+					return;
 				}
-				throw new MqttException("MQTT broker channel creation failed", e);
+
+				if (socketChannel == null) {
+					return;
+				}
+
+				Transport transport = new SocketTransport(socketChannel);
+				if (ssl) {
+					try {
+						transport = new SslTransport(transport, SslTransport.newServerEngine(sslContext()), sslBufferPool(), sslTaskRunner);
+					} catch (Exception e) {
+						Log.error(e, "Failed to start a TLS connection accepted on %s", serverChannel);
+						try {
+							socketChannel.close();
+						} catch (IOException ignore) {
+						}
+						continue;
+					}
+				}
+
+				IoThread target = nextIoThread();
+				if (target == ioThread) {
+					ioThread.acceptedChannel(transport, messageHandler);
+				} else {
+					addCommand(target, new AcceptedChannelCommand(transport, messageHandler));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Accepts in-memory connections to a broker name. The broker end of each connection is handed to the IO thread with the fewest open channels.
+	 */
+	private final class MemoryAcceptor implements MemoryTransport.Acceptor {
+
+		private final String brokerName;
+		private final MessageHandler messageHandler;
+
+		public MemoryAcceptor(String brokerName, MessageHandler messageHandler) {
+			this.brokerName = brokerName;
+			this.messageHandler = messageHandler;
+		}
+
+		@Override
+		public void accept(MemoryTransport transport) {
+			addCommand(nextIoThread(), new AcceptedChannelCommand(transport, messageHandler));
+		}
+	}
+
+	/**
+	 * Accepts shared memory connections to a broker path. The broker end of each connection is handed to the IO thread with the fewest open channels.
+	 */
+	private final class SharedMemoryAcceptor implements SharedMemoryTransport.Acceptor {
+
+		private final MessageHandler messageHandler;
+
+		public SharedMemoryAcceptor(MessageHandler messageHandler) {
+			this.messageHandler = messageHandler;
+		}
+
+		@Override
+		public void accept(SharedMemoryTransport transport) {
+			addCommand(nextIoThread(), new AcceptedChannelCommand(transport, messageHandler));
+		}
+	}
+
+	/**
+	 * Resumes the handshake of an {@link SslTransport} once its delegated tasks are done. Executed on the IO thread that owns the transport's channel.
+	 */
+	private final class SslTasksDoneCommand extends Command<Void> {
+
+		private final SslTransport transport;
+
+		public SslTasksDoneCommand(SslTransport transport) {
+			super(true);
+			this.transport = transport;
+		}
+
+		@Override
+		public void doExecute(long now) {
+
+			SelectionKey key = transport.selectionKey();
+			if (key != null && key.selector() != ioThread.selector) {
+				// the channel moved to another IO thread while the tasks ran
+				sslTaskRunner.tasksDone(transport);
+				return;
+			}
+
+			transport.delegatedTasksDone();
+			if (key != null && key.isValid()) {
+				MqttChannel channel = (MqttChannel) key.attachment();
+				if (!channel.read(now)) {
+					ioThread.channelClosed(channel);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs the delegated tasks of TLS handshakes on a pool of daemon threads so certificate checks and key agreement do not hold up the IO threads
+	 */
+	private final class SslTaskRunner implements SslTransport.DelegatedTaskRunner {
+
+		@Override
+		public void runDelegatedTasks(final SslTransport transport, final List<Runnable> tasks) {
+
+			ExecutorService executor;
+			synchronized (this) {
+				if (sslTaskExecutor == null) {
+					sslTaskExecutor = Executors.newCachedThreadPool(new ConfigurableThreadFactory("MqttSslTask", true));
+				}
+				executor = sslTaskExecutor;
+			}
+
+			try {
+				executor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							for (Runnable task : tasks) {
+								task.run();
+							}
+						} catch (Throwable t) {
+							// the engine fails the handshake on the next unwrap
+							Log.debug("TLS delegated task failed for %s: %s", transport.getRemoteAddress(), t);
+						} finally {
+							tasksDone(transport);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// shutting down so the transport is about to be closed
+			}
+		}
+
+		/**
+		 * Queues a {@link SslTasksDoneCommand} on the IO thread that owns transport's channel. Nothing is queued if the channel is no longer open.
+		 */
+		void tasksDone(SslTransport transport) {
+
+			SelectionKey key = transport.selectionKey();
+			IoThread ioThread = key == null ? null : channelAffinity.get(unwrap(key.attachment()));
+			if (ioThread != null) {
+				addCommand(ioThread, new SslTasksDoneCommand(transport));
 			}
 		}
 	}
@@ -656,11 +1689,11 @@ public final class ChannelManagerImpl implements ChannelManager {
 
 		@Override
 		public void doExecute(long now) {
-			doShutdown = true;
+			ioThread.doShutdown = true;
 		}
 	}
 
-	private final class GetStatsCommand extends Command<MessageStats> {
+	private final class GetStatsCommand extends Command<MessageStatsImpl> {
 
 		private final boolean reset;
 
@@ -672,9 +1705,9 @@ public final class ChannelManagerImpl implements ChannelManager {
 		@Override
 		public void doExecute(long now) {
 			try {
-				MessageStats snapshot = stats.clone();
+				MessageStatsImpl snapshot = ioThread.stats.clone();
 				if (reset) {
-					stats.reset();
+					ioThread.stats.reset();
 				}
 
 				setResult(snapshot);
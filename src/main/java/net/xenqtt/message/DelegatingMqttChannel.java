@@ -27,7 +27,7 @@ final class DelegatingMqttChannel implements MqttChannel {
 	/**
 	 * The channel to delegate to
 	 */
-	MqttChannel delegate;
+	volatile MqttChannel delegate;
 
 	/**
 	 * Create a new instance of this class.
@@ -180,6 +180,15 @@ final class DelegatingMqttChannel implements MqttChannel {
 		return delegate.sendQueueDepth();
 	}
 
+	/**
+	 * @see net.xenqtt.message.MqttChannel#isWritable()
+	 */
+	@Override
+	public boolean isWritable() {
+
+		return delegate.isWritable();
+	}
+
 	/**
 	 * @see net.xenqtt.message.MqttChannel#inFlightMessageCount()
 	 */
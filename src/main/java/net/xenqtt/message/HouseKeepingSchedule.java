@@ -0,0 +1,183 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The times at which each of an IO thread's channels next needs {@link MqttChannel#houseKeeping(long) house keeping}. This is a binary min heap ordered by
+ * time so the earliest time is found in O(1) and a channel is scheduled, rescheduled, or removed in O(log n). Each channel gets a single entry object the
+ * first time it is scheduled that is reused until the channel is removed. This class is NOT thread safe.
+ */
+final class HouseKeepingSchedule {
+
+	private final Map<MqttChannel, Entry> entries = new HashMap<MqttChannel, Entry>();
+	private Entry[] heap = new Entry[16];
+	private int size;
+
+	/**
+	 * Schedules house keeping for a channel at the specified time. If the channel is already scheduled its time is changed.
+	 */
+	void schedule(MqttChannel channel, long time) {
+
+		Entry entry = entries.get(channel);
+		if (entry == null) {
+			entry = new Entry(channel);
+			entries.put(channel, entry);
+		}
+
+		entry.time = time;
+		if (entry.index < 0) {
+			if (size == heap.length) {
+				heap = Arrays.copyOf(heap, size << 1);
+			}
+			entry.index = size;
+			heap[size++] = entry;
+		}
+
+		siftUp(entry.index);
+		siftDown(entry.index);
+	}
+
+	/**
+	 * Schedules house keeping for a channel as soon as possible. This does nothing if the channel is not in this schedule.
+	 */
+	void expedite(MqttChannel channel) {
+
+		Entry entry = entries.get(channel);
+		if (entry != null) {
+			schedule(channel, Long.MIN_VALUE);
+		}
+	}
+
+	/**
+	 * Removes a channel from this schedule. This does nothing if the channel is not in this schedule.
+	 */
+	void remove(MqttChannel channel) {
+
+		Entry entry = entries.remove(channel);
+		if (entry != null && entry.index >= 0) {
+			removeAt(entry.index);
+		}
+	}
+
+	/**
+	 * @return True if the channel is in this schedule. A channel that was {@link #poll(long) polled} remains in the schedule until it is {@link #remove(MqttChannel)
+	 *         removed}.
+	 */
+	boolean contains(MqttChannel channel) {
+		return entries.containsKey(channel);
+	}
+
+	/**
+	 * @return The earliest time any channel needs house keeping. {@link Long#MAX_VALUE} if no channel is waiting for house keeping.
+	 */
+	long nextTime() {
+		return size == 0 ? Long.MAX_VALUE : heap[0].time;
+	}
+
+	/**
+	 * @return The channel with the earliest time if that time is at or before now. Null if there is no such channel. The channel is not rescheduled until
+	 *         {@link #schedule(MqttChannel, long)} is called for it again.
+	 */
+	MqttChannel poll(long now) {
+
+		if (size == 0 || heap[0].time > now) {
+			return null;
+		}
+
+		Entry entry = heap[0];
+		removeAt(0);
+
+		return entry.channel;
+	}
+
+	private void removeAt(int index) {
+
+		Entry removed = heap[index];
+		removed.index = -1;
+
+		size--;
+		if (index == size) {
+			heap[size] = null;
+			return;
+		}
+
+		Entry last = heap[size];
+		heap[size] = null;
+		heap[index] = last;
+		last.index = index;
+
+		siftUp(index);
+		siftDown(last.index);
+	}
+
+	private void siftUp(int index) {
+
+		Entry entry = heap[index];
+		while (index > 0) {
+			int parentIndex = (index - 1) >>> 1;
+			Entry parent = heap[parentIndex];
+			if (parent.time <= entry.time) {
+				break;
+			}
+			heap[index] = parent;
+			parent.index = index;
+			index = parentIndex;
+		}
+
+		heap[index] = entry;
+		entry.index = index;
+	}
+
+	private void siftDown(int index) {
+
+		Entry entry = heap[index];
+		int half = size >>> 1;
+		while (index < half) {
+			int childIndex = (index << 1) + 1;
+			Entry child = heap[childIndex];
+			int rightIndex = childIndex + 1;
+			if (rightIndex < size && heap[rightIndex].time < child.time) {
+				childIndex = rightIndex;
+				child = heap[childIndex];
+			}
+			if (entry.time <= child.time) {
+				break;
+			}
+			heap[index] = child;
+			child.index = index;
+			index = childIndex;
+		}
+
+		heap[index] = entry;
+		entry.index = index;
+	}
+
+	private static final class Entry {
+
+		private final MqttChannel channel;
+		private long time;
+		// index in the heap. -1 if the channel is not waiting for house keeping.
+		private int index = -1;
+
+		Entry(MqttChannel channel) {
+			this.channel = channel;
+		}
+	}
+}
@@ -27,6 +27,12 @@ public abstract class IdentifiableMqttMessage extends MqttMessage {
 	 */
 	long nextSendTime;
 
+	/**
+	 * Used by {@link InFlightMessageMap} to link its messages in the order they were added
+	 */
+	IdentifiableMqttMessage inFlightPrevious;
+	IdentifiableMqttMessage inFlightNext;
+
 	/**
 	 * @see MqttMessage#MqttMessage(ByteBuffer, int)
 	 */
@@ -48,6 +54,13 @@ public abstract class IdentifiableMqttMessage extends MqttMessage {
 		super(messageType, duplicate, qos, retain, remainingLength);
 	}
 
+	/**
+	 * @see MqttMessage#MqttMessage(MessageType, boolean, QoS, boolean, int, int)
+	 */
+	IdentifiableMqttMessage(MessageType messageType, boolean duplicate, QoS qos, boolean retain, int remainingLength, int bufferRemainingLength) {
+		super(messageType, duplicate, qos, retain, remainingLength, bufferRemainingLength);
+	}
+
 	/**
 	 * The message identifier is present in the variable header of the following MQTT messages: PUBLISH, PUBACK, PUBREC, PUBREL, PUBCOMP, SUBSCRIBE, SUBACK,
 	 * UNSUBSCRIBE, UNSUBACK.
@@ -0,0 +1,46 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+/**
+ * What a {@link ChannelManagerImpl} IO thread does when a pass of its IO loop finds nothing to do. Every strategy other than {@link #BLOCK} keeps the thread
+ * polling its selector with {@link java.nio.channels.Selector#selectNow() selectNow()} and its command queue for {@link ChannelManagerConfig#getIdleSpinCount()
+ * a number of idle passes} before it falls back to a blocking select. This trades CPU for latency since a thread that is polling sees new IO and commands
+ * without being woken up.
+ */
+public enum IdleStrategy {
+
+	/**
+	 * Block in select as soon as there is nothing to do. This uses the least CPU.
+	 */
+	BLOCK,
+
+	/**
+	 * Poll again immediately. This gives the lowest latency but keeps a CPU fully busy while polling.
+	 */
+	BUSY_SPIN,
+
+	/**
+	 * {@link Thread#yield() Yield} between polls so other threads waiting for the CPU can run
+	 */
+	YIELD,
+
+	/**
+	 * Park between polls, starting at 1 microsecond and doubling the park time each idle pass up to 1 millisecond
+	 */
+	PARK_BACKOFF
+	;
+}
@@ -0,0 +1,236 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import java.util.Arrays;
+
+/**
+ * Map of {@link IdentifiableMqttMessage}s keyed by {@link IdentifiableMqttMessage#getMessageId() message ID}. This is an open addressing hash table with linear
+ * probing that stores the message IDs as primitive ints so no boxing or entry objects are needed. Message IDs are normally assigned sequentially so they are
+ * used directly as the hash.
+ * <p>
+ * The messages are also linked in the order they were added, starting at {@link #oldest()} and following {@link IdentifiableMqttMessage#inFlightNext}. Every
+ * message sent on a channel gets the same resend interval so this is also the order the messages are due to be resent in. This class is NOT thread safe.
+ */
+final class InFlightMessageMap {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int[] keys = new int[INITIAL_CAPACITY];
+	private IdentifiableMqttMessage[] values = new IdentifiableMqttMessage[INITIAL_CAPACITY];
+	private int mask = INITIAL_CAPACITY - 1;
+	private int size;
+
+	private IdentifiableMqttMessage oldest;
+	private IdentifiableMqttMessage newest;
+
+	/**
+	 * Adds a message using its {@link IdentifiableMqttMessage#getMessageId() message ID} as the key. The message becomes the {@link #newest() newest} message.
+	 * If the message is already in the map under a different ID, because its ID was changed while it was in flight, it is removed from that ID first.
+	 * 
+	 * @return The message previously mapped to the message's ID. Null if there was none.
+	 */
+	IdentifiableMqttMessage put(IdentifiableMqttMessage message) {
+
+		int key = message.getMessageId();
+		if (message.inFlightPrevious != null || oldest == message) {
+			int oldIndex = indexOf(message);
+			if (oldIndex >= 0 && keys[oldIndex] != key) {
+				removeAt(oldIndex);
+			}
+		}
+
+		int index = indexOf(key);
+		if (index >= 0) {
+			IdentifiableMqttMessage previous = values[index];
+			values[index] = message;
+			unlink(previous);
+			link(message);
+			return previous;
+		}
+
+		if (++size > values.length >> 1) {
+			resize(values.length << 1);
+		}
+
+		index = key & mask;
+		while (values[index] != null) {
+			index = (index + 1) & mask;
+		}
+
+		keys[index] = key;
+		values[index] = message;
+		link(message);
+
+		return null;
+	}
+
+	/**
+	 * @return The message with the specified ID. Null if there is none.
+	 */
+	IdentifiableMqttMessage get(int messageId) {
+
+		int index = indexOf(messageId);
+		return index < 0 ? null : values[index];
+	}
+
+	/**
+	 * Removes the message with the specified ID
+	 * 
+	 * @return The removed message. Null if there was no message with the ID.
+	 */
+	IdentifiableMqttMessage remove(int messageId) {
+
+		int index = indexOf(messageId);
+		return index < 0 ? null : removeAt(index);
+	}
+
+	/**
+	 * @return The number of messages in the map
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return True if there are no messages in the map
+	 */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Removes all messages from the map
+	 */
+	void clear() {
+
+		while (oldest != null) {
+			unlink(oldest);
+		}
+
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * @return The message that has been in the map the longest. Null if the map is empty.
+	 */
+	IdentifiableMqttMessage oldest() {
+		return oldest;
+	}
+
+	/**
+	 * @return The message that was most recently added to the map. Null if the map is empty.
+	 */
+	IdentifiableMqttMessage newest() {
+		return newest;
+	}
+
+	private IdentifiableMqttMessage removeAt(int index) {
+
+		IdentifiableMqttMessage removed = values[index];
+		values[index] = null;
+		size--;
+		unlink(removed);
+
+		// shift back any following entries in the same probe sequence so lookups never stop early at the slot that was just emptied
+		int empty = index;
+		for (int i = (index + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+			int home = keys[i] & mask;
+			if (((i - home) & mask) >= ((i - empty) & mask)) {
+				keys[empty] = keys[i];
+				values[empty] = values[i];
+				values[i] = null;
+				empty = i;
+			}
+		}
+
+		return removed;
+	}
+
+	private void link(IdentifiableMqttMessage message) {
+
+		message.inFlightPrevious = newest;
+		message.inFlightNext = null;
+		if (newest == null) {
+			oldest = message;
+		} else {
+			newest.inFlightNext = message;
+		}
+		newest = message;
+	}
+
+	private void unlink(IdentifiableMqttMessage message) {
+
+		if (message.inFlightPrevious == null) {
+			oldest = message.inFlightNext;
+		} else {
+			message.inFlightPrevious.inFlightNext = message.inFlightNext;
+		}
+
+		if (message.inFlightNext == null) {
+			newest = message.inFlightPrevious;
+		} else {
+			message.inFlightNext.inFlightPrevious = message.inFlightPrevious;
+		}
+
+		message.inFlightPrevious = null;
+		message.inFlightNext = null;
+	}
+
+	private int indexOf(int key) {
+
+		for (int i = key & mask; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	private int indexOf(IdentifiableMqttMessage message) {
+
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == message) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	private void resize(int capacity) {
+
+		int[] oldKeys = keys;
+		IdentifiableMqttMessage[] oldValues = values;
+
+		keys = new int[capacity];
+		values = new IdentifiableMqttMessage[capacity];
+		mask = capacity - 1;
+
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int index = oldKeys[i] & mask;
+				while (values[index] != null) {
+					index = (index + 1) & mask;
+				}
+				keys[index] = oldKeys[i];
+				values[index] = oldValues[i];
+			}
+		}
+	}
+}
@@ -82,6 +82,29 @@ final class LatencyStatImpl implements LatencyStat, Cloneable {
 		}
 	}
 
+	/**
+	 * Merges the latencies processed by another {@link LatencyStatImpl instance} into this one.
+	 * 
+	 * @param other
+	 *            The instance to merge into this one
+	 */
+	void merge(LatencyStatImpl other) {
+		if (other.count == 0) {
+			return;
+		}
+
+		if (count == 0 || other.min < min) {
+			min = other.min;
+		}
+
+		if (count == 0 || other.max > max) {
+			max = other.max;
+		}
+
+		count += other.count;
+		sum += other.sum;
+	}
+
 	/**
 	 * Reset this {@link LatencyStatImpl instance}. This involves zeroing out all relevant internal values.
 	 */
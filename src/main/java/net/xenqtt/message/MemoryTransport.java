@@ -0,0 +1,410 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.UnsupportedAddressTypeException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link Transport} to a broker in the same JVM. Brokers are {@link #bind(String, Acceptor) bound} to a name and clients connect to an {@link Address} with
+ * that name. Each end of a connection has a lock free queue of the byte buffers written by the other end. A write copies the bytes being written into a
+ * single buffer so the writer is free to reuse its buffers. Each queue is bounded by {@link #MAX_QUEUED_BYTES} so a write that does not fit is partial. The
+ * writer then sets a flag the reader checks each time it reads and the reader signals the writer's pipe so the writer's channel retries.
+ * <p>
+ * The reading end is told about new bytes through a {@link Pipe} since that is what its {@link Selector} can wait on. Only the first write the reader has not
+ * seen yet writes to the pipe so most writes never touch it. Each end is only read and written by the IO thread of the channel it belongs to but the peer
+ * writes to its queue and pipe from the peer's IO thread.
+ */
+final class MemoryTransport extends Transport {
+
+	private static final ConcurrentMap<String, Acceptor> ACCEPTORS = new ConcurrentHashMap<String, Acceptor>();
+	private static final AtomicInteger NEXT_CONNECTION_ID = new AtomicInteger();
+	private static final byte[] SIGNAL = new byte[1];
+
+	/**
+	 * Maximum bytes queued in each direction
+	 */
+	static final int MAX_QUEUED_BYTES = 256 * 1024;
+
+	private final Queue<ByteBuffer> incoming = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger incomingBytes = new AtomicInteger();
+	// true while a write to the peer did not fit in its queue. The peer clears it and signals this end once it has read.
+	private final AtomicBoolean writeBlocked = new AtomicBoolean();
+	// true from when a signal is written to the pipe until the reader drains it so only the first write the reader has not seen writes to the pipe
+	private final AtomicBoolean signalled = new AtomicBoolean();
+	private final Pipe pipe;
+	private final ByteBuffer drainBuffer = ByteBuffer.allocate(64);
+
+	// the buffer from incoming currently being read
+	private ByteBuffer current;
+
+	private volatile MemoryTransport peer;
+	private volatile boolean closed;
+	private volatile boolean peerClosed;
+
+	private String localAddress;
+	private String remoteAddress;
+
+	MemoryTransport() throws IOException {
+		pipe = Pipe.open();
+		pipe.source().configureBlocking(false);
+	}
+
+	/**
+	 * Binds a broker to a name so clients can connect to it
+	 * 
+	 * @throws BindException
+	 *             If a broker is already bound to the name
+	 */
+	static void bind(String name, Acceptor acceptor) throws BindException {
+
+		if (ACCEPTORS.putIfAbsent(name, acceptor) != null) {
+			throw new BindException("An in-memory broker named " + name + " already exists");
+		}
+	}
+
+	/**
+	 * Unbinds a broker from a name. This does nothing if acceptor is not the broker bound to the name. Connections already accepted are not affected.
+	 */
+	static void unbind(String name, Acceptor acceptor) {
+		ACCEPTORS.remove(name, acceptor);
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#register(java.nio.channels.Selector, int, java.lang.Object)
+	 */
+	@Override
+	SelectionKey register(Selector selector, int ops, Object attachment) throws IOException {
+		return pipe.source().register(selector, ops & SelectionKey.OP_READ, attachment);
+	}
+
+	/**
+	 * Connects to the broker bound to the name of the specified {@link Address}. The broker's end of the connection is given to the broker's
+	 * {@link Acceptor}.
+	 * 
+	 * @see net.xenqtt.message.Transport#connect(java.net.SocketAddress)
+	 */
+	@Override
+	boolean connect(SocketAddress address) throws IOException {
+
+		if (!(address instanceof Address)) {
+			throw new UnsupportedAddressTypeException();
+		}
+
+		String name = ((Address) address).name;
+		Acceptor acceptor = ACCEPTORS.get(name);
+		if (acceptor == null) {
+			throw new ConnectException("Connection refused: there is no in-memory broker named " + name);
+		}
+
+		MemoryTransport brokerEnd = new MemoryTransport();
+		remoteAddress = brokerEnd.localAddress = address.toString();
+		localAddress = brokerEnd.remoteAddress = address + "#" + NEXT_CONNECTION_ID.incrementAndGet();
+		brokerEnd.peer = this;
+		peer = brokerEnd;
+
+		try {
+			acceptor.accept(brokerEnd);
+		} catch (RuntimeException e) {
+			brokerEnd.close();
+			throw e;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#finishConnect()
+	 */
+	@Override
+	boolean finishConnect() throws IOException {
+
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+
+		return peer != null;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#isConnectionPending()
+	 */
+	@Override
+	boolean isConnectionPending() {
+		return false;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#isConnected()
+	 */
+	@Override
+	boolean isConnected() {
+		return peer != null;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#isWriteSelectable()
+	 */
+	@Override
+	boolean isWriteSelectable() {
+		return false;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#getRemoteAddress()
+	 */
+	@Override
+	String getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#getLocalAddress()
+	 */
+	@Override
+	String getLocalAddress() {
+		return localAddress;
+	}
+
+	/**
+	 * Reads as many of the bytes written by the peer as will fit in dst
+	 * 
+	 * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+
+		// drain the pipe before clearing the flag so a signal written after the flag is cleared is still in the pipe for the next select
+		drainBuffer.clear();
+		while (pipe.source().read(drainBuffer) > 0) {
+			drainBuffer.clear();
+		}
+		signalled.set(false);
+
+		// checked before polling the queue since the peer queues everything it writes before it closes
+		boolean endOfStream = peerClosed;
+
+		int count = 0;
+		while (dst.hasRemaining()) {
+			if (current == null) {
+				current = incoming.poll();
+				if (current == null) {
+					break;
+				}
+			}
+
+			int length = Math.min(dst.remaining(), current.remaining());
+			int limit = current.limit();
+			current.limit(current.position() + length);
+			dst.put(current);
+			current.limit(limit);
+			count += length;
+
+			if (!current.hasRemaining()) {
+				current = null;
+			}
+		}
+
+		if (count > 0) {
+			incomingBytes.addAndGet(-count);
+			MemoryTransport peer = this.peer;
+			if (peer != null && peer.writeBlocked.get() && peer.writeBlocked.compareAndSet(true, false)) {
+				peer.signal();
+			}
+		}
+
+		if (current != null || !incoming.isEmpty()) {
+			// there is more to read so the selector must select this transport again
+			signal();
+		} else if (endOfStream) {
+			if (count == 0) {
+				return -1;
+			}
+			signal();
+		}
+
+		return count;
+	}
+
+	/**
+	 * @see java.nio.channels.WritableByteChannel#write(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return (int) write(new ByteBuffer[] { src }, 0, 1);
+	}
+
+	/**
+	 * Copies as many of the remaining bytes in the buffers as fit to the peer's queue
+	 * 
+	 * @see java.nio.channels.GatheringByteChannel#write(java.nio.ByteBuffer[], int, int)
+	 */
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+
+		MemoryTransport peer = this.peer;
+		if (peer == null) {
+			throw new NotYetConnectedException();
+		}
+
+		if (peerClosed) {
+			throw new IOException("Connection reset by peer");
+		}
+
+		int size = 0;
+		for (int i = offset; i < offset + length; i++) {
+			size += srcs[i].remaining();
+		}
+
+		if (size == 0) {
+			return 0;
+		}
+
+		int free = MAX_QUEUED_BYTES - peer.incomingBytes.get();
+		if (free < size) {
+			writeBlocked.set(true);
+			// the peer may have read before the flag was set in which case it did not signal
+			free = MAX_QUEUED_BYTES - peer.incomingBytes.get();
+			if (free <= 0) {
+				return 0;
+			}
+			size = Math.min(size, free);
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (int i = offset; i < offset + length && buffer.hasRemaining(); i++) {
+			ByteBuffer src = srcs[i];
+			int limit = src.limit();
+			src.limit(src.position() + Math.min(src.remaining(), buffer.remaining()));
+			buffer.put(src);
+			src.limit(limit);
+		}
+		buffer.flip();
+
+		peer.incomingBytes.addAndGet(size);
+		peer.incoming.offer(buffer);
+		peer.signal();
+
+		return size;
+	}
+
+	/**
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	@Override
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	/**
+	 * Closes this end of the connection. The peer reads the end of the stream once it has read everything already written to it.
+	 * 
+	 * @see java.nio.channels.Channel#close()
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+		incoming.clear();
+		current = null;
+
+		MemoryTransport peer = this.peer;
+		if (peer != null) {
+			peer.peerClosed = true;
+			peer.signal();
+		}
+
+		try {
+			pipe.sink().close();
+		} finally {
+			pipe.source().close();
+		}
+	}
+
+	/**
+	 * Makes this transport readable to its selector if it is not already
+	 */
+	private void signal() {
+
+		if (!signalled.get() && signalled.compareAndSet(false, true)) {
+			try {
+				pipe.sink().write(ByteBuffer.wrap(SIGNAL));
+			} catch (IOException ignore) {
+				// this end is closed so nothing is waiting for the signal
+			}
+		}
+	}
+
+	/**
+	 * Accepts the broker end of connections made to the name a broker is {@link MemoryTransport#bind(String, Acceptor) bound} to
+	 */
+	interface Acceptor {
+
+		/**
+		 * Called on the connecting client's IO thread with the broker end of a new connection. The client may write to the connection before this returns.
+		 */
+		void accept(MemoryTransport transport);
+	}
+
+	/**
+	 * The address of a broker bound to a name
+	 */
+	static final class Address extends SocketAddress {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String name;
+
+		Address(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "mem://" + name;
+		}
+	}
+}
@@ -194,6 +194,24 @@ final class MessageStatsImpl implements MutableMessageStats {
 		}
 	}
 
+	/**
+	 * Merges this snapshot with another snapshot. This is used to combine the stats from multiple IO threads into a single snapshot.
+	 * 
+	 * @param other
+	 *            The snapshot to merge with this one
+	 * 
+	 * @return A new snapshot that is the combination of this snapshot and the specified snapshot
+	 */
+	MessageStatsImpl merge(MessageStatsImpl other) {
+
+		LatencyStatImpl latency = new LatencyStatImpl();
+		latency.merge(ackLatency);
+		latency.merge(other.ackLatency);
+
+		return new MessageStatsImpl(getMessagesQueuedToSend() + other.getMessagesQueuedToSend(), getMessagesInFlight() + other.getMessagesInFlight(),
+				messagesSent.merge(other.messagesSent), messagesReceived.merge(other.messagesReceived), latency);
+	}
+
 	/**
 	 * @see java.lang.Object#toString()
 	 */
@@ -274,6 +292,13 @@ final class MessageStatsImpl implements MutableMessageStats {
 			value = resendOrDup = 0;
 		}
 
+		private MessageStat merge(MessageStat other) {
+			MessageStat merged = new MessageStat();
+			merged.value = value + other.value;
+			merged.resendOrDup = resendOrDup + other.resendOrDup;
+			return merged;
+		}
+
 		@Override
 		public MessageStat clone() throws CloneNotSupportedException {
 			return (MessageStat) super.clone();
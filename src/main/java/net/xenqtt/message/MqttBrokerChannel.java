@@ -37,6 +37,28 @@ public final class MqttBrokerChannel extends AbstractMqttChannel {
 		super(channel, handler, selector, messageResendIntervalMillis, stats);
 	}
 
+	/**
+	 * @param messageResendIntervalMillis
+	 *            Millis between attempts to resend a message that {@link MqttMessage#isAckable()}. 0 to disable message resends
+	 * @param config
+	 *            The configuration of the {@link ChannelManager} this channel is created by
+	 */
+	public MqttBrokerChannel(SocketChannel channel, MessageHandler handler, Selector selector, long messageResendIntervalMillis, MutableMessageStats stats,
+			ChannelManagerConfig config) throws IOException {
+		super(channel, handler, selector, messageResendIntervalMillis, stats, config);
+	}
+
+	/**
+	 * @param messageResendIntervalMillis
+	 *            Millis between attempts to resend a message that {@link MqttMessage#isAckable()}. 0 to disable message resends
+	 * @param config
+	 *            The configuration of the {@link ChannelManager} this channel is created by
+	 */
+	MqttBrokerChannel(Transport channel, MessageHandler handler, Selector selector, long messageResendIntervalMillis, MutableMessageStats stats,
+			ChannelManagerConfig config) throws IOException {
+		super(channel, handler, selector, messageResendIntervalMillis, stats, config);
+	}
+
 	/**
 	 * @see net.xenqtt.message.AbstractMqttChannel#connected(long)
 	 */
@@ -166,6 +166,12 @@ public interface MqttChannel extends MqttChannelRef {
 	 */
 	int sendQueueDepth();
 
+	/**
+	 * @return False if the bytes or messages queued to send to this channel are above the {@link ChannelManagerConfig#getWriteHighWaterMarkBytes() high water
+	 *         marks}. True otherwise. Once false it stays false until the queue drains to the low water marks.
+	 */
+	boolean isWritable();
+
 	/**
 	 * @return The number of messages currently in flight (QoS level > 0)
 	 */
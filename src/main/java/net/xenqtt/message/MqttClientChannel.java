@@ -16,6 +16,8 @@
 package net.xenqtt.message;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 
@@ -43,6 +45,54 @@ public final class MqttClientChannel extends AbstractMqttChannel {
 		super(host, port, handler, selector, messageResendIntervalMillis, connectionCompleteCommand, stats);
 	}
 
+	/**
+	 * Starts an asynchronous connection to the specified host and port. When a {@link SelectionKey} for the specified selector has
+	 * {@link SelectionKey#OP_CONNECT} as a ready op then {@link #finishConnect()} should be called.
+	 * 
+	 * @param messageResendIntervalMillis
+	 *            Millis between attempts to resend a message that {@link MqttMessage#isAckable()}. 0 to disable message resends
+	 * @param connectionCompleteCommand
+	 *            If not null then this latch is {@link BlockingCommand#complete(Throwable) complete} when the {@link ConnAckMessage} is received.
+	 * @param config
+	 *            The configuration of the {@link ChannelManager} this channel is created by
+	 */
+	public MqttClientChannel(String host, int port, MessageHandler handler, Selector selector, long messageResendIntervalMillis,
+			BlockingCommand<?> connectionCompleteCommand, MutableMessageStats stats, ChannelManagerConfig config) throws IOException {
+		super(host, port, handler, selector, messageResendIntervalMillis, connectionCompleteCommand, stats, config);
+	}
+
+	/**
+	 * Starts an asynchronous connection to the specified address which should already be resolved. When a {@link SelectionKey} for the specified selector
+	 * has {@link SelectionKey#OP_CONNECT} as a ready op then {@link #finishConnect()} should be called.
+	 * 
+	 * @param messageResendIntervalMillis
+	 *            Millis between attempts to resend a message that {@link MqttMessage#isAckable()}. 0 to disable message resends
+	 * @param connectionCompleteCommand
+	 *            If not null then this latch is {@link BlockingCommand#complete(Throwable) complete} when the {@link ConnAckMessage} is received.
+	 * @param config
+	 *            The configuration of the {@link ChannelManager} this channel is created by
+	 */
+	public MqttClientChannel(InetSocketAddress address, MessageHandler handler, Selector selector, long messageResendIntervalMillis,
+			BlockingCommand<?> connectionCompleteCommand, MutableMessageStats stats, ChannelManagerConfig config) throws IOException {
+		super(address, handler, selector, messageResendIntervalMillis, connectionCompleteCommand, stats, config);
+	}
+
+	/**
+	 * Starts an asynchronous connection to the specified address using the specified transport. When a {@link SelectionKey} for the specified selector has
+	 * {@link SelectionKey#OP_CONNECT} as a ready op then {@link #finishConnect()} should be called.
+	 * 
+	 * @param messageResendIntervalMillis
+	 *            Millis between attempts to resend a message that {@link MqttMessage#isAckable()}. 0 to disable message resends
+	 * @param connectionCompleteCommand
+	 *            If not null then this latch is {@link BlockingCommand#complete(Throwable) complete} when the {@link ConnAckMessage} is received.
+	 * @param config
+	 *            The configuration of the {@link ChannelManager} this channel is created by
+	 */
+	MqttClientChannel(Transport transport, SocketAddress address, MessageHandler handler, Selector selector, long messageResendIntervalMillis,
+			BlockingCommand<?> connectionCompleteCommand, MutableMessageStats stats, ChannelManagerConfig config) throws IOException {
+		super(transport, address, handler, selector, messageResendIntervalMillis, connectionCompleteCommand, stats, config);
+	}
+
 	/**
 	 * @see net.xenqtt.message.AbstractMqttChannel#connected(long)
 	 */
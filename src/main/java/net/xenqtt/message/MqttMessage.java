@@ -19,6 +19,7 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * This is a generic MQTT message. Extending classes support more specific message types
@@ -30,6 +31,8 @@ public class MqttMessage {
 
 	static final Charset UTF8 = Charset.forName("UTF-8");
 
+	private static final AtomicIntegerFieldUpdater<MqttMessage> REF_COUNT_UPDATER = AtomicIntegerFieldUpdater.newUpdater(MqttMessage.class, "refCount");
+
 	private final int remainingLength;
 
 	/**
@@ -55,6 +58,14 @@ public class MqttMessage {
 	 */
 	long originalSendTime;
 
+	/**
+	 * The pool {@link #buffer} came from. Null if the buffer is not pooled.
+	 */
+	BufferPool bufferPool;
+
+	// references held to a pooled buffer. The buffer is returned to the pool when this reaches 0.
+	private volatile int refCount = 1;
+
 	private MessageType messageType;
 
 	private long receivedTimestamp;
@@ -103,6 +114,14 @@ public class MqttMessage {
 	 * any variable header and payload information to the buffer then call {@link ByteBuffer#flip()}.
 	 */
 	MqttMessage(MessageType messageType, boolean duplicate, QoS qos, boolean retain, int remainingLength) {
+		this(messageType, duplicate, qos, retain, remainingLength, remainingLength);
+	}
+
+	/**
+	 * Same as {@link #MqttMessage(MessageType, boolean, QoS, boolean, int)} except the buffer only has room for the first bufferRemainingLength bytes after the
+	 * fixed header. Used for messages whose payload is sent from somewhere other than the buffer.
+	 */
+	MqttMessage(MessageType messageType, boolean duplicate, QoS qos, boolean retain, int remainingLength, int bufferRemainingLength) {
 
 		int byte1 = messageType.value() << 4;
 		if (qos != null) {
@@ -121,7 +140,7 @@ public class MqttMessage {
 
 		byte[] remainingLengthBytes = buildRemainingLengthBytes();
 
-		this.buffer = ByteBuffer.allocate(1 + remainingLengthBytes.length + remainingLength);
+		this.buffer = ByteBuffer.allocate(1 + remainingLengthBytes.length + bufferRemainingLength);
 		buffer.put((byte) byte1);
 		for (byte b : remainingLengthBytes) {
 			buffer.put(b);
@@ -258,6 +277,43 @@ public class MqttMessage {
 		return remainingLength;
 	}
 
+	/**
+	 * Adds a reference to this message's buffer. This only matters for received messages when the buffer pool is enabled (see
+	 * {@link ChannelManagerConfig#setBufferPoolEnabled(boolean)}). In that case a {@link MessageHandler} that keeps this message after the handler method
+	 * returns must call this method before returning and call {@link #release()} when it is done with the message. Otherwise this does nothing.
+	 */
+	public final void retain() {
+
+		if (bufferPool != null) {
+			REF_COUNT_UPDATER.incrementAndGet(this);
+		}
+	}
+
+	/**
+	 * Removes a reference to this message's buffer. When the last reference is removed a pooled buffer is returned to the pool and this message must not be
+	 * used again. This does nothing if the buffer is not pooled or the last reference has already been removed.
+	 */
+	public final void release() {
+
+		if (bufferPool == null) {
+			return;
+		}
+
+		for (;;) {
+			int count = refCount;
+			if (count <= 0) {
+				return;
+			}
+
+			if (REF_COUNT_UPDATER.compareAndSet(this, count, count - 1)) {
+				if (count == 1) {
+					bufferPool.release(buffer);
+				}
+				return;
+			}
+		}
+	}
+
 	/**
 	 * Sets the duplicate flag on this message. This is called before resending this message.
 	 */
@@ -410,12 +466,27 @@ public class MqttMessage {
 
 		byte[] buf = new byte[len];
 		if (len > 0) {
-			System.arraycopy(buffer.array(), index, buf, 0, len);
+			copyBytes(buffer, index, buf, 0, len);
 		}
 
 		return buf;
 	}
 
+	/**
+	 * Copies len bytes starting at index in buffer to dst starting at off. Works for heap, direct, and read only buffers. Does not change the buffer's
+	 * position or limit.
+	 */
+	static void copyBytes(ByteBuffer buffer, int index, byte[] dst, int off, int len) {
+
+		if (buffer.hasArray()) {
+			System.arraycopy(buffer.array(), buffer.arrayOffset() + index, dst, off, len);
+		} else {
+			ByteBuffer source = buffer.duplicate();
+			source.limit(index + len).position(index);
+			source.get(dst, off, len);
+		}
+	}
+
 	private byte[] buildRemainingLengthBytes() {
 
 		byte[] remainingLengthBytes = new byte[getRemainingLengthSize()];
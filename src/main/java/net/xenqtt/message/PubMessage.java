@@ -15,7 +15,14 @@
  */
 package net.xenqtt.message;
 
+import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+
+import net.xenqtt.MqttException;
 
 /**
  * A PUBLISH message is sent by a client to a server for distribution to interested subscribers. Each PUBLISH message is associated with a topic name (also
@@ -27,6 +34,17 @@ import java.nio.ByteBuffer;
 public final class PubMessage extends IdentifiableMqttMessage {
 
 	private int payloadIndex = -1;
+	private String topicName;
+
+	// the file region the payload is sent from instead of the buffer. Null if the payload is in the buffer.
+	private FileChannel payloadFile;
+	private long payloadFilePosition;
+	private int payloadFileLength;
+
+	/**
+	 * The number of bytes of the {@link #payloadFile payload file} region the channel sending this message has written so far
+	 */
+	long payloadFileTransferred;
 
 	/**
 	 * Used to construct a received message.
@@ -40,6 +58,50 @@ public final class PubMessage extends IdentifiableMqttMessage {
 	 */
 	public PubMessage(QoS qos, boolean retain, String topicName, int messageId, byte[] payload) {
 		this(qos, retain, stringToUtf8(topicName), messageId, payload);
+		this.topicName = topicName;
+	}
+
+	/**
+	 * Used to construct a message for sending whose payload is a region of a file. The payload is never copied into this message. The channel writes the
+	 * header and then transfers the region straight from the file to the socket using {@link FileChannel#transferTo(long, long, WritableByteChannel)} which
+	 * lets the operating system send the bytes from its file cache without copying them into the JVM. The region is transferred again if the message is
+	 * resent.
+	 * <p>
+	 * The file must stay open and the region must not change until the message has been sent or, if the QoS is greater than 0, acknowledged. The file is not
+	 * closed by this message.
+	 * 
+	 * @param payloadFile
+	 *            The file the payload is read from
+	 * @param position
+	 *            The position in the file of the first byte of the payload
+	 * @param length
+	 *            The number of bytes in the payload
+	 */
+	public PubMessage(QoS qos, boolean retain, String topicName, int messageId, FileChannel payloadFile, long position, int length) {
+		this(qos, retain, stringToUtf8(topicName), messageId, payloadFile, position, length);
+		this.topicName = topicName;
+	}
+
+	/**
+	 * Used to construct a message for sending with the same topic, QoS, and retain flag as template but a different payload. The topic is copied from
+	 * template's buffer so it is not encoded again. This is much cheaper than {@link #PubMessage(QoS, boolean, String, int, byte[])} when many messages are
+	 * published to the same topic. The message ID is 0 and the duplicate flag is not set.
+	 */
+	public PubMessage(PubMessage template, byte[] payload) {
+		super(MessageType.PUBLISH, false, template.getQoS(), template.isRetain(), template.getPayloadIndex() - template.fixedHeaderEndOffset + payload.length);
+
+		ByteBuffer variableHeader = template.buffer.duplicate();
+		variableHeader.limit(template.getPayloadIndex());
+		variableHeader.position(template.fixedHeaderEndOffset);
+		buffer.put(variableHeader);
+		if (template.getQoSLevel() > 0) {
+			buffer.putShort(buffer.position() - 2, (short) 0);
+		}
+		buffer.put(payload);
+		buffer.flip();
+
+		payloadIndex = buffer.limit() - payload.length;
+		topicName = template.topicName;
 	}
 
 	/**
@@ -49,7 +111,12 @@ public final class PubMessage extends IdentifiableMqttMessage {
 	 * not the subscription string used by the client.
 	 */
 	public String getTopicName() {
-		return getString(fixedHeaderEndOffset);
+
+		if (topicName == null) {
+			topicName = getString(fixedHeaderEndOffset);
+		}
+
+		return topicName;
 	}
 
 	/**
@@ -76,9 +143,173 @@ public final class PubMessage extends IdentifiableMqttMessage {
 	 */
 	public byte[] getPayload() {
 
+		if (payloadFile != null) {
+			byte[] payload = new byte[payloadFileLength];
+			readPayloadFile(ByteBuffer.wrap(payload));
+			return payload;
+		}
+
 		return getBytes(getPayloadIndex());
 	}
 
+	/**
+	 * @return A read-only view of the {@link #getPayload() payload}. The view shares this message's buffer so no bytes are copied. Its position is 0 and its
+	 *         limit is the {@link #getPayloadLength() payload length}.
+	 */
+	public ByteBuffer getPayloadBuffer() {
+
+		if (payloadFile != null) {
+			try {
+				return payloadFile.map(MapMode.READ_ONLY, payloadFilePosition, payloadFileLength).asReadOnlyBuffer();
+			} catch (IOException e) {
+				throw new MqttException("Failed to map the payload file", e);
+			}
+		}
+
+		ByteBuffer payload = buffer.duplicate();
+		payload.limit(buffer.limit());
+		payload.position(getPayloadIndex());
+
+		return payload.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return The number of bytes in the {@link #getPayload() payload}
+	 */
+	public int getPayloadLength() {
+		return payloadFile != null ? payloadFileLength : buffer.limit() - getPayloadIndex();
+	}
+
+	/**
+	 * @return True if this message's payload is a region of a file instead of being in its buffer. See
+	 *         {@link #PubMessage(QoS, boolean, String, int, FileChannel, long, int)}.
+	 */
+	public boolean isPayloadInFile() {
+		return payloadFile != null;
+	}
+
+	/**
+	 * Copies the {@link #getPayload() payload} into dst starting at dst's current position. dst's position is advanced by the {@link #getPayloadLength()
+	 * payload length}.
+	 * 
+	 * @return The number of bytes copied
+	 * 
+	 * @throws java.nio.BufferOverflowException
+	 *             If dst does not have enough space remaining for the payload
+	 */
+	public int getPayload(ByteBuffer dst) {
+
+		int len = getPayloadLength();
+		if (payloadFile != null) {
+			if (dst.remaining() < len) {
+				throw new BufferOverflowException();
+			}
+			ByteBuffer region = dst.duplicate();
+			region.limit(region.position() + len);
+			readPayloadFile(region);
+			dst.position(dst.position() + len);
+			return len;
+		}
+
+		if (buffer.hasArray()) {
+			dst.put(buffer.array(), buffer.arrayOffset() + getPayloadIndex(), len);
+		} else {
+			ByteBuffer source = buffer.duplicate();
+			source.limit(buffer.limit()).position(getPayloadIndex());
+			dst.put(source);
+		}
+
+		return len;
+	}
+
+	/**
+	 * Copies the {@link #getPayload() payload} into dst starting at off.
+	 * 
+	 * @return The number of bytes copied
+	 * 
+	 * @throws IndexOutOfBoundsException
+	 *             If dst does not have enough space after off for the payload
+	 */
+	public int getPayload(byte[] dst, int off) {
+
+		int len = getPayloadLength();
+		if (payloadFile != null) {
+			if (off < 0 || off + len > dst.length) {
+				throw new IndexOutOfBoundsException();
+			}
+			readPayloadFile(ByteBuffer.wrap(dst, off, len));
+			return len;
+		}
+
+		if (off < 0 || off + len > dst.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		copyBytes(buffer, getPayloadIndex(), dst, off, len);
+
+		return len;
+	}
+
+	/**
+	 * @return A copy of this message that does not share its buffer with this message. Use this to keep a received message after it is
+	 *         {@link #release() released}.
+	 */
+	public PubMessage copy() {
+
+		ByteBuffer source = buffer.duplicate();
+		source.position(0);
+		ByteBuffer copy = ByteBuffer.allocate(source.remaining());
+		copy.put(source);
+		copy.flip();
+
+		PubMessage message = new PubMessage(copy, getRemainingLength(), getReceivedTimestamp());
+		message.topicName = topicName;
+		message.payloadFile = payloadFile;
+		message.payloadFilePosition = payloadFilePosition;
+		message.payloadFileLength = payloadFileLength;
+
+		return message;
+	}
+
+	/**
+	 * Transfers as much of the rest of the {@link #isPayloadInFile() payload file} region to target as it will take without blocking
+	 * 
+	 * @return The number of bytes transferred
+	 */
+	long transferPayloadFile(Transport target) throws IOException {
+
+		long position = payloadFilePosition + payloadFileTransferred;
+		long count = target.transferFrom(payloadFile, position, payloadFileLength - payloadFileTransferred);
+		if (count == 0 && position >= payloadFile.size()) {
+			throw new IOException("The payload file was truncated while sending " + this);
+		}
+		payloadFileTransferred += count;
+
+		return count;
+	}
+
+	/**
+	 * @return True if the whole {@link #isPayloadInFile() payload file} region has been transferred
+	 */
+	boolean isPayloadFileTransferred() {
+		return payloadFileTransferred == payloadFileLength;
+	}
+
+	private void readPayloadFile(ByteBuffer dst) {
+
+		try {
+			long position = payloadFilePosition;
+			while (dst.hasRemaining()) {
+				int count = payloadFile.read(dst, position);
+				if (count < 0) {
+					throw new IOException("The payload file is shorter than the payload");
+				}
+				position += count;
+			}
+		} catch (IOException e) {
+			throw new MqttException("Failed to read the payload file", e);
+		}
+	}
+
 	private int getPayloadIndex() {
 
 		if (payloadIndex == -1) {
@@ -101,4 +332,19 @@ public final class PubMessage extends IdentifiableMqttMessage {
 		buffer.put(payload);
 		buffer.flip();
 	}
+
+	private PubMessage(QoS qos, boolean retain, byte[] topicNameUtf8, int messageId, FileChannel payloadFile, long position, int length) {
+		super(MessageType.PUBLISH, false, qos, retain, (qos.ordinal() == 0 ? 0 : 2) + mqttStringSize(topicNameUtf8) + length, (qos.ordinal() == 0 ? 0 : 2)
+				+ mqttStringSize(topicNameUtf8));
+
+		putString(topicNameUtf8);
+		if (qos.ordinal() > 0) {
+			buffer.putShort((short) messageId);
+		}
+		buffer.flip();
+
+		this.payloadFile = payloadFile;
+		this.payloadFilePosition = position;
+		this.payloadFileLength = length;
+	}
 }
@@ -0,0 +1,776 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.UnsupportedAddressTypeException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.xenqtt.ConfigurableThreadFactory;
+import net.xenqtt.Log;
+
+/**
+ * A {@link Transport} to a broker in another process on the same host. Brokers are {@link #bind(String, Acceptor) bound} to a path and clients connect to an
+ * {@link Address} with that path. Each connection is a memory mapped file holding two single producer/single consumer ring buffers, one per direction, so
+ * MQTT frames are copied straight from the writer's buffers into memory the reader maps. The client creates the file next to the broker's path and the broker
+ * deletes it once it has mapped it so it goes away with the mappings.
+ * <p>
+ * Connection requests are unauthenticated datagrams so the broker only opens files in its path's directory named like the files clients create. On Java 7 and
+ * later it also requires them to be owned by the user that owns the broker's path and never follows links when it opens them. The broker never creates a
+ * connection's file and only deletes files that turn out to be connections.
+ * <p>
+ * Java has no way to wait on memory so each end has a loopback {@link DatagramChannel} doorbell that its {@link Selector} waits on. A write rings the peer's
+ * doorbell with a 1 byte datagram after it publishes the new bytes. The doorbell is never used for data so a dropped datagram only matters if it is the only
+ * one, which can not happen since the reader always drains its doorbell before it reads the ring. Writes that do not fit in the ring are partial. The writer
+ * then sets a flag in the ring and the reader rings the writer's doorbell each time it frees space while the flag is set so the writer's channel retries.
+ * <p>
+ * The ring indices are plain ints in the mapped file. Volatile accesses to {@link #fence} order them with the ring data since there is no portable memory
+ * fence in this Java version. That only keeps the compiler from reordering them. The other process sees the stores in order only because x86 hardware keeps
+ * stores in program order (TSO), so this transport is {@link #isSupported() only supported} on x86 and x86-64. Each end is only used by the IO thread of the
+ * channel it belongs to.
+ */
+final class SharedMemoryTransport extends Transport {
+
+	/**
+	 * Bytes in each direction's ring buffer
+	 */
+	static final int RING_CAPACITY = 256 * 1024;
+
+	private static final int MAGIC = 0x78716d31;
+	// architectures whose memory model orders the ring indices with the ring data without a hardware fence
+	private static final Set<String> TSO_ARCHITECTURES = new HashSet<String>(Arrays.asList("x86", "i386", "i486", "i586", "i686", "amd64", "x86_64"));
+	private static final boolean SUPPORTED = TSO_ARCHITECTURES.contains(System.getProperty("os.arch"));
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// file header. Each end only writes its own port and closed flag.
+	private static final int MAGIC_OFFSET = 0;
+	private static final int CAPACITY_OFFSET = 4;
+	private static final int CLIENT_PORT_OFFSET = 8;
+	private static final int BROKER_PORT_OFFSET = 12;
+	private static final int CLIENT_CLOSED_OFFSET = 16;
+	private static final int BROKER_CLOSED_OFFSET = 20;
+	private static final int FIRST_RING_OFFSET = 64;
+
+	// ring layout. The head is only written by the reader and the tail and waiting flag only by the writer so they are on separate cache lines.
+	private static final int HEAD_OFFSET = 0;
+	private static final int TAIL_OFFSET = 64;
+	private static final int WAITING_OFFSET = 68;
+	private static final int DATA_OFFSET = 128;
+
+	// java.nio.file is only available from Java 7 so it is used through reflection
+	private static final Method TO_PATH;
+	private static final Method GET_OWNER;
+	private static final Method OPEN_FILE_CHANNEL;
+	private static final Object NO_FOLLOW_LINKS;
+	private static final Object OPEN_EXISTING;
+
+	static {
+
+		Method toPath = null;
+		Method getOwner = null;
+		Method openFileChannel = null;
+		Object[] noFollowLinks = null;
+		Object[] openExisting = null;
+
+		try {
+			Class<?> pathClass = Class.forName("java.nio.file.Path");
+			Class<?> linkOptionClass = Class.forName("java.nio.file.LinkOption");
+			Class<?> openOptionClass = Class.forName("java.nio.file.OpenOption");
+			Class<?> standardOpenOptionClass = Class.forName("java.nio.file.StandardOpenOption");
+			Object noFollow = linkOptionClass.getField("NOFOLLOW_LINKS").get(null);
+
+			toPath = File.class.getMethod("toPath");
+			getOwner = Class.forName("java.nio.file.Files").getMethod("getOwner", pathClass, Array.newInstance(linkOptionClass, 0).getClass());
+			openFileChannel = FileChannel.class.getMethod("open", pathClass, Array.newInstance(openOptionClass, 0).getClass());
+
+			noFollowLinks = (Object[]) Array.newInstance(linkOptionClass, 1);
+			noFollowLinks[0] = noFollow;
+			openExisting = (Object[]) Array.newInstance(openOptionClass, 3);
+			openExisting[0] = standardOpenOptionClass.getField("READ").get(null);
+			openExisting[1] = standardOpenOptionClass.getField("WRITE").get(null);
+			openExisting[2] = noFollow;
+		} catch (Exception ignore) {
+			// this JVM does not have java.nio.file
+			toPath = null;
+		}
+
+		TO_PATH = toPath;
+		GET_OWNER = toPath == null ? null : getOwner;
+		OPEN_FILE_CHANNEL = toPath == null ? null : openFileChannel;
+		NO_FOLLOW_LINKS = noFollowLinks;
+		OPEN_EXISTING = openExisting;
+	}
+
+	private final DatagramChannel doorbell;
+	private final SocketAddress localDoorbell;
+	private final ByteBuffer signal = ByteBuffer.allocate(1);
+	private final ByteBuffer drainBuffer = ByteBuffer.allocate(64);
+	private final boolean client;
+
+	private String brokerPath;
+	private File file;
+	private MappedByteBuffer buffer;
+	private ByteBuffer readData;
+	private ByteBuffer writeData;
+	private int readRing;
+	private int writeRing;
+	private int mask;
+	private int readHead;
+	private int writeTail;
+	private boolean writeWaiting;
+	private SocketAddress peerDoorbell;
+	private boolean closed;
+
+	private volatile int fence;
+
+	/**
+	 * Creates the client end of a connection. The connection is made by {@link #connect(SocketAddress)}.
+	 */
+	SharedMemoryTransport() throws IOException {
+		this(true, null);
+	}
+
+	/**
+	 * Creates the broker end of the connection in the specified file. The file must already be {@link #connectionFile(File, String) validated}.
+	 */
+	private SharedMemoryTransport(String brokerPath, File file) throws IOException {
+
+		this(false, brokerPath);
+
+		try {
+			map(file, false);
+			if (buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+				throw new IOException("Not a shared memory connection: " + file);
+			}
+			// the mappings keep the memory alive
+			file.delete();
+			buffer.putInt(BROKER_PORT_OFFSET, port(localDoorbell));
+			fence();
+			peerDoorbell = doorbellAddress(buffer.getInt(CLIENT_PORT_OFFSET));
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private SharedMemoryTransport(boolean client, String brokerPath) throws IOException {
+
+		this.client = client;
+		this.brokerPath = brokerPath;
+
+		doorbell = DatagramChannel.open();
+		try {
+			doorbell.socket().bind(new InetSocketAddress(InetAddress.getByName(null), 0));
+			doorbell.configureBlocking(false);
+		} catch (IOException e) {
+			doorbell.close();
+			throw e;
+		}
+		localDoorbell = doorbell.socket().getLocalSocketAddress();
+	}
+
+	/**
+	 * @return True if shared memory connections are supported on this host's architecture. See {@link #fence()}.
+	 */
+	static boolean isSupported() {
+		return SUPPORTED;
+	}
+
+	/**
+	 * Binds a broker to a path so clients in other processes can connect to it. The path is created and holds the port of the loopback datagram socket
+	 * connection requests are sent to. Connections are accepted on a dedicated thread.
+	 * 
+	 * @throws BindException
+	 *             If the path already exists
+	 * @throws UnsupportedOperationException
+	 *             If shared memory connections are not {@link #isSupported() supported} on this host
+	 */
+	static Listener bind(String path, Acceptor acceptor) throws IOException {
+
+		checkSupported();
+
+		File file = new File(path);
+		if (!file.createNewFile()) {
+			throw new BindException("A shared memory broker is already bound to " + path);
+		}
+
+		DatagramChannel channel = null;
+		try {
+			channel = DatagramChannel.open();
+			channel.socket().bind(new InetSocketAddress(InetAddress.getByName(null), 0));
+
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+			try {
+				out.writeInt(channel.socket().getLocalPort());
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			if (channel != null) {
+				channel.close();
+			}
+			file.delete();
+			throw e;
+		}
+
+		Listener listener = new Listener(path, file, channel, acceptor);
+		new ConfigurableThreadFactory("MqttSharedMemoryAcceptor", true).newThread(listener).start();
+
+		return listener;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#register(java.nio.channels.Selector, int, java.lang.Object)
+	 */
+	@Override
+	SelectionKey register(Selector selector, int ops, Object attachment) throws IOException {
+
+		SelectionKey key = doorbell.register(selector, ops & SelectionKey.OP_READ, attachment);
+		if (buffer != null) {
+			// the peer may have written before it knew where this end's doorbell is
+			ring(localDoorbell);
+		}
+
+		return key;
+	}
+
+	/**
+	 * Creates the connection's file next to the path of the {@link Address} and asks the broker bound to that path to accept it. The connection can be
+	 * written to before the broker accepts it.
+	 * 
+	 * @see net.xenqtt.message.Transport#connect(java.net.SocketAddress)
+	 */
+	@Override
+	boolean connect(SocketAddress address) throws IOException {
+
+		if (!(address instanceof Address)) {
+			throw new UnsupportedAddressTypeException();
+		}
+
+		checkSupported();
+
+		brokerPath = ((Address) address).path;
+		File brokerFile = new File(brokerPath).getAbsoluteFile();
+		int brokerPort;
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(brokerFile));
+			try {
+				brokerPort = in.readInt();
+			} finally {
+				in.close();
+			}
+		} catch (FileNotFoundException e) {
+			throw new ConnectException("Connection refused: there is no shared memory broker at " + brokerFile);
+		}
+
+		map(File.createTempFile(brokerFile.getName() + "-", ".ring", brokerFile.getParentFile()), true);
+		buffer.putInt(CLIENT_PORT_OFFSET, port(localDoorbell));
+		fence();
+		buffer.putInt(MAGIC_OFFSET, MAGIC);
+		fence();
+
+		// only the name is sent since the broker only accepts files in its path's directory
+		doorbell.send(ByteBuffer.wrap(file.getName().getBytes(UTF8)), doorbellAddress(brokerPort));
+
+		return true;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#finishConnect()
+	 */
+	@Override
+	boolean finishConnect() throws IOException {
+
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+
+		return buffer != null;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#isConnectionPending()
+	 */
+	@Override
+	boolean isConnectionPending() {
+		return false;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#isConnected()
+	 */
+	@Override
+	boolean isConnected() {
+		return buffer != null;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#isWriteSelectable()
+	 */
+	@Override
+	boolean isWriteSelectable() {
+		return false;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#getRemoteAddress()
+	 */
+	@Override
+	String getRemoteAddress() {
+		return client ? brokerAddress() : fileAddress();
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#getLocalAddress()
+	 */
+	@Override
+	String getLocalAddress() {
+		return client ? fileAddress() : brokerAddress();
+	}
+
+	/**
+	 * Reads as many of the bytes written by the peer as will fit in dst
+	 * 
+	 * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+
+		if (buffer == null) {
+			throw new NotYetConnectedException();
+		}
+
+		// drain the doorbell before reading the tail so a write published after the tail is read rings it again for the next select
+		drainBuffer.clear();
+		while (doorbell.receive(drainBuffer) != null) {
+			drainBuffer.clear();
+		}
+
+		// checked before reading the tail since the peer publishes everything it writes before it closes
+		boolean endOfStream = buffer.getInt(client ? BROKER_CLOSED_OFFSET : CLIENT_CLOSED_OFFSET) != 0;
+		fence();
+		int available = buffer.getInt(readRing + TAIL_OFFSET) - readHead;
+		fence();
+
+		int count = 0;
+		while (dst.hasRemaining() && count < available) {
+			int index = (readHead + count) & mask;
+			int length = Math.min(Math.min(dst.remaining(), available - count), mask + 1 - index);
+			readData.limit(index + length).position(index);
+			dst.put(readData);
+			count += length;
+		}
+
+		if (count > 0) {
+			readHead += count;
+			fence();
+			buffer.putInt(readRing + HEAD_OFFSET, readHead);
+			fence();
+			if (buffer.getInt(readRing + WAITING_OFFSET) != 0) {
+				// the peer has a write that did not fit
+				ringPeer();
+			}
+		}
+
+		if (count < available) {
+			// there is more to read so the selector must select this transport again
+			ring(localDoorbell);
+		} else if (endOfStream) {
+			if (count == 0) {
+				return -1;
+			}
+			ring(localDoorbell);
+		}
+
+		return count;
+	}
+
+	/**
+	 * @see java.nio.channels.WritableByteChannel#write(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return (int) write(new ByteBuffer[] { src }, 0, 1);
+	}
+
+	/**
+	 * Copies as many of the remaining bytes in the buffers as fit into the peer's ring
+	 * 
+	 * @see java.nio.channels.GatheringByteChannel#write(java.nio.ByteBuffer[], int, int)
+	 */
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+
+		if (buffer == null) {
+			throw new NotYetConnectedException();
+		}
+
+		if (buffer.getInt(client ? BROKER_CLOSED_OFFSET : CLIENT_CLOSED_OFFSET) != 0) {
+			throw new IOException("Connection reset by peer");
+		}
+
+		int head = buffer.getInt(writeRing + HEAD_OFFSET);
+		int free = mask + 1 - (writeTail - head);
+		fence();
+
+		int count = 0;
+		boolean full = false;
+		for (int i = offset; i < offset + length; i++) {
+			ByteBuffer src = srcs[i];
+			while (src.hasRemaining() && count < free) {
+				int index = (writeTail + count) & mask;
+				int size = Math.min(Math.min(src.remaining(), free - count), mask + 1 - index);
+				int limit = src.limit();
+				src.limit(src.position() + size);
+				writeData.limit(index + size).position(index);
+				writeData.put(src);
+				src.limit(limit);
+				count += size;
+			}
+			full |= src.hasRemaining();
+		}
+
+		if (count > 0) {
+			writeTail += count;
+			fence();
+			buffer.putInt(writeRing + TAIL_OFFSET, writeTail);
+			ringPeer();
+		}
+
+		if (full != writeWaiting) {
+			writeWaiting = full;
+			buffer.putInt(writeRing + WAITING_OFFSET, full ? 1 : 0);
+			fence();
+			if (full && buffer.getInt(writeRing + HEAD_OFFSET) != head) {
+				// the peer freed space before it could see the flag so it did not ring
+				ring(localDoorbell);
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	@Override
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	/**
+	 * Closes this end of the connection. The peer reads the end of the stream once it has read everything already written to it. The memory is unmapped when
+	 * the garbage collector frees it.
+	 * 
+	 * @see java.nio.channels.Channel#close()
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+
+		try {
+			if (buffer != null) {
+				fence();
+				buffer.putInt(client ? CLIENT_CLOSED_OFFSET : BROKER_CLOSED_OFFSET, 1);
+				ringPeer();
+			}
+		} finally {
+			doorbell.close();
+			if (client && file != null) {
+				// the broker never accepted the connection
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Maps the connection's file. If create is true the file is sized for {@link #RING_CAPACITY}. Otherwise the file must already exist and the capacity is
+	 * read from it.
+	 */
+	private void map(File file, boolean create) throws IOException {
+
+		this.file = file;
+
+		if (create) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(fileSize(RING_CAPACITY));
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			} finally {
+				raf.close();
+			}
+		} else {
+			FileChannel channel = openExisting(file);
+			try {
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+			} finally {
+				channel.close();
+			}
+		}
+
+		if (create) {
+			buffer.putInt(CAPACITY_OFFSET, RING_CAPACITY);
+		}
+
+		int capacity = buffer.capacity() < FIRST_RING_OFFSET ? 0 : buffer.getInt(CAPACITY_OFFSET);
+		if (capacity <= 0 || capacity > 1 << 28 || Integer.bitCount(capacity) != 1 || buffer.capacity() != fileSize(capacity)) {
+			throw new IOException("Not a shared memory connection: " + file);
+		}
+
+		mask = capacity - 1;
+		int clientToBroker = FIRST_RING_OFFSET;
+		int brokerToClient = FIRST_RING_OFFSET + DATA_OFFSET + capacity;
+		readRing = client ? brokerToClient : clientToBroker;
+		writeRing = client ? clientToBroker : brokerToClient;
+		readData = slice(readRing + DATA_OFFSET, capacity);
+		writeData = slice(writeRing + DATA_OFFSET, capacity);
+		readHead = buffer.getInt(readRing + HEAD_OFFSET);
+		writeTail = buffer.getInt(writeRing + TAIL_OFFSET);
+	}
+
+	private String brokerAddress() {
+		return brokerPath == null ? null : "shm://" + brokerPath;
+	}
+
+	private String fileAddress() {
+		return file == null ? null : file.getAbsolutePath();
+	}
+
+	private ByteBuffer slice(int offset, int length) {
+
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(offset + length).position(offset);
+		return slice.slice();
+	}
+
+	/**
+	 * A volatile write then read. HotSpot does not move memory accesses across this in either direction. It is only a compiler fence for the other process
+	 * though. No hardware fence is emitted that another process would see so this relies on x86 TSO, where stores become visible in program order and loads
+	 * are not reordered with other loads. On weaker memory models, such as ARM or POWER, the peer could see a new tail before the data it covers.
+	 */
+	private void fence() {
+		fence++;
+	}
+
+	private static void checkSupported() {
+
+		if (!SUPPORTED) {
+			throw new UnsupportedOperationException("Shared memory connections are only supported on x86 and x86-64, not " + System.getProperty("os.arch"));
+		}
+	}
+
+	private void ringPeer() {
+
+		if (peerDoorbell == null) {
+			// the broker writes its port before it reads the ring so if it is not there yet the broker will see what was just written
+			fence();
+			peerDoorbell = doorbellAddress(buffer.getInt(BROKER_PORT_OFFSET));
+		}
+
+		if (peerDoorbell != null) {
+			ring(peerDoorbell);
+		}
+	}
+
+	private void ring(SocketAddress address) {
+
+		try {
+			signal.clear();
+			doorbell.send(signal, address);
+		} catch (IOException ignore) {
+			// the datagram only wakes the reader. If it can not be sent the reader is gone or its doorbell is already full.
+		}
+	}
+
+	/**
+	 * Opens an existing file for reading and writing without following links. Before Java 7 there is no way to open a file without creating it so there is a
+	 * small window where a file deleted after it is checked is created again.
+	 */
+	private static FileChannel openExisting(File file) throws IOException {
+
+		if (OPEN_FILE_CHANNEL != null) {
+			return (FileChannel) UnixSockets.invoke(OPEN_FILE_CHANNEL, null, UnixSockets.invoke(TO_PATH, file), OPEN_EXISTING);
+		}
+
+		if (!file.isFile()) {
+			throw new FileNotFoundException(file.getPath());
+		}
+
+		return new RandomAccessFile(file, "rw").getChannel();
+	}
+
+	/**
+	 * @return The connection file a connection request to the broker bound to brokerFile named. It must be a file a client could have created in brokerFile's
+	 *         directory: a regular file, not a link, named after brokerFile, and, on Java 7 and later, owned by brokerFile's owner.
+	 * @throws IOException
+	 *             If name is not such a file
+	 */
+	static File connectionFile(File brokerFile, String name) throws IOException {
+
+		File dir = brokerFile.getAbsoluteFile().getParentFile();
+		File file = new File(dir, name);
+
+		if (name.indexOf('/') >= 0 || name.indexOf(File.separatorChar) >= 0 || !name.startsWith(brokerFile.getName() + "-") || !name.endsWith(".ring")
+				|| !file.isFile() || !file.getCanonicalFile().equals(new File(dir.getCanonicalFile(), name))
+				|| (GET_OWNER != null && !owner(file).equals(owner(brokerFile)))) {
+			throw new IOException("Not a shared memory connection: " + name);
+		}
+
+		return file;
+	}
+
+	private static Object owner(File file) throws IOException {
+		return UnixSockets.invoke(GET_OWNER, null, UnixSockets.invoke(TO_PATH, file), NO_FOLLOW_LINKS);
+	}
+
+	private static int fileSize(int capacity) {
+		return FIRST_RING_OFFSET + 2 * (DATA_OFFSET + capacity);
+	}
+
+	private static int port(SocketAddress address) {
+		return ((InetSocketAddress) address).getPort();
+	}
+
+	/**
+	 * @return The address of the peer doorbell bound to port. Null if port is 0.
+	 */
+	private SocketAddress doorbellAddress(int port) {
+		return port == 0 ? null : new InetSocketAddress(((InetSocketAddress) localDoorbell).getAddress(), port);
+	}
+
+	/**
+	 * Accepts the broker end of connections made to the path a broker is {@link SharedMemoryTransport#bind(String, Acceptor) bound} to
+	 */
+	interface Acceptor {
+
+		/**
+		 * Called on the broker's acceptor thread with the broker end of a new connection. The client may have written to the connection already.
+		 */
+		void accept(SharedMemoryTransport transport);
+	}
+
+	/**
+	 * Receives the connection requests sent to a broker's path
+	 */
+	static final class Listener implements Runnable {
+
+		private final String path;
+		private final File file;
+		private final DatagramChannel channel;
+		private final Acceptor acceptor;
+
+		private Listener(String path, File file, DatagramChannel channel, Acceptor acceptor) {
+			this.path = path;
+			this.file = file;
+			this.channel = channel;
+			this.acceptor = acceptor;
+		}
+
+		/**
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+
+			ByteBuffer request = ByteBuffer.allocate(4096);
+			for (;;) {
+				try {
+					request.clear();
+					channel.receive(request);
+					request.flip();
+
+					acceptor.accept(new SharedMemoryTransport(path, connectionFile(file, UTF8.decode(request).toString())));
+				} catch (ClosedChannelException e) {
+					return;
+				} catch (Exception e) {
+					Log.error(e, "Failed to accept a shared memory connection to %s", path);
+				}
+			}
+		}
+
+		/**
+		 * Stops accepting connections and deletes the path. Connections already accepted are not affected.
+		 */
+		void close() {
+
+			try {
+				channel.close();
+			} catch (IOException ignore) {
+			}
+			file.delete();
+		}
+	}
+
+	/**
+	 * The address of a broker bound to a path
+	 */
+	static final class Address extends SocketAddress {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String path;
+
+		Address(String path) {
+			this.path = path;
+		}
+
+		/**
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "shm://" + path;
+		}
+	}
+}
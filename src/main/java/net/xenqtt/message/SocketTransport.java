@@ -0,0 +1,186 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A {@link Transport} over a {@link SocketChannel}. The channel may be a TCP or a {@link UnixSockets UNIX domain} socket channel. This class is NOT thread
+ * safe.
+ */
+final class SocketTransport extends Transport {
+
+	private final SocketChannel channel;
+
+	SocketTransport(SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#register(java.nio.channels.Selector, int, java.lang.Object)
+	 */
+	@Override
+	SelectionKey register(Selector selector, int ops, Object attachment) throws IOException {
+		channel.configureBlocking(false);
+		return channel.register(selector, ops, attachment);
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#connect(java.net.SocketAddress)
+	 */
+	@Override
+	boolean connect(SocketAddress address) throws IOException {
+		return channel.connect(address);
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#finishConnect()
+	 */
+	@Override
+	boolean finishConnect() throws IOException {
+		return channel.finishConnect();
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#isConnectionPending()
+	 */
+	@Override
+	boolean isConnectionPending() {
+		return channel.isConnectionPending();
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#isConnected()
+	 */
+	@Override
+	boolean isConnected() {
+		return channel.isConnected();
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#isWriteSelectable()
+	 */
+	@Override
+	boolean isWriteSelectable() {
+		return true;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#getRemoteAddress()
+	 */
+	@Override
+	String getRemoteAddress() {
+
+		Socket socket = socket();
+		if (socket == null) {
+			return UnixSockets.remoteAddress(channel);
+		}
+
+		SocketAddress address = socket.isBound() ? socket.getRemoteSocketAddress() : null;
+
+		return address == null ? null : address.toString();
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#getLocalAddress()
+	 */
+	@Override
+	String getLocalAddress() {
+
+		if (!channel.isOpen()) {
+			return null;
+		}
+
+		Socket socket = socket();
+		if (socket == null) {
+			return UnixSockets.localAddress(channel);
+		}
+
+		SocketAddress address = socket.getLocalSocketAddress();
+
+		return address == null ? null : address.toString();
+	}
+
+	/**
+	 * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		return channel.read(dst);
+	}
+
+	/**
+	 * @see java.nio.channels.WritableByteChannel#write(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return channel.write(src);
+	}
+
+	/**
+	 * @see java.nio.channels.GatheringByteChannel#write(java.nio.ByteBuffer[], int, int)
+	 */
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		return channel.write(srcs, offset, length);
+	}
+
+	/**
+	 * Transfers to the {@link SocketChannel} itself since {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} only avoids
+	 * copying the bytes for channels it knows
+	 * 
+	 * @see net.xenqtt.message.Transport#transferFrom(java.nio.channels.FileChannel, long, long)
+	 */
+	@Override
+	long transferFrom(FileChannel file, long position, long count) throws IOException {
+		return file.transferTo(position, count, channel);
+	}
+
+	/**
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	@Override
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	/**
+	 * @see java.nio.channels.Channel#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * @return The socket for the channel. Null if the channel is a UNIX domain socket channel, which has no {@link Socket}.
+	 */
+	private Socket socket() {
+
+		try {
+			return channel.socket();
+		} catch (UnsupportedOperationException e) {
+			return null;
+		}
+	}
+}
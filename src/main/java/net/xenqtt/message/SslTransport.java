@@ -0,0 +1,705 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * A TLS {@link Transport} that encrypts the bytes of another, write selectable, transport with a non-blocking {@link SSLEngine}. The handshake is driven by
+ * whichever reads and writes the channel does. While the handshake is waiting for the peer, write interest is removed from the selection key so a channel
+ * with messages to send does not spin, then restored once the handshake finishes. The engine's delegated tasks, mostly certificate checks and key agreement,
+ * are handed to a {@link DelegatedTaskRunner} so they do not hold up the IO thread. Read interest is removed while they run and the handshake resumes when
+ * the IO thread is told they are done.
+ * <p>
+ * The network buffers, and the buffer for decrypted bytes that did not fit in the caller's buffer, come from a {@link BufferPool} and are returned to it as
+ * soon as they are empty so idle connections hold no buffers. Client engines should be created with {@link #newClientEngine(SSLContext, String, int, boolean)}
+ * so the {@link SSLContext}'s client session cache, which is keyed by host and port, lets reconnects resume the previous session instead of doing a full
+ * handshake. This class is NOT thread safe.
+ */
+final class SslTransport extends Transport {
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	private static final Method SET_ENDPOINT_IDENTIFICATION_ALGORITHM = getMethod(SSLParameters.class, "setEndpointIdentificationAlgorithm", String.class);
+
+	private final Transport transport;
+	private final SSLEngine engine;
+	private final BufferPool bufferPool;
+	private final DelegatedTaskRunner taskRunner;
+	private SelectionKey selectionKey;
+
+	// encrypted bytes read from the transport that have not been unwrapped, ready for reading. Null when empty.
+	private ByteBuffer netIn;
+	// true if netIn does not hold a complete TLS record
+	private boolean netInUnderflow;
+	// encrypted bytes waiting to be written to the transport, ready for reading. Null when empty.
+	private ByteBuffer netOut;
+	// decrypted bytes that did not fit in the buffer passed to read, ready for reading. Null when empty.
+	private ByteBuffer appIn;
+	// true once the transport reached end of stream or the peer closed the TLS connection
+	private boolean inputClosed;
+	// true if write interest was removed while the handshake waits for the peer
+	private boolean writeDeferred;
+	// true from when the engine's delegated tasks are handed to the task runner until the IO thread is told they are done
+	private boolean delegatedTasksRunning;
+	// true if read interest was removed while the delegated tasks run
+	private boolean readDeferred;
+
+	/**
+	 * @param transport
+	 *            The transport the encrypted bytes are read from and written to. It must be {@link Transport#isWriteSelectable() write selectable}.
+	 * @param engine
+	 *            The engine that does the encryption. The handshake is started here.
+	 * @param bufferPool
+	 *            The pool the network buffers come from
+	 * @param taskRunner
+	 *            Runs the engine's delegated tasks off the IO thread
+	 */
+	SslTransport(Transport transport, SSLEngine engine, BufferPool bufferPool, DelegatedTaskRunner taskRunner) throws IOException {
+		this.transport = transport;
+		this.engine = engine;
+		this.bufferPool = bufferPool;
+		this.taskRunner = taskRunner;
+		engine.beginHandshake();
+	}
+
+	/**
+	 * @return True if client engines created by {@link #newClientEngine(SSLContext, String, int, boolean)} can verify the broker's host name. This requires
+	 *         Java 7 or later.
+	 */
+	static boolean isHostnameVerificationSupported() {
+		return SET_ENDPOINT_IDENTIFICATION_ALGORITHM != null;
+	}
+
+	/**
+	 * @param host
+	 *            The host name of the broker. The session cache is keyed by this and port and it is sent to the broker for server name indication.
+	 * @param verifyHostname
+	 *            True to fail the handshake if the broker's certificate does not match host. This is ignored if {@link #isHostnameVerificationSupported() host
+	 *            name verification is not supported}.
+	 * 
+	 * @return A new engine for the client end of a connection to a broker
+	 */
+	static SSLEngine newClientEngine(SSLContext context, String host, int port, boolean verifyHostname) {
+
+		SSLEngine engine = context.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+
+		if (verifyHostname && SET_ENDPOINT_IDENTIFICATION_ALGORITHM != null) {
+			SSLParameters parameters = engine.getSSLParameters();
+			try {
+				SET_ENDPOINT_IDENTIFICATION_ALGORITHM.invoke(parameters, "HTTPS");
+			} catch (Exception e) {
+				throw new IllegalStateException("Failed to enable host name verification", e);
+			}
+			engine.setSSLParameters(parameters);
+		}
+
+		return engine;
+	}
+
+	/**
+	 * @return A new engine for the broker end of a connection
+	 */
+	static SSLEngine newServerEngine(SSLContext context) {
+
+		SSLEngine engine = context.createSSLEngine();
+		engine.setUseClientMode(false);
+
+		return engine;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#register(java.nio.channels.Selector, int, java.lang.Object)
+	 */
+	@Override
+	SelectionKey register(Selector selector, int ops, Object attachment) throws IOException {
+		selectionKey = transport.register(selector, ops, attachment);
+		return selectionKey;
+	}
+
+	/**
+	 * @return The key this transport is registered with. Null if it has not been registered.
+	 */
+	SelectionKey selectionKey() {
+		return selectionKey;
+	}
+
+	/**
+	 * Called on the IO thread that owns this transport once the tasks passed to the {@link DelegatedTaskRunner} have all been run. Restores read interest
+	 * so the channel can {@link #read(ByteBuffer) read} to resume the handshake.
+	 */
+	void delegatedTasksDone() {
+
+		delegatedTasksRunning = false;
+		if (readDeferred) {
+			readDeferred = false;
+			if (selectionKey != null && selectionKey.isValid()) {
+				selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+			}
+		}
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#connect(java.net.SocketAddress)
+	 */
+	@Override
+	boolean connect(SocketAddress address) throws IOException {
+
+		if (!transport.connect(address)) {
+			return false;
+		}
+
+		handshake();
+		return true;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#finishConnect()
+	 */
+	@Override
+	boolean finishConnect() throws IOException {
+
+		if (!transport.finishConnect()) {
+			return false;
+		}
+
+		// start the handshake now instead of waiting for the first message to be written
+		handshake();
+		return true;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#isConnectionPending()
+	 */
+	@Override
+	boolean isConnectionPending() {
+		return transport.isConnectionPending();
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#isConnected()
+	 */
+	@Override
+	boolean isConnected() {
+		return transport.isConnected();
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#isWriteSelectable()
+	 */
+	@Override
+	boolean isWriteSelectable() {
+		return true;
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#getRemoteAddress()
+	 */
+	@Override
+	String getRemoteAddress() {
+		return transport.getRemoteAddress();
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#getLocalAddress()
+	 */
+	@Override
+	String getLocalAddress() {
+		return transport.getLocalAddress();
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#hasBufferedReads()
+	 */
+	@Override
+	boolean hasBufferedReads() {
+		return appIn != null || (netIn != null && !netInUnderflow);
+	}
+
+	/**
+	 * @see net.xenqtt.message.Transport#flush()
+	 */
+	@Override
+	boolean flush() throws IOException {
+
+		if (!flushNetOut()) {
+			return false;
+		}
+
+		if (isHandshaking()) {
+			handshake();
+		}
+
+		return netOut == null;
+	}
+
+	/**
+	 * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+
+		if (!handshake()) {
+			if (inputClosed) {
+				throw new SSLException("Connection closed during the TLS handshake");
+			}
+			return 0;
+		}
+
+		if (writeDeferred) {
+			writeDeferred = false;
+			enableWrite();
+		}
+
+		int count = 0;
+		for (;;) {
+			count += drainAppIn(dst);
+			if (appIn != null || !dst.hasRemaining()) {
+				break;
+			}
+
+			if ((netIn == null || netInUnderflow) && (inputClosed || readNetIn() <= 0)) {
+				break;
+			}
+
+			// decrypt straight into dst when the largest record is sure to fit
+			boolean direct = dst.remaining() >= engine.getSession().getApplicationBufferSize();
+			SSLEngineResult result = direct ? unwrap(dst) : unwrapToAppIn();
+			if (direct) {
+				count += result.bytesProduced();
+			}
+
+			if (result.getStatus() == Status.CLOSED) {
+				inputClosed = true;
+				break;
+			}
+
+			if (result.bytesConsumed() == 0 && result.bytesProduced() == 0 && result.getStatus() != Status.BUFFER_UNDERFLOW) {
+				break;
+			}
+
+			if (isHandshaking() && !handshake()) {
+				break;
+			}
+		}
+
+		return count == 0 && inputClosed && appIn == null ? -1 : count;
+	}
+
+	/**
+	 * @see java.nio.channels.WritableByteChannel#write(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return (int) write(new ByteBuffer[] { src }, 0, 1);
+	}
+
+	/**
+	 * @see java.nio.channels.GatheringByteChannel#write(java.nio.ByteBuffer[], int, int)
+	 */
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+
+		if (!flushNetOut()) {
+			return 0;
+		}
+
+		if (!handshake()) {
+			if (netOut == null && selectionKey != null && selectionKey.isValid()) {
+				// nothing can be written until the peer answers so stop the selector reporting this transport as writable
+				selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+				writeDeferred = true;
+			}
+			return 0;
+		}
+
+		long count = 0;
+		while (hasRemaining(srcs, offset, length)) {
+
+			netOut = allocateNetBuffer(netOut);
+			SSLEngineResult result;
+			try {
+				result = engine.wrap(srcs, offset, length, netOut);
+			} finally {
+				netOut.flip();
+			}
+
+			if (result.getStatus() == Status.CLOSED) {
+				throw new ClosedChannelException();
+			}
+
+			count += result.bytesConsumed();
+
+			if (!flushNetOut() || (isHandshaking() && !handshake())) {
+				break;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	@Override
+	public boolean isOpen() {
+		return transport.isOpen();
+	}
+
+	/**
+	 * Sends a close notify to the peer if it can be written without blocking, then closes the transport and returns the buffers to the pool
+	 * 
+	 * @see java.nio.channels.Channel#close()
+	 */
+	@Override
+	public void close() throws IOException {
+
+		try {
+			engine.closeOutbound();
+			if (!delegatedTasksRunning && transport.isOpen() && transport.isConnected() && flushNetOut()) {
+				wrapHandshake();
+				flushNetOut();
+			}
+		} catch (IOException ignore) {
+		} finally {
+			netIn = release(netIn);
+			netOut = release(netOut);
+			appIn = release(appIn);
+			transport.close();
+		}
+	}
+
+	/**
+	 * Drives the handshake as far as it can go without blocking
+	 * 
+	 * @return True if the handshake is finished. False if it is waiting for the peer, for the transport to be writable, or for delegated tasks to run.
+	 */
+	private boolean handshake() throws IOException {
+
+		for (;;) {
+			switch (engine.getHandshakeStatus()) {
+			case NOT_HANDSHAKING:
+			case FINISHED:
+				return true;
+			case NEED_TASK:
+				if (!delegatedTasksRunning) {
+					runDelegatedTasks();
+				}
+				return false;
+			case NEED_WRAP:
+				if (!flushNetOut()) {
+					return false;
+				}
+				if (wrapHandshake().getStatus() == Status.CLOSED) {
+					// the engine wrapped an alert because the handshake failed
+					flushNetOut();
+					throw new SSLException("TLS handshake failed");
+				}
+				if (!flushNetOut()) {
+					return false;
+				}
+				break;
+			default:
+				if (netIn == null || netInUnderflow) {
+					if (inputClosed || readNetIn() <= 0) {
+						return false;
+					}
+				}
+				SSLEngineResult result;
+				try {
+					result = unwrapToAppIn();
+				} catch (SSLException e) {
+					sendAlert();
+					throw e;
+				}
+				if (result.getStatus() == Status.CLOSED) {
+					inputClosed = true;
+					throw new SSLException("TLS connection closed by the peer during the handshake");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hands the engine's delegated tasks to {@link #taskRunner}. Read interest is removed until they are done since the engine can not unwrap anything the
+	 * peer sends in the meantime.
+	 */
+	private void runDelegatedTasks() {
+
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null) {
+			tasks.add(task);
+		}
+
+		delegatedTasksRunning = true;
+		if (selectionKey != null && selectionKey.isValid() && (selectionKey.interestOps() & SelectionKey.OP_READ) != 0) {
+			selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+			readDeferred = true;
+		}
+
+		taskRunner.runDelegatedTasks(this, tasks);
+	}
+
+	/**
+	 * Wraps the next handshake message into {@link #netOut}, which must be empty
+	 */
+	private SSLEngineResult wrapHandshake() throws IOException {
+
+		netOut = allocateNetBuffer(null);
+		try {
+			return engine.wrap(EMPTY, netOut);
+		} finally {
+			netOut.flip();
+		}
+	}
+
+	/**
+	 * Tries to send the alert the engine has after a failed handshake so the peer knows why the connection is being closed
+	 */
+	private void sendAlert() {
+
+		try {
+			if (flushNetOut() && engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+				wrapHandshake();
+				flushNetOut();
+			}
+		} catch (IOException ignore) {
+		}
+	}
+
+	private boolean isHandshaking() {
+
+		HandshakeStatus status = engine.getHandshakeStatus();
+		return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+	}
+
+	/**
+	 * Reads from the transport into {@link #netIn}
+	 * 
+	 * @return The number of bytes read. -1 if the transport reached end of stream.
+	 */
+	private int readNetIn() throws IOException {
+
+		// netIn only ever holds part of a record here so it has room for the rest if it can hold the largest record
+		int packetBufferSize = engine.getSession().getPacketBufferSize();
+		if (netIn == null) {
+			netIn = bufferPool.allocate(packetBufferSize);
+		} else if (netIn.capacity() < packetBufferSize) {
+			ByteBuffer buffer = bufferPool.allocate(packetBufferSize);
+			buffer.put(netIn);
+			release(netIn);
+			netIn = buffer;
+		} else {
+			netIn.compact();
+		}
+		netIn.limit(netIn.capacity());
+
+		int result;
+		try {
+			result = transport.read(netIn);
+		} finally {
+			netIn.flip();
+		}
+
+		if (result < 0) {
+			inputClosed = true;
+		} else if (result > 0) {
+			netInUnderflow = false;
+		}
+
+		if (!netIn.hasRemaining()) {
+			netIn = release(netIn);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Decrypts a record from {@link #netIn} into dst
+	 */
+	private SSLEngineResult unwrap(ByteBuffer dst) throws IOException {
+
+		SSLEngineResult result = engine.unwrap(netIn, dst);
+		netInUnderflow = result.getStatus() == Status.BUFFER_UNDERFLOW;
+		if (!netIn.hasRemaining()) {
+			netIn = release(netIn);
+		}
+
+		if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+			throw new SSLException("TLS record is larger than the application buffer size");
+		}
+
+		return result;
+	}
+
+	/**
+	 * Decrypts a record from {@link #netIn} into {@link #appIn}, which is allocated or enlarged as needed
+	 */
+	private SSLEngineResult unwrapToAppIn() throws IOException {
+
+		int applicationBufferSize = engine.getSession().getApplicationBufferSize();
+		if (appIn == null) {
+			appIn = bufferPool.allocate(applicationBufferSize);
+		} else if (appIn.capacity() - appIn.remaining() < applicationBufferSize) {
+			ByteBuffer buffer = bufferPool.allocate(appIn.remaining() + applicationBufferSize);
+			buffer.put(appIn);
+			release(appIn);
+			appIn = buffer;
+		} else {
+			appIn.compact();
+		}
+		appIn.limit(appIn.capacity());
+
+		try {
+			return unwrap(appIn);
+		} finally {
+			appIn.flip();
+			if (!appIn.hasRemaining()) {
+				appIn = release(appIn);
+			}
+		}
+	}
+
+	/**
+	 * Copies as much of {@link #appIn} as fits into dst
+	 * 
+	 * @return The number of bytes copied
+	 */
+	private int drainAppIn(ByteBuffer dst) {
+
+		if (appIn == null) {
+			return 0;
+		}
+
+		int count = Math.min(appIn.remaining(), dst.remaining());
+		int limit = appIn.limit();
+		appIn.limit(appIn.position() + count);
+		dst.put(appIn);
+		appIn.limit(limit);
+
+		if (!appIn.hasRemaining()) {
+			appIn = release(appIn);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Writes {@link #netOut} to the transport. If it can not all be written then write interest is added to the selection key so the channel
+	 * {@link #flush() flushes} this transport once it is writable.
+	 * 
+	 * @return True if nothing is left to write
+	 */
+	private boolean flushNetOut() throws IOException {
+
+		if (netOut == null) {
+			return true;
+		}
+
+		transport.write(netOut);
+		if (netOut.hasRemaining()) {
+			enableWrite();
+			return false;
+		}
+
+		netOut = release(netOut);
+		return true;
+	}
+
+	private void enableWrite() {
+
+		if (selectionKey != null && selectionKey.isValid()) {
+			selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * @return An empty network buffer, which is buffer if it is not null
+	 */
+	private ByteBuffer allocateNetBuffer(ByteBuffer buffer) {
+
+		if (buffer == null) {
+			buffer = bufferPool.allocate(engine.getSession().getPacketBufferSize());
+		}
+
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns buffer to the pool if it is not null
+	 * 
+	 * @return null
+	 */
+	private ByteBuffer release(ByteBuffer buffer) {
+
+		if (buffer != null) {
+			bufferPool.release(buffer);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Runs the {@link SSLEngine#getDelegatedTask() delegated tasks} of TLS handshakes
+	 */
+	interface DelegatedTaskRunner {
+
+		/**
+		 * Runs tasks on another thread. Once they have all been run, whether they succeeded or not, {@link SslTransport#delegatedTasksDone()} must be called
+		 * on the IO thread that owns transport and the channel must then read from it. A task that failed is reported by the engine as an
+		 * {@link SSLException} from the next read.
+		 */
+		void runDelegatedTasks(SslTransport transport, List<Runnable> tasks);
+	}
+
+	private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+
+		for (int i = offset; i < offset + length; i++) {
+			if (buffers[i].hasRemaining()) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static Method getMethod(Class<?> type, String name, Class<?>... parameterTypes) {
+
+		try {
+			return type.getMethod(name, parameterTypes);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
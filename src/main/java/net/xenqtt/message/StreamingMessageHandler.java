@@ -0,0 +1,84 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link MessageHandler} that can receive very large {@link PubMessage publish messages} a piece at a time instead of as a single message. A channel
+ * streams a received publish message to this handler when {@link ChannelManagerConfig#getPublishStreamingThresholdBytes() streaming} is enabled and the
+ * message is bigger than the threshold and bigger than the channel's read buffer. All other messages, including smaller publish messages, are passed to the
+ * normal {@link MessageHandler} methods. Only the channel's read buffer is used to stream a message so the memory used by a connection stays bounded no
+ * matter how big the messages it receives are.
+ * <p>
+ * For each streamed message {@link #publishStarted(MqttChannel, PubMessage, int)} is called once, then
+ * {@link #publishPayload(MqttChannel, PubMessage, ByteBuffer)} is called with each piece of the payload as it arrives, then
+ * {@link #publishFinished(MqttChannel, PubMessage)} is called once. If the channel is closed or detached before the whole payload is received then
+ * {@link #publishAborted(MqttChannel, PubMessage)} is called instead of {@link #publishFinished(MqttChannel, PubMessage)}.
+ * {@link #publish(MqttChannel, PubMessage)} is not called for a streamed message. As with any other publish message the handler is responsible for acking it
+ * if its QoS is greater than 0.
+ */
+public interface StreamingMessageHandler extends MessageHandler {
+
+	/**
+	 * Called when the header of a publish message that is being streamed has been received
+	 * 
+	 * @param channel
+	 *            The channel the message is being received through
+	 * @param header
+	 *            The message without its payload. The topic, message ID, QoS, and flags are all available. The payload is empty. The same instance is passed
+	 *            to the other streaming methods for this message.
+	 * @param payloadLength
+	 *            The total number of payload bytes that will be passed to {@link #publishPayload(MqttChannel, PubMessage, ByteBuffer)}
+	 */
+	void publishStarted(MqttChannel channel, PubMessage header, int payloadLength) throws Exception;
+
+	/**
+	 * Called with each piece of the payload of a publish message that is being streamed, in order, as it is received
+	 * 
+	 * @param channel
+	 *            The channel the message is being received through
+	 * @param header
+	 *            The header passed to {@link #publishStarted(MqttChannel, PubMessage, int)}
+	 * @param payload
+	 *            The next piece of the payload between its position and limit. This is a view of the channel's read buffer so it is only valid until this
+	 *            method returns. Copy the bytes to keep them.
+	 */
+	void publishPayload(MqttChannel channel, PubMessage header, ByteBuffer payload) throws Exception;
+
+	/**
+	 * Called after the last piece of the payload of a publish message that is being streamed has been passed to
+	 * {@link #publishPayload(MqttChannel, PubMessage, ByteBuffer)}
+	 * 
+	 * @param channel
+	 *            The channel the message was received through
+	 * @param header
+	 *            The header passed to {@link #publishStarted(MqttChannel, PubMessage, int)}
+	 */
+	void publishFinished(MqttChannel channel, PubMessage header) throws Exception;
+
+	/**
+	 * Called instead of {@link #publishFinished(MqttChannel, PubMessage)} when the channel is closed or detached from this handler before the whole payload
+	 * of a publish message that is being streamed has been received. Release anything held for the message here. It was not received in full so do not ack it. If the
+	 * channel was detached the rest of the payload is discarded as it arrives.
+	 * 
+	 * @param channel
+	 *            The channel the message was being received through
+	 * @param header
+	 *            The header passed to {@link #publishStarted(MqttChannel, PubMessage, int)}
+	 */
+	void publishAborted(MqttChannel channel, PubMessage header) throws Exception;
+}
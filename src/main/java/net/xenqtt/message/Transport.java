@@ -0,0 +1,115 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * The connection an {@link AbstractMqttChannel} reads bytes from and writes bytes to. {@link SocketTransport} is a connection over a
+ * {@link java.nio.channels.SocketChannel}, {@link MemoryTransport} is a connection to a broker in the same JVM, and {@link SslTransport} encrypts
+ * another transport. This class is NOT thread safe.
+ */
+abstract class Transport implements ByteChannel, GatheringByteChannel {
+
+	/**
+	 * Registers this transport with a selector. Ops this transport can not select are not registered.
+	 * 
+	 * @return The selection key for this transport's registration with the selector
+	 */
+	abstract SelectionKey register(Selector selector, int ops, Object attachment) throws IOException;
+
+	/**
+	 * Starts connecting to the specified address
+	 * 
+	 * @return True if the connection is established. False if {@link #finishConnect()} must be called once the connection is connectable.
+	 */
+	abstract boolean connect(SocketAddress address) throws IOException;
+
+	/**
+	 * Finishes connecting this transport
+	 * 
+	 * @return True if the connection is established
+	 */
+	abstract boolean finishConnect() throws IOException;
+
+	/**
+	 * @return True if a connection has been started but not {@link #finishConnect() finished}
+	 */
+	abstract boolean isConnectionPending();
+
+	/**
+	 * @return True if this transport has been connected
+	 */
+	abstract boolean isConnected();
+
+	/**
+	 * @return True if a selector can tell when this transport is writable. If not then the channel writes whenever it has messages to send and a transport
+	 *         that does not take everything written to it makes itself readable once it can take more so the channel retries.
+	 */
+	abstract boolean isWriteSelectable();
+
+	/**
+	 * @return The address of the remote end of this transport. Null if it is not known.
+	 */
+	abstract String getRemoteAddress();
+
+	/**
+	 * @return The address of the local end of this transport. Null if it is not known.
+	 */
+	abstract String getLocalAddress();
+
+	/**
+	 * @return True if this transport holds bytes it has read that a selector will not report as readable. They are returned by the next read.
+	 */
+	boolean hasBufferedReads() {
+		return false;
+	}
+
+	/**
+	 * Writes any bytes this transport holds from earlier writes. A transport that holds bytes adds write interest to its selection key so this is called
+	 * once it is writable.
+	 * 
+	 * @return True if nothing is left to write
+	 */
+	boolean flush() throws IOException {
+		return true;
+	}
+
+	/**
+	 * Writes as many bytes from a region of a file as this transport will take without blocking. Transports over a channel the kernel can copy a file to
+	 * directly transfer the bytes to that channel so they are never copied into the JVM.
+	 * 
+	 * @return The number of bytes written
+	 */
+	long transferFrom(FileChannel file, long position, long count) throws IOException {
+		return file.transferTo(position, count, this);
+	}
+
+	/**
+	 * @see java.nio.channels.GatheringByteChannel#write(java.nio.ByteBuffer[])
+	 */
+	@Override
+	public final long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+}
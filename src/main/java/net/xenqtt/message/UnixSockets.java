@@ -0,0 +1,202 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * UNIX domain socket support for co-located clients, brokers, and proxies. NIO only supports UNIX domain sockets from Java 16 so everything is done through
+ * reflection and this library still runs on older JVMs. A UNIX domain {@link SocketChannel} is selectable like any other so
+ * {@link AbstractMqttChannel} works on top of it unchanged and a UNIX domain {@link ServerSocketChannel} can be passed to
+ * {@link ChannelManager#acceptBrokerChannels(ServerSocketChannel, MessageHandler)}.
+ */
+public final class UnixSockets {
+
+	private static final Object UNIX_FAMILY;
+	private static final Class<?> ADDRESS_CLASS;
+	private static final Method NEW_ADDRESS;
+	private static final Method OPEN_CHANNEL;
+	private static final Method OPEN_SERVER_CHANNEL;
+	private static final Method BIND;
+	private static final Method GET_LOCAL_ADDRESS;
+	private static final Method GET_REMOTE_ADDRESS;
+
+	static {
+
+		Object unixFamily = null;
+		Class<?> addressClass = null;
+		Method newAddress = null;
+		Method openChannel = null;
+		Method openServerChannel = null;
+		Method bind = null;
+		Method getLocalAddress = null;
+		Method getRemoteAddress = null;
+
+		try {
+			Class<?> familyClass = Class.forName("java.net.ProtocolFamily");
+			addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+			newAddress = addressClass.getMethod("of", String.class);
+			openChannel = SocketChannel.class.getMethod("open", familyClass);
+			openServerChannel = ServerSocketChannel.class.getMethod("open", familyClass);
+			bind = ServerSocketChannel.class.getMethod("bind", SocketAddress.class, int.class);
+			getLocalAddress = SocketChannel.class.getMethod("getLocalAddress");
+			getRemoteAddress = SocketChannel.class.getMethod("getRemoteAddress");
+			unixFamily = Class.forName("java.net.StandardProtocolFamily").getField("UNIX").get(null);
+		} catch (Exception ignore) {
+			// this JVM does not support UNIX domain sockets
+		}
+
+		UNIX_FAMILY = unixFamily;
+		ADDRESS_CLASS = addressClass;
+		NEW_ADDRESS = newAddress;
+		OPEN_CHANNEL = openChannel;
+		OPEN_SERVER_CHANNEL = openServerChannel;
+		BIND = bind;
+		GET_LOCAL_ADDRESS = getLocalAddress;
+		GET_REMOTE_ADDRESS = getRemoteAddress;
+	}
+
+	private UnixSockets() {
+	}
+
+	/**
+	 * @return True if this JVM supports UNIX domain socket channels
+	 */
+	public static boolean isSupported() {
+		return UNIX_FAMILY != null;
+	}
+
+	/**
+	 * @return The address of the UNIX domain socket at the specified path
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             If this JVM does not support UNIX domain sockets
+	 */
+	public static SocketAddress address(String path) {
+
+		checkSupported();
+		try {
+			return (SocketAddress) invoke(NEW_ADDRESS, null, path);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Invalid UNIX domain socket path: " + path, e);
+		}
+	}
+
+	/**
+	 * @return True if address is the address of a UNIX domain socket
+	 */
+	static boolean isAddress(SocketAddress address) {
+		return address != null && address.getClass() == ADDRESS_CLASS;
+	}
+
+	/**
+	 * @return A new, unconnected, UNIX domain socket channel
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             If this JVM does not support UNIX domain sockets
+	 */
+	static SocketChannel openChannel() throws IOException {
+
+		checkSupported();
+		return (SocketChannel) invoke(OPEN_CHANNEL, null, UNIX_FAMILY);
+	}
+
+	/**
+	 * @return A new, unbound, UNIX domain server socket channel
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             If this JVM does not support UNIX domain sockets
+	 */
+	public static ServerSocketChannel openServerChannel() throws IOException {
+
+		checkSupported();
+		return (ServerSocketChannel) invoke(OPEN_SERVER_CHANNEL, null, UNIX_FAMILY);
+	}
+
+	/**
+	 * Binds a UNIX domain server socket channel to an address. This creates the socket file which is not deleted when the channel is closed.
+	 * 
+	 * @param backlog
+	 *            The maximum number of connections the operating system queues while they wait to be accepted. 0 for the system default.
+	 */
+	public static void bind(ServerSocketChannel server, SocketAddress address, int backlog) throws IOException {
+
+		checkSupported();
+		invoke(BIND, server, address, backlog);
+	}
+
+	/**
+	 * @return The local address of a UNIX domain socket channel. Null if the socket has no name or the address is not available.
+	 */
+	static String localAddress(SocketChannel channel) {
+		return addressOf(GET_LOCAL_ADDRESS, channel);
+	}
+
+	/**
+	 * @return The remote address of a UNIX domain socket channel. Null if the remote socket has no name or the address is not available.
+	 */
+	static String remoteAddress(SocketChannel channel) {
+		return addressOf(GET_REMOTE_ADDRESS, channel);
+	}
+
+	private static String addressOf(Method method, SocketChannel channel) {
+
+		if (method == null) {
+			return null;
+		}
+
+		try {
+			Object address = invoke(method, channel);
+			String text = address == null ? "" : address.toString();
+			return text.length() == 0 ? null : text;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static void checkSupported() {
+
+		if (!isSupported()) {
+			throw new UnsupportedOperationException("UNIX domain sockets are not supported by this JVM. Java 16 or later is required.");
+		}
+	}
+
+	static Object invoke(Method method, Object target, Object... args) throws IOException {
+
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
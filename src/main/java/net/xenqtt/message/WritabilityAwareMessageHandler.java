@@ -0,0 +1,36 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+/**
+ * A {@link MessageHandler} that is told when a channel's {@link MqttChannel#isWritable() writability} changes. A channel's writability is tracked whenever
+ * the write water marks in {@link ChannelManagerConfig} are set but only handlers that implement this interface are told when it changes. Other handlers can
+ * poll {@link MqttChannel#isWritable()}.
+ */
+public interface WritabilityAwareMessageHandler extends MessageHandler {
+
+	/**
+	 * Called when an {@link MqttChannel MQTT channel} stops being {@link MqttChannel#isWritable() writable} because the messages queued to send to it have
+	 * passed a high water mark, and again when it becomes writable because the queue has drained to the low water marks. The water marks are set in
+	 * {@link ChannelManagerConfig}. Messages sent while a channel is not writable are still queued. Throttling is up to the sender.
+	 * 
+	 * @param channel
+	 *            The {@link MqttChannel channel} whose writability changed
+	 * @param writable
+	 *            The new value of {@link MqttChannel#isWritable()}
+	 */
+	void channelWritabilityChanged(MqttChannel channel, boolean writable);
+}
@@ -349,4 +349,5 @@ final class BrokerMessageHandler implements MessageHandler {
 	@Override
 	public void messageSent(MqttChannel channel, MqttMessage message) {
 	}
+
 }
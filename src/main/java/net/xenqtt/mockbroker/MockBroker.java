@@ -15,12 +15,14 @@
  */
 package net.xenqtt.mockbroker;
 
+import java.net.URI;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 import net.xenqtt.SimpleBroker;
 import net.xenqtt.XenqttUtil;
+import net.xenqtt.message.ChannelManagerConfig;
 import net.xenqtt.message.ConnectMessage;
 import net.xenqtt.message.MqttMessage;
 
@@ -98,6 +100,68 @@ public final class MockBroker extends SimpleBroker {
 		this.messageHandler = new BrokerMessageHandler(brokerHandler, events, credentials, allowAnonymousAccess, ignoreCredentials, maxInFlightMessages);
 	}
 
+	/**
+	 * Create a new instance of this class that accepts in-memory connections from clients in the same JVM instead of listening on a port. Clients connect to
+	 * mem://memoryBrokerName, which is also what {@link #getURI()} returns.
+	 * 
+	 * @param brokerHandler
+	 *            Called when events happen. Can be {@code null} if you don't need to do any custom message handling.
+	 * @param messageResendIntervalSeconds
+	 *            Seconds between attempts to resend a message that is {@link MqttMessage#isAckable()}. 0 to disable message resends.
+	 * @param memoryBrokerName
+	 *            The name clients connect to. Only one broker in the JVM may use a name at a time.
+	 * @param allowAnonymousAccess
+	 *            If true then {@link ConnectMessage} with no username/password will be accepted. Otherwise only valid credentials will be accepted.
+	 * @param ignoreCredentials
+	 *            If true then {@link ConnectMessage} with any username/password will be accepted. Otherwise only valid credentials will be accepted.
+	 * @param captureBrokerEvents
+	 *            If {@code true} then capture all events within the broker; otherwise, do not capture any events
+	 * @param maxInFlightMessages
+	 *            Maximum number of concurrent publish messages the broker will have in-flight to the client. This is an approximation. The actual maximum
+	 *            number of in-flight messages may vary slightly.
+	 */
+	public MockBroker(MockBrokerHandler brokerHandler, long messageResendIntervalSeconds, String memoryBrokerName, boolean allowAnonymousAccess,
+			boolean ignoreCredentials, boolean captureBrokerEvents, int maxInFlightMessages) {
+
+		super(messageResendIntervalSeconds, memoryBrokerName, new ChannelManagerConfig());
+
+		XenqttUtil.validateGreaterThan("maxInFlightMessages", maxInFlightMessages, 0);
+
+		this.events = captureBrokerEvents ? new BrokerEventsImpl() : new NullBrokerEvents();
+		this.messageHandler = new BrokerMessageHandler(brokerHandler, events, credentials, allowAnonymousAccess, ignoreCredentials, maxInFlightMessages);
+	}
+
+	/**
+	 * Create a new instance of this class that listens on a URI. See {@link SimpleBroker#SimpleBroker(long, URI, ChannelManagerConfig, int)} for the supported
+	 * URIs. For example, shm:///tmp/mockbroker accepts shared memory connections from clients in other processes on this host.
+	 * 
+	 * @param brokerHandler
+	 *            Called when events happen. Can be {@code null} if you don't need to do any custom message handling.
+	 * @param messageResendIntervalSeconds
+	 *            Seconds between attempts to resend a message that is {@link MqttMessage#isAckable()}. 0 to disable message resends.
+	 * @param uri
+	 *            The URI to listen on
+	 * @param allowAnonymousAccess
+	 *            If true then {@link ConnectMessage} with no username/password will be accepted. Otherwise only valid credentials will be accepted.
+	 * @param ignoreCredentials
+	 *            If true then {@link ConnectMessage} with any username/password will be accepted. Otherwise only valid credentials will be accepted.
+	 * @param captureBrokerEvents
+	 *            If {@code true} then capture all events within the broker; otherwise, do not capture any events
+	 * @param maxInFlightMessages
+	 *            Maximum number of concurrent publish messages the broker will have in-flight to the client. This is an approximation. The actual maximum
+	 *            number of in-flight messages may vary slightly.
+	 */
+	public MockBroker(MockBrokerHandler brokerHandler, long messageResendIntervalSeconds, URI uri, boolean allowAnonymousAccess, boolean ignoreCredentials,
+			boolean captureBrokerEvents, int maxInFlightMessages) {
+
+		super(messageResendIntervalSeconds, uri, new ChannelManagerConfig(), 0);
+
+		XenqttUtil.validateGreaterThan("maxInFlightMessages", maxInFlightMessages, 0);
+
+		this.events = captureBrokerEvents ? new BrokerEventsImpl() : new NullBrokerEvents();
+		this.messageHandler = new BrokerMessageHandler(brokerHandler, events, credentials, allowAnonymousAccess, ignoreCredentials, maxInFlightMessages);
+	}
+
 	/**
 	 * Starts the mock broker
 	 */
@@ -91,8 +91,7 @@ final class StandardTopic extends AbstractTopic {
 	void publish(PubMessage message, Map<String, Client> clientById) {
 
 		if (message.isRetain()) {
-			byte[] payload = message.getPayload();
-			if (payload == null || payload.length == 0) {
+			if (message.getPayloadLength() == 0) {
 				retainedMessage = null;
 				return;
 			} else {
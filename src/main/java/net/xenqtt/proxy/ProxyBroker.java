@@ -15,11 +15,13 @@
  */
 package net.xenqtt.proxy;
 
+import java.net.URI;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 
 import net.xenqtt.SimpleBroker;
+import net.xenqtt.message.ChannelManagerConfig;
 import net.xenqtt.message.ConnAckMessage;
 import net.xenqtt.message.ConnectMessage;
 import net.xenqtt.message.DisconnectMessage;
@@ -62,6 +64,21 @@ public class ProxyBroker extends SimpleBroker implements MessageHandler {
 		this.maxInFlightBrokerMessages = maxInFlightBrokerMessages;
 	}
 
+	/**
+	 * @param brokerUri
+	 *            The URI of the broker the proxy should connect to
+	 * @param listenUri
+	 *            The URI for the server to listen on. See {@link SimpleBroker#SimpleBroker(long, URI, ChannelManagerConfig, int)} for the supported URIs. A
+	 *            unix:// URI lets applications on the same host reach the proxy over a UNIX domain socket.
+	 * @param maxInFlightBrokerMessages
+	 *            Maximum number of messages that may be in-flight to the broker at a time
+	 */
+	public ProxyBroker(String brokerUri, URI listenUri, int maxInFlightBrokerMessages) {
+		super(0, listenUri, new ChannelManagerConfig(), 0);
+		this.brokerUri = brokerUri;
+		this.maxInFlightBrokerMessages = maxInFlightBrokerMessages;
+	}
+
 	/**
 	 * Initializes the broker
 	 */
@@ -254,4 +271,5 @@ public class ProxyBroker extends SimpleBroker implements MessageHandler {
 	public void messageSent(MqttChannel channel, MqttMessage message) {
 		// ignore
 	}
+
 }
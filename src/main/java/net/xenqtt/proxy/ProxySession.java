@@ -407,6 +407,7 @@ class ProxySession implements MessageHandler {
 		// ignore
 	}
 
+
 	private void newSessionClient(MqttChannel channel) {
 
 		assert brokerConnectionState != ConnectionState.PENDING;
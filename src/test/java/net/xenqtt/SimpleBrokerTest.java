@@ -19,6 +19,8 @@ import static org.junit.Assert.*;
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
 
+import java.io.File;
+import java.net.URI;
 import java.util.regex.Pattern;
 
 import net.xenqtt.SimpleBroker;
@@ -26,12 +28,15 @@ import net.xenqtt.client.MqttClient;
 import net.xenqtt.client.MqttClientListener;
 import net.xenqtt.client.Subscription;
 import net.xenqtt.client.SyncMqttClient;
+import net.xenqtt.message.ChannelManagerConfig;
 import net.xenqtt.message.MessageHandler;
 import net.xenqtt.message.MqttChannel;
 import net.xenqtt.message.QoS;
 import net.xenqtt.message.SubAckMessage;
 import net.xenqtt.message.SubscribeMessage;
+import net.xenqtt.message.UnixSockets;
 
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
@@ -66,6 +71,25 @@ public class SimpleBrokerTest {
 		new SimpleBroker(1, 65536);
 	}
 
+	@Test(expected = IllegalArgumentException.class)
+	public void testCtor_Uri_InvalidScheme() {
+		new SimpleBroker(1, URI.create("http://localhost:1883"), new ChannelManagerConfig(), 0);
+	}
+
+	@Test
+	public void testCtor_Uri_Unix_NotSupported() {
+
+		if (UnixSockets.isSupported()) {
+			return;
+		}
+
+		try {
+			new SimpleBroker(1, URI.create("unix:///tmp/testCtor_Uri_Unix_NotSupported.sock"), new ChannelManagerConfig(), 0);
+			fail("Expected exception");
+		} catch (UnsupportedOperationException e) {
+		}
+	}
+
 	@Test(expected = IllegalArgumentException.class)
 	public void testShutdown_InvalidMillis() {
 		broker.shutdown(-1L);
@@ -84,6 +108,25 @@ public class SimpleBrokerTest {
 		assertTrue(Pattern.matches("tcp://\\d+\\.\\d+\\.\\d+\\.\\d+:24156", uri));
 	}
 
+	@Test
+	public void testGetUri_Uri() throws Exception {
+
+		assertEquals(24156, new SimpleBroker(15, URI.create("tcp://localhost:24156"), new ChannelManagerConfig(), 0).getPort());
+		assertTrue(Pattern.matches("ssl://\\d+\\.\\d+\\.\\d+\\.\\d+:24156", new SimpleBroker(15, URI.create("ssl://localhost:24156"), new ChannelManagerConfig(), 0)
+				.getURI()));
+		assertEquals("mem://testGetUri_Uri", new SimpleBroker(15, URI.create("mem://testGetUri_Uri"), new ChannelManagerConfig(), 0).getURI());
+		if (UnixSockets.isSupported()) {
+			assertEquals("unix:///tmp/testGetUri_Uri.sock", new SimpleBroker(15, URI.create("unix:///tmp/testGetUri_Uri.sock"), new ChannelManagerConfig(), 0)
+					.getURI());
+		}
+	}
+
+	@Test
+	public void testGetUri_Memory() throws Exception {
+
+		assertEquals("mem://testGetUri_Memory", new SimpleBroker(15, "testGetUri_Memory", new ChannelManagerConfig()).getURI());
+	}
+
 	@Test
 	public void testInit_HandlerMessage_AndShutdown() throws Exception {
 
@@ -113,4 +156,110 @@ public class SimpleBrokerTest {
 
 		verify(clientListener, timeout(5000)).disconnected(same(client), isNull(Throwable.class), anyBoolean());
 	}
+
+	@Test
+	public void testInit_Memory_HandlerMessage_AndShutdown() throws Exception {
+
+		doAnswer(new Answer<Void>() {
+
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+
+				MqttChannel channel = (MqttChannel) invocation.getArguments()[0];
+				SubscribeMessage message = (SubscribeMessage) invocation.getArguments()[1];
+
+				assertArrayEquals(new String[] { "foo" }, message.getTopics());
+				channel.send(new SubAckMessage(message.getMessageId(), message.getRequestedQoSes()), null);
+				return null;
+			}
+		}).when(messageHandler).subscribe(isA(MqttChannel.class), isA(SubscribeMessage.class));
+
+		broker = new SimpleBroker(15, "testInit_Memory_HandlerMessage_AndShutdown", new ChannelManagerConfig());
+		broker.init(messageHandler, "SimpleBrokerTest");
+
+		MqttClient client = new SyncMqttClient(broker.getURI(), clientListener, 1);
+
+		client.subscribe(new Subscription[] { new Subscription("foo", QoS.AT_LEAST_ONCE) });
+
+		verify(messageHandler).channelOpened(isA(MqttChannel.class));
+
+		assertTrue(broker.shutdown(5000));
+
+		verify(clientListener, timeout(5000)).disconnected(same(client), isNull(Throwable.class), anyBoolean());
+	}
+
+	@Test
+	public void testInit_SharedMemory_HandlerMessage_AndShutdown() throws Exception {
+
+		doAnswer(new Answer<Void>() {
+
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+
+				MqttChannel channel = (MqttChannel) invocation.getArguments()[0];
+				SubscribeMessage message = (SubscribeMessage) invocation.getArguments()[1];
+
+				assertArrayEquals(new String[] { "foo" }, message.getTopics());
+				channel.send(new SubAckMessage(message.getMessageId(), message.getRequestedQoSes()), null);
+				return null;
+			}
+		}).when(messageHandler).subscribe(isA(MqttChannel.class), isA(SubscribeMessage.class));
+
+		File path = File.createTempFile("SimpleBrokerTest", ".broker");
+		path.delete();
+
+		broker = new SimpleBroker(15, URI.create("shm://" + path.getAbsolutePath()), new ChannelManagerConfig(), 0);
+		broker.init(messageHandler, "SimpleBrokerTest");
+		assertEquals("shm://" + path.getAbsolutePath(), broker.getURI());
+		assertTrue(path.exists());
+
+		MqttClient client = new SyncMqttClient(broker.getURI(), clientListener, 1);
+
+		client.subscribe(new Subscription[] { new Subscription("foo", QoS.AT_LEAST_ONCE) });
+
+		verify(messageHandler).channelOpened(isA(MqttChannel.class));
+
+		assertTrue(broker.shutdown(5000));
+
+		verify(clientListener, timeout(5000)).disconnected(same(client), isNull(Throwable.class), anyBoolean());
+		assertFalse(path.exists());
+	}
+
+	@Test
+	public void testInit_Unix_HandlerMessage_AndShutdown() throws Exception {
+
+		Assume.assumeTrue(UnixSockets.isSupported());
+
+		doAnswer(new Answer<Void>() {
+
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+
+				MqttChannel channel = (MqttChannel) invocation.getArguments()[0];
+				SubscribeMessage message = (SubscribeMessage) invocation.getArguments()[1];
+
+				assertArrayEquals(new String[] { "foo" }, message.getTopics());
+				channel.send(new SubAckMessage(message.getMessageId(), message.getRequestedQoSes()), null);
+				return null;
+			}
+		}).when(messageHandler).subscribe(isA(MqttChannel.class), isA(SubscribeMessage.class));
+
+		File socketFile = File.createTempFile("SimpleBrokerTest", ".sock");
+		socketFile.delete();
+
+		broker = new SimpleBroker(15, URI.create("unix://" + socketFile.getAbsolutePath()), new ChannelManagerConfig(), 0);
+		broker.init(messageHandler, "SimpleBrokerTest");
+		assertTrue(socketFile.exists());
+
+		MqttClient client = new SyncMqttClient(broker.getURI(), clientListener, 1);
+
+		client.subscribe(new Subscription[] { new Subscription("foo", QoS.AT_LEAST_ONCE) });
+
+		verify(messageHandler).channelOpened(isA(MqttChannel.class));
+
+		assertTrue(broker.shutdown(5000));
+
+		verify(clientListener, timeout(5000)).disconnected(same(client), isNull(Throwable.class), anyBoolean());
+		assertFalse(socketFile.exists());
+	}
 }
@@ -18,6 +18,7 @@ package net.xenqtt.client;
 import static org.junit.Assert.*;
 import net.xenqtt.client.MqttClientConfig;
 import net.xenqtt.client.ProgressiveReconnectionStrategy;
+import net.xenqtt.message.ChannelManagerConfig;
 
 import org.junit.Test;
 
@@ -55,6 +56,29 @@ public class MqttClientConfigTest {
 		config.setConnectTimeoutSeconds(-1);
 	}
 
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetWriteHighWaterMarkBytes_LessThanZero() throws Exception {
+		config.setWriteHighWaterMarkBytes(-1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetWriteLingerMicros_LessThanZero() throws Exception {
+		config.setWriteLingerMicros(-1);
+	}
+
+	@Test
+	public void testNewChannelManagerConfig() throws Exception {
+
+		config.setBufferPoolEnabled(true).setWriteHighWaterMarkBytes(1000).setWriteLowWaterMarkBytes(100).setWriteLingerMicros(2000);
+
+		ChannelManagerConfig managerConfig = config.newChannelManagerConfig();
+		assertTrue(managerConfig.isBufferPoolEnabled());
+		assertEquals(1000, managerConfig.getWriteHighWaterMarkBytes());
+		assertEquals(100, managerConfig.getWriteLowWaterMarkBytes());
+		assertEquals(0, managerConfig.getWriteHighWaterMarkMessages());
+		assertEquals(2000, managerConfig.getWriteLingerMicros());
+	}
+
 	@Test
 	public void testClone() throws Exception {
 
@@ -17,6 +17,9 @@ package net.xenqtt.client;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
+
+import java.nio.ByteBuffer;
+
 import net.xenqtt.client.PublishMessage;
 import net.xenqtt.message.ChannelManager;
 import net.xenqtt.message.MqttChannelRef;
@@ -138,6 +141,54 @@ public class PublishMessageTest {
 		assertArrayEquals(new byte[] { 97, 98, 99 }, message.getPayload());
 	}
 
+	@Test
+	public void testGetPayloadBuffer() throws Exception {
+
+		ByteBuffer payload = message.getPayloadBuffer();
+		assertTrue(payload.isReadOnly());
+		assertEquals(0, payload.position());
+		assertEquals(3, payload.limit());
+		assertEquals(97, payload.get());
+		assertEquals(98, payload.get());
+		assertEquals(99, payload.get());
+	}
+
+	@Test
+	public void testGetPayloadLength() throws Exception {
+
+		assertEquals(3, message.getPayloadLength());
+
+		pubMessage = new PubMessage(QoS.AT_LEAST_ONCE, false, "my topic", 123, new byte[0]);
+		message = new PublishMessage(channelManager, channel, pubMessage);
+		assertEquals(0, message.getPayloadLength());
+	}
+
+	@Test
+	public void testGetPayload_ByteBuffer() throws Exception {
+
+		ByteBuffer dst = ByteBuffer.allocate(5);
+		dst.put((byte) 1);
+
+		assertEquals(3, message.getPayload(dst));
+		assertEquals(4, dst.position());
+		assertArrayEquals(new byte[] { 1, 97, 98, 99, 0 }, dst.array());
+	}
+
+	@Test
+	public void testGetPayload_ByteArray() throws Exception {
+
+		byte[] dst = new byte[5];
+
+		assertEquals(3, message.getPayload(dst, 2));
+		assertArrayEquals(new byte[] { 0, 0, 97, 98, 99 }, dst);
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testGetPayload_ByteArrayTooSmall() throws Exception {
+
+		message.getPayload(new byte[5], 3);
+	}
+
 	@Test
 	public void testGetPayloadString() throws Exception {
 
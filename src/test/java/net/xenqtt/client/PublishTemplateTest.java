@@ -0,0 +1,96 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.client;
+
+import static org.junit.Assert.*;
+import net.xenqtt.message.QoS;
+
+import org.junit.Test;
+
+public class PublishTemplateTest {
+
+	PublishTemplate template = new PublishTemplate("grand/foo/bar", QoS.AT_LEAST_ONCE, true);
+
+	@Test
+	public void testCtor() {
+
+		assertEquals("grand/foo/bar", template.getTopic());
+		assertEquals(QoS.AT_LEAST_ONCE, template.getQoS());
+		assertTrue(template.isRetain());
+	}
+
+	@Test
+	public void testCtor_NoRetain() {
+
+		template = new PublishTemplate("grand/foo/bar", QoS.AT_MOST_ONCE);
+		assertEquals("grand/foo/bar", template.getTopic());
+		assertEquals(QoS.AT_MOST_ONCE, template.getQoS());
+		assertFalse(template.isRetain());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCtor_NullTopic() {
+		new PublishTemplate(null, QoS.AT_MOST_ONCE);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCtor_NullQoS() {
+		new PublishTemplate("grand/foo/bar", null);
+	}
+
+	@Test
+	public void testNewMessage() {
+
+		PublishMessage message = template.newMessage(new byte[] { 97, 98, 99 });
+		assertEquals("grand/foo/bar", message.getTopic());
+		assertEquals(QoS.AT_LEAST_ONCE, message.getQoS());
+		assertTrue(message.isRetain());
+		assertFalse(message.isDuplicate());
+		assertArrayEquals(new byte[] { 97, 98, 99 }, message.getPayload());
+		assertEquals(new PublishMessage("grand/foo/bar", QoS.AT_LEAST_ONCE, new byte[] { 97, 98, 99 }, true).getPubMessage(), message.getPubMessage());
+	}
+
+	@Test
+	public void testNewMessage_String() {
+
+		PublishMessage message = template.newMessage("abc");
+		assertEquals("grand/foo/bar", message.getTopic());
+		assertEquals("abc", message.getPayloadString());
+	}
+
+	@Test
+	public void testNewMessage_NullPayload() {
+
+		byte[] payload = null;
+		PublishMessage message = template.newMessage(payload);
+		assertTrue(message.isEmpty());
+	}
+
+	@Test
+	public void testNewMessage_MessagesAreIndependent() {
+
+		PublishMessage message1 = template.newMessage("abc");
+		PublishMessage message2 = template.newMessage("def");
+
+		message1.getPubMessage().setMessageId(1);
+		message2.getPubMessage().setMessageId(2);
+
+		assertEquals(1, message1.getPubMessage().getMessageId());
+		assertEquals(2, message2.getPubMessage().getMessageId());
+		assertEquals("abc", message1.getPayloadString());
+		assertEquals("def", message2.getPayloadString());
+	}
+}
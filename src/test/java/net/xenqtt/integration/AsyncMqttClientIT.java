@@ -22,6 +22,8 @@ import static org.mockito.Mockito.*;
 import java.lang.reflect.Field;
 import java.net.ConnectException;
 import java.nio.channels.UnresolvedAddressException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.xenqtt.MqttException;
@@ -94,7 +96,7 @@ public class AsyncMqttClientIT extends AbstractAsyncMqttClientIT {
 			client = new AsyncMqttClient("ftp://foo:1883", listener, 5, config);
 			fail("expected exception");
 		} catch (MqttException e) {
-			assertEquals("Invalid broker URI (scheme must be 'tcp'): ftp://foo:1883", e.getMessage());
+			assertEquals("Invalid broker URI (scheme must be 'tcp', 'ssl', 'unix', 'shm', or 'mem'): ftp://foo:1883", e.getMessage());
 		}
 
 		verify(reconnectionStrategy).clone();
@@ -422,6 +424,77 @@ public class AsyncMqttClientIT extends AbstractAsyncMqttClientIT {
 		testPublish_Qos0_NoRetain();
 	}
 
+	@Test
+	public final void testPublishAsync_Qos1_MaxInFlightMessagesReached() throws Exception {
+
+		// the broker never acks so the first message stays in flight
+		when(mockHandler.publish(any(Client.class), any(PubMessage.class))).thenReturn(true);
+
+		mockBroker = new MockBroker(mockHandler, 15, 0, true, false, true, 50);
+		mockBroker.init();
+		validBrokerUri = mockBroker.getURI();
+
+		config.setMaxInFlightMessages(1);
+		client = new AsyncMqttClient(validBrokerUri, listener, 5, config);
+		client.connect("testclient14", true);
+		verify(listener, timeout(5000)).connected(client, ConnectReturnCode.ACCEPTED);
+
+		client.publishAsync(new PublishMessage("my/topic5", QoS.AT_LEAST_ONCE, "my message 1"));
+		verify(mockHandler, timeout(5000)).publish(any(Client.class), any(PubMessage.class));
+		try {
+			client.publishAsync(new PublishMessage("my/topic5", QoS.AT_LEAST_ONCE, "my message 2"));
+			fail("expected exception");
+		} catch (MqttTooManyMessagesInFlightException e) {
+		}
+
+		verify(listener, never()).published(any(MqttClient.class), any(PublishMessage.class));
+	}
+
+	@Test
+	public final void testPublishList_Qos1_MaxInFlightMessagesReachedDuringBatch() throws Exception {
+
+		mockBroker = new MockBroker(mockHandler, 15, 0, true, false, true, 50);
+		mockBroker.init();
+		validBrokerUri = mockBroker.getURI();
+
+		config.setMaxInFlightMessages(3);
+		client = new AsyncMqttClient(validBrokerUri, listener, 5, config);
+		client.connect("testclient14", true);
+		verify(listener, timeout(5000)).connected(client, ConnectReturnCode.ACCEPTED);
+
+		// another thread takes the rest of the IDs after the batch passes its size check but before it reserves its second ID
+		final Object otherData = new Object();
+		ConcurrentHashMap<Integer, Object> dataByMessageId = new ConcurrentHashMap<Integer, Object>() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Object putIfAbsent(Integer key, Object value) {
+				if (key == 2) {
+					put(2, otherData);
+					put(3, otherData);
+				}
+				return super.putIfAbsent(key, value);
+			}
+		};
+		Field field = Class.forName("net.xenqtt.client.AbstractMqttClient").getDeclaredField("dataByMessageId");
+		field.setAccessible(true);
+		field.set(client, dataByMessageId);
+
+		try {
+			client.publish(Arrays.asList(new PublishMessage("my/topic5", QoS.AT_LEAST_ONCE, "my message 1"), new PublishMessage("my/topic5",
+					QoS.AT_LEAST_ONCE, "my message 2")));
+			fail("expected exception");
+		} catch (MqttTooManyMessagesInFlightException e) {
+		}
+
+		// only the other thread's IDs are still in flight
+		assertEquals(2, dataByMessageId.size());
+		assertSame(otherData, dataByMessageId.get(2));
+		assertSame(otherData, dataByMessageId.get(3));
+		verify(mockHandler, timeout(1000).never()).publish(any(Client.class), any(PubMessage.class));
+	}
+
 	@Test
 	public final void testPublish_Qos1_DuplicateMessageIdWouldBeUsed() throws Exception {
 
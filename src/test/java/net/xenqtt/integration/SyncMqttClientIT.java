@@ -139,7 +139,7 @@ public class SyncMqttClientIT {
 			client = new SyncMqttClient("ftp://foo:1883", listener, 5, config);
 			fail("expected exception");
 		} catch (MqttException e) {
-			assertEquals("Invalid broker URI (scheme must be 'tcp'): ftp://foo:1883", e.getMessage());
+			assertEquals("Invalid broker URI (scheme must be 'tcp', 'ssl', 'unix', 'shm', or 'mem'): ftp://foo:1883", e.getMessage());
 		}
 
 		verify(reconnectionStrategy).clone();
@@ -18,7 +18,11 @@ package net.xenqtt.message;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import net.xenqtt.MqttCommandCancelledException;
 import net.xenqtt.MqttInterruptedException;
@@ -194,6 +198,161 @@ public class AbstractBlockingCommandTest {
 		cmd.await();
 	}
 
+	@Test
+	public void testAwait_CompletedByAnotherThread() throws Exception {
+
+		cmd.execute(now);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException ignore) {
+				}
+				cmd.complete();
+			}
+		};
+		thread.start();
+
+		assertSame(cmd.returnValue, cmd.await(1, TimeUnit.SECONDS));
+		thread.join();
+	}
+
+	@Test
+	public void testIsDone_IsCancelled() {
+
+		assertFalse(cmd.isDone());
+		assertFalse(cmd.isCancelled());
+		cmd.cancel();
+		assertTrue(cmd.isDone());
+		assertTrue(cmd.isCancelled());
+	}
+
+	@Test
+	public void testIsDone_Complete() {
+
+		cmd.complete();
+		assertTrue(cmd.isDone());
+		assertFalse(cmd.isCancelled());
+	}
+
+	@Test
+	public void testCancelBoolean() {
+
+		assertFalse(cmd.cancel(true));
+		assertFalse(cmd.isDone());
+	}
+
+	@Test
+	public void testGet_Success() throws Exception {
+
+		cmd.execute(now);
+		cmd.complete();
+		assertSame(cmd.returnValue, cmd.get());
+	}
+
+	@Test
+	public void testGet_Failure() throws Exception {
+
+		cmd.exceptionToThrow = new IOException();
+		cmd.execute(now);
+
+		try {
+			cmd.get();
+			fail("expected exception");
+		} catch (ExecutionException e) {
+			assertSame(cmd.exceptionToThrow, e.getCause());
+		}
+	}
+
+	@Test(expected = CancellationException.class)
+	public void testGet_Cancelled() throws Exception {
+
+		cmd.cancel();
+		cmd.get();
+	}
+
+	@Test
+	public void testGetLongTimeUnit_Success() throws Exception {
+
+		cmd.execute(now);
+		cmd.complete();
+		assertSame(cmd.returnValue, cmd.get(10, TimeUnit.MILLISECONDS));
+	}
+
+	@Test(expected = TimeoutException.class)
+	public void testGetLongTimeUnit_Timeout() throws Exception {
+
+		cmd.get(10, TimeUnit.MILLISECONDS);
+	}
+
+	@Test(expected = InterruptedException.class)
+	public void testGetLongTimeUnit_Interrupted() throws Exception {
+
+		Thread.currentThread().interrupt();
+		cmd.get(10, TimeUnit.MILLISECONDS);
+	}
+
+	@Test
+	public void testGetLongTimeUnit_TimedOutWaitersRemoved() throws Exception {
+
+		for (int i = 0; i < 1000; i++) {
+			try {
+				cmd.get(1, TimeUnit.NANOSECONDS);
+				fail("expected exception");
+			} catch (TimeoutException e) {
+			}
+		}
+
+		Thread.currentThread().interrupt();
+		try {
+			cmd.get(1, TimeUnit.SECONDS);
+			fail("expected exception");
+		} catch (InterruptedException e) {
+		}
+
+		assertNull(waiters(cmd));
+	}
+
+	@Test
+	public void testGetLongTimeUnit_TimedOutWaitersRemoved_OtherThreadWaiting() throws Exception {
+
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				cmd.await();
+			}
+		};
+		thread.start();
+		while (waiters(cmd) == null) {
+			Thread.sleep(1);
+		}
+
+		for (int i = 0; i < 1000; i++) {
+			try {
+				cmd.get(1, TimeUnit.NANOSECONDS);
+				fail("expected exception");
+			} catch (TimeoutException e) {
+			}
+		}
+
+		Object waiter = waiters(cmd);
+		Field nextField = waiter.getClass().getDeclaredField("next");
+		nextField.setAccessible(true);
+		assertNull(nextField.get(waiter));
+
+		cmd.complete();
+		thread.join(1000);
+		assertFalse(thread.isAlive());
+	}
+
+	private Object waiters(AbstractBlockingCommand<?> command) throws Exception {
+
+		Field field = AbstractBlockingCommand.class.getDeclaredField("waiters");
+		field.setAccessible(true);
+		return field.get(command);
+	}
+
 	private static class TestBlockingCommand extends AbstractBlockingCommand<Object> {
 
 		final Object returnValue = new Object();
@@ -18,7 +18,12 @@ package net.xenqtt.message;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
@@ -31,7 +36,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Random;
 import java.util.Set;
 
 import net.xenqtt.message.AbstractMqttChannel;
@@ -67,6 +72,8 @@ public class AbstractMqttChannelTest extends MqttChannelTestBase<MqttChannelTest
 
 	@Mock BlockingCommand<MqttMessage> blockingCommand;
 
+	ChannelManagerConfig brokerConfig = new ChannelManagerConfig();
+
 	@Before
 	public void before() {
 		MockitoAnnotations.initMocks(this);
@@ -82,7 +89,7 @@ public class AbstractMqttChannelTest extends MqttChannelTestBase<MqttChannelTest
 
 	@Override
 	TestChannel newBrokerChannel(SocketChannel brokerSocketChannel) throws Exception {
-		return new TestChannel(brokerSocketChannel, brokerHandler, selector, 10000);
+		return new TestChannel(brokerSocketChannel, brokerHandler, selector, 10000, brokerConfig);
 	}
 
 	@Test
@@ -258,15 +265,15 @@ public class AbstractMqttChannelTest extends MqttChannelTestBase<MqttChannelTest
 		}
 	}
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@SuppressWarnings("rawtypes")
 	private void setInFlightMessages(net.xenqtt.message.MqttChannelTestBase.TestChannel clientChannel, Map<Integer, IdentifiableMqttMessage> messages)
 			throws Exception {
 		Field field = AbstractMqttChannel.class.getDeclaredField("inFlightMessages");
 		field.setAccessible(true);
-		Map<Integer, IdentifiableMqttMessage> inFlightMessages = (Map<Integer, IdentifiableMqttMessage>) field.get(clientChannel);
+		InFlightMessageMap inFlightMessages = (InFlightMessageMap) field.get(clientChannel);
 		inFlightMessages.clear();
-		for (Entry<Integer, IdentifiableMqttMessage> entry : messages.entrySet()) {
-			inFlightMessages.put(entry.getKey(), entry.getValue());
+		for (IdentifiableMqttMessage message : messages.values()) {
+			inFlightMessages.put(message);
 		}
 	}
 
@@ -469,6 +476,159 @@ public class AbstractMqttChannelTest extends MqttChannelTestBase<MqttChannelTest
 		assertEquals(0, clientChannel.lastReceived);
 	}
 
+	@Test
+	public void testWritability_NoWaterMarks() throws Exception {
+
+		clientChannel = new TestChannel("localhost", port, clientHandler, selector, 15000);
+
+		establishConnection();
+
+		for (int i = 1; i <= 100; i++) {
+			assertTrue(clientChannel.send(new PubAckMessage(i), null));
+		}
+		assertTrue(clientChannel.isWritable());
+
+		readWrite(0, 100);
+		assertTrue(clientChannel.isWritable());
+		assertTrue(clientHandler.writabilityChanges().isEmpty());
+	}
+
+	@Test
+	public void testWritability_BytesWaterMarks() throws Exception {
+
+		// each pub ack is 4 bytes
+		ChannelManagerConfig config = new ChannelManagerConfig().setWriteHighWaterMarkBytes(10).setWriteLowWaterMarkBytes(4);
+		clientChannel = new TestChannel("localhost", port, clientHandler, selector, 15000, null, config);
+
+		establishConnection();
+
+		assertTrue(clientChannel.send(new PubAckMessage(1), null));
+		assertTrue(clientChannel.send(new PubAckMessage(2), null));
+		assertTrue(clientChannel.isWritable());
+		assertTrue(clientHandler.writabilityChanges().isEmpty());
+
+		assertTrue(clientChannel.send(new PubAckMessage(3), null));
+		assertFalse(clientChannel.isWritable());
+		assertEquals(Arrays.asList(false), clientHandler.writabilityChanges());
+
+		readWrite(0, 3);
+		assertTrue(clientChannel.isWritable());
+		assertEquals(Arrays.asList(false, true), clientHandler.writabilityChanges());
+	}
+
+	@Test
+	public void testWritability_MessageWaterMarks() throws Exception {
+
+		ChannelManagerConfig config = new ChannelManagerConfig().setWriteHighWaterMarkMessages(2).setWriteLowWaterMarkMessages(1);
+		clientChannel = new TestChannel("localhost", port, clientHandler, selector, 15000, null, config);
+
+		establishConnection();
+
+		assertTrue(clientChannel.send(new PubAckMessage(1), null));
+		assertTrue(clientChannel.send(new PubAckMessage(2), null));
+		assertTrue(clientChannel.isWritable());
+
+		assertTrue(clientChannel.send(new PubAckMessage(3), null));
+		assertTrue(clientChannel.send(new PubAckMessage(4), null));
+		assertFalse(clientChannel.isWritable());
+		assertEquals(Arrays.asList(false), clientHandler.writabilityChanges());
+
+		readWrite(0, 4);
+		assertTrue(clientChannel.isWritable());
+		assertEquals(Arrays.asList(false, true), clientHandler.writabilityChanges());
+
+		assertTrue(clientChannel.send(new PubAckMessage(5), null));
+		assertTrue(clientChannel.isWritable());
+	}
+
+	@Test
+	public void testLinger_PublishHeldUntilLingerTimeElapses() throws Exception {
+
+		ChannelManagerConfig config = new ChannelManagerConfig().setWriteLingerMicros(50000);
+		clientChannel = new TestChannel("localhost", port, clientHandler, selector, 0, null, config);
+
+		establishConnection();
+
+		PubMessage msg1 = new PubMessage(QoS.AT_MOST_ONCE, false, "foo", 0, new byte[] { 1, 2, 3 });
+		PubMessage msg2 = new PubMessage(QoS.AT_MOST_ONCE, false, "foo", 0, new byte[] { 4, 5, 6 });
+
+		assertTrue(clientChannel.send(msg1, null));
+		assertTrue(clientChannel.send(msg2, null));
+		assertFalse(readWrite(0, 1, 10));
+		assertEquals(2, clientChannel.sendQueueDepth());
+
+		long time = clientChannel.houseKeeping(now);
+		assertTrue(time > 0 && time <= 50);
+
+		Thread.sleep(60);
+		clientChannel.houseKeeping(now);
+		readWrite(0, 2);
+		brokerHandler.assertMessages(msg1, msg2);
+		assertEquals(0, clientChannel.sendQueueDepth());
+	}
+
+	@Test
+	public void testLinger_PublishHeldUntilLingerTimeElapses_ResendEnabled() throws Exception {
+
+		ChannelManagerConfig config = new ChannelManagerConfig().setWriteLingerMicros(50000);
+		clientChannel = new TestChannel("localhost", port, clientHandler, selector, 15000, null, config);
+
+		establishConnection();
+
+		PubMessage msg = new PubMessage(QoS.AT_MOST_ONCE, false, "foo", 0, new byte[] { 1, 2, 3 });
+
+		assertTrue(clientChannel.send(msg, null));
+		assertFalse(readWrite(0, 1, 10));
+
+		// the resend interval does not push house keeping past the linger deadline
+		long time = clientChannel.houseKeeping(now);
+		assertTrue(time > 0 && time <= 50);
+
+		Thread.sleep(60);
+		clientChannel.houseKeeping(now);
+		readWrite(0, 1);
+		brokerHandler.assertMessages(msg);
+	}
+
+	@Test
+	public void testLinger_ControlMessageWritesHeldPublishes() throws Exception {
+
+		ChannelManagerConfig config = new ChannelManagerConfig().setWriteLingerMicros(60000000);
+		clientChannel = new TestChannel("localhost", port, clientHandler, selector, 0, null, config);
+
+		establishConnection();
+
+		PubMessage msg = new PubMessage(QoS.AT_MOST_ONCE, false, "foo", 0, new byte[] { 1, 2, 3 });
+		PingReqMessage ping = new PingReqMessage();
+
+		assertTrue(clientChannel.send(msg, null));
+		assertFalse(readWrite(0, 1, 10));
+
+		assertTrue(clientChannel.send(ping, null));
+		readWrite(0, 2);
+		brokerHandler.assertMessages(msg, ping);
+	}
+
+	@Test
+	public void testLinger_LingerBytesReached() throws Exception {
+
+		// each publish is 10 bytes
+		ChannelManagerConfig config = new ChannelManagerConfig().setWriteLingerMicros(60000000).setWriteLingerBytes(20);
+		clientChannel = new TestChannel("localhost", port, clientHandler, selector, 0, null, config);
+
+		establishConnection();
+
+		PubMessage msg1 = new PubMessage(QoS.AT_MOST_ONCE, false, "foo", 0, new byte[] { 1, 2, 3 });
+		PubMessage msg2 = new PubMessage(QoS.AT_MOST_ONCE, false, "foo", 0, new byte[] { 4, 5, 6 });
+
+		assertTrue(clientChannel.send(msg1, null));
+		assertFalse(readWrite(0, 1, 10));
+
+		assertTrue(clientChannel.send(msg2, null));
+		readWrite(0, 2);
+		brokerHandler.assertMessages(msg1, msg2);
+	}
+
 	@Test
 	public void testSend_qos0() throws Exception {
 
@@ -518,6 +678,87 @@ public class AbstractMqttChannelTest extends MqttChannelTestBase<MqttChannelTest
 		assertEquals(0, brokerChannel.inFlightMessageCount());
 	}
 
+	@Test
+	public void testSend_PayloadFromFile_ResentFromFile() throws Exception {
+
+		clientChannel = new TestChannel("localhost", port, clientHandler, selector, 15000);
+
+		establishConnection();
+
+		byte[] payload = new byte[100000];
+		new Random().nextBytes(payload);
+		File file = File.createTempFile("xenqtt", ".payload");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.write(new byte[] { 1, 2, 3 });
+			raf.write(payload);
+			FileChannel fileChannel = raf.getChannel();
+
+			PubMessage msg = new PubMessage(QoS.AT_LEAST_ONCE, false, "foo", 12, fileChannel, 3, payload.length);
+			PubMessage msg2 = new PubMessage(QoS.AT_MOST_ONCE, false, "bar", 0, new byte[] { 4, 5, 6 });
+
+			assertTrue(clientChannel.send(msg, null));
+			assertTrue(clientChannel.send(msg2, null));
+			readWrite(0, 2);
+			brokerHandler.assertMessageCount(2);
+			PubMessage received = (PubMessage) brokerHandler.message(0);
+			assertEquals("foo", received.getTopicName());
+			assertEquals(12, received.getMessageId());
+			assertFalse(received.isDuplicate());
+			assertArrayEquals(payload, received.getPayload());
+			assertArrayEquals(new byte[] { 4, 5, 6 }, ((PubMessage) brokerHandler.message(1)).getPayload());
+			assertEquals(1, clientChannel.inFlightMessageCount());
+
+			assertEquals(25000, clientChannel.houseKeeping(now + 15000));
+			readWrite(0, 1);
+			brokerHandler.assertMessageCount(1);
+			received = (PubMessage) brokerHandler.message(0);
+			assertTrue(received.isDuplicate());
+			assertArrayEquals(payload, received.getPayload());
+
+			assertTrue(brokerChannel.send(new PubAckMessage(12), null));
+			readWrite(1, 0);
+			assertEquals(0, clientChannel.inFlightMessageCount());
+		} finally {
+			raf.close();
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testHouseKeeping_ResendMessage_OnlyDueMessagesResent() throws Exception {
+
+		clientChannel = new TestChannel("localhost", port, clientHandler, selector, 15000);
+
+		establishConnection();
+
+		long start = now;
+		PubMessage msg1 = new PubMessage(QoS.AT_LEAST_ONCE, false, "foo", 12, new byte[] { 1, 2, 3 });
+		PubMessage msg2 = new PubMessage(QoS.AT_LEAST_ONCE, false, "foo", 13, new byte[] { 4, 5, 6 });
+
+		assertTrue(clientChannel.send(msg1, null));
+		readWrite(0, 1);
+		now = start + 5000;
+		assertTrue(clientChannel.send(msg2, null));
+		readWrite(0, 1);
+		assertEquals(2, clientChannel.inFlightMessageCount());
+
+		// msg1 is due and msg2 is due 5 seconds later
+		assertEquals(5000, clientChannel.houseKeeping(start + 15000));
+		readWrite(0, 1);
+		brokerHandler.assertMessageCount(1);
+		assertEquals(12, ((IdentifiableMqttMessage) brokerHandler.message(0)).getMessageId());
+		assertTrue(brokerHandler.message(0).isDuplicate());
+		assertEquals(2, clientChannel.inFlightMessageCount());
+
+		// msg1 was resent at start + 5000 (the now used for writes) so both are due now with msg2 first
+		assertEquals(25000, clientChannel.houseKeeping(start + 20000));
+		readWrite(0, 2);
+		assertEquals(13, ((IdentifiableMqttMessage) brokerHandler.message(0)).getMessageId());
+		assertEquals(12, ((IdentifiableMqttMessage) brokerHandler.message(1)).getMessageId());
+		assertEquals(2, clientChannel.inFlightMessageCount());
+	}
+
 	@Test
 	public void testPauseRead_InvalidKey() throws Exception {
 
@@ -613,6 +854,205 @@ public class AbstractMqttChannelTest extends MqttChannelTestBase<MqttChannelTest
 		closeConnection();
 	}
 
+	@Test
+	public void testRead_PausedByHandler_BufferedMessagesProcessedAfterResume() throws Exception {
+
+		clientHandler = new MockMessageHandler() {
+			@Override
+			public void publish(MqttChannel channel, PubMessage message) throws Exception {
+				super.publish(channel, message);
+				if (messageCount() == 1) {
+					channel.pauseRead();
+				}
+			}
+		};
+
+		establishConnection();
+
+		for (int i = 0; i < 3; i++) {
+			assertTrue(brokerChannel.send(new PubMessage(QoS.AT_MOST_ONCE, false, "foo", 0, new byte[] { 1, 2, 3 }), null));
+		}
+		assertTrue(brokerChannel.write(now));
+
+		// all 3 messages arrive with one read but processing stops when the handler pauses reading
+		while (clientHandler.messageCount() == 0) {
+			selector.select();
+			selector.selectedKeys().clear();
+			assertTrue(clientChannel.read(now));
+		}
+		assertEquals(1, clientHandler.messageCount());
+
+		clientChannel.houseKeeping(now);
+		assertEquals(1, clientHandler.messageCount());
+
+		clientChannel.resumeRead();
+		clientChannel.houseKeeping(now);
+		assertEquals(3, clientHandler.messageCount());
+
+		closeConnection();
+	}
+
+	@Test
+	public void testRead_StreamedPublish() throws Exception {
+
+		StreamingHandler streamingHandler = new StreamingHandler();
+		brokerHandler = streamingHandler;
+		brokerConfig.setPublishStreamingThresholdBytes(1000);
+
+		establishConnection();
+
+		byte[] payload = new byte[100000];
+		new Random().nextBytes(payload);
+		PubMessage msg = new PubMessage(QoS.AT_LEAST_ONCE, false, "foo/bar", 12, payload);
+		assertTrue(clientChannel.send(msg, null));
+		assertTrue(clientChannel.send(new PubAckMessage(7), null));
+
+		readWrite(0, 2);
+
+		// the handler records the header when the stream finishes. publish(...) is never called for the streamed message.
+		PubMessage header = (PubMessage) brokerHandler.message(0);
+		assertEquals("foo/bar", header.getTopicName());
+		assertEquals(12, header.getMessageId());
+		assertEquals(QoS.AT_LEAST_ONCE, header.getQoS());
+		assertEquals(0, header.getPayloadLength());
+		assertEquals(payload.length, streamingHandler.payloadLength);
+		assertArrayEquals(payload, streamingHandler.payload.toByteArray());
+		assertTrue(streamingHandler.chunkCount > 1);
+		assertEquals(1, streamingHandler.finishedCount);
+
+		assertEquals(new PubAckMessage(7), brokerHandler.message(1));
+	}
+
+	@Test
+	public void testRead_StreamedPublish_AbortedWhenClosed() throws Exception {
+
+		StreamingHandler streamingHandler = new StreamingHandler();
+		streamingHandler.closeAfterFirstChunk = true;
+		brokerHandler = streamingHandler;
+		brokerConfig.setPublishStreamingThresholdBytes(1000);
+
+		establishConnection();
+
+		assertTrue(clientChannel.send(new PubMessage(QoS.AT_LEAST_ONCE, false, "foo/bar", 12, new byte[100000]), null));
+
+		while (brokerChannel.isOpen()) {
+			readWrite(0, 1, 100);
+		}
+
+		assertEquals(1, streamingHandler.chunkCount);
+		assertEquals(0, streamingHandler.finishedCount);
+		assertEquals(1, streamingHandler.abortedCount);
+		brokerHandler.assertChannelClosedCount(1);
+	}
+
+	@Test
+	public void testRead_StreamedPublish_AbortedWhenDetached() throws Exception {
+
+		StreamingHandler streamingHandler = new StreamingHandler();
+		streamingHandler.detachAfterFirstChunk = true;
+		brokerHandler = streamingHandler;
+		brokerConfig.setPublishStreamingThresholdBytes(1000);
+
+		establishConnection();
+
+		assertTrue(clientChannel.send(new PubMessage(QoS.AT_LEAST_ONCE, false, "foo/bar", 12, new byte[100000]), null));
+		assertTrue(clientChannel.send(new PubAckMessage(7), null));
+
+		while (streamingHandler.chunkCount == 0) {
+			readWrite(0, 1, 100);
+		}
+
+		assertEquals(0, streamingHandler.finishedCount);
+		assertEquals(1, streamingHandler.abortedCount);
+		streamingHandler.assertChannelDetachedCount(1);
+
+		// the rest of the aborted message is skipped and the next message goes to the new handler
+		selector.selectNow();
+		brokerHandler = new MockMessageHandler();
+		assertTrue(brokerChannel.register(selector, brokerHandler));
+		readWrite(0, 1);
+
+		assertEquals(new PubAckMessage(7), brokerHandler.message(0));
+		assertEquals(1, streamingHandler.chunkCount);
+	}
+
+	@Test
+	public void testRead_LargePublishUnderStreamingThresholdNotStreamed() throws Exception {
+
+		StreamingHandler streamingHandler = new StreamingHandler();
+		brokerHandler = streamingHandler;
+		brokerConfig.setPublishStreamingThresholdBytes(200000);
+
+		establishConnection();
+
+		byte[] payload = new byte[100000];
+		new Random().nextBytes(payload);
+		PubMessage msg = new PubMessage(QoS.AT_MOST_ONCE, false, "foo/bar", 0, payload);
+		assertTrue(clientChannel.send(msg, null));
+
+		readWrite(0, 1);
+
+		assertArrayEquals(payload, ((PubMessage) brokerHandler.message(0)).getPayload());
+		assertEquals(0, streamingHandler.chunkCount);
+		assertEquals(0, streamingHandler.finishedCount);
+	}
+
+	@Test
+	public void testRead_DirectBuffers() throws Exception {
+
+		brokerConfig.setDirectBuffersEnabled(true);
+
+		establishConnection();
+
+		byte[] payload1 = new byte[1000];
+		byte[] payload2 = new byte[40000];
+		new Random().nextBytes(payload1);
+		new Random().nextBytes(payload2);
+
+		assertTrue(clientChannel.send(new PubMessage(QoS.AT_MOST_ONCE, false, "foo/bar", 0, payload1), null));
+		assertTrue(clientChannel.send(new PubMessage(QoS.AT_MOST_ONCE, false, "foo/bar", 0, payload2), null));
+		assertTrue(clientChannel.send(new PubAckMessage(7), null));
+		readWrite(0, 3);
+
+		assertArrayEquals(payload1, ((PubMessage) brokerHandler.message(0)).getPayload());
+		assertArrayEquals(payload2, ((PubMessage) brokerHandler.message(1)).getPayload());
+		assertFalse(brokerHandler.message(1).buffer.isDirect());
+		assertEquals(7, ((PubAckMessage) brokerHandler.message(2)).getMessageId());
+	}
+
+	@Test
+	public void testRead_DirectBuffers_Pooled() throws Exception {
+
+		brokerConfig.setDirectBuffersEnabled(true).setBufferPoolEnabled(true);
+
+		establishConnection();
+
+		byte[] payload1 = new byte[1000];
+		byte[] payload2 = new byte[40000];
+		new Random().nextBytes(payload1);
+		new Random().nextBytes(payload2);
+
+		assertTrue(clientChannel.send(new PubMessage(QoS.AT_MOST_ONCE, false, "foo/bar", 0, payload1), null));
+		assertTrue(clientChannel.send(new PubMessage(QoS.AT_MOST_ONCE, false, "foo/bar", 0, payload2), null));
+		readWrite(0, 2);
+
+		PubMessage message1 = (PubMessage) brokerHandler.message(0);
+		PubMessage message2 = (PubMessage) brokerHandler.message(1);
+		assertTrue(message1.buffer.isDirect());
+		assertTrue(message2.buffer.isDirect());
+		assertEquals("foo/bar", message2.getTopicName());
+		assertArrayEquals(payload1, message1.getPayload());
+		assertArrayEquals(payload2, message2.getPayload());
+
+		byte[] bytes = new byte[payload2.length + 2];
+		assertEquals(payload2.length, message2.getPayload(bytes, 2));
+		assertArrayEquals(payload2, Arrays.copyOfRange(bytes, 2, bytes.length));
+
+		ByteBuffer buffer = ByteBuffer.allocate(payload2.length);
+		assertEquals(payload2.length, message2.getPayload(buffer));
+		assertArrayEquals(payload2, buffer.array());
+	}
+
 	@Test
 	public void testReadFromClosedConnection() throws Exception {
 
@@ -711,6 +1151,27 @@ public class AbstractMqttChannelTest extends MqttChannelTestBase<MqttChannelTest
 		assertFalse(brokerChannel.isOpen());
 	}
 
+	@Test
+	public void testReadWriteSend_QueuedMessagesAfterDisconnectNotWritten() throws Exception {
+
+		establishConnection();
+
+		PubAckMessage ackMsg = new PubAckMessage(1);
+		DisconnectMessage discMsg = new DisconnectMessage();
+
+		assertTrue(clientChannel.send(ackMsg, null));
+		assertTrue(clientChannel.send(discMsg, null));
+		assertTrue(clientChannel.send(new PubAckMessage(2), null));
+		assertFalse(clientChannel.write(now));
+
+		readWrite(0, 2);
+		brokerHandler.assertMessages(ackMsg, discMsg);
+		assertEquals(2, stats.getMessagesSent());
+
+		assertFalse(clientChannel.isOpen());
+		assertFalse(brokerChannel.isOpen());
+	}
+
 	@Test
 	public void testReadWriteSend_ConnAckWithoutAccept_NonBlocking() throws Exception {
 
@@ -1249,4 +1710,45 @@ public class AbstractMqttChannelTest extends MqttChannelTestBase<MqttChannelTest
 
 		closeConnection();
 	}
+
+	private static final class StreamingHandler extends MockMessageHandler implements StreamingMessageHandler {
+
+		final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		int payloadLength;
+		int chunkCount;
+		int finishedCount;
+		int abortedCount;
+		// closes or detaches the channel after the first piece of the payload if set
+		boolean closeAfterFirstChunk;
+		boolean detachAfterFirstChunk;
+
+		@Override
+		public void publishStarted(MqttChannel channel, PubMessage header, int payloadLength) throws Exception {
+			this.payloadLength = payloadLength;
+		}
+
+		@Override
+		public void publishPayload(MqttChannel channel, PubMessage header, ByteBuffer payload) throws Exception {
+			chunkCount++;
+			byte[] bytes = new byte[payload.remaining()];
+			payload.get(bytes);
+			this.payload.write(bytes);
+			if (chunkCount == 1 && closeAfterFirstChunk) {
+				channel.close();
+			} else if (chunkCount == 1 && detachAfterFirstChunk) {
+				channel.deregister();
+			}
+		}
+
+		@Override
+		public void publishFinished(MqttChannel channel, PubMessage header) throws Exception {
+			finishedCount++;
+			doHandleInvocation(channel, header);
+		}
+
+		@Override
+		public void publishAborted(MqttChannel channel, PubMessage header) throws Exception {
+			abortedCount++;
+		}
+	}
 }
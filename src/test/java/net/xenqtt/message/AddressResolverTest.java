@@ -0,0 +1,103 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class AddressResolverTest {
+
+	AddressResolver resolver = new AddressResolver(1000);
+
+	@After
+	public void after() {
+		resolver.shutdown();
+	}
+
+	@Test
+	public void testCached_NotResolved() {
+
+		assertNull(resolver.cached("localhost", 1883, 0));
+	}
+
+	@Test
+	public void testResolve_Cached() {
+
+		InetSocketAddress address = resolver.resolve("localhost", 1883, 100);
+		assertFalse(address.isUnresolved());
+		assertEquals(1883, address.getPort());
+
+		InetSocketAddress cached = resolver.cached("localhost", 8883, 1099);
+		assertEquals(address.getAddress(), cached.getAddress());
+		assertEquals(8883, cached.getPort());
+	}
+
+	@Test
+	public void testResolve_CacheExpires() {
+
+		resolver.resolve("localhost", 1883, 100);
+
+		assertNull(resolver.cached("localhost", 1883, 1100));
+		assertNull(resolver.cached("localhost", 1883, 0));
+	}
+
+	@Test
+	public void testResolve_CachingDisabled() {
+
+		resolver = new AddressResolver(0);
+
+		assertFalse(resolver.resolve("localhost", 1883, 100).isUnresolved());
+		assertNull(resolver.cached("localhost", 1883, 100));
+	}
+
+	@Test
+	public void testExecute_RunsOnResolverThread() throws Exception {
+
+		final AtomicReference<String> threadName = new AtomicReference<String>();
+		final CountDownLatch latch = new CountDownLatch(1);
+		resolver.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				threadName.set(Thread.currentThread().getName());
+				latch.countDown();
+			}
+		});
+
+		assertTrue(latch.await(1, TimeUnit.SECONDS));
+		assertEquals("MqttAddressResolver-0", threadName.get());
+	}
+
+	@Test(expected = RejectedExecutionException.class)
+	public void testExecute_AfterShutdown() throws Exception {
+
+		resolver.shutdown();
+		resolver.execute(new Runnable() {
+
+			@Override
+			public void run() {
+			}
+		});
+	}
+}
@@ -0,0 +1,284 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncSocketTransportTest {
+
+	Object group;
+	ServerSocketChannel server;
+	Selector selector;
+	AsyncSocketTransport transport;
+	SocketChannel peer;
+
+	@Before
+	public void setup() throws Exception {
+
+		if (!AsyncSocketTransport.isSupported()) {
+			return;
+		}
+
+		group = AsyncSocketTransport.newGroup(1);
+		server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress("localhost", 0));
+		selector = Selector.open();
+
+		transport = new AsyncSocketTransport(group);
+		transport.register(selector, SelectionKey.OP_CONNECT, this);
+		assertTrue(transport.connect(new InetSocketAddress("localhost", server.socket().getLocalPort())));
+		peer = server.accept();
+	}
+
+	@After
+	public void after() throws Exception {
+
+		if (!AsyncSocketTransport.isSupported()) {
+			return;
+		}
+
+		transport.close();
+		if (peer != null) {
+			peer.close();
+		}
+		server.close();
+		selector.close();
+		AsyncSocketTransport.shutdownGroup(group);
+	}
+
+	@Test
+	public void testConnect() throws Exception {
+
+		if (!AsyncSocketTransport.isSupported()) {
+			return;
+		}
+
+		assertTrue(transport.isConnected());
+		assertFalse(transport.isConnectionPending());
+		assertTrue(transport.finishConnect());
+		assertFalse(transport.isWriteSelectable());
+
+		// the addresses are known once the connect completes on the group's thread
+		long end = System.currentTimeMillis() + 5000;
+		while (transport.getRemoteAddress() == null && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertNotNull(transport.getRemoteAddress());
+		assertNotNull(transport.getLocalAddress());
+	}
+
+	@Test
+	public void testConnect_Refused() throws Exception {
+
+		if (!AsyncSocketTransport.isSupported()) {
+			return;
+		}
+
+		int port = server.socket().getLocalPort();
+		server.close();
+
+		AsyncSocketTransport refused = new AsyncSocketTransport(group);
+		try {
+			refused.register(selector, SelectionKey.OP_READ, this);
+			assertTrue(refused.connect(new InetSocketAddress("localhost", port)));
+
+			assertEquals(1, selector.select(5000));
+			refused.read(ByteBuffer.allocate(10));
+			fail("expected exception");
+		} catch (ConnectException e) {
+		} finally {
+			refused.close();
+		}
+	}
+
+	@Test
+	public void testWriteRead_Gathering() throws Exception {
+
+		if (!AsyncSocketTransport.isSupported()) {
+			return;
+		}
+
+		transport.register(selector, SelectionKey.OP_READ, this);
+
+		ByteBuffer[] buffers = new ByteBuffer[] { ByteBuffer.wrap(new byte[] { 1, 2 }), ByteBuffer.wrap(new byte[] { 3 }) };
+		assertEquals(3, transport.write(buffers));
+		assertFalse(buffers[0].hasRemaining());
+		assertFalse(buffers[1].hasRemaining());
+
+		ByteBuffer dst = ByteBuffer.allocate(10);
+		while (dst.position() < 3) {
+			peer.read(dst);
+		}
+		assertArrayEquals(new byte[] { 1, 2, 3 }, bytes(dst));
+
+		peer.write(ByteBuffer.wrap(new byte[] { 4, 5 }));
+		assertEquals(1, selector.select(5000));
+		selector.selectedKeys().clear();
+		assertEquals(2, transport.read(dst));
+		assertArrayEquals(new byte[] { 4, 5 }, bytes(dst));
+
+		assertEquals(0, selector.selectNow());
+		assertEquals(0, transport.read(dst));
+	}
+
+	@Test
+	public void testWrite_QueueFull() throws Exception {
+
+		if (!AsyncSocketTransport.isSupported()) {
+			return;
+		}
+
+		// nothing reads from the peer so the socket buffers fill and then the write queue does
+		ByteBuffer src = ByteBuffer.allocate(64 * 1024);
+		long written = 0;
+		for (int i = 0; i < 1000; i++) {
+			src.clear();
+			long count = transport.write(src);
+			if (count == 0) {
+				break;
+			}
+			written += count;
+		}
+
+		assertEquals(0, transport.write(ByteBuffer.allocate(1)));
+		assertTrue(written >= AsyncSocketTransport.MAX_QUEUED_BYTES);
+	}
+
+	@Test
+	public void testWrite_QueueFull_SignalsWhenDrained() throws Exception {
+
+		if (!AsyncSocketTransport.isSupported()) {
+			return;
+		}
+
+		transport.register(selector, SelectionKey.OP_READ, this);
+
+		ByteBuffer src = ByteBuffer.allocate(64 * 1024);
+		for (int i = 0; i < 1000; i++) {
+			src.clear();
+			if (transport.write(src) == 0) {
+				break;
+			}
+		}
+		assertEquals(0, selector.selectNow());
+
+		// reading from the peer drains the queue which signals the transport so the write can be retried
+		peer.configureBlocking(false);
+		ByteBuffer dst = ByteBuffer.allocate(64 * 1024);
+		long end = System.currentTimeMillis() + 5000;
+		int selected = 0;
+		while (selected == 0 && System.currentTimeMillis() < end) {
+			dst.clear();
+			peer.read(dst);
+			selected = selector.selectNow();
+		}
+		assertEquals(1, selected);
+		selector.selectedKeys().clear();
+
+		assertEquals(0, transport.read(dst));
+		assertEquals(1, transport.write(ByteBuffer.allocate(1)));
+	}
+
+	@Test
+	public void testClose_QueuedBytesAreWritten() throws Exception {
+
+		if (!AsyncSocketTransport.isSupported()) {
+			return;
+		}
+
+		transport.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+		transport.close();
+		assertFalse(transport.isOpen());
+
+		ByteBuffer dst = ByteBuffer.allocate(10);
+		int count = 0;
+		while (count >= 0) {
+			count = peer.read(dst);
+		}
+		assertArrayEquals(new byte[] { 1, 2, 3 }, bytes(dst));
+	}
+
+	@Test
+	public void testRead_PeerClosed() throws Exception {
+
+		if (!AsyncSocketTransport.isSupported()) {
+			return;
+		}
+
+		transport.register(selector, SelectionKey.OP_READ, this);
+		peer.write(ByteBuffer.wrap(new byte[] { 1 }));
+		peer.close();
+
+		ByteBuffer dst = ByteBuffer.allocate(10);
+		int count = 0;
+		while (count >= 0) {
+			assertEquals(1, selector.select(5000));
+			selector.selectedKeys().clear();
+			count = transport.read(dst);
+		}
+		assertArrayEquals(new byte[] { 1 }, bytes(dst));
+	}
+
+	@Test(expected = ClosedChannelException.class)
+	public void testRead_Closed() throws Exception {
+
+		if (!AsyncSocketTransport.isSupported()) {
+			throw new ClosedChannelException();
+		}
+
+		transport.close();
+		transport.read(ByteBuffer.allocate(1));
+	}
+
+	@Test
+	public void testNewGroup_NotSupported() throws Exception {
+
+		if (AsyncSocketTransport.isSupported()) {
+			return;
+		}
+
+		try {
+			AsyncSocketTransport.newGroup(1);
+			fail("expected exception");
+		} catch (UnsupportedOperationException e) {
+		} catch (IOException e) {
+			fail("unexpected exception");
+		}
+	}
+
+	private byte[] bytes(ByteBuffer buffer) {
+
+		buffer.flip();
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		buffer.clear();
+		return bytes;
+	}
+}
@@ -0,0 +1,152 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+	BufferPool pool = new BufferPool(false);
+	BufferPool directPool = new BufferPool(true);
+
+	@Test
+	public void testSizeClass() {
+
+		assertEquals(0, BufferPool.sizeClass(0));
+		assertEquals(0, BufferPool.sizeClass(1));
+		assertEquals(0, BufferPool.sizeClass(64));
+		assertEquals(1, BufferPool.sizeClass(65));
+		assertEquals(1, BufferPool.sizeClass(128));
+		assertEquals(2, BufferPool.sizeClass(129));
+		assertEquals(10, BufferPool.sizeClass(64 * 1024));
+		assertEquals(-1, BufferPool.sizeClass(64 * 1024 + 1));
+	}
+
+	@Test
+	public void testAllocate() {
+
+		ByteBuffer buffer = pool.allocate(100);
+
+		assertEquals(0, buffer.position());
+		assertEquals(100, buffer.limit());
+		assertEquals(128, buffer.capacity());
+	}
+
+	@Test
+	public void testAllocate_TooLarge() {
+
+		ByteBuffer buffer = pool.allocate(100000);
+
+		assertEquals(0, buffer.position());
+		assertEquals(100000, buffer.limit());
+		assertEquals(100000, buffer.capacity());
+	}
+
+	@Test
+	public void testRelease_ReusedBySameSizeClass() {
+
+		ByteBuffer buffer = pool.allocate(100);
+		buffer.position(50);
+		pool.release(buffer);
+
+		ByteBuffer buffer2 = pool.allocate(70);
+		assertSame(buffer, buffer2);
+		assertEquals(0, buffer2.position());
+		assertEquals(70, buffer2.limit());
+	}
+
+	@Test
+	public void testRelease_NotReusedByOtherSizeClass() {
+
+		ByteBuffer buffer = pool.allocate(100);
+		pool.release(buffer);
+
+		assertNotSame(buffer, pool.allocate(10));
+		assertNotSame(buffer, pool.allocate(200));
+	}
+
+	@Test
+	public void testRelease_TooLarge() {
+
+		ByteBuffer buffer = pool.allocate(100000);
+		pool.release(buffer);
+
+		assertNotSame(buffer, pool.allocate(100000));
+	}
+
+	@Test
+	public void testRelease_NotSizeClassCapacity() {
+
+		ByteBuffer buffer = ByteBuffer.allocate(100);
+		pool.release(buffer);
+
+		assertNotSame(buffer, pool.allocate(100));
+	}
+
+	@Test
+	public void testRelease_FromOtherThread() throws Exception {
+
+		final AtomicReference<ByteBuffer> buffer = new AtomicReference<ByteBuffer>();
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				buffer.set(pool.allocate(1000));
+			}
+		};
+		thread.start();
+		thread.join();
+
+		pool.release(buffer.get());
+		assertSame(buffer.get(), pool.allocate(1000));
+	}
+
+	@Test
+	public void testAllocate_Direct() {
+
+		ByteBuffer buffer = directPool.allocate(100);
+
+		assertTrue(buffer.isDirect());
+		assertEquals(0, buffer.position());
+		assertEquals(100, buffer.limit());
+		assertEquals(128, buffer.capacity());
+
+		directPool.release(buffer);
+		assertSame(buffer, directPool.allocate(70));
+	}
+
+	@Test
+	public void testAllocate_Direct_TooLarge() {
+
+		assertFalse(directPool.allocate(100000).isDirect());
+	}
+
+	@Test
+	public void testRelease_OtherBufferKind() {
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(128);
+		pool.release(buffer);
+		assertNotSame(buffer, pool.allocate(100));
+
+		buffer = ByteBuffer.allocate(128);
+		directPool.release(buffer);
+		assertNotSame(buffer, directPool.allocate(100));
+	}
+}
@@ -19,13 +19,20 @@ import static org.junit.Assert.*;
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
 
+import java.io.File;
 import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.URI;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import net.xenqtt.MqttCommandCancelledException;
 import net.xenqtt.MqttException;
 import net.xenqtt.MqttInvocationException;
 import net.xenqtt.client.MessageStats;
@@ -48,6 +55,7 @@ import net.xenqtt.mock.MockMessageHandler;
 import net.xenqtt.mock.MockServer;
 
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.MockitoAnnotations;
@@ -73,7 +81,9 @@ public class ChannelManagerImplTest {
 	@After
 	public void after() {
 
-		manager.shutdown();
+		if (manager != null) {
+			manager.shutdown();
+		}
 		server.close();
 	}
 
@@ -125,6 +135,35 @@ public class ChannelManagerImplTest {
 		brokerHandler.assertChannelClosedCount(1);
 	}
 
+	@Test
+	public void testShutdown_Millis_TimesOut() throws Exception {
+
+		final CountDownLatch closedLatch = new CountDownLatch(1);
+		MessageHandler blockingHandler = mock(MessageHandler.class);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				closedLatch.await();
+				return null;
+			}
+		}).when(blockingHandler).channelClosed(any(MqttChannel.class), any(Throwable.class));
+
+		manager = new ChannelManagerImpl(2);
+		manager.init();
+
+		clientChannel = manager.newClientChannel("localhost", server.getPort(), clientHandler);
+		brokerChannel = manager.newBrokerChannel(server.nextClient(1000), blockingHandler);
+
+		long start = System.currentTimeMillis();
+		assertFalse(manager.shutdown(100));
+		assertTrue(System.currentTimeMillis() - start >= 100);
+		assertTrue(manager.isRunning());
+
+		closedLatch.countDown();
+		assertTrue(manager.shutdown(5000));
+		assertFalse(manager.isRunning());
+	}
+
 	@Test
 	public void testShutdownClosesAll_Blocking() throws Exception {
 
@@ -169,6 +208,40 @@ public class ChannelManagerImplTest {
 		verify(channel, timeout(1000)).cancelBlockingCommands();
 	}
 
+	@Test
+	public void testCommands_MoreThanOnePass_NonBlocking() throws Exception {
+		manager = new ChannelManagerImpl(2);
+		manager.init();
+
+		final MqttChannel channel = mock(MqttChannel.class);
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < ChannelManagerImpl.MAX_COMMANDS_PER_PASS; j++) {
+						manager.cancelBlockingCommands(channel);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		verify(channel, timeout(5000).times(threads.length * ChannelManagerImpl.MAX_COMMANDS_PER_PASS)).cancelBlockingCommands();
+	}
+
+	@Test(expected = MqttCommandCancelledException.class)
+	public void testCommand_AfterShutdown_Blocking() throws Exception {
+		manager = new ChannelManagerImpl(2, 0);
+		manager.init();
+		manager.shutdown();
+
+		manager.getUnsentMessages(mock(MqttChannel.class));
+	}
+
 	@Test
 	public void testNewClientChannel_InvalidHost_NonBlocking() throws Exception {
 
@@ -277,7 +350,7 @@ public class ChannelManagerImplTest {
 			clientChannel = manager.newClientChannel("http://localhost:3456", clientHandler);
 			fail("expected exception");
 		} catch (MqttException e) {
-			assertEquals("Invalid broker URI (scheme must be 'tcp'): http://localhost:3456", e.getMessage());
+			assertEquals("Invalid broker URI (scheme must be 'tcp', 'ssl', 'unix', 'shm', or 'mem'): http://localhost:3456", e.getMessage());
 		}
 
 		clientHandler.assertChannelOpenedCount(0);
@@ -296,7 +369,7 @@ public class ChannelManagerImplTest {
 			clientChannel = manager.newClientChannel("http://localhost:3456", clientHandler);
 			fail("expected exception");
 		} catch (MqttException e) {
-			assertEquals("Invalid broker URI (scheme must be 'tcp'): http://localhost:3456", e.getMessage());
+			assertEquals("Invalid broker URI (scheme must be 'tcp', 'ssl', 'unix', 'shm', or 'mem'): http://localhost:3456", e.getMessage());
 		}
 
 		clientHandler.assertChannelOpenedCount(0);
@@ -372,9 +445,14 @@ public class ChannelManagerImplTest {
 		manager = new ChannelManagerImpl(2);
 		manager.init();
 
+		// a non-blocking client channel is opened once the IO thread finishes the connect, which can be after the server accepts it
+		CountDownLatch openedTrigger = new CountDownLatch(1);
+		clientHandler.onChannelOpened(openedTrigger);
+
 		clientChannel = manager.newClientChannel("localhost", server.getPort(), clientHandler);
 		brokerChannel = manager.newBrokerChannel(server.nextClient(1000), brokerHandler);
 
+		assertTrue(openedTrigger.await(1, TimeUnit.SECONDS));
 		clientHandler.assertChannelOpenedCount(1);
 		brokerHandler.assertChannelOpenedCount(1);
 		clientHandler.assertChannelClosedCount(0);
@@ -396,6 +474,326 @@ public class ChannelManagerImplTest {
 		brokerHandler.assertChannelClosedCount(0);
 	}
 
+	@Test
+	public void testAcceptBrokerChannels() throws Exception {
+
+		manager = new ChannelManagerImpl(2);
+		manager.init();
+
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.socket().bind(new InetSocketAddress(0));
+			manager.acceptBrokerChannels(serverChannel, brokerHandler);
+			assertFalse(serverChannel.isBlocking());
+
+			CountDownLatch trigger = new CountDownLatch(1);
+			brokerHandler.onMessage(MessageType.PUBACK, trigger);
+
+			clientChannel = manager.newClientChannel("localhost", serverChannel.socket().getLocalPort(), clientHandler);
+			manager.send(clientChannel, new PubAckMessage(1));
+
+			assertTrue(trigger.await(1, TimeUnit.SECONDS));
+			brokerHandler.assertChannelOpenedCount(1);
+			brokerHandler.assertMessages(new PubAckMessage(1));
+		} finally {
+			serverChannel.close();
+		}
+	}
+
+	@Test
+	public void testAcceptBrokerChannels_MultipleIoThreadsAndAcceptors() throws Exception {
+
+		manager = new ChannelManagerImpl(2, -1, new ChannelManagerConfig().setIoThreadCount(3).setAcceptorCount(2));
+		manager.init();
+
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.socket().bind(new InetSocketAddress(0), 100);
+			manager.acceptBrokerChannels(serverChannel, brokerHandler);
+
+			CountDownLatch trigger = new CountDownLatch(20);
+			brokerHandler.onChannelOpened(trigger);
+
+			for (int i = 0; i < 20; i++) {
+				manager.newClientChannel("localhost", serverChannel.socket().getLocalPort(), clientHandler);
+			}
+
+			assertTrue(trigger.await(5, TimeUnit.SECONDS));
+		} finally {
+			serverChannel.close();
+		}
+	}
+
+	@Test
+	public void testAcceptMemoryBrokerChannels() throws Exception {
+
+		manager = new ChannelManagerImpl(2);
+		manager.init();
+		manager.acceptMemoryBrokerChannels("testAcceptMemoryBrokerChannels", brokerHandler);
+
+		CountDownLatch trigger = new CountDownLatch(1);
+		brokerHandler.onMessage(MessageType.PUBACK, trigger);
+		CountDownLatch closedTrigger = new CountDownLatch(1);
+		brokerHandler.onChannelClosed(closedTrigger);
+
+		clientChannel = manager.newClientChannel("mem://testAcceptMemoryBrokerChannels", clientHandler);
+		manager.send(clientChannel, new PubAckMessage(1));
+
+		assertTrue(trigger.await(1, TimeUnit.SECONDS));
+		clientHandler.assertChannelOpenedCount(1);
+		brokerHandler.assertChannelOpenedCount(1);
+		brokerHandler.assertMessages(new PubAckMessage(1));
+
+		manager.close(clientChannel);
+
+		assertTrue(closedTrigger.await(1, TimeUnit.SECONDS));
+		brokerHandler.assertChannelClosedCount(1);
+	}
+
+	@Test
+	public void testAcceptMemoryBrokerChannels_MoreThanMaxQueuedBytes() throws Exception {
+
+		manager = new ChannelManagerImpl(2);
+		manager.init();
+		manager.acceptMemoryBrokerChannels("testAcceptMemoryBrokerChannels_MoreThanMaxQueuedBytes", brokerHandler);
+
+		CountDownLatch trigger = new CountDownLatch(20);
+		brokerHandler.onMessage(MessageType.PUBLISH, trigger);
+
+		clientChannel = manager.newClientChannel("mem://testAcceptMemoryBrokerChannels_MoreThanMaxQueuedBytes", clientHandler);
+		for (int i = 0; i < 20; i++) {
+			manager.send(clientChannel, new PubMessage(QoS.AT_MOST_ONCE, false, "foo", 0, new byte[100 * 1024]));
+		}
+
+		// 2 MB only gets through the bounded queue if the writer is woken as the reader makes room
+		assertTrue(20 * 100 * 1024 > MemoryTransport.MAX_QUEUED_BYTES);
+		assertTrue(trigger.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testAcceptMemoryBrokerChannels_NameInUse() throws Exception {
+
+		manager = new ChannelManagerImpl(2);
+		manager.init();
+		manager.acceptMemoryBrokerChannels("testAcceptMemoryBrokerChannels_NameInUse", brokerHandler);
+
+		ChannelManagerImpl otherManager = new ChannelManagerImpl(2);
+		otherManager.init();
+		try {
+			otherManager.acceptMemoryBrokerChannels("testAcceptMemoryBrokerChannels_NameInUse", brokerHandler);
+			fail("expected exception");
+		} catch (MqttException e) {
+		}
+
+		// shutting down releases the name
+		manager.shutdown();
+		manager = otherManager;
+		manager.acceptMemoryBrokerChannels("testAcceptMemoryBrokerChannels_NameInUse", brokerHandler);
+	}
+
+	@Test
+	public void testAcceptSharedMemoryBrokerChannels() throws Exception {
+
+		Assume.assumeTrue(SharedMemoryTransport.isSupported());
+
+		File path = File.createTempFile("ChannelManagerImplTest", ".broker");
+		path.delete();
+
+		manager = new ChannelManagerImpl(2);
+		manager.init();
+		manager.acceptSharedMemoryBrokerChannels(path.getPath(), brokerHandler);
+		assertTrue(path.exists());
+
+		CountDownLatch trigger = new CountDownLatch(1);
+		brokerHandler.onMessage(MessageType.PUBACK, trigger);
+		CountDownLatch closedTrigger = new CountDownLatch(1);
+		brokerHandler.onChannelClosed(closedTrigger);
+
+		clientChannel = manager.newClientChannel("shm://" + path.getPath(), clientHandler);
+		manager.send(clientChannel, new PubAckMessage(1));
+
+		assertTrue(trigger.await(1, TimeUnit.SECONDS));
+		clientHandler.assertChannelOpenedCount(1);
+		brokerHandler.assertChannelOpenedCount(1);
+		brokerHandler.assertMessages(new PubAckMessage(1));
+
+		manager.close(clientChannel);
+
+		assertTrue(closedTrigger.await(1, TimeUnit.SECONDS));
+		brokerHandler.assertChannelClosedCount(1);
+
+		manager.shutdown();
+		assertFalse(path.exists());
+	}
+
+	@Test
+	public void testAcceptSharedMemoryBrokerChannels_MoreThanRingCapacity() throws Exception {
+
+		Assume.assumeTrue(SharedMemoryTransport.isSupported());
+
+		File path = File.createTempFile("ChannelManagerImplTest", ".broker");
+		path.delete();
+
+		manager = new ChannelManagerImpl(2);
+		manager.init();
+		manager.acceptSharedMemoryBrokerChannels(path.getPath(), brokerHandler);
+
+		CountDownLatch trigger = new CountDownLatch(20);
+		brokerHandler.onMessage(MessageType.PUBLISH, trigger);
+
+		clientChannel = manager.newClientChannel("shm://" + path.getPath(), clientHandler);
+		for (int i = 0; i < 20; i++) {
+			manager.send(clientChannel, new PubMessage(QoS.AT_MOST_ONCE, false, "foo", 0, new byte[100 * 1024]));
+		}
+
+		// 2 MB through a 256 KB ring only gets through if the writer is woken as the reader frees space
+		assertTrue(20 * 100 * 1024 > SharedMemoryTransport.RING_CAPACITY);
+		assertTrue(trigger.await(5, TimeUnit.SECONDS));
+
+		manager.shutdown();
+	}
+
+	@Test
+	public void testAcceptSharedMemoryBrokerChannels_PathInUse() throws Exception {
+
+		File path = File.createTempFile("ChannelManagerImplTest", ".broker");
+		try {
+			manager = new ChannelManagerImpl(2);
+			manager.init();
+			manager.acceptSharedMemoryBrokerChannels(path.getPath(), brokerHandler);
+			fail("expected exception");
+		} catch (MqttException e) {
+		} finally {
+			path.delete();
+		}
+	}
+
+	@Test
+	public void testAcceptSharedMemoryBrokerChannels_NotSupported() throws Exception {
+
+		Assume.assumeFalse(SharedMemoryTransport.isSupported());
+
+		manager = new ChannelManagerImpl(2);
+		manager.init();
+
+		try {
+			manager.acceptSharedMemoryBrokerChannels("/tmp/testAcceptSharedMemoryBrokerChannels_NotSupported", brokerHandler);
+			fail("expected exception");
+		} catch (MqttException e) {
+			assertEquals("Shared memory connections are not supported on this host: /tmp/testAcceptSharedMemoryBrokerChannels_NotSupported", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testNewClientChannel_MemoryUri_NoBroker() throws Exception {
+
+		manager = new ChannelManagerImpl(2);
+		manager.init();
+
+		CountDownLatch trigger = new CountDownLatch(1);
+		clientHandler.onChannelClosed(trigger);
+
+		try {
+			clientChannel = manager.newClientChannel("mem://testNewClientChannel_MemoryUri_NoBroker", clientHandler);
+			fail("expected exception");
+		} catch (MqttInvocationException e) {
+		}
+
+		assertTrue(trigger.await(1, TimeUnit.SECONDS));
+
+		clientHandler.assertLastChannelClosedCause(ConnectException.class);
+	}
+
+	@Test
+	public void testNewClientChannel_AsyncIo() throws Exception {
+
+		manager = new ChannelManagerImpl(2, -1, new ChannelManagerConfig().setAsyncIoThreadCount(2));
+		manager.init();
+
+		CountDownLatch trigger = new CountDownLatch(1);
+		brokerHandler.onMessage(MessageType.PUBACK, trigger);
+		CountDownLatch clientTrigger = new CountDownLatch(1);
+		clientHandler.onMessage(MessageType.PUBACK, clientTrigger);
+
+		clientChannel = manager.newClientChannel("localhost", server.getPort(), clientHandler);
+		brokerChannel = manager.newBrokerChannel(server.nextClient(1000), brokerHandler);
+
+		manager.send(clientChannel, new PubAckMessage(1));
+		assertTrue(trigger.await(1, TimeUnit.SECONDS));
+		brokerHandler.assertMessages(new PubAckMessage(1));
+
+		manager.send(brokerChannel, new PubAckMessage(2));
+		assertTrue(clientTrigger.await(1, TimeUnit.SECONDS));
+		clientHandler.assertMessages(new PubAckMessage(2));
+
+		CountDownLatch closedTrigger = new CountDownLatch(1);
+		brokerHandler.onChannelClosed(closedTrigger);
+		manager.close(clientChannel);
+		assertTrue(closedTrigger.await(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testIdleStrategy_BusySpin() throws Exception {
+		doTestIdleStrategy(IdleStrategy.BUSY_SPIN);
+	}
+
+	@Test
+	public void testIdleStrategy_Yield() throws Exception {
+		doTestIdleStrategy(IdleStrategy.YIELD);
+	}
+
+	@Test
+	public void testIdleStrategy_ParkBackoff() throws Exception {
+		doTestIdleStrategy(IdleStrategy.PARK_BACKOFF);
+	}
+
+	@Test
+	public void testNewClientChannel_UnixUri_NotSupported() throws Exception {
+
+		Assume.assumeFalse(UnixSockets.isSupported());
+
+		manager = new ChannelManagerImpl(2);
+		manager.init();
+
+		try {
+			clientChannel = manager.newClientChannel("unix:///tmp/testNewClientChannel_UnixUri.sock", clientHandler);
+			fail("expected exception");
+		} catch (MqttException e) {
+			assertEquals("UNIX domain sockets are not supported by this JVM: unix:///tmp/testNewClientChannel_UnixUri.sock", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testNewClientChannel_UnixUri() throws Exception {
+
+		Assume.assumeTrue(UnixSockets.isSupported());
+
+		manager = new ChannelManagerImpl(2);
+		manager.init();
+
+		File socketFile = File.createTempFile("ChannelManagerImplTest", ".sock");
+		socketFile.delete();
+		ServerSocketChannel unixServer = UnixSockets.openServerChannel();
+		try {
+			UnixSockets.bind(unixServer, UnixSockets.address(socketFile.getAbsolutePath()), 0);
+			manager.acceptBrokerChannels(unixServer, brokerHandler);
+
+			CountDownLatch trigger = new CountDownLatch(1);
+			brokerHandler.onMessage(MessageType.PUBACK, trigger);
+
+			clientChannel = manager.newClientChannel("unix://" + socketFile.getAbsolutePath(), clientHandler);
+			manager.send(clientChannel, new PubAckMessage(1));
+
+			assertTrue(trigger.await(1, TimeUnit.SECONDS));
+			clientHandler.assertChannelOpenedCount(1);
+			brokerHandler.assertChannelOpenedCount(1);
+			brokerHandler.assertMessages(new PubAckMessage(1));
+		} finally {
+			unixServer.close();
+			socketFile.delete();
+		}
+	}
+
 	@Test
 	public void testSend_NonBlocking() throws Exception {
 
@@ -439,6 +837,72 @@ public class ChannelManagerImplTest {
 		assertEquals(0, manager.getStats(false).getMessagesSent());
 	}
 
+	@Test
+	public void testInit_IsRunning_Shutdown_MultipleIoThreads() throws Exception {
+
+		manager = new ChannelManagerImpl(10, -1, 3);
+		assertFalse(manager.isRunning());
+		manager.init();
+		assertTrue(manager.isRunning());
+		manager.shutdown();
+		assertFalse(manager.isRunning());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCtor_ZeroIoThreads() throws Exception {
+
+		manager = new ChannelManagerImpl(10, -1, 3);
+		new ChannelManagerImpl(10, -1, 0);
+	}
+
+	@Test
+	public void testSend_MultipleIoThreads() throws Exception {
+
+		manager = new ChannelManagerImpl(2, -1, 2);
+		manager.init();
+
+		CountDownLatch trigger = new CountDownLatch(1);
+		brokerHandler.onMessage(MessageType.PUBACK, trigger);
+
+		clientChannel = manager.newClientChannel("localhost", server.getPort(), clientHandler);
+		brokerChannel = manager.newBrokerChannel(server.nextClient(1000), brokerHandler);
+
+		assertNull(manager.send(clientChannel, new PubAckMessage(1)));
+		assertTrue(trigger.await(1, TimeUnit.SECONDS));
+		brokerHandler.assertMessages(new PubAckMessage(1));
+
+		trigger = new CountDownLatch(1);
+		clientHandler.onMessage(MessageType.PUBACK, trigger);
+
+		assertNull(manager.send(brokerChannel, new PubAckMessage(2)));
+		assertTrue(trigger.await(1, TimeUnit.SECONDS));
+		clientHandler.assertMessages(new PubAckMessage(2));
+
+		// the client and broker channel are on different threads so the stats come from both
+		MessageStats stats = manager.getStats(true);
+		assertEquals(2, stats.getMessagesSent());
+		assertEquals(2, stats.getMessagesReceived());
+		assertEquals(0, manager.getStats(false).getMessagesSent());
+	}
+
+	@Test
+	public void testShutdownClosesAll_MultipleIoThreads() throws Exception {
+
+		manager = new ChannelManagerImpl(2, 0, 2);
+		manager.init();
+
+		clientChannel = manager.newClientChannel("localhost", server.getPort(), clientHandler);
+		brokerChannel = manager.newBrokerChannel(server.nextClient(1000), brokerHandler);
+
+		clientHandler.assertChannelClosedCount(0);
+		brokerHandler.assertChannelClosedCount(0);
+
+		manager.shutdown();
+
+		clientHandler.assertChannelClosedCount(1);
+		brokerHandler.assertChannelClosedCount(1);
+	}
+
 	@Test
 	public void testSend_Blocking_NonAckableMessage() throws Exception {
 
@@ -490,6 +954,169 @@ public class ChannelManagerImplTest {
 		assertEquals(2, stats.getMessagesSent()); // One for the sub and the other for the ack.
 	}
 
+	@Test
+	public void testSendAsync_NonAckableMessage() throws Exception {
+
+		manager = new ChannelManagerImpl(2, 0);
+		manager.init();
+
+		clientChannel = manager.newClientChannel("localhost", server.getPort(), clientHandler);
+		brokerChannel = manager.newBrokerChannel(server.nextClient(1000), brokerHandler);
+
+		Future<MqttMessage> future = manager.sendAsync(clientChannel, new PubAckMessage(1));
+		assertNull(future.get(1, TimeUnit.SECONDS));
+		assertTrue(future.isDone());
+		assertFalse(future.isCancelled());
+
+		assertEquals(1, manager.getStats(false).getMessagesSent());
+	}
+
+	@Test
+	public void testSendAsync_AckableMessage() throws Exception {
+
+		manager = new ChannelManagerImpl(2);
+		manager.init();
+
+		brokerHandler = mock(MockMessageHandler.class);
+		doAnswer(new Answer<Void>() {
+
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+
+				MqttChannel channel = (MqttChannel) invocation.getArguments()[0];
+				SubscribeMessage msg = (SubscribeMessage) invocation.getArguments()[1];
+				channel.send(new SubAckMessage(msg.getMessageId(), msg.getRequestedQoSes()), null);
+				return null;
+			}
+		}).when(brokerHandler).subscribe(isA(MqttChannel.class), isA(SubscribeMessage.class));
+
+		clientChannel = manager.newClientChannel("localhost", server.getPort(), clientHandler);
+		brokerChannel = manager.newBrokerChannel(server.nextClient(1000), brokerHandler);
+
+		Future<SubAckMessage> future = manager.sendAsync(clientChannel, new SubscribeMessage(1, new String[] { "foo" }, new QoS[] { QoS.AT_LEAST_ONCE }));
+		SubAckMessage ack = future.get(1, TimeUnit.SECONDS);
+		assertEquals(1, ack.getMessageId());
+		assertArrayEquals(new QoS[] { QoS.AT_LEAST_ONCE }, ack.getGrantedQoses());
+	}
+
+	@Test(expected = CancellationException.class)
+	public void testSendAsync_AfterShutdown() throws Exception {
+
+		manager = new ChannelManagerImpl(2, 0);
+		manager.init();
+
+		MqttChannel channel = mock(MqttChannel.class);
+		manager.shutdown();
+
+		manager.sendAsync(channel, new PubAckMessage(1)).get(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testSendBatch_NonBlocking() throws Exception {
+
+		manager = new ChannelManagerImpl(2);
+		manager.init();
+
+		CountDownLatch trigger = new CountDownLatch(2);
+		brokerHandler.onMessage(MessageType.PUBACK, trigger);
+
+		clientChannel = manager.newClientChannel("localhost", server.getPort(), clientHandler);
+		brokerChannel = manager.newBrokerChannel(server.nextClient(1000), brokerHandler);
+
+		assertNull(manager.send(clientChannel, Arrays.asList(new PubAckMessage(1), new PubAckMessage(2))));
+
+		assertTrue(trigger.await(1, TimeUnit.SECONDS));
+
+		brokerHandler.assertMessages(new PubAckMessage(1), new PubAckMessage(2));
+
+		assertEquals(2, manager.getStats(false).getMessagesSent());
+	}
+
+	@Test
+	public void testSendBatch_Blocking_Empty() throws Exception {
+
+		manager = new ChannelManagerImpl(2, 0);
+		manager.init();
+
+		clientChannel = manager.newClientChannel("localhost", server.getPort(), clientHandler);
+		brokerChannel = manager.newBrokerChannel(server.nextClient(1000), brokerHandler);
+
+		assertEquals(0, manager.send(clientChannel, new ArrayList<MqttMessage>()).size());
+	}
+
+	@Test
+	public void testSendBatch_Blocking_AckableAndNonAckableMessages() throws Exception {
+
+		manager = new ChannelManagerImpl(2, 0);
+		manager.init();
+
+		brokerHandler = mock(MockMessageHandler.class);
+		doAnswer(new Answer<Void>() {
+
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+
+				MqttChannel channel = (MqttChannel) invocation.getArguments()[0];
+				SubscribeMessage msg = (SubscribeMessage) invocation.getArguments()[1];
+				channel.send(new SubAckMessage(msg.getMessageId(), msg.getRequestedQoSes()), null);
+				return null;
+			}
+		}).when(brokerHandler).subscribe(isA(MqttChannel.class), isA(SubscribeMessage.class));
+
+		clientChannel = manager.newClientChannel("localhost", server.getPort(), clientHandler);
+		brokerChannel = manager.newBrokerChannel(server.nextClient(1000), brokerHandler);
+
+		List<MqttMessage> acks = manager.send(clientChannel, Arrays.asList(new SubscribeMessage(1, new String[] { "foo" }, new QoS[] { QoS.AT_LEAST_ONCE }),
+				new PubAckMessage(7), new SubscribeMessage(2, new String[] { "bar" }, new QoS[] { QoS.AT_MOST_ONCE })));
+
+		assertEquals(3, acks.size());
+		assertEquals(1, ((SubAckMessage) acks.get(0)).getMessageId());
+		assertArrayEquals(new QoS[] { QoS.AT_LEAST_ONCE }, ((SubAckMessage) acks.get(0)).getGrantedQoses());
+		assertNull(acks.get(1));
+		assertEquals(2, ((SubAckMessage) acks.get(2)).getMessageId());
+		assertArrayEquals(new QoS[] { QoS.AT_MOST_ONCE }, ((SubAckMessage) acks.get(2)).getGrantedQoses());
+
+		assertEquals(5, manager.getStats(false).getMessagesSent());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testSendBatch_Blocking_FailureCauseCleared() throws Exception {
+
+		manager = new ChannelManagerImpl(2, 0);
+		manager.init();
+
+		// clearing the failure cause, as moving an unsent message to a reconnected channel does, does not complete the batch
+		final List<BlockingCommand<MqttMessage>> parts = new ArrayList<BlockingCommand<MqttMessage>>();
+		MqttChannel channel = mock(MqttChannel.class);
+		doAnswer(new Answer<Boolean>() {
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public Boolean answer(InvocationOnMock invocation) throws Throwable {
+
+				PubAckMessage message = (PubAckMessage) invocation.getArguments()[0];
+				BlockingCommand<MqttMessage> command = (BlockingCommand<MqttMessage>) invocation.getArguments()[1];
+				parts.add(command);
+				command.setFailureCause(null);
+				command.setResult(new PubCompMessage(message.getMessageId()));
+				command.complete();
+				return true;
+			}
+		}).when(channel).send(isA(MqttMessage.class), isA(BlockingCommand.class));
+
+		List<MqttMessage> acks = manager.send(channel, Arrays.asList(new PubAckMessage(1), new PubAckMessage(2)));
+
+		assertEquals(2, acks.size());
+		assertEquals(new PubCompMessage(1), acks.get(0));
+		assertEquals(new PubCompMessage(2), acks.get(1));
+
+		// each part is a command in its own right
+		assertEquals(2, parts.size());
+		assertEquals(new PubCompMessage(1), parts.get(0).await(1, TimeUnit.SECONDS));
+		assertEquals(new PubCompMessage(2), parts.get(1).await());
+	}
+
 	@Test
 	public void testGetUnsentMessages_Blocking() throws Exception {
 
@@ -670,10 +1297,16 @@ public class ChannelManagerImplTest {
 		clientHandler.assertChannelClosedCount(0);
 		brokerHandler.assertChannelClosedCount(0);
 
+		CountDownLatch brokerClosedTrigger = new CountDownLatch(1);
+		brokerHandler.onChannelClosed(brokerClosedTrigger);
+
 		manager.close(clientChannel);
 		clientHandler.assertChannelClosedCount(1);
 		clientHandler.assertLastChannelClosedCause((Throwable) null);
-		brokerHandler.assertChannelClosedCount(0);
+
+		// the broker channel closes itself once the IO thread reads the end of stream the client's close sent it
+		assertTrue(brokerClosedTrigger.await(1, TimeUnit.SECONDS));
+		brokerHandler.assertChannelClosedCount(1);
 
 		manager.close(brokerChannel);
 		clientHandler.assertChannelClosedCount(1);
@@ -694,11 +1327,17 @@ public class ChannelManagerImplTest {
 		brokerHandler.assertChannelClosedCount(0);
 
 		Exception cause = new Exception();
+		CountDownLatch brokerClosedTrigger = new CountDownLatch(1);
+		brokerHandler.onChannelClosed(brokerClosedTrigger);
 
 		manager.close(clientChannel, cause);
 		clientHandler.assertChannelClosedCount(1);
 		clientHandler.assertLastChannelClosedCause(cause);
-		brokerHandler.assertChannelClosedCount(0);
+
+		// the broker channel closes itself, without the cause, once the IO thread reads the end of stream the client's close sent it
+		assertTrue(brokerClosedTrigger.await(1, TimeUnit.SECONDS));
+		brokerHandler.assertChannelClosedCount(1);
+		brokerHandler.assertLastChannelClosedCause((Throwable) null);
 
 		manager.close(brokerChannel);
 		clientHandler.assertChannelClosedCount(1);
@@ -718,11 +1357,17 @@ public class ChannelManagerImplTest {
 		brokerHandler.assertChannelClosedCount(0);
 
 		Exception cause = new Exception();
+		CountDownLatch brokerClosedTrigger = new CountDownLatch(1);
+		brokerHandler.onChannelClosed(brokerClosedTrigger);
 
 		manager.close(clientChannel, cause);
 		clientHandler.assertChannelClosedCount(1);
 		clientHandler.assertLastChannelClosedCause(cause);
-		brokerHandler.assertChannelClosedCount(0);
+
+		// the broker channel closes itself, without the cause, once the IO thread reads the end of stream the client's close sent it
+		assertTrue(brokerClosedTrigger.await(1, TimeUnit.SECONDS));
+		brokerHandler.assertChannelClosedCount(1);
+		brokerHandler.assertLastChannelClosedCause((Throwable) null);
 
 		manager.close(brokerChannel);
 		clientHandler.assertChannelClosedCount(1);
@@ -755,6 +1400,35 @@ public class ChannelManagerImplTest {
 		doTestMessageResend();
 	}
 
+	private void doTestIdleStrategy(IdleStrategy idleStrategy) throws Exception {
+
+		// a small spin count so the IO threads also fall back to blocking select and must be woken
+		manager = new ChannelManagerImpl(2, -1, new ChannelManagerConfig().setIdleStrategy(idleStrategy).setIdleSpinCount(10));
+		manager.init();
+
+		clientChannel = manager.newClientChannel("localhost", server.getPort(), clientHandler);
+		brokerChannel = manager.newBrokerChannel(server.nextClient(1000), brokerHandler);
+
+		for (int i = 1; i <= 5; i++) {
+			CountDownLatch trigger = new CountDownLatch(1);
+			brokerHandler.onMessage(MessageType.PUBACK, trigger);
+			CountDownLatch clientTrigger = new CountDownLatch(1);
+			clientHandler.onMessage(MessageType.PUBACK, clientTrigger);
+
+			manager.send(clientChannel, new PubAckMessage(i));
+			assertTrue(trigger.await(1, TimeUnit.SECONDS));
+			brokerHandler.assertMessages(new PubAckMessage(i));
+
+			manager.send(brokerChannel, new PubAckMessage(i));
+			assertTrue(clientTrigger.await(1, TimeUnit.SECONDS));
+			clientHandler.assertMessages(new PubAckMessage(i));
+
+			brokerHandler.clearMessages();
+			clientHandler.clearMessages();
+			Thread.sleep(20);
+		}
+	}
+
 	private void doTestKeepAlive() throws Exception {
 
 		manager.init();
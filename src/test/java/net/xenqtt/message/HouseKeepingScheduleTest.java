@@ -0,0 +1,154 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HouseKeepingScheduleTest {
+
+	HouseKeepingSchedule schedule = new HouseKeepingSchedule();
+	MqttChannel channel1 = mock(MqttChannel.class);
+	MqttChannel channel2 = mock(MqttChannel.class);
+	MqttChannel channel3 = mock(MqttChannel.class);
+
+	@Test
+	public void testEmpty() {
+
+		assertEquals(Long.MAX_VALUE, schedule.nextTime());
+		assertNull(schedule.poll(Long.MAX_VALUE));
+		assertFalse(schedule.contains(channel1));
+	}
+
+	@Test
+	public void testPoll_InTimeOrder() {
+
+		schedule.schedule(channel1, 300);
+		schedule.schedule(channel2, 100);
+		schedule.schedule(channel3, 200);
+
+		assertEquals(100, schedule.nextTime());
+		assertNull(schedule.poll(99));
+		assertSame(channel2, schedule.poll(300));
+		assertSame(channel3, schedule.poll(300));
+		assertSame(channel1, schedule.poll(300));
+		assertNull(schedule.poll(300));
+		assertEquals(Long.MAX_VALUE, schedule.nextTime());
+
+		// polled channels stay in the schedule until removed
+		assertTrue(schedule.contains(channel1));
+		assertTrue(schedule.contains(channel2));
+		assertTrue(schedule.contains(channel3));
+	}
+
+	@Test
+	public void testSchedule_Reschedule() {
+
+		schedule.schedule(channel1, 100);
+		schedule.schedule(channel2, 200);
+		schedule.schedule(channel1, 300);
+
+		assertEquals(200, schedule.nextTime());
+		assertSame(channel2, schedule.poll(1000));
+		assertSame(channel1, schedule.poll(1000));
+		assertNull(schedule.poll(1000));
+	}
+
+	@Test
+	public void testExpedite() {
+
+		schedule.schedule(channel1, 100);
+		schedule.schedule(channel2, 200);
+		schedule.expedite(channel2);
+
+		assertSame(channel2, schedule.poll(0));
+		assertNull(schedule.poll(0));
+	}
+
+	@Test
+	public void testExpedite_NotScheduled() {
+
+		schedule.expedite(channel1);
+
+		assertFalse(schedule.contains(channel1));
+		assertNull(schedule.poll(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testRemove() {
+
+		schedule.schedule(channel1, 100);
+		schedule.schedule(channel2, 200);
+		schedule.schedule(channel3, 300);
+
+		schedule.remove(channel1);
+		schedule.remove(channel1);
+
+		assertFalse(schedule.contains(channel1));
+		assertEquals(200, schedule.nextTime());
+		assertSame(channel2, schedule.poll(1000));
+		schedule.remove(channel2);
+		assertFalse(schedule.contains(channel2));
+		assertSame(channel3, schedule.poll(1000));
+		assertNull(schedule.poll(1000));
+	}
+
+	@Test
+	public void testRandomOperations() {
+
+		Random random = new Random(12345);
+		List<MqttChannel> channels = new ArrayList<MqttChannel>();
+		long[] times = new long[200];
+		for (int i = 0; i < times.length; i++) {
+			channels.add(mock(MqttChannel.class));
+			times[i] = -1;
+		}
+
+		for (int i = 0; i < 5000; i++) {
+			int index = random.nextInt(times.length);
+			if (random.nextInt(4) == 0) {
+				schedule.remove(channels.get(index));
+				times[index] = -1;
+			} else {
+				times[index] = random.nextInt(1000);
+				schedule.schedule(channels.get(index), times[index]);
+			}
+		}
+
+		List<Long> expected = new ArrayList<Long>();
+		for (long time : times) {
+			if (time >= 0) {
+				expected.add(time);
+			}
+		}
+		Collections.sort(expected);
+
+		for (Long time : expected) {
+			assertEquals(time.longValue(), schedule.nextTime());
+			MqttChannel channel = schedule.poll(time);
+			assertEquals(time.longValue(), times[channels.indexOf(channel)]);
+		}
+
+		assertNull(schedule.poll(Long.MAX_VALUE));
+	}
+}
@@ -0,0 +1,225 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class InFlightMessageMapTest {
+
+	InFlightMessageMap map = new InFlightMessageMap();
+
+	@Test
+	public void testPutGetRemove() {
+
+		assertTrue(map.isEmpty());
+		assertNull(map.get(1));
+
+		PubAckMessage message1 = new PubAckMessage(1);
+		PubAckMessage message2 = new PubAckMessage(2);
+		assertNull(map.put(message1));
+		assertNull(map.put(message2));
+
+		assertEquals(2, map.size());
+		assertFalse(map.isEmpty());
+		assertSame(message1, map.get(1));
+		assertSame(message2, map.get(2));
+		assertNull(map.get(3));
+
+		assertSame(message1, map.remove(1));
+		assertNull(map.remove(1));
+		assertEquals(1, map.size());
+		assertNull(map.get(1));
+		assertSame(message2, map.get(2));
+	}
+
+	@Test
+	public void testPut_Replace() {
+
+		PubAckMessage message1 = new PubAckMessage(7);
+		PubAckMessage message2 = new PubAckMessage(7);
+		map.put(message1);
+
+		assertSame(message1, map.put(message2));
+		assertEquals(1, map.size());
+		assertSame(message2, map.get(7));
+	}
+
+	@Test
+	public void testPut_SameMessageWithNewId() {
+
+		PubAckMessage message1 = new PubAckMessage(1);
+		PubAckMessage message2 = new PubAckMessage(3);
+		map.put(message1);
+		map.put(message2);
+
+		message1.setMessageId(2);
+		assertNull(map.put(message1));
+
+		assertEquals(2, map.size());
+		assertNull(map.get(1));
+		assertSame(message1, map.get(2));
+		assertSame(message2, map.get(3));
+		assertSame(message2, map.oldest());
+		assertSame(message1, map.newest());
+		assertSame(message1, message2.inFlightNext);
+		assertNull(message1.inFlightNext);
+
+		assertSame(message1, map.put(message1));
+		assertEquals(2, map.size());
+		assertSame(message1, map.newest());
+		assertNull(message1.inFlightNext);
+	}
+
+	@Test
+	public void testClear() {
+
+		for (int i = 0; i < 100; i++) {
+			map.put(new PubAckMessage(i));
+		}
+		map.clear();
+
+		assertEquals(0, map.size());
+		assertNull(map.oldest());
+		assertNull(map.newest());
+		for (int i = 0; i < 100; i++) {
+			assertNull(map.get(i));
+		}
+	}
+
+	@Test
+	public void testOldestNewest_InsertionOrder() {
+
+		assertNull(map.oldest());
+		assertNull(map.newest());
+
+		PubAckMessage message1 = new PubAckMessage(3);
+		PubAckMessage message2 = new PubAckMessage(1);
+		PubAckMessage message3 = new PubAckMessage(2);
+		map.put(message1);
+		map.put(message2);
+		map.put(message3);
+
+		assertSame(message1, map.oldest());
+		assertSame(message3, map.newest());
+		assertSame(message2, message1.inFlightNext);
+		assertSame(message3, message2.inFlightNext);
+		assertNull(message3.inFlightNext);
+
+		map.remove(1);
+		assertSame(message3, message1.inFlightNext);
+		assertSame(message1, message3.inFlightPrevious);
+		assertNull(message2.inFlightNext);
+		assertNull(message2.inFlightPrevious);
+
+		map.remove(3);
+		assertSame(message3, map.oldest());
+		assertSame(message3, map.newest());
+
+		map.remove(2);
+		assertNull(map.oldest());
+		assertNull(map.newest());
+	}
+
+	@Test
+	public void testOldestNewest_ReplacedMessageBecomesNewest() {
+
+		PubAckMessage message1 = new PubAckMessage(1);
+		PubAckMessage message2 = new PubAckMessage(2);
+		PubAckMessage message3 = new PubAckMessage(1);
+		map.put(message1);
+		map.put(message2);
+		map.put(message3);
+
+		assertSame(message2, map.oldest());
+		assertSame(message3, map.newest());
+		assertNull(message1.inFlightNext);
+		assertNull(message1.inFlightPrevious);
+	}
+
+	@Test
+	public void testIterate() {
+
+		for (int i = 1; i <= 100; i++) {
+			map.put(new PubAckMessage(i));
+		}
+
+		int count = 0;
+		for (IdentifiableMqttMessage message = map.oldest(); message != null; message = message.inFlightNext) {
+			assertEquals(++count, message.getMessageId());
+		}
+
+		assertEquals(100, count);
+	}
+
+	@Test
+	public void testAllMessageIds() {
+
+		for (int i = 0; i <= 0xffff; i++) {
+			map.put(new PubAckMessage(i));
+		}
+		assertEquals(0x10000, map.size());
+
+		for (int i = 0; i <= 0xffff; i += 2) {
+			assertEquals(i, map.remove(i).getMessageId());
+		}
+		assertEquals(0x8000, map.size());
+
+		for (int i = 0; i <= 0xffff; i++) {
+			IdentifiableMqttMessage message = map.get(i);
+			if (i % 2 == 0) {
+				assertNull(message);
+			} else {
+				assertEquals(i, message.getMessageId());
+			}
+		}
+	}
+
+	@Test
+	public void testRandomOperations_MatchHashMap() {
+
+		Map<Integer, IdentifiableMqttMessage> expected = new HashMap<Integer, IdentifiableMqttMessage>();
+		Random random = new Random(12345);
+
+		for (int i = 0; i < 100000; i++) {
+			// a small key range with wrapping ids forces collisions and removals in the middle of probe sequences
+			int id = random.nextBoolean() ? random.nextInt(64) : random.nextInt(64) * 1024;
+			if (random.nextInt(3) == 0) {
+				assertSame(expected.remove(id), map.remove(id));
+			} else {
+				PubAckMessage message = new PubAckMessage(id);
+				assertSame(expected.put(id, message), map.put(message));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+
+		int count = 0;
+		for (IdentifiableMqttMessage message = map.oldest(); message != null; message = message.inFlightNext) {
+			assertSame(expected.get(message.getMessageId()), message);
+			count++;
+		}
+		assertEquals(expected.size(), count);
+
+		for (int id = 0; id <= 0xffff; id++) {
+			assertSame(expected.get(id), map.get(id));
+		}
+	}
+}
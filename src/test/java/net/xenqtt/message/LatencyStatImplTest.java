@@ -148,4 +148,35 @@ public class LatencyStatImplTest {
 		assertEquals(4.0, clone.getAverage(), 0.0);
 	}
 
+
+	@Test
+	public void testMerge() {
+		stat.processLatency(4);
+		stat.processLatency(6);
+
+		LatencyStatImpl other = new LatencyStatImpl();
+		other.processLatency(2);
+		other.processLatency(8);
+
+		stat.merge(other);
+		stat.merge(new LatencyStatImpl());
+
+		assertEquals(4, stat.getCount());
+		assertEquals(2, stat.getMin());
+		assertEquals(8, stat.getMax());
+		assertEquals(5.0, stat.getAverage(), 0.0);
+	}
+
+	@Test
+	public void testMerge_IntoEmpty() {
+		LatencyStatImpl other = new LatencyStatImpl();
+		other.processLatency(7);
+		other.processLatency(3);
+
+		stat.merge(other);
+
+		assertEquals(2, stat.getCount());
+		assertEquals(3, stat.getMin());
+		assertEquals(7, stat.getMax());
+	}
 }
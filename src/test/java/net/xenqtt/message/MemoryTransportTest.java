@@ -0,0 +1,234 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MemoryTransportTest {
+
+	final List<MemoryTransport> accepted = new ArrayList<MemoryTransport>();
+	final MemoryTransport.Acceptor acceptor = new MemoryTransport.Acceptor() {
+
+		@Override
+		public void accept(MemoryTransport transport) {
+			accepted.add(transport);
+		}
+	};
+
+	Selector selector;
+	MemoryTransport client;
+	MemoryTransport broker;
+
+	@Before
+	public void setup() throws Exception {
+
+		selector = Selector.open();
+		MemoryTransport.bind("MemoryTransportTest", acceptor);
+
+		client = new MemoryTransport();
+		assertTrue(client.connect(new MemoryTransport.Address("MemoryTransportTest")));
+		assertEquals(1, accepted.size());
+		broker = accepted.get(0);
+	}
+
+	@After
+	public void after() throws Exception {
+
+		MemoryTransport.unbind("MemoryTransportTest", acceptor);
+		client.close();
+		broker.close();
+		selector.close();
+	}
+
+	@Test
+	public void testConnect() throws Exception {
+
+		assertTrue(client.isConnected());
+		assertTrue(broker.isConnected());
+		assertFalse(client.isConnectionPending());
+		assertTrue(client.finishConnect());
+		assertFalse(client.isWriteSelectable());
+
+		assertEquals("mem://MemoryTransportTest", client.getRemoteAddress());
+		assertEquals("mem://MemoryTransportTest", broker.getLocalAddress());
+		assertTrue(client.getLocalAddress().startsWith("mem://MemoryTransportTest#"));
+		assertEquals(client.getLocalAddress(), broker.getRemoteAddress());
+	}
+
+	@Test(expected = ConnectException.class)
+	public void testConnect_NoBroker() throws Exception {
+
+		new MemoryTransport().connect(new MemoryTransport.Address("MemoryTransportTest_NoBroker"));
+	}
+
+	@Test(expected = BindException.class)
+	public void testBind_NameInUse() throws Exception {
+
+		MemoryTransport.bind("MemoryTransportTest", acceptor);
+	}
+
+	@Test
+	public void testUnbind() throws Exception {
+
+		MemoryTransport.unbind("MemoryTransportTest", acceptor);
+		try {
+			new MemoryTransport().connect(new MemoryTransport.Address("MemoryTransportTest"));
+			fail("expected exception");
+		} catch (ConnectException e) {
+		}
+
+		// the existing connection is not affected
+		assertEquals(1, client.write(ByteBuffer.wrap(new byte[] { 1 })));
+	}
+
+	@Test
+	public void testWriteRead_Gathering() throws Exception {
+
+		SelectionKey key = broker.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+		assertEquals(SelectionKey.OP_READ, key.interestOps());
+		assertEquals(0, selector.selectNow());
+
+		ByteBuffer[] buffers = new ByteBuffer[] { ByteBuffer.wrap(new byte[] { 1, 2 }), ByteBuffer.wrap(new byte[] { 3 }) };
+		assertEquals(3, client.write(buffers));
+		assertFalse(buffers[0].hasRemaining());
+		assertFalse(buffers[1].hasRemaining());
+
+		assertEquals(1, selector.selectNow());
+		selector.selectedKeys().clear();
+
+		ByteBuffer dst = ByteBuffer.allocate(10);
+		assertEquals(3, broker.read(dst));
+		assertArrayEquals(new byte[] { 1, 2, 3 }, bytes(dst));
+
+		assertEquals(0, selector.selectNow());
+		assertEquals(0, broker.read(dst));
+	}
+
+	@Test
+	public void testWrite_QueueFull_SignalsWhenRead() throws Exception {
+
+		client.register(selector, SelectionKey.OP_READ, this);
+
+		// nothing reads from the broker end so its queue fills
+		ByteBuffer src = ByteBuffer.allocate(100 * 1024);
+		long written = 0;
+		for (int i = 0; i < 10; i++) {
+			src.clear();
+			long count = client.write(src);
+			if (count == 0) {
+				break;
+			}
+			written += count;
+		}
+		assertEquals(MemoryTransport.MAX_QUEUED_BYTES, written);
+		assertTrue(src.hasRemaining());
+		assertEquals(0, client.write(ByteBuffer.allocate(1)));
+		assertEquals(0, selector.selectNow());
+
+		// reading makes room and signals the writer so it retries
+		assertEquals(1000, broker.read(ByteBuffer.allocate(1000)));
+		assertEquals(1, selector.selectNow());
+		selector.selectedKeys().clear();
+		assertEquals(0, client.read(ByteBuffer.allocate(10)));
+
+		assertEquals(1000, client.write(ByteBuffer.allocate(2000)));
+		assertEquals(0, client.write(ByteBuffer.allocate(1)));
+	}
+
+	@Test
+	public void testRead_PartialReadStaysSelected() throws Exception {
+
+		broker.register(selector, SelectionKey.OP_READ, this);
+		client.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+		client.write(ByteBuffer.wrap(new byte[] { 4, 5 }));
+
+		ByteBuffer dst = ByteBuffer.allocate(4);
+		assertEquals(1, selector.selectNow());
+		selector.selectedKeys().clear();
+		assertEquals(4, broker.read(dst));
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 }, bytes(dst));
+
+		dst.clear();
+		assertEquals(1, selector.selectNow());
+		selector.selectedKeys().clear();
+		assertEquals(1, broker.read(dst));
+		assertArrayEquals(new byte[] { 5 }, bytes(dst));
+
+		assertEquals(0, selector.selectNow());
+	}
+
+	@Test
+	public void testClose_PeerReadsRemainingBytesThenEndOfStream() throws Exception {
+
+		broker.register(selector, SelectionKey.OP_READ, this);
+		client.write(ByteBuffer.wrap(new byte[] { 1, 2 }));
+		client.close();
+		assertFalse(client.isOpen());
+		assertTrue(broker.isOpen());
+
+		ByteBuffer dst = ByteBuffer.allocate(10);
+		assertEquals(1, selector.selectNow());
+		selector.selectedKeys().clear();
+		assertEquals(2, broker.read(dst));
+
+		assertEquals(1, selector.selectNow());
+		selector.selectedKeys().clear();
+		assertEquals(-1, broker.read(dst));
+	}
+
+	@Test
+	public void testWrite_PeerClosed() throws Exception {
+
+		broker.close();
+		try {
+			client.write(ByteBuffer.wrap(new byte[] { 1 }));
+			fail("expected exception");
+		} catch (IOException e) {
+			// the peer closed, not this end
+			assertFalse(e instanceof ClosedChannelException);
+		}
+	}
+
+	@Test(expected = ClosedChannelException.class)
+	public void testRead_Closed() throws Exception {
+
+		client.close();
+		client.read(ByteBuffer.allocate(1));
+	}
+
+	private byte[] bytes(ByteBuffer buffer) {
+
+		buffer.flip();
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		buffer.clear();
+		return bytes;
+	}
+}
@@ -275,7 +275,12 @@ public abstract class MqttChannelTestBase<C extends AbstractMqttChannel, B exten
 		long pingIntervalMillis;
 
 		public TestChannel(SocketChannel channel, MockMessageHandler handler, Selector selector, long messageResendIntervalMillis) throws IOException {
-			super(channel, handler, selector, messageResendIntervalMillis, stats);
+			this(channel, handler, selector, messageResendIntervalMillis, new ChannelManagerConfig());
+		}
+
+		public TestChannel(SocketChannel channel, MockMessageHandler handler, Selector selector, long messageResendIntervalMillis, ChannelManagerConfig config)
+				throws IOException {
+			super(channel, handler, selector, messageResendIntervalMillis, stats, config);
 			this.messageHandler = handler;
 		}
 
@@ -285,7 +290,12 @@ public abstract class MqttChannelTestBase<C extends AbstractMqttChannel, B exten
 
 		public TestChannel(String host, int port, MockMessageHandler handler, Selector selector, long messageResendIntervalMillis,
 				BlockingCommand<?> connectionCompleteCommand) throws IOException {
-			super(host, port, handler, selector, messageResendIntervalMillis, connectionCompleteCommand, stats);
+			this(host, port, handler, selector, messageResendIntervalMillis, connectionCompleteCommand, new ChannelManagerConfig());
+		}
+
+		public TestChannel(String host, int port, MockMessageHandler handler, Selector selector, long messageResendIntervalMillis,
+				BlockingCommand<?> connectionCompleteCommand, ChannelManagerConfig config) throws IOException {
+			super(host, port, handler, selector, messageResendIntervalMillis, connectionCompleteCommand, stats, config);
 			this.messageHandler = handler;
 		}
 
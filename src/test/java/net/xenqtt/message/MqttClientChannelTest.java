@@ -144,8 +144,17 @@ public class MqttClientChannelTest extends MqttChannelTestBase<MqttClientChannel
 		clientChannel.send(msg, null);
 
 		readWrite(0, 1);
-		brokerHandler.assertMessageCount(1);
-
-		return brokerHandler.message(0).getMessageType() == MessageType.PINGREQ;
+		if (brokerHandler.message(0).getMessageType() != MessageType.PINGREQ) {
+			brokerHandler.assertMessageCount(1);
+			return false;
+		}
+
+		// the ack is usually read along with the ping but if not read it now so it doesn't show up later
+		if (brokerHandler.messageCount() == 1) {
+			readWrite(0, 1);
+		}
+		assertEquals(msg, brokerHandler.message(brokerHandler.messageCount() - 1));
+
+		return true;
 	}
 }
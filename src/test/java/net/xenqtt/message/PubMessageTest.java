@@ -17,8 +17,11 @@ package net.xenqtt.message;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 
 import net.xenqtt.message.MessageType;
 import net.xenqtt.message.PubMessage;
@@ -279,4 +282,152 @@ public class PubMessageTest {
 		PubMessage message = new PubMessage(ByteBuffer.wrap(qos0Bytes), 90, 0);
 		message.setMessageId(7);
 	}
+
+	@Test
+	public void testCopy() {
+
+		PubMessage message = new PubMessage(ByteBuffer.wrap(qos1Bytes), 90, 7);
+		PubMessage copy = message.copy();
+
+		assertNotSame(message.buffer, copy.buffer);
+		assertEquals(7, copy.getReceivedTimestamp());
+		assertEquals(1, copy.getMessageId());
+		assertEquals("net.sf/message/topic", copy.getTopicName());
+		assertArrayEquals(paylaod, copy.getPayload());
+		assertArrayEquals(qos1Bytes, copy.buffer.array());
+	}
+
+	@Test
+	public void testRetainRelease_Pooled() {
+
+		BufferPool pool = new BufferPool(false);
+		ByteBuffer buffer = pool.allocate(qos1Bytes.length);
+		buffer.put(qos1Bytes);
+		buffer.flip();
+
+		PubMessage message = new PubMessage(buffer, 90, 0);
+		message.bufferPool = pool;
+
+		message.retain();
+		message.release();
+		assertNotSame(buffer, pool.allocate(qos1Bytes.length));
+
+		message.release();
+		assertSame(buffer, pool.allocate(qos1Bytes.length));
+
+		// releasing again must not return the buffer to the pool twice
+		message.release();
+		assertNotSame(buffer, pool.allocate(qos1Bytes.length));
+	}
+
+	@Test
+	public void testRetainRelease_NotPooled() {
+
+		PubMessage message = new PubMessage(ByteBuffer.wrap(qos1Bytes), 90, 0);
+		message.retain();
+		message.release();
+		message.release();
+		message.release();
+
+		assertArrayEquals(paylaod, message.getPayload());
+	}
+
+	@Test
+	public void testGetPayloadBuffer_Inbound() {
+
+		PubMessage message = new PubMessage(ByteBuffer.wrap(qos1Bytes), 90, 0);
+		ByteBuffer payload = message.getPayloadBuffer();
+
+		assertTrue(payload.isReadOnly());
+		assertEquals(paylaod.length, message.getPayloadLength());
+		assertEquals(paylaod.length, payload.remaining());
+		byte[] bytes = new byte[payload.remaining()];
+		payload.get(bytes);
+		assertArrayEquals(paylaod, bytes);
+	}
+
+	@Test
+	public void testGetPayload_ByteArray_Inbound() {
+
+		PubMessage message = new PubMessage(ByteBuffer.wrap(qos0Bytes), 88, 0);
+		byte[] bytes = new byte[paylaod.length + 1];
+
+		assertEquals(paylaod.length, message.getPayload(bytes, 1));
+		assertArrayEquals(paylaod, Arrays.copyOfRange(bytes, 1, bytes.length));
+	}
+
+	@Test
+	public void testFileCtor() throws Exception {
+
+		File file = File.createTempFile("xenqtt", ".payload");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.write(new byte[] { 9, 9 });
+			raf.write(paylaod);
+			raf.write(new byte[] { 9 });
+
+			PubMessage message = new PubMessage(QoS.AT_LEAST_ONCE, false, "net.sf/message/topic", 1, raf.getChannel(), 2, paylaod.length);
+
+			assertTrue(message.isPayloadInFile());
+			assertEquals("net.sf/message/topic", message.getTopicName());
+			assertEquals(1, message.getMessageId());
+			assertEquals(90, message.getRemainingLength());
+			assertEquals(paylaod.length, message.getPayloadLength());
+			byte[] expected = new PubMessage(QoS.AT_LEAST_ONCE, false, "net.sf/message/topic", 1, paylaod).buffer.array();
+			assertArrayEquals(Arrays.copyOf(expected, expected.length - paylaod.length), message.buffer.array());
+			assertArrayEquals(paylaod, message.getPayload());
+
+			byte[] bytes = new byte[paylaod.length + 1];
+			assertEquals(paylaod.length, message.getPayload(bytes, 1));
+			assertArrayEquals(paylaod, Arrays.copyOfRange(bytes, 1, bytes.length));
+
+			ByteBuffer buffer = ByteBuffer.allocate(paylaod.length);
+			assertEquals(paylaod.length, message.getPayload(buffer));
+			assertArrayEquals(paylaod, buffer.array());
+
+			ByteBuffer payloadBuffer = message.getPayloadBuffer();
+			assertTrue(payloadBuffer.isReadOnly());
+			bytes = new byte[payloadBuffer.remaining()];
+			payloadBuffer.get(bytes);
+			assertArrayEquals(paylaod, bytes);
+
+			assertArrayEquals(paylaod, message.copy().getPayload());
+		} finally {
+			raf.close();
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testTemplateCtor_Qos1() {
+
+		PubMessage template = new PubMessage(QoS.AT_LEAST_ONCE, false, "net.sf/message/topic", 7, new byte[] { 1, 2, 3 });
+		PubMessage message = new PubMessage(template, paylaod);
+		message.setMessageId(1);
+
+		assertSame(MessageType.PUBLISH, message.getMessageType());
+		assertEquals("net.sf/message/topic", message.getTopicName());
+		assertEquals(QoS.AT_LEAST_ONCE, message.getQoS());
+		assertEquals(1, message.getMessageId());
+		assertArrayEquals(paylaod, message.getPayload());
+		assertFalse(message.isDuplicate());
+		assertFalse(message.isRetain());
+		assertArrayEquals(new PubMessage(QoS.AT_LEAST_ONCE, false, "net.sf/message/topic", 1, paylaod).buffer.array(), message.buffer.array());
+
+		assertEquals(7, template.getMessageId());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, template.getPayload());
+	}
+
+	@Test
+	public void testTemplateCtor_Qos0Retain() {
+
+		PubMessage template = new PubMessage(QoS.AT_MOST_ONCE, true, "net.sf/message/topic", 0, new byte[0]);
+		PubMessage message = new PubMessage(template, paylaod);
+
+		assertEquals("net.sf/message/topic", message.getTopicName());
+		assertEquals(QoS.AT_MOST_ONCE, message.getQoS());
+		assertArrayEquals(paylaod, message.getPayload());
+		assertTrue(message.isRetain());
+		assertArrayEquals(new PubMessage(QoS.AT_MOST_ONCE, true, "net.sf/message/topic", 0, paylaod).buffer.array(), message.buffer.array());
+	}
 }
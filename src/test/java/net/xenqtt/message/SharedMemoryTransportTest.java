@@ -0,0 +1,315 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SharedMemoryTransportTest {
+
+	final BlockingQueue<SharedMemoryTransport> accepted = new LinkedBlockingQueue<SharedMemoryTransport>();
+	final SharedMemoryTransport.Acceptor acceptor = new SharedMemoryTransport.Acceptor() {
+
+		@Override
+		public void accept(SharedMemoryTransport transport) {
+			accepted.add(transport);
+		}
+	};
+
+	File path;
+	SharedMemoryTransport.Listener listener;
+	Selector selector;
+	SharedMemoryTransport client;
+	SharedMemoryTransport broker;
+
+	@Before
+	public void setup() throws Exception {
+
+		Assume.assumeTrue(SharedMemoryTransport.isSupported());
+
+		path = File.createTempFile("SharedMemoryTransportTest", ".broker");
+		path.delete();
+
+		selector = Selector.open();
+		listener = SharedMemoryTransport.bind(path.getPath(), acceptor);
+
+		client = new SharedMemoryTransport();
+		assertTrue(client.connect(new SharedMemoryTransport.Address(path.getPath())));
+		broker = accepted.poll(5, TimeUnit.SECONDS);
+		assertNotNull(broker);
+	}
+
+	@After
+	public void after() throws Exception {
+
+		if (listener == null) {
+			return;
+		}
+
+		listener.close();
+		client.close();
+		broker.close();
+		selector.close();
+	}
+
+	@Test
+	public void testConnect() throws Exception {
+
+		assertTrue(client.isConnected());
+		assertTrue(broker.isConnected());
+		assertFalse(client.isConnectionPending());
+		assertTrue(client.finishConnect());
+		assertFalse(client.isWriteSelectable());
+
+		assertEquals("shm://" + path.getPath(), client.getRemoteAddress());
+		assertEquals("shm://" + path.getPath(), broker.getLocalAddress());
+		assertTrue(client.getLocalAddress().endsWith(".ring"));
+		assertEquals(client.getLocalAddress(), broker.getRemoteAddress());
+
+		// the broker deletes the connection's file once it is mapped
+		assertFalse(new File(client.getLocalAddress()).exists());
+	}
+
+	@Test(expected = ConnectException.class)
+	public void testConnect_NoBroker() throws Exception {
+
+		new SharedMemoryTransport().connect(new SharedMemoryTransport.Address(path.getPath() + ".none"));
+	}
+
+	@Test(expected = BindException.class)
+	public void testBind_PathInUse() throws Exception {
+
+		SharedMemoryTransport.bind(path.getPath(), acceptor);
+	}
+
+	@Test
+	public void testListener_OnlyAcceptsConnectionFiles() throws Exception {
+
+		File outside = File.createTempFile("SharedMemoryTransportTest", ".ring");
+		File notConnection = new File(path.getParentFile(), path.getName() + "-junk.ring");
+		File missing = new File(path.getParentFile(), path.getName() + "-missing.ring");
+		try {
+			FileOutputStream out = new FileOutputStream(notConnection);
+			try {
+				out.write(new byte[4096]);
+			} finally {
+				out.close();
+			}
+
+			DataInputStream in = new DataInputStream(new FileInputStream(path));
+			int port = in.readInt();
+			in.close();
+
+			DatagramChannel channel = DatagramChannel.open();
+			try {
+				InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(null), port);
+				channel.send(ByteBuffer.wrap(outside.getAbsolutePath().getBytes("UTF-8")), address);
+				channel.send(ByteBuffer.wrap(("../" + outside.getName()).getBytes("UTF-8")), address);
+				channel.send(ByteBuffer.wrap(notConnection.getName().getBytes("UTF-8")), address);
+				channel.send(ByteBuffer.wrap(missing.getName().getBytes("UTF-8")), address);
+			} finally {
+				channel.close();
+			}
+
+			// requests are handled in order so once this connection is accepted the others have been rejected
+			SharedMemoryTransport client2 = new SharedMemoryTransport();
+			assertTrue(client2.connect(new SharedMemoryTransport.Address(path.getPath())));
+			SharedMemoryTransport broker2 = accepted.poll(5, TimeUnit.SECONDS);
+			assertNotNull(broker2);
+			assertEquals(client2.getLocalAddress(), broker2.getRemoteAddress());
+			client2.close();
+			broker2.close();
+
+			assertTrue(accepted.isEmpty());
+			assertTrue(outside.exists());
+			assertTrue(notConnection.exists());
+			assertFalse(missing.exists());
+		} finally {
+			outside.delete();
+			notConnection.delete();
+			missing.delete();
+		}
+	}
+
+	@Test
+	public void testListenerClose() throws Exception {
+
+		listener.close();
+		assertFalse(path.exists());
+		try {
+			new SharedMemoryTransport().connect(new SharedMemoryTransport.Address(path.getPath()));
+			fail("expected exception");
+		} catch (ConnectException e) {
+		}
+
+		// the existing connection is not affected
+		assertEquals(1, client.write(ByteBuffer.wrap(new byte[] { 1 })));
+	}
+
+	@Test
+	public void testWriteRead_Gathering() throws Exception {
+
+		SelectionKey key = broker.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+		assertEquals(SelectionKey.OP_READ, key.interestOps());
+
+		// registering rings the doorbell in case the client wrote before the broker accepted
+		ByteBuffer dst = ByteBuffer.allocate(10);
+		assertEquals(1, selector.select(1000));
+		selector.selectedKeys().clear();
+		assertEquals(0, broker.read(dst));
+
+		ByteBuffer[] buffers = new ByteBuffer[] { ByteBuffer.wrap(new byte[] { 1, 2 }), ByteBuffer.wrap(new byte[] { 3 }) };
+		assertEquals(3, client.write(buffers));
+		assertFalse(buffers[0].hasRemaining());
+		assertFalse(buffers[1].hasRemaining());
+
+		assertEquals(1, selector.select(1000));
+		selector.selectedKeys().clear();
+
+		assertEquals(3, broker.read(dst));
+		assertArrayEquals(new byte[] { 1, 2, 3 }, bytes(dst));
+
+		assertEquals(0, selector.selectNow());
+		assertEquals(0, broker.read(dst));
+	}
+
+	@Test
+	public void testWriteRead_BrokerToClient() throws Exception {
+
+		client.register(selector, SelectionKey.OP_READ, this);
+		assertEquals(2, broker.write(ByteBuffer.wrap(new byte[] { 1, 2 })));
+
+		ByteBuffer dst = ByteBuffer.allocate(10);
+		assertEquals(1, selector.select(1000));
+		assertEquals(2, client.read(dst));
+		assertArrayEquals(new byte[] { 1, 2 }, bytes(dst));
+	}
+
+	@Test
+	public void testWrite_RingFull_WrapsAround() throws Exception {
+
+		byte[] bytes = new byte[SharedMemoryTransport.RING_CAPACITY - 10];
+		bytes[bytes.length - 1] = 7;
+		assertEquals(bytes.length, client.write(ByteBuffer.wrap(bytes)));
+
+		ByteBuffer src = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 });
+		assertEquals(10, client.write(src));
+		assertEquals(2, src.remaining());
+		assertEquals(0, client.write(src));
+
+		ByteBuffer dst = ByteBuffer.allocate(bytes.length);
+		assertEquals(bytes.length, broker.read(dst));
+		assertEquals(7, dst.get(bytes.length - 1));
+
+		// the rest of the write wraps around to the start of the ring
+		assertEquals(2, client.write(src));
+		dst = ByteBuffer.allocate(20);
+		assertEquals(12, broker.read(dst));
+		assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 }, bytes(dst));
+	}
+
+	@Test
+	public void testRead_PartialReadStaysSelected() throws Exception {
+
+		broker.register(selector, SelectionKey.OP_READ, this);
+		client.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+		client.write(ByteBuffer.wrap(new byte[] { 4, 5 }));
+
+		ByteBuffer dst = ByteBuffer.allocate(4);
+		assertEquals(1, selector.select(1000));
+		selector.selectedKeys().clear();
+		assertEquals(4, broker.read(dst));
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 }, bytes(dst));
+
+		dst.clear();
+		assertEquals(1, selector.select(1000));
+		selector.selectedKeys().clear();
+		assertEquals(1, broker.read(dst));
+		assertArrayEquals(new byte[] { 5 }, bytes(dst));
+
+		assertEquals(0, selector.selectNow());
+	}
+
+	@Test
+	public void testClose_PeerReadsRemainingBytesThenEndOfStream() throws Exception {
+
+		broker.register(selector, SelectionKey.OP_READ, this);
+		client.write(ByteBuffer.wrap(new byte[] { 1, 2 }));
+		client.close();
+		assertFalse(client.isOpen());
+		assertTrue(broker.isOpen());
+
+		ByteBuffer dst = ByteBuffer.allocate(10);
+		assertEquals(1, selector.select(1000));
+		selector.selectedKeys().clear();
+		assertEquals(2, broker.read(dst));
+
+		assertEquals(1, selector.select(1000));
+		selector.selectedKeys().clear();
+		assertEquals(-1, broker.read(dst));
+	}
+
+	@Test
+	public void testWrite_PeerClosed() throws Exception {
+
+		broker.close();
+		try {
+			client.write(ByteBuffer.wrap(new byte[] { 1 }));
+			fail("expected exception");
+		} catch (IOException e) {
+			// the peer closed, not this end
+			assertFalse(e instanceof ClosedChannelException);
+		}
+	}
+
+	@Test(expected = ClosedChannelException.class)
+	public void testRead_Closed() throws Exception {
+
+		client.close();
+		client.read(ByteBuffer.allocate(1));
+	}
+
+	private byte[] bytes(ByteBuffer buffer) {
+
+		buffer.flip();
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		buffer.clear();
+		return bytes;
+	}
+}
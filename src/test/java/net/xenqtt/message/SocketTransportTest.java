@@ -0,0 +1,39 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.Test;
+
+public class SocketTransportTest {
+
+	@Test
+	public void testTransferFrom_TransfersToSocketChannel() throws Exception {
+
+		SocketChannel channel = mock(SocketChannel.class);
+		FileChannel file = mock(FileChannel.class);
+		when(file.transferTo(7, 100, channel)).thenReturn(60L);
+
+		// the file channel only avoids copying the bytes when it is given the socket channel itself
+		assertEquals(60, new SocketTransport(channel).transferFrom(file, 7, 100));
+		verify(file).transferTo(7, 100, channel);
+	}
+}
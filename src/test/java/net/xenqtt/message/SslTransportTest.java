@@ -0,0 +1,253 @@
+/**
+    Copyright 2013 James McClure
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.xenqtt.message;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import net.xenqtt.mock.MockMessageHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SslTransportTest {
+
+	// ssl-test.jks holds a self-signed certificate for localhost, with no IP address, that expires in 2124
+	static final char[] KEY_STORE_PASSWORD = "xenqtt".toCharArray();
+
+	final AtomicInteger serverCertificateChecks = new AtomicInteger();
+	final AtomicReference<String> serverCertificateCheckThread = new AtomicReference<String>();
+
+	MockMessageHandler brokerHandler = new MockMessageHandler() {
+
+		@Override
+		public void publish(MqttChannel channel, PubMessage message) throws Exception {
+			super.publish(channel, message);
+			channel.send(new PubMessage(QoS.AT_MOST_ONCE, false, message.getTopicName(), 0, message.getPayload()));
+		}
+	};
+	MockMessageHandler clientHandler = new MockMessageHandler();
+
+	ServerSocketChannel server;
+	ChannelManagerImpl brokerManager;
+	ChannelManagerImpl clientManager;
+
+	@Before
+	public void setup() throws Exception {
+
+		server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress("localhost", 0));
+
+		brokerManager = new ChannelManagerImpl(2, -1, new ChannelManagerConfig().setSslContext(newSslContext(true)));
+		brokerManager.init();
+		brokerManager.acceptSslBrokerChannels(server, brokerHandler);
+	}
+
+	@After
+	public void after() throws Exception {
+
+		server.close();
+		brokerManager.shutdown();
+		if (clientManager != null) {
+			clientManager.shutdown();
+		}
+	}
+
+	@Test
+	public void testPublish_Small() throws Exception {
+
+		newClientManager(new ChannelManagerConfig().setSslContext(newSslContext(true)));
+		MqttChannelRef channel = clientManager.newClientChannel("ssl://localhost:" + server.socket().getLocalPort(), clientHandler);
+
+		assertEcho(channel, 10);
+	}
+
+	@Test
+	public void testPublish_LargerThanTlsRecordsAndReadBuffer() throws Exception {
+
+		newClientManager(new ChannelManagerConfig().setSslContext(newSslContext(true)));
+		MqttChannelRef channel = clientManager.newClientChannel("ssl://localhost:" + server.socket().getLocalPort(), clientHandler);
+
+		assertEcho(channel, 200 * 1024);
+	}
+
+	@Test
+	public void testPublish_DirectBuffers() throws Exception {
+
+		newClientManager(new ChannelManagerConfig().setSslContext(newSslContext(true)).setDirectBuffersEnabled(true));
+		MqttChannelRef channel = clientManager.newClientChannel("ssl://localhost:" + server.socket().getLocalPort(), clientHandler);
+
+		assertEcho(channel, 100 * 1024);
+	}
+
+	@Test
+	public void testReconnect_ResumesSession() throws Exception {
+
+		newClientManager(new ChannelManagerConfig().setSslContext(newSslContext(true)));
+
+		MqttChannelRef channel = clientManager.newClientChannel("ssl://localhost:" + server.socket().getLocalPort(), clientHandler);
+		assertEcho(channel, 10);
+		assertEquals(1, serverCertificateChecks.get());
+
+		CountDownLatch closedTrigger = new CountDownLatch(1);
+		clientHandler.onChannelClosed(closedTrigger);
+		clientManager.close(channel);
+		assertTrue(closedTrigger.await(1, TimeUnit.SECONDS));
+
+		// a resumed session skips the certificate checks of a full handshake
+		channel = clientManager.newClientChannel("ssl://localhost:" + server.socket().getLocalPort(), clientHandler);
+		assertEcho(channel, 10);
+		assertEquals(1, serverCertificateChecks.get());
+	}
+
+	@Test
+	public void testConnect_CertificateCheckedOffIoThread() throws Exception {
+
+		newClientManager(new ChannelManagerConfig().setSslContext(newSslContext(true)));
+		MqttChannelRef channel = clientManager.newClientChannel("ssl://localhost:" + server.socket().getLocalPort(), clientHandler);
+
+		assertEcho(channel, 10);
+		assertEquals(1, serverCertificateChecks.get());
+		assertTrue(serverCertificateCheckThread.get().startsWith("MqttSslTask"));
+	}
+
+	@Test
+	public void testConnect_UntrustedCertificate() throws Exception {
+
+		newClientManager(new ChannelManagerConfig().setSslContext(newSslContext(false)));
+
+		CountDownLatch closedTrigger = new CountDownLatch(1);
+		clientHandler.onChannelClosed(closedTrigger);
+		clientManager.newClientChannel("ssl://localhost:" + server.socket().getLocalPort(), clientHandler);
+
+		assertTrue(closedTrigger.await(5, TimeUnit.SECONDS));
+		assertTrue(clientHandler.lastChannelClosedCause() instanceof SSLException);
+	}
+
+	@Test
+	public void testConnect_HostnameMismatch() throws Exception {
+
+		if (!SslTransport.isHostnameVerificationSupported()) {
+			return;
+		}
+
+		newClientManager(new ChannelManagerConfig().setSslContext(newSslContext(true)));
+
+		CountDownLatch closedTrigger = new CountDownLatch(1);
+		clientHandler.onChannelClosed(closedTrigger);
+		clientManager.newClientChannel("ssl://127.0.0.1:" + server.socket().getLocalPort(), clientHandler);
+
+		assertTrue(closedTrigger.await(5, TimeUnit.SECONDS));
+		assertTrue(clientHandler.lastChannelClosedCause() instanceof SSLException);
+	}
+
+	@Test
+	public void testConnect_HostnameVerificationDisabled() throws Exception {
+
+		newClientManager(new ChannelManagerConfig().setSslContext(newSslContext(true)).setSslHostnameVerificationEnabled(false));
+		MqttChannelRef channel = clientManager.newClientChannel("ssl://127.0.0.1:" + server.socket().getLocalPort(), clientHandler);
+
+		assertEcho(channel, 10);
+	}
+
+	private void newClientManager(ChannelManagerConfig config) {
+
+		clientManager = new ChannelManagerImpl(2, -1, config);
+		clientManager.init();
+	}
+
+	private void assertEcho(MqttChannelRef channel, int payloadSize) throws Exception {
+
+		byte[] payload = new byte[payloadSize];
+		new Random().nextBytes(payload);
+
+		CountDownLatch trigger = new CountDownLatch(1);
+		clientHandler.onMessage(MessageType.PUBLISH, trigger);
+		clientHandler.clearMessages();
+
+		clientManager.send(channel, new PubMessage(QoS.AT_MOST_ONCE, false, "ssl", 0, payload));
+
+		assertTrue(trigger.await(5, TimeUnit.SECONDS));
+		assertArrayEquals(payload, ((PubMessage) clientHandler.message(0)).getPayload());
+	}
+
+	/**
+	 * @param trusted
+	 *            True if the context trusts the certificate in ssl-test.jks
+	 */
+	private SSLContext newSslContext(boolean trusted) throws Exception {
+
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		InputStream in = getClass().getResourceAsStream("/ssl-test.jks");
+		try {
+			keyStore.load(in, KEY_STORE_PASSWORD);
+		} finally {
+			in.close();
+		}
+
+		KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagerFactory.init(keyStore, KEY_STORE_PASSWORD);
+
+		// an untrusted context uses the JVM's default trust store
+		TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagerFactory.init(trusted ? keyStore : null);
+		final X509TrustManager trustManager = (X509TrustManager) trustManagerFactory.getTrustManagers()[0];
+
+		TrustManager countingTrustManager = new X509TrustManager() {
+
+			@Override
+			public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+				serverCertificateChecks.incrementAndGet();
+				serverCertificateCheckThread.set(Thread.currentThread().getName());
+				trustManager.checkServerTrusted(chain, authType);
+			}
+
+			@Override
+			public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+				trustManager.checkClientTrusted(chain, authType);
+			}
+
+			@Override
+			public X509Certificate[] getAcceptedIssuers() {
+				return trustManager.getAcceptedIssuers();
+			}
+		};
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keyManagerFactory.getKeyManagers(), new TrustManager[] { countingTrustManager }, null);
+
+		return context;
+	}
+}
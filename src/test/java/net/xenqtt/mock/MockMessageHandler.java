@@ -42,11 +42,12 @@ import net.xenqtt.message.SubAckMessage;
 import net.xenqtt.message.SubscribeMessage;
 import net.xenqtt.message.UnsubAckMessage;
 import net.xenqtt.message.UnsubscribeMessage;
+import net.xenqtt.message.WritabilityAwareMessageHandler;
 
 /**
  * Thread safe mock implementation of {@link MessageHandler}
  */
-public class MockMessageHandler implements MessageHandler {
+public class MockMessageHandler implements WritabilityAwareMessageHandler {
 
 	private final Map<Object, CountDownLatch> triggers = new ConcurrentHashMap<Object, CountDownLatch>();
 	private final List<MqttMessage> messagesReceived = new CopyOnWriteArrayList<MqttMessage>();
@@ -56,6 +57,7 @@ public class MockMessageHandler implements MessageHandler {
 	private volatile int channelAttachedCount;
 	private volatile int channelDetachedCount;
 	private volatile Throwable lastChannelClosedCause;
+	private final List<Boolean> writabilityChanges = new CopyOnWriteArrayList<Boolean>();
 
 	/**
 	 * @see net.xenqtt.message.MessageHandler#connect(net.xenqtt.message.MqttChannel, net.xenqtt.message.ConnectMessage)
@@ -198,6 +200,14 @@ public class MockMessageHandler implements MessageHandler {
 	public void messageSent(MqttChannel channel, MqttMessage message) {
 	}
 
+	/**
+	 * @see net.xenqtt.message.WritabilityAwareMessageHandler#channelWritabilityChanged(net.xenqtt.message.MqttChannel, boolean)
+	 */
+	@Override
+	public void channelWritabilityChanged(MqttChannel channel, boolean writable) {
+		writabilityChanges.add(writable);
+	}
+
 	/**
 	 * Called by test channels when a {@link PingReqMessage} is received so it can be handled by this mock like other messages.
 	 */
@@ -248,6 +258,13 @@ public class MockMessageHandler implements MessageHandler {
 		return channelDetachedCount;
 	}
 
+	/**
+	 * @return The writable value from each invocation of {@link #channelWritabilityChanged(MqttChannel, boolean)} in the order they were invoked
+	 */
+	public final List<Boolean> writabilityChanges() {
+		return writabilityChanges;
+	}
+
 	/**
 	 * @return the cause from the most recent invocation of {@link #channelClosed(MqttChannel, Throwable)}
 	 */